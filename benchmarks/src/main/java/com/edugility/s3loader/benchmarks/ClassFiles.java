@@ -0,0 +1,101 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Generates minimal, valid Java class files of a given size, so that
+ * benchmarks need not ship compiled classes of their own.
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class ClassFiles {
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ClassFiles}.
+   */
+  private ClassFiles() {
+    super();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the bytes of a class file, at least {@code size} bytes
+   * long, declaring a public class named {@code className} that
+   * extends {@link Object} and has no members.
+   *
+   * <p>The class file is padded to the requested size with an unused
+   * constant pool entry, so it is parsed, but not executed, in
+   * proportion to its size.</p>
+   *
+   * @param className the binary name of the class, such as {@code
+   * bench.C0}; must not be {@code null}
+   *
+   * @param size the minimum size of the class file; must be less
+   * than {@code 65536}
+   *
+   * @return a new, non-{@code null} array of class file bytes
+   *
+   * @exception NullPointerException if {@code className} is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if {@code size} is too large
+   */
+  static final byte[] newClassFile(final String className, final int size) {
+    Objects.requireNonNull(className, "className == null");
+    if (size >= 65536) {
+      throw new IllegalArgumentException("size >= 65536: " + size);
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, size + 16));
+    try (final DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0); // minor version
+      out.writeShort(51); // major version: Java 7
+      out.writeShort(6); // constant pool count
+      out.writeByte(1); // #1 CONSTANT_Utf8
+      out.writeUTF(className.replace('.', '/'));
+      out.writeByte(7); // #2 CONSTANT_Class
+      out.writeShort(1);
+      out.writeByte(1); // #3 CONSTANT_Utf8
+      out.writeUTF("java/lang/Object");
+      out.writeByte(7); // #4 CONSTANT_Class
+      out.writeShort(3);
+      out.writeByte(1); // #5 CONSTANT_Utf8, padding
+      final int padding = Math.max(0, size - (out.size() + 2 + 14));
+      final char[] filler = new char[padding];
+      Arrays.fill(filler, 'x');
+      out.writeUTF(new String(filler));
+      out.writeShort(0x0021); // ACC_PUBLIC | ACC_SUPER
+      out.writeShort(2); // this_class
+      out.writeShort(4); // super_class
+      out.writeShort(0); // interfaces_count
+      out.writeShort(0); // fields_count
+      out.writeShort(0); // methods_count
+      out.writeShort(0); // attributes_count
+    } catch (final IOException impossible) {
+      throw new AssertionError(impossible);
+    }
+    return bytes.toByteArray();
+  }
+
+}
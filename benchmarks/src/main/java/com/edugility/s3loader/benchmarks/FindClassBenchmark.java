@@ -0,0 +1,274 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.edugility.s3loader.S3ClassLoader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks measuring the throughput of {@link
+ * S3ClassLoader#findClass(String)}, by way of {@link
+ * ClassLoader#loadClass(String)}, against a {@link SimulatedBucket}.
+ *
+ * <p>A class can be defined only once by a given loader, so each
+ * benchmark invocation creates a new {@link S3ClassLoader} and loads
+ * every class in the bucket with it; scores are reported per
+ * class.</p>
+ *
+ * <p>To measure the allocation done per class, with and without
+ * pooled buffers, run the {@link #findClass(SimulatedBucket,
+ * Blackhole)} and {@link #findClassUnpooled(SimulatedBucket,
+ * Blackhole)} benchmarks with zero latency and the GC profiler, and
+ * compare their {@code gc.alloc.rate.norm} figures:</p>
+ *
+ * <blockquote><pre>java -jar benchmarks/target/benchmarks.jar 'FindClassBenchmark.findClass(Unpooled)?$' -p latencyMicroseconds=0 -p bytesPerSecond=0 -p cache=none -p transport=direct -prof gc</pre></blockquote>
+ *
+ * <p>With the default 4096-byte classes, the pooled loader allocates
+ * about 3.2 kilobytes per class and the unpooled loader about 7.3
+ * kilobytes; the difference, the size of one class file, is the
+ * array each class used to be read into.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see SimulatedBucket
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class FindClassBenchmark {
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link FindClassBenchmark}.
+   */
+  public FindClassBenchmark() {
+    super();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Loads every class in the supplied {@link SimulatedBucket} with a
+   * new {@link S3ClassLoader} on one thread.
+   *
+   * @param bucket the {@link SimulatedBucket}; must not be {@code
+   * null}
+   *
+   * @param blackhole a {@link Blackhole} to consume the loaded
+   * classes; must not be {@code null}
+   *
+   * @exception ClassNotFoundException if a class could not be loaded
+   */
+  @Benchmark
+  @OperationsPerInvocation(SimulatedBucket.CLASSES)
+  public void findClass(final SimulatedBucket bucket, final Blackhole blackhole) throws ClassNotFoundException {
+    loadAll(bucket, blackhole);
+  }
+
+  /**
+   * Loads every class in the supplied {@link SimulatedBucket} with a
+   * new {@linkplain SimulatedBucket#newUnpooledLoader() unpooled}
+   * {@link S3ClassLoader} on one thread, as a baseline for the {@link
+   * #findClass(SimulatedBucket, Blackhole)} benchmark.
+   *
+   * @param bucket the {@link SimulatedBucket}; must not be {@code
+   * null}
+   *
+   * @param blackhole a {@link Blackhole} to consume the loaded
+   * classes; must not be {@code null}
+   *
+   * @exception ClassNotFoundException if a class could not be loaded
+   */
+  @Benchmark
+  @OperationsPerInvocation(SimulatedBucket.CLASSES)
+  public void findClassUnpooled(final SimulatedBucket bucket, final Blackhole blackhole) throws ClassNotFoundException {
+    loadAll(bucket.newUnpooledLoader(), bucket.getClassNames(), blackhole);
+  }
+
+  /**
+   * Loads every class in the supplied {@link SimulatedBucket} with a
+   * new {@link S3ClassLoader} on each of several threads at once, so
+   * that the threads contend for the shared {@link
+   * com.edugility.s3loader.FakeAmazonS3} and {@linkplain
+   * com.edugility.s3loader.ObjectCache object cache}.
+   *
+   * @param bucket the {@link SimulatedBucket}; must not be {@code
+   * null}
+   *
+   * @param blackhole a {@link Blackhole} to consume the loaded
+   * classes; must not be {@code null}
+   *
+   * @exception ClassNotFoundException if a class could not be loaded
+   */
+  @Benchmark
+  @OperationsPerInvocation(SimulatedBucket.CLASSES)
+  @Threads(8)
+  public void findClassContended(final SimulatedBucket bucket, final Blackhole blackhole) throws ClassNotFoundException {
+    loadAll(bucket, blackhole);
+  }
+
+  /**
+   * Loads every class in the supplied {@link SimulatedBucket} with a
+   * new {@link S3ClassLoader} using {@link
+   * S3ClassLoader#loadClasses(java.util.Collection, ExecutorService)},
+   * so that several threads contend within a single loader.
+   *
+   * @param bucket the {@link SimulatedBucket}; must not be {@code
+   * null}
+   *
+   * @param pool the {@link Pool} supplying the {@link
+   * ExecutorService} to use; must not be {@code null}
+   *
+   * @param blackhole a {@link Blackhole} to consume the loaded
+   * classes; must not be {@code null}
+   *
+   * @exception InterruptedException if the calling thread is
+   * interrupted
+   *
+   * @exception ExecutionException if a class could not be loaded
+   */
+  @Benchmark
+  @OperationsPerInvocation(SimulatedBucket.CLASSES)
+  public void loadClasses(final SimulatedBucket bucket, final Pool pool, final Blackhole blackhole) throws InterruptedException, ExecutionException {
+    final S3ClassLoader loader = bucket.newLoader();
+    final Map<String, Future<Class<?>>> classes = loader.loadClasses(bucket.getClassNames(), pool.executor);
+    for (final Future<Class<?>> c : classes.values()) {
+      blackhole.consume(c.get());
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Loads every class in the supplied {@link SimulatedBucket} with a
+   * new {@link S3ClassLoader} on the calling thread.
+   *
+   * @param bucket the {@link SimulatedBucket}; must not be {@code
+   * null}
+   *
+   * @param blackhole a {@link Blackhole} to consume the loaded
+   * classes; must not be {@code null}
+   *
+   * @exception ClassNotFoundException if a class could not be loaded
+   */
+  private static final void loadAll(final SimulatedBucket bucket, final Blackhole blackhole) throws ClassNotFoundException {
+    loadAll(bucket.newLoader(), bucket.getClassNames(), blackhole);
+  }
+
+  /**
+   * Loads every named class with the supplied {@link S3ClassLoader}
+   * on the calling thread.
+   *
+   * @param loader the {@link S3ClassLoader}; must not be {@code null}
+   *
+   * @param classNames the names of the classes to load; must not be
+   * {@code null}
+   *
+   * @param blackhole a {@link Blackhole} to consume the loaded
+   * classes; must not be {@code null}
+   *
+   * @exception ClassNotFoundException if a class could not be loaded
+   */
+  private static final void loadAll(final S3ClassLoader loader, final List<String> classNames, final Blackhole blackhole) throws ClassNotFoundException {
+    for (final String className : classNames) {
+      blackhole.consume(loader.loadClass(className));
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A JMH {@link State} holding the {@link ExecutorService} used by
+   * the {@link FindClassBenchmark#loadClasses(SimulatedBucket, Pool,
+   * Blackhole)} benchmark.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  @State(Scope.Benchmark)
+  public static class Pool {
+
+    /**
+     * The {@link ExecutorService}.
+     *
+     * <p>This field is {@code null} until {@link #setUp()} has been
+     * called.</p>
+     */
+    private ExecutorService executor;
+
+    /**
+     * Creates a new {@link Pool}.
+     */
+    public Pool() {
+      super();
+    }
+
+    /**
+     * Creates the {@link ExecutorService}.
+     */
+    @Setup
+    public void setUp() {
+      this.executor = Executors.newFixedThreadPool(8);
+    }
+
+    /**
+     * Shuts the {@link ExecutorService} down.
+     *
+     * @exception InterruptedException if the calling thread is
+     * interrupted
+     */
+    @TearDown
+    public void tearDown() throws InterruptedException {
+      this.executor.shutdown();
+      this.executor.awaitTermination(1L, TimeUnit.MINUTES);
+    }
+
+  }
+
+}
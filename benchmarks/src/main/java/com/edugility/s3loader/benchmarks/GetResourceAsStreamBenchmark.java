@@ -0,0 +1,176 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.concurrent.TimeUnit;
+
+import com.edugility.s3loader.S3ClassLoader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks measuring the throughput and latency of {@link
+ * S3ClassLoader#getResourceAsStream(String)} against a {@link
+ * SimulatedBucket}.
+ *
+ * <p>Each invocation opens the resource and reads it to the end.
+ * Throughput is reported in operations per second; latency is
+ * sampled, so that percentiles as well as means are reported.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see SimulatedBucket
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class GetResourceAsStreamBenchmark {
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link GetResourceAsStreamBenchmark}.
+   */
+  public GetResourceAsStreamBenchmark() {
+    super();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Reads the resource in the supplied {@link SimulatedBucket} on one
+   * thread.
+   *
+   * @param loader the {@link Loader} to read with; must not be {@code
+   * null}
+   *
+   * @return the number of bytes read
+   *
+   * @exception IOException if the resource could not be read
+   */
+  @Benchmark
+  public long getResourceAsStream(final Loader loader) throws IOException {
+    return read(loader.loader);
+  }
+
+  /**
+   * Reads the resource in the supplied {@link SimulatedBucket} on
+   * each of several threads at once through a single loader, so that
+   * the threads contend within it.
+   *
+   * @param loader the {@link Loader} to read with; must not be {@code
+   * null}
+   *
+   * @return the number of bytes read
+   *
+   * @exception IOException if the resource could not be read
+   */
+  @Benchmark
+  @Threads(8)
+  public long getResourceAsStreamContended(final Loader loader) throws IOException {
+    return read(loader.loader);
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Opens the {@linkplain SimulatedBucket#RESOURCE_NAME resource}
+   * with the supplied {@link S3ClassLoader} and reads it to the end.
+   *
+   * @param loader the {@link S3ClassLoader}; must not be {@code null}
+   *
+   * @return the number of bytes read
+   *
+   * @exception IOException if the resource could not be found or
+   * read
+   */
+  private static final long read(final S3ClassLoader loader) throws IOException {
+    long returnValue = 0L;
+    try (final InputStream stream = loader.getResourceAsStream(SimulatedBucket.RESOURCE_NAME)) {
+      if (stream == null) {
+        throw new IOException("Resource not found: " + SimulatedBucket.RESOURCE_NAME);
+      }
+      final byte[] buffer = new byte[8192];
+      int bytesRead;
+      while ((bytesRead = stream.read(buffer)) >= 0) {
+        returnValue += bytesRead;
+      }
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A JMH {@link State} holding the {@link S3ClassLoader} shared by
+   * every benchmark thread.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  @State(Scope.Benchmark)
+  public static class Loader {
+
+    /**
+     * The {@link S3ClassLoader}.
+     *
+     * <p>This field is {@code null} until {@link
+     * #setUp(SimulatedBucket)} has been called.</p>
+     */
+    private S3ClassLoader loader;
+
+    /**
+     * Creates a new {@link Loader}.
+     */
+    public Loader() {
+      super();
+    }
+
+    /**
+     * Creates the {@link S3ClassLoader}.
+     *
+     * @param bucket the {@link SimulatedBucket} to load from; must
+     * not be {@code null}
+     */
+    @Setup
+    public void setUp(final SimulatedBucket bucket) {
+      this.loader = bucket.newLoader();
+    }
+
+  }
+
+}
@@ -0,0 +1,394 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader.benchmarks;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+import com.edugility.s3loader.DiskObjectCache;
+import com.edugility.s3loader.FakeAmazonS3;
+import com.edugility.s3loader.LoopbackS3Server;
+import com.edugility.s3loader.MemoryObjectCache;
+import com.edugility.s3loader.ObjectCache;
+import com.edugility.s3loader.S3ClassLoader;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A JMH {@link State} holding a {@link FakeAmazonS3} populated with
+ * a bucket of generated classes and a resource, together with the
+ * {@link ObjectCache}, if any, that the loaders under test use.
+ *
+ * <p>The simulated network and the cache mode are JMH {@linkplain
+ * Param parameters}, so a single run compares them; the sizes of the
+ * stored objects are parameters too, and may be varied on the
+ * command line with, for example, {@code -p classSize=16384}.</p>
+ *
+ * <p>The {@link #transport} parameter selects whether the loaders
+ * under test call the {@link FakeAmazonS3} directly or reach it
+ * through an Amazon S3 client talking HTTP to a {@link
+ * LoopbackS3Server}, which exercises the client's real networking
+ * path without leaving the machine.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+@State(Scope.Benchmark)
+public class SimulatedBucket {
+
+  /**
+   * The name of the simulated bucket.
+   */
+  public static final String BUCKET_NAME = "s3loader-benchmarks";
+
+  /**
+   * The number of classes in the simulated bucket.
+   */
+  public static final int CLASSES = 100;
+
+  /**
+   * The name of the resource in the simulated bucket.
+   */
+  public static final String RESOURCE_NAME = "benchmarks/resource.bin";
+
+  /**
+   * The time each request takes before it returns, in microseconds.
+   */
+  @Param({ "0", "1000" })
+  public long latencyMicroseconds;
+
+  /**
+   * The rate at which object contents are delivered, in bytes per
+   * second, or {@code 0} if delivery is not throttled.
+   *
+   * <p>The default non-zero value corresponds to 100 megabits per
+   * second.</p>
+   */
+  @Param({ "0", "12500000" })
+  public long bytesPerSecond;
+
+  /**
+   * The {@link ObjectCache} the loaders under test use: {@code none},
+   * {@code heap}, {@code offheap} or {@code disk}.
+   */
+  @Param({ "none", "heap", "offheap", "disk" })
+  public String cache;
+
+  /**
+   * How the loaders under test reach the simulated bucket: {@code
+   * direct}, by calling the {@link FakeAmazonS3}, or {@code
+   * http}, through a {@link LoopbackS3Server}.
+   */
+  @Param({ "direct", "http" })
+  public String transport;
+
+  /**
+   * The size of each generated class file, in bytes.
+   */
+  @Param({ "4096" })
+  public int classSize;
+
+  /**
+   * The size of the resource, in bytes.
+   */
+  @Param({ "16384" })
+  public int resourceSize;
+
+  /**
+   * The {@link FakeAmazonS3} simulating Amazon S3.
+   *
+   * <p>This field is {@code null} until {@link #setUp()} has been
+   * called.</p>
+   */
+  private FakeAmazonS3 s3;
+
+  /**
+   * The {@link LoopbackS3Server} serving the simulated bucket over
+   * HTTP.
+   *
+   * <p>This field is {@code null} unless the {@link #transport}
+   * parameter is {@code http}.</p>
+   */
+  private LoopbackS3Server server;
+
+  /**
+   * The {@link AmazonS3} the loaders under test use.
+   *
+   * <p>This field is {@code null} until {@link #setUp()} has been
+   * called.</p>
+   */
+  private AmazonS3 client;
+
+  /**
+   * The {@link ObjectCache} the loaders under test use.
+   *
+   * <p>This field may be {@code null}.</p>
+   */
+  private ObjectCache objectCache;
+
+  /**
+   * The directory used by a {@link DiskObjectCache}.
+   *
+   * <p>This field may be {@code null}.</p>
+   */
+  private Path cacheDirectory;
+
+  /**
+   * The names of the classes in the simulated bucket.
+   *
+   * <p>This field is {@code null} until {@link #setUp()} has been
+   * called.</p>
+   */
+  private List<String> classNames;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link SimulatedBucket}.
+   */
+  public SimulatedBucket() {
+    super();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Populates the simulated bucket and creates the {@link
+   * ObjectCache} selected by the {@link #cache} parameter and the
+   * client selected by the {@link #transport} parameter.
+   *
+   * @exception IOException if a cache directory could not be created
+   * or a {@link LoopbackS3Server} could not be started
+   *
+   * @exception IllegalArgumentException if the {@link #cache} or
+   * {@link #transport} parameter is not recognized
+   */
+  @Setup
+  public void setUp() throws IOException {
+    this.s3 = new FakeAmazonS3();
+    // Every request takes the same time, so runs are comparable.
+    this.s3.setLatency(this.latencyMicroseconds, this.latencyMicroseconds, TimeUnit.MICROSECONDS);
+    this.s3.setBytesPerSecond(this.bytesPerSecond);
+    final List<String> classNames = new ArrayList<>(CLASSES);
+    for (int i = 0; i < CLASSES; i++) {
+      final String className = "benchmarks.C" + i;
+      // S3ClassLoader looks classes up by their names.
+      this.s3.putObject(BUCKET_NAME, className, ClassFiles.newClassFile(className, this.classSize));
+      classNames.add(className);
+    }
+    this.classNames = Collections.unmodifiableList(classNames);
+    this.s3.putObject(BUCKET_NAME, RESOURCE_NAME, new byte[this.resourceSize]);
+    switch (this.cache) {
+    case "none":
+      this.objectCache = null;
+      break;
+    case "heap":
+      this.objectCache = new MemoryObjectCache(64L * 1024L * 1024L, 0L, Integer.MAX_VALUE);
+      break;
+    case "offheap":
+      this.objectCache = new MemoryObjectCache(0L, 64L * 1024L * 1024L, 0);
+      break;
+    case "disk":
+      this.cacheDirectory = Files.createTempDirectory("s3loader-benchmarks");
+      this.objectCache = new DiskObjectCache(this.cacheDirectory);
+      break;
+    default:
+      throw new IllegalArgumentException("cache: " + this.cache);
+    }
+    switch (this.transport) {
+    case "direct":
+      this.client = this.s3;
+      break;
+    case "http":
+      this.server = new LoopbackS3Server(this.s3);
+      this.client = this.server.newClient();
+      break;
+    default:
+      throw new IllegalArgumentException("transport: " + this.transport);
+    }
+  }
+
+  /**
+   * Stops the {@link LoopbackS3Server} and deletes the directory used
+   * by a {@link DiskObjectCache}, if there are such things.
+   *
+   * @exception IOException if the directory could not be deleted
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    if (this.server != null) {
+      this.server.close();
+      this.server = null;
+    }
+    if (this.cacheDirectory != null) {
+      Files.walkFileTree(this.cacheDirectory, new SimpleFileVisitor<Path>() {
+          @Override
+          public final FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) throws IOException {
+            Files.delete(file);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public final FileVisitResult postVisitDirectory(final Path directory, final IOException e) throws IOException {
+            if (e != null) {
+              throw e;
+            }
+            Files.delete(directory);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      this.cacheDirectory = null;
+    }
+  }
+
+  /**
+   * Returns the {@link FakeAmazonS3} simulating Amazon S3.
+   *
+   * @return the {@link FakeAmazonS3}, or {@code null} if {@link
+   * #setUp()} has not been called
+   */
+  public final FakeAmazonS3 getAmazonS3() {
+    return this.s3;
+  }
+
+  /**
+   * Returns the names of the classes in the simulated bucket.
+   *
+   * @return an unmodifiable {@link List} of class names, or {@code
+   * null} if {@link #setUp()} has not been called
+   */
+  public final List<String> getClassNames() {
+    return this.classNames;
+  }
+
+  /**
+   * Returns a new {@link S3ClassLoader} that loads from the simulated
+   * bucket, using the selected {@link ObjectCache}, if any.
+   *
+   * <p>The new loader has no parent, so every class and resource it
+   * is asked for is looked up in the simulated bucket.</p>
+   *
+   * @return a new, non-{@code null} {@link S3ClassLoader}
+   */
+  public final S3ClassLoader newLoader() {
+    return this.configure(new S3ClassLoader(null, this.client, BUCKET_NAME, false));
+  }
+
+  /**
+   * Returns a new {@link S3ClassLoader} that loads from the simulated
+   * bucket exactly as one returned by the {@link #newLoader()} method
+   * does, except that it reads each class into a new array instead of
+   * a pooled buffer.
+   *
+   * <p>Comparing the allocation rates of the two kinds of loader
+   * shows what the pooled buffers save.</p>
+   *
+   * @return a new, non-{@code null} {@link S3ClassLoader}
+   *
+   * @see #newLoader()
+   */
+  public final S3ClassLoader newUnpooledLoader() {
+    return this.configure(new UnpooledS3ClassLoader(this.client));
+  }
+
+  /**
+   * Installs the selected {@link ObjectCache}, if any, in the supplied
+   * {@link S3ClassLoader} and returns it.
+   *
+   * @param loader the {@link S3ClassLoader}; must not be {@code null}
+   *
+   * @return {@code loader}
+   */
+  private final S3ClassLoader configure(final S3ClassLoader loader) {
+    if (this.objectCache != null) {
+      loader.setObjectCache(this.objectCache, false);
+    }
+    return loader;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An {@link S3ClassLoader} that ignores the pooled buffer it is
+   * offered and reads each object into a new array, as every loader
+   * did before buffers were pooled.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see SimulatedBucket#newUnpooledLoader()
+   */
+  private static final class UnpooledS3ClassLoader extends S3ClassLoader {
+
+    /**
+     * Creates a new {@link UnpooledS3ClassLoader} with no parent that
+     * loads from the simulated bucket.
+     *
+     * @param client the {@link AmazonS3} to use; must not be {@code
+     * null}
+     */
+    private UnpooledS3ClassLoader(final AmazonS3 client) {
+      super(null, client, BUCKET_NAME, false);
+    }
+
+    /**
+     * {@linkplain ByteBuffer#wrap(byte[]) Wraps} the array returned
+     * by the {@link #getObjectBytes(GetObjectRequest)} method,
+     * ignoring the supplied {@link ByteBuffer}.
+     *
+     * @param request the {@link GetObjectRequest} describing the
+     * object to fetch; must not be {@code null}
+     *
+     * @param buffer ignored
+     *
+     * @return a {@link ByteBuffer} holding the contents of the object,
+     * or {@code null}
+     *
+     * @exception IOException if there was a problem reading the
+     * object's contents
+     */
+    @Override
+    protected final ByteBuffer getObjectBuffer(final GetObjectRequest request, final ByteBuffer buffer) throws IOException {
+      final byte[] bytes = this.getObjectBytes(request);
+      return bytes == null ? null : ByteBuffer.wrap(bytes);
+    }
+
+  }
+
+}
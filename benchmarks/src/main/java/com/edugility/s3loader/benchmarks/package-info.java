@@ -0,0 +1,17 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+
+/**
+ * Provides <a href="http://openjdk.java.net/projects/code-tools/jmh/">JMH</a>
+ * benchmarks for the class loaders in the {@link
+ * com.edugility.s3loader} package, run against an in-process
+ * {@linkplain com.edugility.s3loader.FakeAmazonS3
+ * simulation of Amazon S3} with configurable latency and bandwidth.
+ *
+ * @author <a href="http://about.me/lairdnelson" target="_parent">Laird Nelson</a>
+ *
+ * @see com.edugility.s3loader.benchmarks.SimulatedBucket
+ */
+package com.edugility.s3loader.benchmarks;
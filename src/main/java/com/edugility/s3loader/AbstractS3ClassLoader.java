@@ -4,28 +4,69 @@
  */
 package com.edugility.s3loader;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
 import java.net.URL;
 
+import java.nio.ByteBuffer;
+
+import java.nio.file.Path;
+
 import java.security.CodeSource;
 import java.security.SecureClassLoader;
 
 import java.security.cert.Certificate;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.amazonaws.AmazonClientException;
 
 import com.amazonaws.services.s3.AmazonS3;
 
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 /**
  * A {@linkplain ClassLoader#registerAsParallelCapable()
@@ -72,6 +113,273 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
    */
   protected final AmazonS3 client;
 
+  /**
+   * The maximum number of {@linkplain #prefetch(String) prefetched}
+   * classes whose bytes may be held before being claimed.
+   */
+  private static final int MAXIMUM_UNCLAIMED_PREFETCHES = 4096;
+
+  /**
+   * The time, in nanoseconds, for which a completed {@linkplain
+   * #prefetch(String) prefetch} is held unclaimed before it may be
+   * evicted to make room for others.
+   */
+  private static final long UNCLAIMED_PREFETCH_TTL = TimeUnit.MINUTES.toNanos(1L);
+
+  /**
+   * The minimum time, in nanoseconds, between searches for unclaimed
+   * {@linkplain #prefetch(String) prefetches} to evict.
+   */
+  private static final long PREFETCH_EVICTION_INTERVAL = TimeUnit.SECONDS.toNanos(5L);
+
+  /**
+   * The size, in bytes, of the pooled buffers into which class files
+   * are read; larger class files are read into arrays of their own.
+   */
+  private static final int POOLED_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The initial size, in bytes, of the buffer into which an object of
+   * unknown size is read when there is no better hint.
+   */
+  private static final int MINIMUM_STREAMING_BUFFER_SIZE = 8 * 1024;
+
+  /**
+   * The largest buffer allocated up front, on the strength of a size
+   * hint alone, when the contents of an object of unknown length are
+   * streamed into it.
+   */
+  private static final long MAXIMUM_SIZE_HINT = 64L * 1024L * 1024L;
+
+  /**
+   * The number of {@code GET} requests whose latencies must have been
+   * recorded before an adaptive hedging delay is derived from them.
+   *
+   * @see #setHedging(Executor, double, long, TimeUnit)
+   */
+  private static final long MINIMUM_HEDGE_SAMPLES = 20L;
+
+  /**
+   * How often, in nanoseconds, an adaptive hedging delay is
+   * recomputed.
+   *
+   * @see #setHedging(Executor, double, long, TimeUnit)
+   */
+  private static final long HEDGE_DELAY_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1L);
+
+  /**
+   * The {@link ObjectCache} consulted by the {@link
+   * #getObjectBytes(GetObjectRequest)} method before it communicates
+   * with <a href="https://aws.amazon.com/s3/">Amazon's Simple Storage
+   * Service</a>.
+   *
+   * <p>This field may be {@code null}, in which case no caching
+   * occurs.</p>
+   *
+   * @see #setObjectCache(ObjectCache, boolean)
+   */
+  private volatile ObjectCache objectCache;
+
+  /**
+   * Whether {@link CachedObject}s found in the {@linkplain
+   * #objectCache object cache} must be revalidated with a conditional
+   * request before they are used.
+   *
+   * @see #setObjectCache(ObjectCache, boolean)
+   */
+  private volatile boolean revalidateCachedObjects;
+
+  /**
+   * The {@link NegativeLookupCache} recording objects that are known
+   * not to exist.
+   *
+   * <p>This field may be {@code null}, in which case every lookup of
+   * a missing object results in a request to <a
+   * href="https://aws.amazon.com/s3/">Amazon's Simple Storage
+   * Service</a>.</p>
+   *
+   * @see #setNegativeLookupCache(NegativeLookupCache)
+   */
+  private volatile NegativeLookupCache negativeLookupCache;
+
+  /**
+   * The {@link Executor} on which {@linkplain #prefetch(String)
+   * prefetches} run.
+   *
+   * <p>This field may be {@code null}, in which case prefetching is
+   * disabled.</p>
+   *
+   * @see #setPrefetchExecutor(Executor, int)
+   */
+  private volatile Executor prefetchExecutor;
+
+  /**
+   * The maximum number of {@linkplain #prefetch(String) prefetches}
+   * that may run at once.
+   *
+   * @see #setPrefetchExecutor(Executor, int)
+   */
+  private volatile int maximumConcurrentPrefetches;
+
+  /**
+   * The {@link LoadTrace} recording the classes and resources this
+   * {@link AbstractS3ClassLoader} fetches.
+   *
+   * <p>This field may be {@code null}, in which case nothing is
+   * recorded.</p>
+   *
+   * @see #setLoadTrace(LoadTrace)
+   */
+  private volatile LoadTrace loadTrace;
+
+  /**
+   * {@link SharedFetch}es yielding the bytes of prefetched classes,
+   * indexed by class name, that have not yet been claimed by the
+   * {@link #findClass(String)} method.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #schedulePrefetch(ConcurrentMap, String, SharedFetch,
+   * GetObjectRequest, boolean)
+   */
+  private final ConcurrentMap<String, SharedFetch> prefetches;
+
+  /**
+   * {@link SharedFetch}es yielding the bytes of prefetched resources,
+   * indexed by resource name, that have not yet been claimed by the
+   * {@link #getResourceAsStream(String)} method.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #prefetchResource(String)
+   */
+  private final ConcurrentMap<String, SharedFetch> resourcePrefetches;
+
+  /**
+   * The names of the packages in which this {@link
+   * AbstractS3ClassLoader} has defined classes, or in which a
+   * {@linkplain #replay(LoadTrace) replayed} {@link LoadTrace} records
+   * that classes were loaded.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #isPrefetchCandidate(String)
+   */
+  private final Set<String> packageNames;
+
+  /**
+   * The value of {@link System#nanoTime()} before which unclaimed
+   * {@linkplain #prefetch(String) prefetches} will not be searched for
+   * eviction again.
+   *
+   * @see #evictUnclaimedPrefetches()
+   */
+  private volatile long nextPrefetchEviction;
+
+  /**
+   * {@linkplain #prefetches Prefetches} that have not yet started, in
+   * the order in which they will be started.
+   *
+   * <p>Prefetches of supertypes, which {@link #defineClass(String,
+   * byte[], int, int, CodeSource)} will need first, are added at the
+   * head; all others are added at the tail.</p>
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Deque<SharedFetch> prefetchQueue;
+
+  /**
+   * The number of tasks currently draining the {@link
+   * #prefetchQueue} on the {@linkplain #prefetchExecutor prefetch
+   * executor}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicInteger prefetchWorkers;
+
+  /**
+   * {@link SharedFetch}es fetching objects, indexed by bucket name and
+   * {@linkplain #getCacheKey(GetObjectRequest) cache key}, that are
+   * currently in progress.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #getObjectBytes(GetObjectRequest)
+   */
+  private final ConcurrentMap<String, SharedFetch> inFlightFetches;
+
+  /**
+   * The {@link S3ClassLoaderMetrics} describing the work done by this
+   * {@link AbstractS3ClassLoader}.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #getMetrics()
+   */
+  private final S3ClassLoaderMetrics metrics;
+
+  /**
+   * A {@link BufferPool} supplying the buffers into which the {@link
+   * #findClass(String)} method reads class files.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #getObjectBuffer(GetObjectRequest, ByteBuffer)
+   */
+  private final BufferPool bufferPool;
+
+  /**
+   * The {@link HedgePolicy} governing {@code GET} requests, or {@code
+   * null} if requests are not hedged.
+   *
+   * <p>This field may be {@code null}.</p>
+   *
+   * @see #setHedging(Executor, long, TimeUnit)
+   *
+   * @see #setHedging(Executor, double, long, TimeUnit)
+   */
+  private volatile HedgePolicy hedgePolicy;
+
+  /**
+   * The {@link ConcurrencyLimiter} bounding the number of concurrent
+   * {@code GET} requests, or {@code null} if they are not bounded.
+   *
+   * <p>This field may be {@code null}.</p>
+   *
+   * @see #setConcurrencyLimiter(ConcurrencyLimiter, int)
+   */
+  private volatile ConcurrencyLimiter concurrencyLimiter;
+
+  /**
+   * The number of times a throttled {@code GET} request is retried.
+   *
+   * @see #setConcurrencyLimiter(ConcurrencyLimiter, int)
+   */
+  private volatile int maximumRetries;
+
+  /**
+   * The {@link PresignedUrlFetcher} through which supported {@code
+   * GET} requests are sent, or {@code null} if they are all sent
+   * through the {@linkplain #client client}.
+   *
+   * <p>This field may be {@code null}.</p>
+   *
+   * @see #setPresignedUrlFetcher(PresignedUrlFetcher)
+   */
+  private volatile PresignedUrlFetcher presignedUrlFetcher;
+
+  /**
+   * The {@link AsyncObjectFetcher} through which supported
+   * {@linkplain #prefetch(String) prefetches} are sent, or {@code
+   * null} if they all occupy a thread of the {@linkplain
+   * #prefetchExecutor prefetch executor}.
+   *
+   * <p>This field may be {@code null}.</p>
+   *
+   * @see #setAsyncObjectFetcher(AsyncObjectFetcher)
+   */
+  private volatile AsyncObjectFetcher asyncObjectFetcher;
+
 
   /*
    * Constructors.
@@ -95,13 +403,72 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
     super(parent);
     Objects.requireNonNull(client, "client == null");
     this.client = client;
+    this.prefetches = new ConcurrentHashMap<>();
+    this.resourcePrefetches = new ConcurrentHashMap<>();
+    this.packageNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.nextPrefetchEviction = System.nanoTime();
+    this.prefetchQueue = new ConcurrentLinkedDeque<>();
+    this.prefetchWorkers = new AtomicInteger();
+    this.inFlightFetches = new ConcurrentHashMap<>();
+    this.metrics = new S3ClassLoaderMetrics();
+    this.bufferPool = new BufferPool(POOLED_BUFFER_SIZE, 2 * Runtime.getRuntime().availableProcessors());
   }
 
 
   /*
    * Instance methods.
    */
-  
+
+
+  /**
+   * Returns the {@link ObjectCache} in use by this {@link
+   * AbstractS3ClassLoader}, or {@code null} if there is none.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the {@link ObjectCache} in use, or {@code null}
+   *
+   * @see #setObjectCache(ObjectCache, boolean)
+   */
+  public final ObjectCache getObjectCache() {
+    return this.objectCache;
+  }
+
+  /**
+   * Installs an {@link ObjectCache} that will be consulted by the
+   * {@link #getObjectBytes(GetObjectRequest)} method before it
+   * communicates with <a href="https://aws.amazon.com/s3/">Amazon's
+   * Simple Storage Service</a>.
+   *
+   * <p>Caching is disabled by default.  This method is typically
+   * called once, before this {@link AbstractS3ClassLoader} is first
+   * used.</p>
+   *
+   * <p>If {@code revalidate} is {@code true}, then every {@link
+   * CachedObject} that is found is revalidated with a {@linkplain
+   * GetObjectRequest#setNonmatchingETagConstraints(List) conditional
+   * request} carrying its ETag; an unchanged object costs a round
+   * trip but no download.  If {@code revalidate} is {@code false},
+   * then cached contents are used as-is with no round trip at all,
+   * which is appropriate only when objects are never overwritten in
+   * place.</p>
+   *
+   * @param objectCache the {@link ObjectCache} to use; may be {@code
+   * null} in which case caching is disabled
+   *
+   * @param revalidate whether cached contents must be revalidated
+   * before they are used
+   *
+   * @see #getObjectBytes(GetObjectRequest)
+   *
+   * @see DiskObjectCache
+   *
+   * @see MemoryObjectCache
+   */
+  public final void setObjectCache(final ObjectCache objectCache, final boolean revalidate) {
+    this.revalidateCachedObjects = revalidate;
+    this.objectCache = objectCache;
+  }
 
   /**
    * Locates a binary object defining a Java {@link Class} in the <a
@@ -111,6 +478,16 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
    *
    * <p>This method never returns {@code null}.</p>
    *
+   * <p>If {@linkplain #setPrefetchExecutor(Executor, int) prefetching}
+   * is enabled, then bytes already prefetched for the supplied {@code
+   * name} are used instead of being fetched again, and the classes
+   * that the class being defined refers to are themselves
+   * {@linkplain #prefetch(String) prefetched} before it is defined.
+   * Its superclass and interfaces are fetched first, in parallel, so
+   * that by the time {@link #defineClass(String, byte[], int, int,
+   * CodeSource)} asks for them they are usually already
+   * available.</p>
+   *
    * @param name a valid class name; must not be {@code null}; must
    * not be {@linkplain String#isEmpty() empty}; must {@linkplain
    * Character#isJavaIdentifierStart(char) start with a
@@ -128,9 +505,11 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
    *
    * @see #getCodeSource(GetObjectRequest)
    *
-   * @see #defineClass(String, byte[], int, int, CodeSource)
+   * @see #getObjectBuffer(GetObjectRequest, ByteBuffer)
    *
-   * @see AmazonS3#getObject(GetObjectRequest)
+   * @see #setPrefetchExecutor(Executor, int)
+   *
+   * @see #defineClass(String, ByteBuffer, CodeSource)
    */
   @Override
   protected Class<?> findClass(final String name) throws ClassNotFoundException {
@@ -151,41 +530,41 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
       throw new ClassNotFoundException(name, new IllegalStateException("classNameToGetObjectRequest(\"" + name + "\") == null"));
     }
 
-    final CodeSource codeSource = this.getCodeSource(request);
-    
-    try (final S3Object s3Object = this.client.getObject(request)) {
-      if (s3Object == null) {
-        throw new ClassNotFoundException(name);
-      } else {
-        final ObjectMetadata metadata = s3Object.getObjectMetadata();
-        if (metadata != null) {
-          final long sizeInBytes = metadata.getInstanceLength();
-          if (sizeInBytes > Integer.MAX_VALUE) {
-            throw new ClassNotFoundException(name, new IllegalStateException("s3Object.getObjectMetadata().getInstanceLength() > Integer.MAX_VALUE (" + Integer.MAX_VALUE + "): " + sizeInBytes));
-          } else if (sizeInBytes <= 0) {
-            throw new ClassNotFoundException(name, new IllegalStateException("s3Object.getObjectMetadata().getInstanceLength() <= 0: " + sizeInBytes));
-          } else {
-            final int bytesLength = (int)sizeInBytes;
-            final byte[] bytes = new byte[bytesLength];
-            try (final InputStream inputStream = s3Object.getObjectContent()) {
-              if (inputStream != null) {
-                int offset = 0;
-                while (offset < bytesLength) {
-                  final int numberOfBytesReadOnThisPass = inputStream.read(bytes, offset, bytesLength - offset);
-                  if (numberOfBytesReadOnThisPass < 0) {
-                    throw new EOFException();
-                  } else {
-                    offset += numberOfBytesReadOnThisPass;
-                  }
-                }              
-              }
-            }
-            returnValue = this.defineClass(name, bytes, 0, bytesLength, codeSource);
-          }
+    ByteBuffer pooledBuffer = null;
+    try {
+      final ByteBuffer buffer;
+      final byte[] prefetchedBytes = this.claimPrefetch(this.prefetches, name);
+      if (prefetchedBytes == null) {
+        pooledBuffer = this.bufferPool.acquire();
+        buffer = this.getObjectBuffer(request, pooledBuffer);
+        if (buffer == null) {
+          throw new ClassNotFoundException(name);
         }
+      } else {
+        buffer = ByteBuffer.wrap(prefetchedBytes);
+      }
+      // The class's supertypes, which defineClass() is about to ask
+      // for, are usually in its own package; admit it before they are
+      // considered for prefetching.
+      this.packageNames.add(getPackageName(name));
+      if (buffer.hasArray()) {
+        this.prefetchReferencedClasses(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      }
+      // Subclasses may learn where the class came from only once it
+      // has been fetched.
+      final CodeSource codeSource = this.getCodeSource(request);
+      final long defineClassStart = System.nanoTime();
+      returnValue = this.defineClass(name, buffer, codeSource);
+      this.metrics.recordDefineClass(System.nanoTime() - defineClassStart);
+      final LoadTrace loadTrace = this.loadTrace;
+      if (loadTrace != null) {
+        loadTrace.recordClass(name);
       }
     } catch (final AmazonClientException | IOException e) {
+      // The failure was recorded in the metrics where it occurred.
       throw new ClassNotFoundException(name, e);
+    } finally {
+      this.bufferPool.release(pooledBuffer);
     }
     return returnValue;
   }
@@ -204,6 +583,10 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
    * value of that method invocation is non-{@code null}, then it is
    * returned.</p>
    *
+   * <p>Otherwise the resource's contents are {@linkplain
+   * #getObjectBytes(GetObjectRequest) fetched} in full and an {@link
+   * InputStream} over them is returned.</p>
+   *
    * @param name the name of the resource to find; may be {@code null}
    * in which case {@code null} will be returned
    *
@@ -211,9 +594,7 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
    *
    * @see #resourceNameToGetObjectRequest(String)
    *
-   * @see AmazonS3#getObject(GetObjectRequest)
-   *
-   * @see S3Object#getObjectContent()
+   * @see #getObjectBytes(GetObjectRequest)
    */
   @Override
   public InputStream getResourceAsStream(final String name) {
@@ -225,12 +606,20 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
     if (name != null && returnValue == null) {
       final GetObjectRequest request = this.resourceNameToGetObjectRequest(name);
       if (request != null) {
-        try (final S3Object s3Object = this.client.getObject(request)) {
-          if (s3Object != null) {
-            returnValue = s3Object.getObjectContent();
+        try {
+          byte[] bytes = this.claimPrefetch(this.resourcePrefetches, name);
+          if (bytes == null) {
+            bytes = this.getObjectBytes(request);
+          }
+          if (bytes != null) {
+            returnValue = new ByteArrayInputStream(bytes);
+            final LoadTrace loadTrace = this.loadTrace;
+            if (loadTrace != null) {
+              loadTrace.recordResource(name);
+            }
           }
         } catch (final AmazonClientException | IOException e) {
-          // TODO: log
+          // The failure was recorded in the metrics where it occurred.
         }
       }
     }
@@ -251,6 +640,8 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
    *
    * @see #resourceNameToGetObjectRequest(String)
    *
+   * @see #mayExist(GetObjectRequest)
+   *
    * @see GetObjectRequest#getBucketName()
    *
    * @see GetObjectRequest#getKey()
@@ -262,14 +653,14 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
     URL returnValue = null;
     if (name != null) {
       final GetObjectRequest request = this.resourceNameToGetObjectRequest(name);
-      if (request != null) {
+      if (request != null && this.mayExist(request)) {
         final String bucketName = request.getBucketName();
         if (bucketName != null) {
           final String key = request.getKey();
           try {
             returnValue = this.client.getUrl(bucketName, key);
           } catch (final AmazonClientException e) {
-            // TODO: log
+            this.metrics.recordError(e);
           }
         }
       }
@@ -295,7 +686,8 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
    * and {@linkplain Collections#singleton(Object) wraps} the single
    * resulting {@link URL} in an {@link
    * Collections#enumeration(Collection) Enumeration} before returning
-   * it.</p>
+   * it, unless the {@link #mayExist(GetObjectRequest)} method returns
+   * {@code false}.</p>
    *
    * @param name the name identifying resources to find; may be {@code
    * null} in which case an {@linkplain Collections#emptyEnumeration()
@@ -308,6 +700,8 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
    *
    * @see #resourceNameToGetObjectRequest(String)
    *
+   * @see #mayExist(GetObjectRequest)
+   *
    * @see GetObjectRequest#getBucketName()
    *
    * @see GetObjectRequest#getKey()
@@ -319,7 +713,7 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
     Enumeration<URL> returnValue = null;
     if (name != null) {
       final GetObjectRequest request = this.resourceNameToGetObjectRequest(name);
-      if (request != null) {
+      if (request != null && this.mayExist(request)) {
         final String bucketName = request.getBucketName();
         if (bucketName != null) {
           final String key = request.getKey();
@@ -342,89 +736,2895 @@ public abstract class AbstractS3ClassLoader extends SecureClassLoader {
   }
 
   /**
-   * Returns a {@link CodeSource} suitably representing the supplied
-   * {@link GetObjectRequest}, or {@code null} if such a {@link
-   * CodeSource} could not be returned for any reason.
+   * Returns the {@link NegativeLookupCache} in use by this {@link
+   * AbstractS3ClassLoader}, or {@code null} if there is none.
    *
    * <p>This method may return {@code null}.</p>
    *
-   * <p>Overrides of this method are permitted to return {@code
-   * null}.</p>
-   *
-   * <p>The default implementation returns a {@link CodeSource}
-   * constructed with a {@link URL} representing the bucket identified
-   * by the return value of the {@link
-   * GetObjectRequest#getBucketName()} method as invoked on the
-   * supplied {@link GetObjectRequest}.</p>
-   *
-   * @param request the {@link GetObjectRequest} for which a suitable
-   * {@link CodeSource} should be returned; may be {@code null} in
-   * which case {@code null} will be returned
+   * @return the {@link NegativeLookupCache} in use, or {@code null}
    *
-   * @return a {@link CodeSource} for the supplied {@link
-   * GetObjectRequest}, or {@code null}
+   * @see #setNegativeLookupCache(NegativeLookupCache)
+   */
+  public final NegativeLookupCache getNegativeLookupCache() {
+    return this.negativeLookupCache;
+  }
+
+  /**
+   * Installs a {@link NegativeLookupCache} that will record objects
+   * found not to exist so that repeated lookups for them are answered
+   * without communicating with <a
+   * href="https://aws.amazon.com/s3/">Amazon's Simple Storage
+   * Service</a>.
    *
-   * @see CodeSource
+   * <p>Negative caching is disabled by default.  A {@link
+   * NegativeLookupCache} may be shared by several {@link
+   * AbstractS3ClassLoader}s.</p>
    *
-   * @see #defineClass(String, byte[], int, int, CodeSource)
+   * @param negativeLookupCache the {@link NegativeLookupCache} to use;
+   * may be {@code null} in which case negative caching is disabled
    *
-   * @see AmazonS3#getUrl(String, String)
+   * @see #getObjectBytes(GetObjectRequest)
    */
-  protected CodeSource getCodeSource(final GetObjectRequest request) {
-    final CodeSource returnValue;
-    if (request == null) {
-      returnValue = null;
-    } else {
-      URL codeSourceUrl = null;
-      try {
-        codeSourceUrl = this.client.getUrl(request.getBucketName(), null /* no key */);
-      } catch (final AmazonClientException e) {
-        // TODO: log
-      }
-      returnValue = new CodeSource(codeSourceUrl, (Certificate[])null /* no certificates */);
-    }
-    return returnValue;
+  public final void setNegativeLookupCache(final NegativeLookupCache negativeLookupCache) {
+    this.negativeLookupCache = negativeLookupCache;
   }
 
   /**
-   * Returns a {@link GetObjectRequest} representing a {@linkplain
-   * #findClass(String) class loading request} for the class
-   * identified by the supplied {@code className}.
+   * Loads the classes with the supplied names concurrently using the
+   * supplied {@link ExecutorService} and returns a {@link Map} of
+   * {@linkplain Future#isDone() completed} {@link Future}s, one per
+   * distinct class name, in the iteration order of {@code
+   * classNames}.
    *
-   * <p>Implementations of this method are permitted to return {@code
-   * null}, which will typically cause a {@link
-   * ClassNotFoundException} to be thrown by the {@link
-   * #findClass(String)} method.</p>
+   * <p>Each class is loaded by calling the {@link #loadClass(String)}
+   * method on a thread supplied by {@code executor}.  Since this
+   * class is {@linkplain ClassLoader#registerAsParallelCapable()
+   * parallel capable}, the fetches from Amazon S3 proceed in
+   * parallel.  This method does not return until every load has
+   * completed.  A {@link Future} whose load failed throws an {@link
+   * ExecutionException} wrapping the {@link ClassNotFoundException}
+   * or other {@link Throwable} that caused the failure from its
+   * {@link Future#get()} method; this method itself does not fail
+   * because any individual class could not be loaded.</p>
    *
-   * @param className a Java class name; may be {@code null}
+   * <p>This method is intended for preloading a known set of
+   * frequently used classes, for example at startup.</p>
    *
-   * @return the {@link GetObjectRequest} representing the {@linkplain
-   * #findClass(String) class loading request} for the supplied {@code
-   * className}, or {@code null}
+   * @param classNames the binary names of the classes to load; must
+   * not be {@code null} and must not contain {@code null} elements
    *
-   * @see #findClass(String)
+   * @param executor the {@link ExecutorService} that will perform the
+   * loads; must not be {@code null}
    *
-   * @see GetObjectRequest
+   * @return a non-{@code null} {@link Map} of class names to
+   * completed {@link Future}s
    *
-   * @see AmazonS3#getObject(GetObjectRequest)
+   * @exception NullPointerException if either parameter is {@code
+   * null} or if {@code classNames} contains a {@code null} element
+   *
+   * @exception InterruptedException if the calling thread was
+   * interrupted while waiting; any loads that had not completed are
+   * cancelled
+   *
+   * @exception java.util.concurrent.RejectedExecutionException if
+   * {@code executor} would not accept the loads
+   *
+   * @see #loadClass(String)
+   *
+   * @see ExecutorService#invokeAll(Collection)
    */
-  protected abstract GetObjectRequest classNameToGetObjectRequest(final String className);
+  public final Map<String, Future<Class<?>>> loadClasses(final Collection<? extends String> classNames, final ExecutorService executor) throws InterruptedException {
+    Objects.requireNonNull(classNames, "classNames == null");
+    Objects.requireNonNull(executor, "executor == null");
+    final Set<String> names = new LinkedHashSet<>(classNames);
+    if (names.contains(null)) {
+      throw new NullPointerException("classNames contains null");
+    }
+    final List<Callable<Class<?>>> loads = new ArrayList<>(names.size());
+    for (final String name : names) {
+      loads.add(new Callable<Class<?>>() {
+          @Override
+          public final Class<?> call() throws ClassNotFoundException {
+            return loadClass(name);
+          }
+        });
+    }
+    final List<Future<Class<?>>> futures = executor.invokeAll(loads);
+    final Map<String, Future<Class<?>>> returnValue = new LinkedHashMap<>();
+    final Iterator<Future<Class<?>>> futureIterator = futures.iterator();
+    for (final String name : names) {
+      returnValue.put(name, futureIterator.next());
+    }
+    return Collections.unmodifiableMap(returnValue);
+  }
 
   /**
-   * Returns a {@link GetObjectRequest} representing a {@linkplain
-   * #findResource(String) resource finding request} for the resource
-   * identified by the supplied {@code resourceName}.
+   * Enables or disables hedging of {@code GET} requests with a fixed
+   * delay.
    *
-   * <p>Implementations of this method are permitted to return {@code
-   * null}, which will typically cause {@code null} to be returned by
-   * the {@link #findResource(String)} method.</p>
+   * <p>When hedging is enabled, each {@code GET} request for an
+   * object runs on the supplied {@link Executor}.  If it has not
+   * responded within the supplied delay, an identical request is
+   * issued; whichever responds first is used, and the other is
+   * aborted as soon as it responds.  A request that fails does not
+   * win: the other request, if there is one, is awaited.  This trims
+   * the long tail of Amazon S3 latencies at the cost of the duplicate
+   * requests, which are {@linkplain
+   * S3ClassLoaderMetricsMXBean#getHedgedRequestCount() counted} in
+   * this {@link AbstractS3ClassLoader}'s {@linkplain #getMetrics()
+   * metrics}.</p>
    *
-   * @param resourceName a resource name; may be {@code null}
+   * <p>The {@link Executor} should be able to run two requests for
+   * every concurrent class load, or hedges will wait for threads.</p>
    *
-   * @return the {@link GetObjectRequest} representing the {@linkplain
-   * #findResource(String) resource finding request} for the supplied
-   * {@code resourceName}, or {@code null}
+   * <p>Hedging is disabled by default.</p>
+   *
+   * @param executor the {@link Executor} on which requests will run;
+   * may be {@code null} in which case hedging is disabled
+   *
+   * @param delay the time after which an unanswered request is
+   * hedged; must not be negative
+   *
+   * @param unit the {@link TimeUnit} in which {@code delay} is
+   * expressed; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code delay} is negative
+   *
+   * @see #setHedging(Executor, double, long, TimeUnit)
+   */
+  public final void setHedging(final Executor executor, final long delay, final TimeUnit unit) {
+    Objects.requireNonNull(unit, "unit == null");
+    if (delay < 0L) {
+      throw new IllegalArgumentException("delay < 0: " + delay);
+    }
+    this.hedgePolicy = executor == null ? null : new HedgePolicy(executor, Double.NaN, unit.toNanos(delay));
+  }
+
+  /**
+   * Enables or disables hedging of {@code GET} requests with a delay
+   * that adapts to the latencies observed so far.
+   *
+   * <p>This method behaves like the {@link #setHedging(Executor,
+   * long, TimeUnit)} method, except that an unanswered request is
+   * hedged once it has taken longer than the supplied percentile of
+   * the {@linkplain S3ClassLoaderMetricsMXBean#getRequestLatency()
+   * request latencies} recorded so far, or than the supplied minimum
+   * delay, whichever is longer.  Until {@value
+   * #MINIMUM_HEDGE_SAMPLES} latencies have been recorded the minimum
+   * delay is used.  The percentile is {@linkplain
+   * LatencyStatistics#getPercentileMicroseconds(double) estimated}
+   * coarsely and is recomputed at most once a second.</p>
+   *
+   * @param executor the {@link Executor} on which requests will run;
+   * may be {@code null} in which case hedging is disabled
+   *
+   * @param percentile the percentile of request latency after which
+   * a request is hedged, from {@code 0} to {@code 100}; {@code 95} is
+   * a reasonable choice
+   *
+   * @param minimumDelay the minimum time after which an unanswered
+   * request is hedged; must not be negative
+   *
+   * @param unit the {@link TimeUnit} in which {@code minimumDelay} is
+   * expressed; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code percentile} is not
+   * between {@code 0} and {@code 100} or {@code minimumDelay} is
+   * negative
+   *
+   * @see #setHedging(Executor, long, TimeUnit)
+   */
+  public final void setHedging(final Executor executor, final double percentile, final long minimumDelay, final TimeUnit unit) {
+    Objects.requireNonNull(unit, "unit == null");
+    if (!(percentile >= 0.0 && percentile <= 100.0)) {
+      throw new IllegalArgumentException("percentile: " + percentile);
+    }
+    if (minimumDelay < 0L) {
+      throw new IllegalArgumentException("minimumDelay < 0: " + minimumDelay);
+    }
+    this.hedgePolicy = executor == null ? null : new HedgePolicy(executor, percentile, unit.toNanos(minimumDelay));
+  }
+
+  /**
+   * Installs or removes a {@link ConcurrencyLimiter} bounding the
+   * number of {@code GET} requests this {@link AbstractS3ClassLoader}
+   * has in flight at once, and sets the number of times a request
+   * throttled by Amazon S3 is retried.
+   *
+   * <p>A request is throttled when Amazon S3 answers it with {@code
+   * 503 Slow Down}.  The {@link ConcurrencyLimiter} lowers its limit in
+   * response, and the request is retried after a random delay, up to
+   * {@code maximumRetries} times, before the error is reported.  Each
+   * retry is {@linkplain S3ClassLoaderMetricsMXBean#getRetryCount()
+   * counted} in this {@link AbstractS3ClassLoader}'s {@linkplain
+   * #getMetrics() metrics}.  Loaders that read from the same bucket
+   * should share one {@link ConcurrencyLimiter}, so that together they
+   * stay under the bucket's request rate.</p>
+   *
+   * <p>The {@linkplain #client client} should be configured with
+   * {@link com.amazonaws.ClientConfiguration#withMaxErrorRetry(int)
+   * ClientConfiguration.withMaxErrorRetry(0)}.  Otherwise it retries
+   * throttled requests itself, the {@link ConcurrencyLimiter} sees
+   * throttling only after the client's own retries are exhausted,
+   * and the retries made here multiply the client's.</p>
+   *
+   * <p>By default no {@link ConcurrencyLimiter} is installed and
+   * throttled requests are not retried.</p>
+   *
+   * @param concurrencyLimiter the {@link ConcurrencyLimiter}; may be
+   * {@code null} in which case requests are neither limited nor
+   * retried
+   *
+   * @param maximumRetries the number of times a throttled request is
+   * retried; must not be negative
+   *
+   * @exception IllegalArgumentException if {@code maximumRetries} is
+   * negative
+   *
+   * @see ConcurrencyLimiter
+   */
+  public final void setConcurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter, final int maximumRetries) {
+    if (maximumRetries < 0) {
+      throw new IllegalArgumentException("maximumRetries < 0: " + maximumRetries);
+    }
+    this.maximumRetries = maximumRetries;
+    this.concurrencyLimiter = concurrencyLimiter;
+  }
+
+  /**
+   * Installs a {@link PresignedUrlFetcher} through which {@code GET}
+   * requests are sent instead of through this {@link
+   * AbstractS3ClassLoader}'s {@linkplain #client client}.
+   *
+   * <p>Each request sent through the {@linkplain #client client} is
+   * signed anew and passes through the AWS SDK's request pipeline.
+   * A {@link PresignedUrlFetcher} instead reuses a {@link URL} signed
+   * once per object per expiry, fetched over the Java platform's
+   * keep-alive connections, which noticeably lowers the cost of each
+   * of the many small requests a class loader makes.  Requests the
+   * {@link PresignedUrlFetcher} does not {@linkplain
+   * PresignedUrlFetcher#supports(GetObjectRequest) support}, such as
+   * those for "requester pays" buckets, are still sent through the
+   * {@linkplain #client client}.  Concurrency limiting, retries,
+   * hedging and metrics apply either way.</p>
+   *
+   * <p>Subclasses that override the {@link
+   * #requestObject(GetObjectRequest)} method, such as {@link
+   * S3ReplicaClassLoader}, do not use the {@link
+   * PresignedUrlFetcher}.</p>
+   *
+   * <p>By default no {@link PresignedUrlFetcher} is installed.</p>
+   *
+   * @param presignedUrlFetcher the {@link PresignedUrlFetcher}; may be
+   * {@code null} in which case every request is sent through the
+   * {@linkplain #client client}
+   *
+   * @see #presign(LoadTrace)
+   *
+   * @see PresignedUrlFetcher
+   */
+  public final void setPresignedUrlFetcher(final PresignedUrlFetcher presignedUrlFetcher) {
+    this.presignedUrlFetcher = presignedUrlFetcher;
+  }
+
+  /**
+   * Installs an {@link AsyncObjectFetcher} through which objects are
+   * fetched without blocking.
+   *
+   * <p>Ordinarily each {@linkplain #prefetch(String) prefetch}
+   * occupies a thread of the {@linkplain
+   * #setPrefetchExecutor(Executor, int) prefetch executor} until its
+   * response has been read, so the number of prefetches in flight is
+   * bounded by the number of threads.  A prefetch sent through an
+   * {@link AsyncObjectFetcher} instead occupies a thread only while
+   * its request is sent; in between, it is one of any number of
+   * requests multiplexed over the {@link AsyncObjectFetcher}'s
+   * connections.  Its response is cached, and its class's references
+   * scheduled for prefetching in turn, on one of the {@link
+   * AsyncObjectFetcher}'s completion threads, which are distinct both
+   * from the thread that performs its input and output and from those
+   * of the prefetch executor, so an {@linkplain
+   * #setObjectCache(ObjectCache, boolean) object cache} that is slow
+   * to write to delays other completions but neither the responses
+   * still in flight nor the prefetch executor.</p>
+   *
+   * <p>Fetches made on demand, such as those of the {@link
+   * #findClass(String)} and {@link #getResourceAsStream(String)}
+   * methods when nothing was prefetched, are sent through the {@link
+   * AsyncObjectFetcher} too; the calling thread simply waits for the
+   * response to its own request.</p>
+   *
+   * <p>An object is fetched through the {@link AsyncObjectFetcher}
+   * only if the {@link #mayFetchAsynchronously(GetObjectRequest)}
+   * method returns {@code true} for it and the {@link
+   * AsyncObjectFetcher} {@linkplain
+   * AsyncObjectFetcher#supports(GetObjectRequest) supports} it; all
+   * others are fetched as usual.  The object cache, the negative
+   * lookup cache and this {@link AbstractS3ClassLoader}'s {@linkplain
+   * #getMetrics() metrics} apply either way, but the {@linkplain
+   * #setConcurrencyLimiter(ConcurrencyLimiter, int) concurrency
+   * limiter} and {@linkplain #setHedging(Executor, long, TimeUnit)
+   * hedging} do not: the {@link AsyncObjectFetcher} bounds its own
+   * connections.</p>
+   *
+   * <p>By default no {@link AsyncObjectFetcher} is installed.</p>
+   *
+   * @param asyncObjectFetcher the {@link AsyncObjectFetcher}; may be
+   * {@code null} in which case prefetches occupy a thread each
+   *
+   * @see AsyncObjectFetcher
+   *
+   * @see #mayFetchAsynchronously(GetObjectRequest)
+   */
+  public final void setAsyncObjectFetcher(final AsyncObjectFetcher asyncObjectFetcher) {
+    this.asyncObjectFetcher = asyncObjectFetcher;
+  }
+
+  /**
+   * Signs, in bulk and ahead of their use, {@link URL}s for every
+   * class and resource recorded by the supplied {@link LoadTrace}, and
+   * returns the number signed.
+   *
+   * <p>This method does nothing and returns {@code 0} if no {@link
+   * PresignedUrlFetcher} has been {@linkplain
+   * #setPresignedUrlFetcher(PresignedUrlFetcher) installed}.</p>
+   *
+   * @param loadTrace the {@link LoadTrace}; must not be {@code null}
+   *
+   * @return the number of {@link URL}s signed; never negative
+   *
+   * @exception NullPointerException if {@code loadTrace} is {@code
+   * null}
+   *
+   * @exception AmazonClientException if a {@link URL} could not be
+   * signed
+   *
+   * @see #setPresignedUrlFetcher(PresignedUrlFetcher)
+   *
+   * @see #replay(LoadTrace)
+   */
+  public final int presign(final LoadTrace loadTrace) {
+    Objects.requireNonNull(loadTrace, "loadTrace == null");
+    int returnValue = 0;
+    final PresignedUrlFetcher presignedUrlFetcher = this.presignedUrlFetcher;
+    if (presignedUrlFetcher != null) {
+      for (final String className : loadTrace.getClassNames()) {
+        if (presignedUrlFetcher.presign(this.classNameToGetObjectRequest(className))) {
+          returnValue++;
+        }
+      }
+      for (final String resourceName : loadTrace.getResourceNames()) {
+        if (presignedUrlFetcher.presign(this.resourceNameToGetObjectRequest(resourceName))) {
+          returnValue++;
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the {@link S3ClassLoaderMetrics} describing the work done
+   * by this {@link AbstractS3ClassLoader}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link S3ClassLoaderMetrics}
+   *
+   * @see #registerMetrics(MBeanServer)
+   */
+  public final S3ClassLoaderMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Registers this {@link AbstractS3ClassLoader}'s {@linkplain
+   * #getMetrics() metrics} with the supplied {@link MBeanServer} and
+   * returns the {@link ObjectName} under which they were registered.
+   *
+   * <p>The {@link ObjectName} is in the {@code com.edugility.s3loader}
+   * domain, with a {@code type} key naming this {@link
+   * AbstractS3ClassLoader}'s class and a {@code name} key unique to
+   * this {@link AbstractS3ClassLoader}.  Callers should {@linkplain
+   * MBeanServer#unregisterMBean(ObjectName) unregister} it when this
+   * {@link AbstractS3ClassLoader} is discarded; until then the
+   * metrics, though not this {@link AbstractS3ClassLoader}, remain
+   * reachable.</p>
+   *
+   * @param mBeanServer the {@link MBeanServer} with which to register;
+   * must not be {@code null}; typically the {@linkplain
+   * java.lang.management.ManagementFactory#getPlatformMBeanServer()
+   * platform <code>MBeanServer</code>}
+   *
+   * @return the non-{@code null} {@link ObjectName} under which the
+   * metrics were registered
+   *
+   * @exception NullPointerException if {@code mBeanServer} is {@code
+   * null}
+   *
+   * @exception JMException if registration failed
+   *
+   * @see #getMetrics()
+   */
+  public final ObjectName registerMetrics(final MBeanServer mBeanServer) throws JMException {
+    Objects.requireNonNull(mBeanServer, "mBeanServer == null");
+    final ObjectName objectName = new ObjectName("com.edugility.s3loader:type=" + this.getClass().getSimpleName() + ",name=" + Integer.toHexString(System.identityHashCode(this)));
+    return mBeanServer.registerMBean(this.metrics, objectName).getObjectName();
+  }
+
+  /**
+   * Returns the {@link LoadTrace} recording the classes and resources
+   * this {@link AbstractS3ClassLoader} fetches, or {@code null} if
+   * none is being recorded.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the current {@link LoadTrace}, or {@code null}
+   *
+   * @see #setLoadTrace(LoadTrace)
+   */
+  public final LoadTrace getLoadTrace() {
+    return this.loadTrace;
+  }
+
+  /**
+   * Installs a {@link LoadTrace} that will record, in order, the name
+   * of every class this {@link AbstractS3ClassLoader} defines and
+   * every resource whose contents it fetches from Amazon S3 by way of
+   * the {@link #getResourceAsStream(String)} method.
+   *
+   * <p>Names that could not be found are not recorded, since
+   * replaying them would only cost requests.  The trace is typically
+   * {@linkplain LoadTrace#save(Path) saved} once startup has completed
+   * and {@linkplain #replay(LoadTrace) replayed} by the next run.</p>
+   *
+   * <p>No trace is recorded by default.</p>
+   *
+   * @param loadTrace the {@link LoadTrace} to record to; may be {@code
+   * null} in which case recording stops
+   *
+   * @see #replay(LoadTrace)
+   */
+  public final void setLoadTrace(final LoadTrace loadTrace) {
+    this.loadTrace = loadTrace;
+  }
+
+  /**
+   * {@linkplain #prefetch(String) Prefetches} every class and
+   * {@linkplain #prefetchResource(String) resource} recorded by the
+   * supplied {@link LoadTrace}, in the order in which they were
+   * recorded, and returns the number of prefetches scheduled.
+   *
+   * <p>Since a startup sequence is usually nearly identical from run
+   * to run, replaying the previous run's trace lets nearly all of
+   * its fetches proceed in parallel, bounded by the {@linkplain
+   * #setPrefetchExecutor(Executor, int) maximum number of concurrent
+   * prefetches}, rather than one at a time as the Java virtual
+   * machine happens to demand them.</p>
+   *
+   * <p>This method does nothing and returns {@code 0} if prefetching
+   * has not been {@linkplain #setPrefetchExecutor(Executor, int)
+   * enabled}.</p>
+   *
+   * @param loadTrace the {@link LoadTrace} to replay; must not be
+   * {@code null}
+   *
+   * @return the number of prefetches scheduled; never negative
+   *
+   * @exception NullPointerException if {@code loadTrace} is {@code
+   * null}
+   *
+   * @see #setLoadTrace(LoadTrace)
+   *
+   * @see LoadTrace#load(Path)
+   *
+   * @see LoadTrace#load(AmazonS3, String, String, boolean)
+   */
+  public final int replay(final LoadTrace loadTrace) {
+    Objects.requireNonNull(loadTrace, "loadTrace == null");
+    return loadTrace.replayInto(this);
+  }
+
+  /**
+   * Enables or disables dependency-driven prefetching.
+   *
+   * <p>When prefetching is enabled, each time the {@link
+   * #findClass(String)} method obtains the bytes of a class it parses
+   * that class's constant pool and {@linkplain #prefetch(String)
+   * prefetches} every {@linkplain #isPrefetchCandidate(String)
+   * candidate} class it refers to, so that by the time the Java
+   * virtual machine asks for those classes their bytes are already
+   * local or on their way.  Prefetched classes are parsed in turn, so
+   * prefetching follows the dependency graph ahead of the virtual
+   * machine.</p>
+   *
+   * <p>Prefetching is disabled by default.</p>
+   *
+   * @param executor the {@link Executor} on which prefetches will run;
+   * may be {@code null} in which case prefetching is disabled
+   *
+   * @param maximumConcurrentPrefetches the maximum number of
+   * prefetches that may run at once; must be positive if {@code
+   * executor} is non-{@code null}
+   *
+   * @exception IllegalArgumentException if {@code executor} is
+   * non-{@code null} and {@code maximumConcurrentPrefetches} is not
+   * positive
+   *
+   * @see #prefetch(String)
+   */
+  public final void setPrefetchExecutor(final Executor executor, final int maximumConcurrentPrefetches) {
+    if (executor != null && maximumConcurrentPrefetches <= 0) {
+      throw new IllegalArgumentException("maximumConcurrentPrefetches <= 0: " + maximumConcurrentPrefetches);
+    }
+    this.maximumConcurrentPrefetches = maximumConcurrentPrefetches;
+    this.prefetchExecutor = executor;
+  }
+
+  /**
+   * Arranges for the bytes of the class with the supplied name to be
+   * fetched asynchronously, if {@linkplain #setPrefetchExecutor(Executor,
+   * int) prefetching is enabled} and the class is a {@linkplain
+   * #isPrefetchCandidate(String) candidate} that has been neither
+   * loaded nor prefetched already, and returns {@code true} if a
+   * prefetch was scheduled.
+   *
+   * <p>Prefetched bytes are held until the {@link #findClass(String)}
+   * method claims them.  A prefetch that finds no class, or fails, is
+   * dropped as soon as it completes, since the {@link
+   * #findClass(String)} method would fetch the class again anyway.  At
+   * most {@value #MAXIMUM_UNCLAIMED_PREFETCHES} prefetches are held at
+   * once; when that many are held, those that completed more than a
+   * minute before are evicted, and if none did, further requests are
+   * ignored.</p>
+   *
+   * <p>This method calls the {@link #prefetch(String, boolean)}
+   * method, passing {@code false} for its {@code urgent}
+   * parameter.</p>
+   *
+   * @param className the binary name of the class to prefetch; may be
+   * {@code null} in which case {@code false} is returned
+   *
+   * @return {@code true} if a prefetch was scheduled; {@code false}
+   * otherwise
+   *
+   * @see #prefetch(String, boolean)
+   *
+   * @see #setPrefetchExecutor(Executor, int)
+   *
+   * @see #isPrefetchCandidate(String)
+   */
+  protected final boolean prefetch(final String className) {
+    return this.prefetch(className, false);
+  }
+
+  /**
+   * Arranges for the bytes of the class with the supplied name to be
+   * fetched asynchronously, ahead of all other pending prefetches if
+   * {@code urgent} is {@code true}, and returns {@code true} if a
+   * prefetch was scheduled or moved to the head of the queue.
+   *
+   * <p>Urgent prefetches are those that will block a {@link
+   * #defineClass(String, byte[], int, int, CodeSource)} call, namely
+   * those of supertypes.  If an urgent prefetch is requested for a
+   * class whose prefetch is already pending but not yet started, the
+   * pending prefetch is moved to the head of the queue.</p>
+   *
+   * @param className the binary name of the class to prefetch; may be
+   * {@code null} in which case {@code false} is returned
+   *
+   * @param urgent whether the prefetch should precede all other
+   * pending prefetches
+   *
+   * @return {@code true} if a prefetch was scheduled or moved;
+   * {@code false} otherwise
+   *
+   * @see #prefetch(String)
+   */
+  protected final boolean prefetch(final String className, final boolean urgent) {
+    if (className == null || this.prefetchExecutor == null) {
+      return false;
+    }
+    final SharedFetch pending = this.prefetches.get(className);
+    if (pending != null) {
+      if (urgent && this.prefetchQueue.remove(pending)) {
+        this.prefetchQueue.addFirst(pending);
+        return true;
+      }
+      return false;
+    }
+    if (!this.isPrefetchCandidate(className) || this.findLoadedClass(className) != null) {
+      return false;
+    }
+    final GetObjectRequest request = this.classNameToGetObjectRequest(className);
+    if (request == null) {
+      return false;
+    }
+    SharedFetch task = this.newAsyncFetch(request, true);
+    if (task == null) {
+      task = new SharedFetch(new Callable<byte[]>() {
+          @Override
+          public final byte[] call() throws IOException {
+            final byte[] bytes = getObjectBytes(request);
+            if (bytes != null) {
+              prefetchReferencedClasses(bytes, 0, bytes.length);
+            }
+            return bytes;
+          }
+        });
+    }
+    return this.schedulePrefetch(this.prefetches, className, task, request, urgent);
+  }
+
+  /**
+   * Arranges for the contents of the resource with the supplied name
+   * to be fetched asynchronously, if {@linkplain
+   * #setPrefetchExecutor(Executor, int) prefetching is enabled} and
+   * the resource has not been prefetched already, and returns {@code
+   * true} if a prefetch was scheduled.
+   *
+   * <p>Prefetched contents are held until the {@link
+   * #getResourceAsStream(String)} method claims them, and are dropped
+   * or evicted as {@linkplain #prefetch(String) prefetched classes}
+   * are.  At most {@value #MAXIMUM_UNCLAIMED_PREFETCHES} resource
+   * prefetches are held at once.</p>
+   *
+   * @param resourceName the name of the resource to prefetch; may be
+   * {@code null} in which case {@code false} is returned
+   *
+   * @return {@code true} if a prefetch was scheduled; {@code false}
+   * otherwise
+   *
+   * @see #prefetch(String)
+   *
+   * @see #replay(LoadTrace)
+   */
+  protected final boolean prefetchResource(final String resourceName) {
+    if (resourceName == null || this.prefetchExecutor == null || this.resourcePrefetches.containsKey(resourceName)) {
+      return false;
+    }
+    final GetObjectRequest request = this.resourceNameToGetObjectRequest(resourceName);
+    if (request == null) {
+      return false;
+    }
+    SharedFetch task = this.newAsyncFetch(request, false);
+    if (task == null) {
+      task = new SharedFetch(new Callable<byte[]>() {
+          @Override
+          public final byte[] call() throws IOException {
+            return getObjectBytes(request);
+          }
+        });
+    }
+    return this.schedulePrefetch(this.resourcePrefetches, resourceName, task, request, false);
+  }
+
+  /**
+   * Returns a new {@link AsyncFetch} that will fetch the object
+   * described by the supplied {@link GetObjectRequest} through the
+   * {@linkplain #setAsyncObjectFetcher(AsyncObjectFetcher) installed
+   * <code>AsyncObjectFetcher</code>}, or {@code null} if there is none
+   * or the request may not or cannot be sent through it.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @param isClass whether the object holds a class whose references
+   * should be prefetched in turn
+   *
+   * @return a new {@link AsyncFetch}, or {@code null}
+   *
+   * @see #mayFetchAsynchronously(GetObjectRequest)
+   */
+  private final AsyncFetch newAsyncFetch(final GetObjectRequest request, final boolean isClass) {
+    final AsyncObjectFetcher asyncObjectFetcher = this.asyncObjectFetcher;
+    if (asyncObjectFetcher == null || !this.mayFetchAsynchronously(request)) {
+      return null;
+    }
+    try {
+      if (!asyncObjectFetcher.supports(request)) {
+        return null;
+      }
+    } catch (final AmazonClientException e) {
+      // The URL could not be signed; the usual path will report it.
+      return null;
+    }
+    return new AsyncFetch(asyncObjectFetcher, request, isClass);
+  }
+
+  /**
+   * Adds the supplied {@link SharedFetch} to the supplied map of
+   * prefetches under the supplied name and to the {@link
+   * #prefetchQueue}, unless the object to be fetched cannot
+   * {@linkplain #mayExist(GetObjectRequest) exist}, the map is full or
+   * already holds a prefetch under that name, and returns {@code true}
+   * if the prefetch was scheduled.
+   *
+   * <p>The prefetch is removed from the map again as soon as it
+   * completes if it yields no bytes or fails.  If the map is full,
+   * prefetches that have gone unclaimed for longer than {@link
+   * #UNCLAIMED_PREFETCH_TTL} are evicted first.</p>
+   *
+   * @param prefetches the map of prefetches; must not be {@code null}
+   *
+   * @param name the name of the class or resource being prefetched;
+   * must not be {@code null}
+   *
+   * @param task a {@link SharedFetch} performing the fetch; must not
+   * be {@code null}
+   *
+   * @param request the {@link GetObjectRequest} the fetch will issue;
+   * must not be {@code null}
+   *
+   * @param urgent whether the prefetch should precede all other
+   * pending prefetches
+   *
+   * @return {@code true} if a prefetch was scheduled; {@code false}
+   * otherwise
+   */
+  private final boolean schedulePrefetch(final ConcurrentMap<String, SharedFetch> prefetches,
+                                         final String name,
+                                         final SharedFetch task,
+                                         final GetObjectRequest request,
+                                         final boolean urgent) {
+    if (prefetches.size() >= MAXIMUM_UNCLAIMED_PREFETCHES) {
+      this.evictUnclaimedPrefetches();
+    }
+    if (prefetches.size() >= MAXIMUM_UNCLAIMED_PREFETCHES || !this.mayExist(request)) {
+      return false;
+    }
+    if (prefetches.putIfAbsent(name, task) != null) {
+      return false;
+    }
+    task.whenDone(new Runnable() {
+        @Override
+        public final void run() {
+          if (!task.yieldedBytes()) {
+            prefetches.remove(name, task);
+          }
+        }
+      });
+    if (urgent) {
+      this.prefetchQueue.addFirst(task);
+    } else {
+      this.prefetchQueue.addLast(task);
+    }
+    this.startPrefetchWorker();
+    return true;
+  }
+
+  /**
+   * Evicts the {@linkplain #prefetch(String) prefetches} of classes
+   * and resources that have gone unclaimed for longer than {@link
+   * #UNCLAIMED_PREFETCH_TTL}, unless such a search was made less than
+   * {@link #PREFETCH_EVICTION_INTERVAL} ago.
+   */
+  private final void evictUnclaimedPrefetches() {
+    final long now = System.nanoTime();
+    if (now - this.nextPrefetchEviction >= 0L) {
+      this.nextPrefetchEviction = now + PREFETCH_EVICTION_INTERVAL;
+      evictPrefetchesDoneBefore(this.prefetches, now - UNCLAIMED_PREFETCH_TTL);
+      evictPrefetchesDoneBefore(this.resourcePrefetches, now - UNCLAIMED_PREFETCH_TTL);
+    }
+  }
+
+  /**
+   * Returns {@code true} if the class with the supplied name should be
+   * {@linkplain #prefetch(String) prefetched} when it is referred to
+   * by a class this {@link AbstractS3ClassLoader} defines.
+   *
+   * <p>The default implementation returns {@code true} only for
+   * classes in packages in which this {@link AbstractS3ClassLoader}
+   * has already defined a class, or in which a {@linkplain
+   * #replay(LoadTrace) replayed} {@link LoadTrace} records that a
+   * class was loaded.  Classes in other packages, such as those
+   * supplied by the Java platform or by the {@linkplain #getParent()
+   * parent <code>ClassLoader</code>}, are unlikely to be found in
+   * Amazon S3.  Overrides may instead name the packages actually
+   * stored there.</p>
+   *
+   * @param className the binary name of a class; must not be {@code
+   * null}
+   *
+   * @return {@code true} if the class should be prefetched; {@code
+   * false} otherwise
+   *
+   * @see #prefetch(String)
+   */
+  protected boolean isPrefetchCandidate(final String className) {
+    return this.packageNames.contains(getPackageName(className));
+  }
+
+  /**
+   * {@linkplain #prefetch(String) Prefetches} the class with the
+   * supplied name, which a {@linkplain #replay(LoadTrace) replayed}
+   * {@link LoadTrace} records was loaded, after admitting its package
+   * to those whose classes are {@linkplain
+   * #isPrefetchCandidate(String) prefetch candidates} by default, and
+   * returns {@code true} if a prefetch was scheduled.
+   *
+   * @param className the binary name of the class; must not be {@code
+   * null}
+   *
+   * @return {@code true} if a prefetch was scheduled; {@code false}
+   * otherwise
+   *
+   * @see LoadTrace#replayInto(AbstractS3ClassLoader)
+   */
+  final boolean prefetchRecordedClass(final String className) {
+    this.packageNames.add(getPackageName(className));
+    return this.prefetch(className);
+  }
+
+  /**
+   * Returns {@code true} if the object described by the supplied
+   * {@link GetObjectRequest} may be fetched through an {@linkplain
+   * #setAsyncObjectFetcher(AsyncObjectFetcher) installed
+   * <code>AsyncObjectFetcher</code>}.
+   *
+   * <p>A fetch made through an {@link AsyncObjectFetcher} bypasses
+   * the {@link #requestObject(GetObjectRequest)} method, and a
+   * prefetch made through one bypasses the {@link
+   * #getObjectBytes(GetObjectRequest)} method as well, so this method
+   * must return {@code false} in any subclass that overrides either
+   * of them to fetch objects differently.</p>
+   *
+   * <p>The default implementation returns {@code false}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @return {@code true} if the object may be fetched asynchronously;
+   * {@code false} otherwise
+   *
+   * @see #setAsyncObjectFetcher(AsyncObjectFetcher)
+   */
+  protected boolean mayFetchAsynchronously(final GetObjectRequest request) {
+    return false;
+  }
+
+  /**
+   * {@linkplain #prefetch(String) Prefetches} the classes referred to
+   * by the constant pool of the supplied class file, if prefetching is
+   * enabled.
+   *
+   * <p>The superclass and interfaces named in the class file's header
+   * are prefetched {@linkplain #prefetch(String, boolean) urgently},
+   * since defining the class will block until they are loaded, and
+   * since each of their own supertypes can only be discovered once
+   * their bytes have arrived.  This keeps a hierarchy's fetches
+   * back-to-back instead of interleaving them with the fetches of
+   * classes that are not needed until later.</p>
+   *
+   * @param bytes an array containing a class file; must not be {@code
+   * null}
+   *
+   * @param offset the offset within {@code bytes} at which the class
+   * file begins
+   *
+   * @param length the length of the class file
+   */
+  private final void prefetchReferencedClasses(final byte[] bytes, final int offset, final int length) {
+    if (this.prefetchExecutor != null) {
+      final ClassFileInfo classFileInfo;
+      try {
+        classFileInfo = new ClassFileInfo(bytes, offset, length);
+      } catch (final IllegalArgumentException malformed) {
+        // defineClass() will report this properly.
+        return;
+      }
+      for (final String interfaceName : classFileInfo.getInterfaceNames()) {
+        this.prefetch(interfaceName, true);
+      }
+      // The superclass goes to the head of the queue last so that it
+      // is fetched first.
+      this.prefetch(classFileInfo.getSuperclassName(), true);
+      for (final String referencedClassName : classFileInfo.getReferencedClassNames()) {
+        this.prefetch(referencedClassName, false);
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the bytes prefetched for the class or resource
+   * with the supplied name, waiting for an in-progress prefetch to
+   * complete if necessary, or returns {@code null} if there was no
+   * prefetch or it failed.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param prefetches the map of prefetches to claim from; must not be
+   * {@code null}
+   *
+   * @param name the name of the class or resource; must not be {@code
+   * null}
+   *
+   * @return the prefetched bytes, or {@code null}
+   */
+  private final byte[] claimPrefetch(final ConcurrentMap<String, SharedFetch> prefetches, final String name) {
+    final SharedFetch task = prefetches.remove(name);
+    if (task == null) {
+      return null;
+    }
+    if (this.prefetchQueue.remove(task)) {
+      // No worker has started it yet; don't wait for one.
+      task.run();
+    }
+    try {
+      return task.get();
+    } catch (final ExecutionException failedPrefetch) {
+      // Let the caller retry the fetch and report any failure itself.
+      return null;
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Submits a task to the {@linkplain #prefetchExecutor prefetch
+   * executor} that drains the {@link #prefetchQueue}, unless the
+   * {@linkplain #maximumConcurrentPrefetches maximum number} of such
+   * tasks are already running.
+   */
+  private final void startPrefetchWorker() {
+    final Executor executor = this.prefetchExecutor;
+    if (executor == null) {
+      return;
+    }
+    while (true) {
+      final int workers = this.prefetchWorkers.get();
+      if (workers >= this.maximumConcurrentPrefetches) {
+        return;
+      } else if (this.prefetchWorkers.compareAndSet(workers, workers + 1)) {
+        break;
+      }
+    }
+    try {
+      executor.execute(new Runnable() {
+          @Override
+          public final void run() {
+            try {
+              SharedFetch task;
+              while ((task = prefetchQueue.poll()) != null) {
+                task.run();
+              }
+            } finally {
+              prefetchWorkers.decrementAndGet();
+            }
+            if (!prefetchQueue.isEmpty()) {
+              startPrefetchWorker();
+            }
+          }
+        });
+    } catch (final RejectedExecutionException e) {
+      this.prefetchWorkers.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the contents of the object described by the supplied
+   * {@link GetObjectRequest}, or {@code null} if there is no such
+   * object.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>If the {@link #mayExist(GetObjectRequest)} method returns
+   * {@code false}, then {@code null} is returned immediately.
+   * Otherwise, if a {@linkplain
+   * #setNegativeLookupCache(NegativeLookupCache) negative lookup
+   * cache} is installed and records the object as missing, then
+   * {@code null} is returned immediately.  Otherwise, if the object
+   * turns out not to exist, that fact is recorded there.</p>
+   *
+   * <p>If an {@linkplain #setObjectCache(ObjectCache, boolean) object
+   * cache} is installed, then it is consulted next.  A cached object
+   * is either returned directly or, if revalidation is in effect,
+   * revalidated by adding its ETag to the supplied {@link
+   * GetObjectRequest} as a {@linkplain
+   * GetObjectRequest#setNonmatchingETagConstraints(List) non-matching
+   * ETag constraint}; Amazon S3 then answers with {@code 304 Not
+   * Modified} and no body if the object is unchanged.  Freshly
+   * downloaded contents are stored in the cache together with their
+   * ETag.  Failures reading or writing the cache are treated as cache
+   * misses.  A cached object whose ETag matches the one reported by
+   * the {@link #getObjectSummary(GetObjectRequest)} method is known
+   * to be current and is never revalidated; one whose ETag differs
+   * from it is revalidated whether or not revalidation is in effect,
+   * since either it or the summary may be stale.</p>
+   *
+   * <p>The response's content length, if any, is used to size the
+   * array into which the object's contents are read.  Otherwise the
+   * contents are streamed into a growing buffer, seeded with the size
+   * reported by the {@link #getObjectSummary(GetObjectRequest)}
+   * method or, failing that, with the size of any stale cached copy,
+   * so objects of unknown length load without an extra {@code HEAD}
+   * request.  Summaries, which typically come from a manifest listed
+   * some time ago, are never trusted over the response itself;
+   * disagreements between the two are counted by the {@link
+   * S3ClassLoaderMetrics#getManifestMismatchCount()} method.</p>
+   *
+   * <p>Concurrent calls for the same object (and, for ranged requests,
+   * the same range) are coalesced: while one call is fetching the
+   * object, the others wait for it and return its result, including
+   * any exception it throws, rather than issuing requests of their
+   * own.  Such calls are counted by the {@link
+   * #getCoalescedFetchCount()} method.  This covers demand loads of
+   * classes and resources and {@linkplain #prefetch(String)
+   * prefetches} alike.</p>
+   *
+   * <p>If an {@linkplain #setAsyncObjectFetcher(AsyncObjectFetcher)
+   * <code>AsyncObjectFetcher</code>} is installed and supports the
+   * request, the request is sent through it and this method waits
+   * for its response.</p>
+   *
+   * @param request the {@link GetObjectRequest} describing the object
+   * to fetch; must not be {@code null}; may be modified by this
+   * method
+   *
+   * @return the contents of the object, or {@code null}
+   *
+   * @exception NullPointerException if {@code request} is {@code
+   * null}
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   *
+   * @exception IOException if there was a problem reading the
+   * object's contents
+   *
+   * @see #mayExist(GetObjectRequest)
+   *
+   * @see #getObjectSummary(GetObjectRequest)
+   *
+   * @see #setNegativeLookupCache(NegativeLookupCache)
+   *
+   * @see #setObjectCache(ObjectCache, boolean)
+   *
+   * @see #getCacheKey(GetObjectRequest)
+   *
+   * @see #getCoalescedFetchCount()
+   *
+   * @see AmazonS3#getObject(GetObjectRequest)
+   */
+  protected byte[] getObjectBytes(final GetObjectRequest request) throws IOException {
+    Objects.requireNonNull(request, "request == null");
+    final String bucketName = request.getBucketName();
+    final String key = request.getKey();
+    if (!this.mayExist(request)) {
+      this.metrics.recordNegativeHit();
+      return null;
+    }
+    if (bucketName == null || key == null) {
+      return toArray(this.fetchObject(request, null));
+    }
+    final AsyncFetch asyncFetch = this.newAsyncFetch(request, false);
+    if (asyncFetch != null) {
+      // The request is multiplexed with all others in flight; only
+      // this thread waits for it.
+      asyncFetch.run();
+      return getUninterruptibly(asyncFetch);
+    }
+    // Bucket names cannot contain '/'.
+    final String fetchKey = bucketName + '/' + this.getCacheKey(request);
+    final SharedFetch fetch = new SharedFetch(new Callable<byte[]>() {
+        @Override
+        public final byte[] call() throws IOException {
+          return toArray(fetchObject(request, null));
+        }
+      });
+    final SharedFetch inFlightFetch = this.registerOrJoin(fetchKey, fetch);
+    if (inFlightFetch == null) {
+      try {
+        fetch.run();
+      } finally {
+        this.inFlightFetches.remove(fetchKey, fetch);
+      }
+      return getUninterruptibly(fetch);
+    }
+    this.metrics.recordCoalescedFetch();
+    return getUninterruptibly(inFlightFetch);
+  }
+
+  /**
+   * Returns the number of {@link #getObjectBytes(GetObjectRequest)}
+   * calls that were satisfied by waiting for another, concurrent call
+   * fetching the same object, and that therefore did not issue
+   * requests of their own.
+   *
+   * @return the number of coalesced fetches; never negative
+   *
+   * @see #getObjectBytes(GetObjectRequest)
+   */
+  public final long getCoalescedFetchCount() {
+    return this.metrics.getCoalescedFetchCount();
+  }
+
+  /**
+   * Returns a {@link ByteBuffer} holding the contents of the object
+   * described by the supplied {@link GetObjectRequest} between its
+   * position and its limit, or {@code null} if there is no such
+   * object, reading the contents into the supplied {@link ByteBuffer}
+   * if possible.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The {@link #findClass(String)} method calls this method with a
+   * pooled buffer and {@linkplain #defineClass(String, ByteBuffer,
+   * CodeSource) defines} the class directly from the {@link
+   * ByteBuffer} returned, so that loading a class need not allocate
+   * an array for its bytes.  The returned {@link ByteBuffer} may be
+   * the supplied one or another; the supplied one is reused once the
+   * class has been defined, so implementations must not retain
+   * it.</p>
+   *
+   * <p>The default implementation {@linkplain ByteBuffer#wrap(byte[])
+   * wraps} the array returned by the {@link
+   * #getObjectBytes(GetObjectRequest)} method and ignores the
+   * supplied buffer, which is correct for subclasses that override
+   * that method.  Subclasses that do not may override this method to
+   * call the {@link #readObject(GetObjectRequest, ByteBuffer)}
+   * method instead.</p>
+   *
+   * @param request the {@link GetObjectRequest} describing the object
+   * to fetch; must not be {@code null}; may be modified by this
+   * method
+   *
+   * @param buffer a cleared heap {@link ByteBuffer} into which the
+   * contents may be read; must not be {@code null}
+   *
+   * @return a {@link ByteBuffer} holding the contents of the object,
+   * or {@code null}
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   *
+   * @exception IOException if there was a problem reading the
+   * object's contents
+   *
+   * @see #readObject(GetObjectRequest, ByteBuffer)
+   *
+   * @see #getObjectBytes(GetObjectRequest)
+   */
+  protected ByteBuffer getObjectBuffer(final GetObjectRequest request, final ByteBuffer buffer) throws IOException {
+    final byte[] bytes = this.getObjectBytes(request);
+    return bytes == null ? null : ByteBuffer.wrap(bytes);
+  }
+
+  /**
+   * Fetches the object described by the supplied {@link
+   * GetObjectRequest} exactly as the {@link
+   * #getObjectBytes(GetObjectRequest)} method does, but reads its
+   * contents into the supplied {@link ByteBuffer} if they fit, and
+   * returns a {@link ByteBuffer} holding them between its position
+   * and its limit, or {@code null} if there is no such object.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The supplied {@link ByteBuffer} is not used, and an array is
+   * allocated as usual, if an {@linkplain #setObjectCache(ObjectCache,
+   * boolean) object cache} is installed, since the cache must retain
+   * its own copy, or if another thread is already fetching the same
+   * object, in which case its result is shared.  A fetch that reads
+   * into the supplied {@link ByteBuffer} is shared in the same way
+   * with callers that arrive while it is in progress; since the
+   * supplied {@link ByteBuffer} will be reused, they are given a copy
+   * of its contents, which is made only if there are any such
+   * callers.</p>
+   *
+   * @param request the {@link GetObjectRequest} describing the object
+   * to fetch; must not be {@code null}; may be modified by this
+   * method
+   *
+   * @param buffer a cleared heap {@link ByteBuffer} into which the
+   * contents may be read; may be {@code null}
+   *
+   * @return a {@link ByteBuffer} holding the contents of the object,
+   * or {@code null}
+   *
+   * @exception NullPointerException if {@code request} is {@code
+   * null}
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   *
+   * @exception IOException if there was a problem reading the
+   * object's contents
+   *
+   * @see #getObjectBuffer(GetObjectRequest, ByteBuffer)
+   *
+   * @see #getObjectBytes(GetObjectRequest)
+   */
+  protected final ByteBuffer readObject(final GetObjectRequest request, final ByteBuffer buffer) throws IOException {
+    Objects.requireNonNull(request, "request == null");
+    final String bucketName = request.getBucketName();
+    final String key = request.getKey();
+    if (bucketName == null || key == null || buffer == null || this.objectCache != null) {
+      final byte[] bytes = this.getObjectBytes(request);
+      return bytes == null ? null : ByteBuffer.wrap(bytes);
+    }
+    if (!this.mayExist(request)) {
+      this.metrics.recordNegativeHit();
+      return null;
+    }
+    final AsyncFetch asyncFetch = this.newAsyncFetch(request, false);
+    if (asyncFetch != null) {
+      asyncFetch.run();
+      final byte[] bytes = getUninterruptibly(asyncFetch);
+      return bytes == null ? null : ByteBuffer.wrap(bytes);
+    }
+    final String fetchKey = bucketName + '/' + this.getCacheKey(request);
+    final PooledFetch fetch = new PooledFetch();
+    final SharedFetch inFlightFetch = this.registerOrJoin(fetchKey, fetch);
+    if (inFlightFetch != null) {
+      this.metrics.recordCoalescedFetch();
+      final byte[] bytes = getUninterruptibly(inFlightFetch);
+      return bytes == null ? null : ByteBuffer.wrap(bytes);
+    }
+    final ByteBuffer returnValue;
+    try {
+      returnValue = this.fetchObject(request, buffer);
+    } catch (final IOException | RuntimeException | Error e) {
+      fetch.publish();
+      this.inFlightFetches.remove(fetchKey, fetch);
+      fetch.fail(e);
+      throw e;
+    }
+    final boolean shared = fetch.publish();
+    this.inFlightFetches.remove(fetchKey, fetch);
+    // Callers sharing this fetch must not see the supplied buffer,
+    // which will be reused; if there are none, nothing is copied.
+    fetch.succeed(shared && returnValue != null ? copyOf(returnValue) : null);
+    return returnValue;
+  }
+
+  /**
+   * Registers the supplied {@link SharedFetch} in {@link
+   * #inFlightFetches} under the supplied key and returns {@code
+   * null}, or, if another fetch of the same object is already
+   * registered there, {@linkplain SharedFetch#join() joins} that
+   * fetch and returns it instead.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param fetchKey the key; must not be {@code null}
+   *
+   * @param fetch the {@link SharedFetch} to register; must not be
+   * {@code null}
+   *
+   * @return the joined {@link SharedFetch}, or {@code null} if
+   * {@code fetch} was registered
+   */
+  private final SharedFetch registerOrJoin(final String fetchKey, final SharedFetch fetch) {
+    SharedFetch returnValue;
+    while ((returnValue = this.inFlightFetches.putIfAbsent(fetchKey, fetch)) != null && !returnValue.join()) {
+      // A pooled fetch that has finished and is about to unregister
+      // itself; help it along.
+      this.inFlightFetches.remove(fetchKey, returnValue);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Implements the {@link #getObjectBytes(GetObjectRequest)} and
+   * {@link #readObject(GetObjectRequest, ByteBuffer)} methods after
+   * the {@link #mayExist(GetObjectRequest)} check and without
+   * coalescing.
+   *
+   * <p>If {@code buffer} is {@code null} or an {@linkplain
+   * #setObjectCache(ObjectCache, boolean) object cache} is installed,
+   * the returned {@link ByteBuffer}, if any, wraps an entire array
+   * holding exactly the object's contents.</p>
+   *
+   * @param request the {@link GetObjectRequest} describing the object
+   * to fetch; must not be {@code null}; may be modified by this
+   * method
+   *
+   * @param buffer a heap {@link ByteBuffer} into which the contents
+   * may be read; may be {@code null}
+   *
+   * @return a {@link ByteBuffer} holding the contents of the object,
+   * or {@code null}
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   *
+   * @exception IOException if there was a problem reading the
+   * object's contents
+   */
+  private final ByteBuffer fetchObject(final GetObjectRequest request, final ByteBuffer buffer) throws IOException {
+    final Fetch fetch = new Fetch(request, buffer);
+    if (fetch.isComplete()) {
+      return fetch.getResult();
+    }
+    final S3Object s3Object;
+    try {
+      s3Object = this.getObject(request);
+    } catch (final AmazonS3Exception e) {
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+      return fetch.completeNotFound();
+    }
+    return fetch.complete(s3Object);
+  }
+
+  /**
+   * Returns the {@link S3Object} described by the supplied {@link
+   * GetObjectRequest}, {@linkplain #setHedging(Executor, long,
+   * TimeUnit) hedging} the request if hedging is enabled.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @return the {@link S3Object} returned by the client, or {@code
+   * null}
+   *
+   * @exception AmazonClientException if the client threw one
+   *
+   * @see #issueGetObject(GetObjectRequest)
+   */
+  private final S3Object getObject(final GetObjectRequest request) {
+    final HedgePolicy hedgePolicy = this.hedgePolicy;
+    if (hedgePolicy == null) {
+      return this.issueGetObject(request);
+    }
+    final HedgedGet hedgedGet = new HedgedGet();
+    try {
+      hedgePolicy.executor.execute(this.newAttempt(request, hedgedGet, false));
+    } catch (final RejectedExecutionException e) {
+      return this.issueGetObject(request);
+    }
+    int outstanding = 1;
+    HedgedGet.Outcome outcome = hedgedGet.await(this.getHedgeDelay(hedgePolicy));
+    if (outcome == null) {
+      try {
+        // Each request in flight gets its own GetObjectRequest.
+        hedgePolicy.executor.execute(this.newAttempt((GetObjectRequest)request.clone(), hedgedGet, true));
+        this.metrics.recordHedge();
+        outstanding++;
+      } catch (final RejectedExecutionException e) {
+        // The original request will have to do.
+      }
+      outcome = hedgedGet.await(-1L);
+    }
+    Throwable failure = null;
+    while (true) {
+      outstanding--;
+      if (outcome.failure == null) {
+        hedgedGet.decide();
+        if (outcome.hedge) {
+          this.metrics.recordHedgeWin();
+        }
+        return outcome.s3Object;
+      } else if (failure == null) {
+        failure = outcome.failure;
+      }
+      if (outstanding <= 0) {
+        break;
+      }
+      outcome = hedgedGet.await(-1L);
+    }
+    if (failure instanceof Error) {
+      throw (Error)failure;
+    }
+    throw (RuntimeException)failure;
+  }
+
+  /**
+   * Returns a {@link Runnable} that {@linkplain
+   * #issueGetObject(GetObjectRequest) issues} the supplied {@link
+   * GetObjectRequest} and {@linkplain HedgedGet#offer(HedgedGet.Outcome)
+   * offers} its outcome to the supplied {@link HedgedGet}.
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @param hedgedGet the {@link HedgedGet}; must not be {@code null}
+   *
+   * @param hedge whether the request is a hedge
+   *
+   * @return a new, non-{@code null} {@link Runnable}
+   */
+  private final Runnable newAttempt(final GetObjectRequest request, final HedgedGet hedgedGet, final boolean hedge) {
+    return new Runnable() {
+        @Override
+        public final void run() {
+          S3Object s3Object = null;
+          Throwable failure = null;
+          try {
+            s3Object = issueGetObject(request);
+          } catch (final RuntimeException | Error e) {
+            failure = e;
+          }
+          hedgedGet.offer(new HedgedGet.Outcome(s3Object, failure, hedge));
+        }
+      };
+  }
+
+  /**
+   * Returns the delay, in nanoseconds, after which a request governed
+   * by the supplied {@link HedgePolicy} is hedged.
+   *
+   * @param hedgePolicy the {@link HedgePolicy}; must not be {@code
+   * null}
+   *
+   * @return the delay in nanoseconds; never negative
+   */
+  private final long getHedgeDelay(final HedgePolicy hedgePolicy) {
+    if (Double.isNaN(hedgePolicy.percentile)) {
+      return hedgePolicy.minimumDelay;
+    }
+    final long now = System.nanoTime();
+    if (now - hedgePolicy.refreshTime >= 0L) {
+      // Racing threads compute the same value; either may win.
+      hedgePolicy.refreshTime = now + HEDGE_DELAY_REFRESH_INTERVAL;
+      final LatencyStatistics requestLatency = this.metrics.getRequestLatency();
+      if (requestLatency.getCount() >= MINIMUM_HEDGE_SAMPLES) {
+        final long percentileDelay = TimeUnit.MICROSECONDS.toNanos(requestLatency.getPercentileMicroseconds(hedgePolicy.percentile));
+        hedgePolicy.delay = Math.max(hedgePolicy.minimumDelay, percentileDelay);
+      }
+    }
+    return hedgePolicy.delay;
+  }
+
+  /**
+   * Calls the {@link AmazonS3#getObject(GetObjectRequest)} method on
+   * this {@link AbstractS3ClassLoader}'s {@linkplain #client client}
+   * with the supplied {@link GetObjectRequest}, recording the request
+   * and the time it took in this {@link AbstractS3ClassLoader}'s
+   * {@linkplain #getMetrics() metrics}, and returns its result.
+   *
+   * <p>Errors other than {@code 404 Not Found} are recorded as
+   * well.</p>
+   *
+   * <p>If a {@linkplain #setConcurrencyLimiter(ConcurrencyLimiter,
+   * int) concurrency limiter} is installed, the request waits for it
+   * and is retried if it is throttled.</p>
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @return the {@link S3Object} returned by the client, or {@code
+   * null}
+   *
+   * @exception AmazonClientException if the client threw one
+   */
+  private final S3Object issueGetObject(final GetObjectRequest request) {
+    final ConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+    final int maximumRetries = concurrencyLimiter == null ? 0 : this.maximumRetries;
+    for (int retry = 0; ; retry++) {
+      final long permit = concurrencyLimiter == null ? 0L : concurrencyLimiter.acquire();
+      boolean throttled = false;
+      final long start = System.nanoTime();
+      try {
+        return this.requestObject(request);
+      } catch (final AmazonS3Exception e) {
+        if (e.getStatusCode() != 404) {
+          this.metrics.recordError(e);
+        }
+        throttled = e.getStatusCode() == 503;
+        if (!throttled || retry >= maximumRetries) {
+          throw e;
+        }
+      } catch (final AmazonClientException e) {
+        this.metrics.recordError(e);
+        throw e;
+      } finally {
+        this.metrics.recordRequest(System.nanoTime() - start);
+        if (concurrencyLimiter != null) {
+          concurrencyLimiter.release(permit, throttled);
+        }
+      }
+      this.metrics.recordRetry();
+      try {
+        concurrencyLimiter.backOff(retry);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AmazonClientException("Interrupted while waiting to retry a throttled request", e);
+      }
+    }
+  }
+
+  /**
+   * Sends the supplied {@link GetObjectRequest} to Amazon S3 and
+   * returns the response.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The default implementation sends the request through the
+   * {@linkplain #setPresignedUrlFetcher(PresignedUrlFetcher) installed
+   * <code>PresignedUrlFetcher</code>}, if there is one and it
+   * {@linkplain PresignedUrlFetcher#supports(GetObjectRequest)
+   * supports} the request, and otherwise calls the {@link
+   * AmazonS3#getObject(GetObjectRequest)} method on this {@link
+   * AbstractS3ClassLoader}'s {@linkplain #client client}.  Overrides
+   * may send the request elsewhere.  The request has already been
+   * admitted by any {@linkplain
+   * #setConcurrencyLimiter(ConcurrencyLimiter, int) concurrency
+   * limiter}, and the time this method takes and any exception it
+   * throws are recorded in this {@link AbstractS3ClassLoader}'s
+   * {@linkplain #getMetrics() metrics} by its caller.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}; must not be modified
+   *
+   * @return the {@link S3Object} returned by Amazon S3, or {@code
+   * null} if a constraint in the request was not met
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   *
+   * @see AmazonS3#getObject(GetObjectRequest)
+   */
+  protected S3Object requestObject(final GetObjectRequest request) {
+    final PresignedUrlFetcher presignedUrlFetcher = this.presignedUrlFetcher;
+    if (presignedUrlFetcher != null && presignedUrlFetcher.supports(request)) {
+      return presignedUrlFetcher.getObject(request);
+    }
+    return this.client.getObject(request);
+  }
+
+  /**
+   * Returns the key under which the contents described by the
+   * supplied {@link GetObjectRequest} are stored in an {@linkplain
+   * #setObjectCache(ObjectCache, boolean) object cache}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The default implementation returns the request's {@linkplain
+   * GetObjectRequest#getKey() key}, suffixed with the requested
+   * {@linkplain GetObjectRequest#getRange() range} if there is one,
+   * so that different ranges of the same object are cached
+   * separately.</p>
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null} and must have a non-{@code null} key
+   *
+   * @return a non-{@code null} cache key
+   *
+   * @see #getObjectBytes(GetObjectRequest)
+   */
+  protected String getCacheKey(final GetObjectRequest request) {
+    final String key = request.getKey();
+    final long[] range = request.getRange();
+    if (range == null || range.length != 2) {
+      return key;
+    } else {
+      return key + "?bytes=" + range[0] + "-" + range[1];
+    }
+  }
+
+  /**
+   * Returns {@code true} if the contents described by the supplied
+   * {@link GetObjectRequest} may be stored in, and served from, an
+   * {@linkplain #setObjectCache(ObjectCache, boolean) object cache}.
+   *
+   * <p>The default implementation returns {@code true}.  Subclasses
+   * whose requests are shaped by circumstances, such as how many
+   * other requests happen to be in progress, should return {@code
+   * false} for such requests, since their {@linkplain
+   * #getCacheKey(GetObjectRequest) cache keys} are unlikely ever to
+   * be seen again.</p>
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code true} if the contents may be cached; {@code false}
+   * otherwise
+   *
+   * @see #getCacheKey(GetObjectRequest)
+   */
+  protected boolean isCacheable(final GetObjectRequest request) {
+    return true;
+  }
+
+  /**
+   * Returns {@code false} if the object described by the supplied
+   * {@link GetObjectRequest} is known not to exist without
+   * communicating with <a href="https://aws.amazon.com/s3/">Amazon's
+   * Simple Storage Service</a>, and {@code true} otherwise.
+   *
+   * <p>The default implementation returns {@code true}.  Overrides
+   * backed by an index of the relevant bucket, such as a {@link
+   * BucketManifest}, can return {@code false} for keys absent from
+   * it, sparing a network round trip.</p>
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code false} if the object is known not to exist; {@code
+   * true} otherwise
+   *
+   * @see #getObjectBytes(GetObjectRequest)
+   *
+   * @see #findResource(String)
+   *
+   * @see #findResources(String)
+   */
+  protected boolean mayExist(final GetObjectRequest request) {
+    return true;
+  }
+
+  /**
+   * Returns an {@link S3ObjectSummary} describing the object described
+   * by the supplied {@link GetObjectRequest} as known without
+   * communicating with <a href="https://aws.amazon.com/s3/">Amazon's
+   * Simple Storage Service</a>, or {@code null} if no such
+   * information is available.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The default implementation returns {@code null}.  Overrides
+   * that return a non-{@code null} {@link S3ObjectSummary} should
+   * report the object's {@linkplain S3ObjectSummary#getSize() size}
+   * and, if it is known, its {@linkplain S3ObjectSummary#getETag()
+   * ETag}.  Both may be stale: the size is used only to size buffers,
+   * and an ETag that disagrees with a cached copy's causes that copy
+   * to be revalidated rather than served.</p>
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return an {@link S3ObjectSummary}, or {@code null}
+   *
+   * @see #getObjectBytes(GetObjectRequest)
+   */
+  protected S3ObjectSummary getObjectSummary(final GetObjectRequest request) {
+    return null;
+  }
+
+  /**
+   * Returns a {@link CodeSource} suitably representing the supplied
+   * {@link GetObjectRequest}, or {@code null} if such a {@link
+   * CodeSource} could not be returned for any reason.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>Overrides of this method are permitted to return {@code
+   * null}.</p>
+   *
+   * <p>The default implementation returns a {@link CodeSource}
+   * constructed with a {@link URL} representing the bucket identified
+   * by the return value of the {@link
+   * GetObjectRequest#getBucketName()} method as invoked on the
+   * supplied {@link GetObjectRequest}.</p>
+   *
+   * @param request the {@link GetObjectRequest} for which a suitable
+   * {@link CodeSource} should be returned; may be {@code null} in
+   * which case {@code null} will be returned
+   *
+   * @return a {@link CodeSource} for the supplied {@link
+   * GetObjectRequest}, or {@code null}
+   *
+   * @see CodeSource
+   *
+   * @see #defineClass(String, byte[], int, int, CodeSource)
+   *
+   * @see AmazonS3#getUrl(String, String)
+   */
+  protected CodeSource getCodeSource(final GetObjectRequest request) {
+    final CodeSource returnValue;
+    if (request == null) {
+      returnValue = null;
+    } else {
+      URL codeSourceUrl = null;
+      try {
+        codeSourceUrl = this.client.getUrl(request.getBucketName(), null /* no key */);
+      } catch (final AmazonClientException e) {
+        this.metrics.recordError(e);
+      }
+      returnValue = new CodeSource(codeSourceUrl, (Certificate[])null /* no certificates */);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a {@link GetObjectRequest} representing a {@linkplain
+   * #findClass(String) class loading request} for the class
+   * identified by the supplied {@code className}.
+   *
+   * <p>Implementations of this method are permitted to return {@code
+   * null}, which will typically cause a {@link
+   * ClassNotFoundException} to be thrown by the {@link
+   * #findClass(String)} method.</p>
+   *
+   * @param className a Java class name; may be {@code null}
+   *
+   * @return the {@link GetObjectRequest} representing the {@linkplain
+   * #findClass(String) class loading request} for the supplied {@code
+   * className}, or {@code null}
+   *
+   * @see #findClass(String)
+   *
+   * @see GetObjectRequest
+   *
+   * @see AmazonS3#getObject(GetObjectRequest)
+   */
+  protected abstract GetObjectRequest classNameToGetObjectRequest(final String className);
+
+  /**
+   * Returns a {@link GetObjectRequest} representing a {@linkplain
+   * #findResource(String) resource finding request} for the resource
+   * identified by the supplied {@code resourceName}.
+   *
+   * <p>Implementations of this method are permitted to return {@code
+   * null}, which will typically cause {@code null} to be returned by
+   * the {@link #findResource(String)} method.</p>
+   *
+   * @param resourceName a resource name; may be {@code null}
+   *
+   * @return the {@link GetObjectRequest} representing the {@linkplain
+   * #findResource(String) resource finding request} for the supplied
+   * {@code resourceName}, or {@code null}
+   */
+  protected abstract GetObjectRequest resourceNameToGetObjectRequest(final String resourceName);
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the name of the package of the class with the supplied
+   * binary name, which is empty for the unnamed package.
+   *
+   * @param className the binary name of a class; must not be {@code
+   * null}
+   *
+   * @return the name of the class's package; never {@code null}
+   */
+  private static final String getPackageName(final String className) {
+    final int lastDot = className.lastIndexOf('.');
+    return lastDot < 0 ? "" : className.substring(0, lastDot);
+  }
+
+  /**
+   * Removes from the supplied map of {@linkplain #prefetch(String)
+   * prefetches} those that were done before the supplied time.
+   *
+   * @param prefetches the map of prefetches; must not be {@code null}
+   *
+   * @param cutoff a value of {@link System#nanoTime()}
+   */
+  private static final void evictPrefetchesDoneBefore(final ConcurrentMap<String, SharedFetch> prefetches, final long cutoff) {
+    final Iterator<SharedFetch> iterator = prefetches.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().isDoneBefore(cutoff)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Waits, without being interruptible, for the supplied {@link
+   * FutureTask} to complete and returns its result, rethrowing
+   * whatever it threw.
+   *
+   * <p>If the calling thread is interrupted while waiting, its
+   * interrupt status is restored before this method returns.</p>
+   *
+   * @param task the {@link FutureTask}; must not be {@code null}
+   *
+   * @return the result of the task, which may be {@code null}
+   *
+   * @exception IOException if the task threw an {@link IOException}
+   */
+  static final byte[] getUninterruptibly(final FutureTask<byte[]> task) throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        } catch (final ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException)cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+          } else if (cause instanceof Error) {
+            throw (Error)cause;
+          } else {
+            throw new IOException(cause);
+          }
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns the array wrapped by the supplied {@link ByteBuffer},
+   * which must wrap an entire array, or {@code null} if the supplied
+   * {@link ByteBuffer} is {@code null}.
+   *
+   * @param buffer a {@link ByteBuffer} returned by the {@link
+   * #fetchObject(GetObjectRequest, ByteBuffer)} method when no buffer
+   * was supplied to it; may be {@code null}
+   *
+   * @return the wrapped array, or {@code null}
    */
-  protected abstract GetObjectRequest resourceNameToGetObjectRequest(final String resourceName);
-  
+  private static final byte[] toArray(final ByteBuffer buffer) {
+    if (buffer == null) {
+      return null;
+    }
+    assert buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.limit() == buffer.array().length;
+    return buffer.array();
+  }
+
+  /**
+   * Returns a new array holding the contents of the supplied heap
+   * {@link ByteBuffer} between its position and its limit.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param buffer the heap {@link ByteBuffer}; must not be {@code
+   * null}
+   *
+   * @return a new array; never {@code null}
+   */
+  private static final byte[] copyOf(final ByteBuffer buffer) {
+    final int offset = buffer.arrayOffset() + buffer.position();
+    return Arrays.copyOfRange(buffer.array(), offset, offset + buffer.remaining());
+  }
+
+  /**
+   * Reads the entire contents of the supplied {@link S3Object} into
+   * the supplied heap {@link ByteBuffer}, if they fit, or else into a
+   * new {@code byte} array, and returns a {@link ByteBuffer} holding
+   * them between its position and its limit.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The size of the contents is taken from the {@linkplain
+   * ObjectMetadata#getContentLength() content length} of the
+   * response if that is positive.  If it is not available, as happens
+   * with some Amazon S3-compatible stores and with chunked or
+   * transcoded responses, the contents are streamed into a buffer that
+   * starts at {@code sizeHint} bytes, if that is positive, and grows
+   * or is trimmed as necessary.</p>
+   *
+   * <p>If the contents are read into a new array and {@code buffer} is
+   * {@code null}, the returned {@link ByteBuffer} wraps that entire
+   * array.</p>
+   *
+   * @param s3Object the {@link S3Object} to read; must not be {@code
+   * null}
+   *
+   * @param sizeHint the probable size of the object, used only if the
+   * response does not say what its actual size is, or a negative
+   * number if there is no such hint
+   *
+   * @param buffer a cleared heap {@link ByteBuffer} to read into; may
+   * be {@code null}
+   *
+   * @return a non-{@code null} {@link ByteBuffer} holding the contents
+   * of the supplied {@link S3Object}
+   *
+   * @exception IOException if the object's size exceeds {@link
+   * Integer#MAX_VALUE}, or if its contents could not be read in full
+   */
+  private static final ByteBuffer readFully(final S3Object s3Object, long sizeHint, final ByteBuffer buffer) throws IOException {
+    long sizeInBytes = -1L;
+    final ObjectMetadata metadata = s3Object.getObjectMetadata();
+    if (metadata != null && metadata.getContentLength() > 0L) {
+      sizeInBytes = metadata.getContentLength();
+    }
+    sizeHint = Math.min(sizeHint, MAXIMUM_SIZE_HINT);
+    if (sizeInBytes > Integer.MAX_VALUE) {
+      throw new IOException(new IllegalStateException("sizeInBytes > Integer.MAX_VALUE (" + Integer.MAX_VALUE + "): " + sizeInBytes));
+    }
+    final boolean pooled;
+    byte[] bytes;
+    int start;
+    int end;
+    if (buffer != null && buffer.hasArray() && buffer.remaining() >= (sizeInBytes >= 0L ? sizeInBytes : sizeHint)) {
+      pooled = true;
+      bytes = buffer.array();
+      start = buffer.arrayOffset() + buffer.position();
+      end = sizeInBytes >= 0L ? start + (int)sizeInBytes : buffer.arrayOffset() + buffer.limit();
+    } else {
+      pooled = false;
+      bytes = new byte[sizeInBytes >= 0L ? (int)sizeInBytes : (int)Math.max(sizeHint, MINIMUM_STREAMING_BUFFER_SIZE)];
+      start = 0;
+      end = bytes.length;
+    }
+    int offset = start;
+    try (final InputStream inputStream = s3Object.getObjectContent()) {
+      if (inputStream == null) {
+        if (sizeInBytes > 0L) {
+          throw new EOFException();
+        }
+      } else if (sizeInBytes >= 0L) {
+        while (offset < end) {
+          final int numberOfBytesReadOnThisPass = inputStream.read(bytes, offset, end - offset);
+          if (numberOfBytesReadOnThisPass < 0) {
+            throw new EOFException();
+          } else {
+            offset += numberOfBytesReadOnThisPass;
+          }
+        }
+      } else {
+        while (true) {
+          if (offset == end) {
+            // Only grow if there is actually more to read.
+            final int nextByte = inputStream.read();
+            if (nextByte < 0) {
+              break;
+            }
+            final int length = offset - start;
+            if (length == Integer.MAX_VALUE) {
+              throw new IOException(new IllegalStateException("Object is larger than Integer.MAX_VALUE (" + Integer.MAX_VALUE + ") bytes"));
+            }
+            final byte[] newBytes = new byte[(int)Math.min(Integer.MAX_VALUE, Math.max(2L * length, MINIMUM_STREAMING_BUFFER_SIZE))];
+            System.arraycopy(bytes, start, newBytes, 0, length);
+            newBytes[length] = (byte)nextByte;
+            bytes = newBytes;
+            start = 0;
+            offset = length + 1;
+            end = newBytes.length;
+          }
+          final int numberOfBytesReadOnThisPass = inputStream.read(bytes, offset, end - offset);
+          if (numberOfBytesReadOnThisPass < 0) {
+            break;
+          }
+          offset += numberOfBytesReadOnThisPass;
+        }
+      }
+    }
+    final int length = offset - start;
+    if (pooled && bytes == buffer.array()) {
+      buffer.limit(buffer.position() + length);
+      return buffer;
+    } else if (buffer == null && length != bytes.length) {
+      // Callers that supply no buffer need an exactly sized array.
+      bytes = Arrays.copyOf(bytes, length);
+    }
+    return ByteBuffer.wrap(bytes, start, length);
+  }
+
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * The state of a single {@linkplain #fetchObject(GetObjectRequest,
+   * ByteBuffer) fetch} of an object between the consultation of the
+   * caches that precedes its request and the handling of its
+   * response, so that the two may run on different threads.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see #fetchObject(GetObjectRequest, ByteBuffer)
+   */
+  private final class Fetch {
+
+    /**
+     * The bucket name, or {@code null} if there is none.
+     */
+    private final String bucketName;
+
+    /**
+     * The key, or {@code null} if there is none.
+     */
+    private final String key;
+
+    /**
+     * The {@link NegativeLookupCache} in use, or {@code null}.
+     */
+    private final NegativeLookupCache negativeLookupCache;
+
+    /**
+     * The size reported by the {@link
+     * #getObjectSummary(GetObjectRequest)} method, or {@code -1L}.
+     */
+    private final long summarySize;
+
+    /**
+     * The ETag reported by the {@link
+     * #getObjectSummary(GetObjectRequest)} method, or {@code null}.
+     */
+    private final String summaryETag;
+
+    /**
+     * The {@link ObjectCache} in use, or {@code null}.
+     */
+    private final ObjectCache cache;
+
+    /**
+     * The {@linkplain #getCacheKey(GetObjectRequest) cache key}, or
+     * {@code null} if there is no {@link #cache}.
+     */
+    private final String cacheKey;
+
+    /**
+     * The buffer into which the contents may be read, or {@code
+     * null}.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * The cached copy being revalidated, or {@code null}.
+     */
+    private CachedObject cachedObject;
+
+    /**
+     * Whether the fetch was completed without a request.
+     */
+    private boolean complete;
+
+    /**
+     * The result of a fetch completed without a request.
+     */
+    private ByteBuffer result;
+
+    /**
+     * Creates a new {@link Fetch}, consulting the caches and, if
+     * revalidation is in effect, adding a non-matching ETag
+     * constraint to the supplied {@link GetObjectRequest}.
+     *
+     * @param request the {@link GetObjectRequest}; must not be {@code
+     * null}; may be modified
+     *
+     * @param buffer a heap {@link ByteBuffer} into which the contents
+     * may be read; may be {@code null}
+     *
+     * @see #isComplete()
+     */
+    private Fetch(final GetObjectRequest request, final ByteBuffer buffer) {
+      super();
+      this.bucketName = request.getBucketName();
+      this.key = request.getKey();
+      this.buffer = buffer;
+      this.negativeLookupCache = this.bucketName == null || this.key == null ? null : AbstractS3ClassLoader.this.negativeLookupCache;
+      if (this.negativeLookupCache != null && this.negativeLookupCache.isMissing(this.bucketName, this.key)) {
+        metrics.recordNegativeHit();
+        this.complete = true;
+        this.summarySize = -1L;
+        this.summaryETag = null;
+        this.cache = null;
+        this.cacheKey = null;
+        return;
+      }
+      final S3ObjectSummary summary = getObjectSummary(request);
+      this.summarySize = summary == null ? -1L : summary.getSize();
+      this.summaryETag = summary == null ? null : summary.getETag();
+      this.cache = this.bucketName == null || this.key == null || !isCacheable(request) ? null : objectCache;
+      this.cacheKey = this.cache == null ? null : getCacheKey(request);
+      if (this.cache != null) {
+        // The cache keeps the array it is given.
+        this.buffer = null;
+        try {
+          this.cachedObject = this.cache.get(this.bucketName, this.cacheKey);
+        } catch (final IOException e) {
+          metrics.recordError(e);
+        }
+        if (this.cachedObject == null) {
+          metrics.recordObjectCacheMiss();
+        } else {
+          final String eTag = this.cachedObject.getETag();
+          // A summary that disagrees with the cached copy may be the
+          // stale one; only a conditional request can tell.
+          if (this.summaryETag == null ? !revalidateCachedObjects : this.summaryETag.equals(eTag)) {
+            metrics.recordObjectCacheHit();
+            this.complete = true;
+            this.result = ByteBuffer.wrap(this.cachedObject.getBytes());
+          } else if (eTag == null) {
+            metrics.recordObjectCacheMiss();
+            this.cachedObject = null;
+          } else {
+            request.setNonmatchingETagConstraints(Collections.singletonList(eTag));
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns {@code true} if this {@link Fetch} was completed by the
+     * caches alone, in which case no request need be sent and its
+     * {@linkplain #getResult() result} is available.
+     *
+     * @return {@code true} if no request need be sent
+     */
+    private final boolean isComplete() {
+      return this.complete;
+    }
+
+    /**
+     * Returns the result of a {@link Fetch} completed by the caches
+     * alone.
+     *
+     * <p>This method may return {@code null}.</p>
+     *
+     * @return the contents, or {@code null} if the object is known not
+     * to exist
+     */
+    private final ByteBuffer getResult() {
+      return this.result;
+    }
+
+    /**
+     * Completes this {@link Fetch} with the supplied response, which
+     * is closed, and returns the contents of the object.
+     *
+     * <p>This method may return {@code null}.</p>
+     *
+     * @param s3Object the response; may be {@code null} if a
+     * non-matching ETag constraint was not met
+     *
+     * @return the contents, or {@code null}
+     *
+     * @exception IOException if the contents could not be read
+     */
+    private final ByteBuffer complete(final S3Object s3Object) throws IOException {
+      if (s3Object == null) {
+        // Either there is no such object or our non-matching ETag
+        // constraint was not met, i.e. the cached object is current.
+        if (this.cachedObject != null) {
+          metrics.recordObjectCacheHit();
+          if (this.summaryETag != null && !this.summaryETag.equals(this.cachedObject.getETag())) {
+            metrics.recordManifestMismatch();
+          }
+          return ByteBuffer.wrap(this.cachedObject.getBytes());
+        } else if (this.negativeLookupCache != null) {
+          this.negativeLookupCache.recordMissing(this.bucketName, this.key);
+        }
+        return null;
+      }
+      final ByteBuffer returnValue;
+      try (final S3Object s = s3Object) {
+        final ObjectMetadata metadata = s.getObjectMetadata();
+        // Failing a summary, a stale cached copy is likely to be about
+        // the same size as its replacement.
+        long sizeHint = this.summarySize;
+        if (sizeHint < 0L && this.cachedObject != null) {
+          sizeHint = this.cachedObject.getBytes().length;
+        }
+        final long readStart = System.nanoTime();
+        try {
+          returnValue = readFully(s, sizeHint, this.buffer);
+        } catch (final IOException | RuntimeException e) {
+          metrics.recordError(e);
+          throw e;
+        }
+        metrics.recordRead(returnValue.remaining(), System.nanoTime() - readStart);
+        if (this.cachedObject != null) {
+          // The cached copy was revalidated and found stale.
+          metrics.recordObjectCacheMiss();
+        }
+        final String eTag = metadata == null ? null : metadata.getETag();
+        if ((this.summarySize >= 0L && this.summarySize != returnValue.remaining()) ||
+            (this.summaryETag != null && eTag != null && !this.summaryETag.equals(eTag))) {
+          metrics.recordManifestMismatch();
+        }
+        if (this.cache != null && metadata != null && metadata.getETag() != null) {
+          try {
+            this.cache.put(this.bucketName, this.cacheKey, new CachedObject(metadata.getETag(), returnValue.array()));
+          } catch (final IOException e) {
+            metrics.recordError(e);
+          }
+        }
+      }
+      return returnValue;
+    }
+
+    /**
+     * Completes this {@link Fetch} after Amazon S3 reported that the
+     * object does not exist.
+     *
+     * @return {@code null}
+     */
+    private final ByteBuffer completeNotFound() {
+      metrics.recordNotFound();
+      if (this.negativeLookupCache != null) {
+        this.negativeLookupCache.recordMissing(this.bucketName, this.key);
+      }
+      return null;
+    }
+
+  }
+
+  /**
+   * A {@link FutureTask} fetching an object that other fetches of the
+   * same object may share, either by waiting for it or by arranging to
+   * be notified once it is done.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see #inFlightFetches
+   */
+  private static class SharedFetch extends FutureTask<byte[]> {
+
+    /**
+     * {@link Runnable}s to run once this {@link SharedFetch} is done.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Queue<Runnable> dependents;
+
+    /**
+     * The value of {@link System#nanoTime()} at which this {@link
+     * SharedFetch} was done, or {@code null} if it is not yet done.
+     */
+    private volatile Long doneTime;
+
+    /**
+     * Creates a new {@link SharedFetch} that will run the supplied
+     * {@link Callable}.
+     *
+     * @param callable the {@link Callable}; must not be {@code null}
+     */
+    private SharedFetch(final Callable<byte[]> callable) {
+      super(callable);
+      this.dependents = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Creates a new {@link SharedFetch} that will run the supplied
+     * {@link Runnable} and then yield {@code null} unless it is
+     * completed otherwise.
+     *
+     * @param runnable the {@link Runnable}; must not be {@code null}
+     */
+    private SharedFetch(final Runnable runnable) {
+      super(runnable, null);
+      this.dependents = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Arranges for the supplied {@link Runnable} to be run once this
+     * {@link SharedFetch} is done, on the thread that completes it, or
+     * runs it at once on the calling thread if it is done already.
+     *
+     * @param dependent the {@link Runnable}; must not be {@code null}
+     * and must not block
+     */
+    final void whenDone(final Runnable dependent) {
+      Objects.requireNonNull(dependent, "dependent == null");
+      this.dependents.add(dependent);
+      if (this.isDone()) {
+        this.runDependents();
+      }
+    }
+
+    /**
+     * Declares the caller's intention to wait for, or otherwise use,
+     * the result of this {@link SharedFetch}, and returns {@code true}
+     * if it may.
+     *
+     * <p>This implementation returns {@code true}.</p>
+     *
+     * @return {@code true} if the caller may share the result of this
+     * {@link SharedFetch}; {@code false} if it must fetch the object
+     * itself
+     *
+     * @see PooledFetch
+     */
+    boolean join() {
+      return true;
+    }
+
+    /**
+     * Returns {@code true} if this {@link SharedFetch} was done before
+     * the supplied time.
+     *
+     * @param time a value of {@link System#nanoTime()}
+     *
+     * @return {@code true} if this {@link SharedFetch} was done before
+     * {@code time}; {@code false} otherwise
+     */
+    final boolean isDoneBefore(final long time) {
+      final Long doneTime = this.doneTime;
+      return doneTime != null && doneTime.longValue() - time < 0L;
+    }
+
+    /**
+     * Returns {@code true} if this {@link SharedFetch} is done and
+     * yielded bytes rather than {@code null} or an exception.
+     *
+     * @return {@code true} if this {@link SharedFetch} yielded bytes;
+     * {@code false} otherwise
+     */
+    final boolean yieldedBytes() {
+      if (!this.isDone()) {
+        return false;
+      }
+      try {
+        return this.get() != null;
+      } catch (final CancellationException | ExecutionException e) {
+        return false;
+      } catch (final InterruptedException e) {
+        // Not possible once done, but don't lose the interrupt.
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    /**
+     * Records the time at which this {@link SharedFetch} was done and
+     * runs the {@link Runnable}s supplied to the {@link
+     * #whenDone(Runnable)} method.
+     */
+    @Override
+    protected final void done() {
+      this.doneTime = Long.valueOf(System.nanoTime());
+      this.runDependents();
+    }
+
+    /**
+     * Runs, once each, the {@link Runnable}s supplied to the {@link
+     * #whenDone(Runnable)} method that have not yet been run.
+     */
+    private final void runDependents() {
+      Runnable dependent;
+      while ((dependent = this.dependents.poll()) != null) {
+        try {
+          dependent.run();
+        } catch (final RuntimeException ignore) {
+          // One dependent's problem is not another's.
+        }
+      }
+    }
+
+  }
+
+  /**
+   * A {@link SharedFetch} registered by the {@link
+   * #readObject(GetObjectRequest, ByteBuffer)} method while it reads
+   * an object into a buffer that will be reused.
+   *
+   * <p>A {@link PooledFetch} can be {@linkplain #join() joined} only
+   * until its result is {@linkplain #publish() published}, so that the
+   * fetching thread knows whether it must copy its result for anyone
+   * else.  A {@link PooledFetch} that was not joined yields {@code
+   * null}.</p>
+   *
+   * <h2>Thread Safety</h2>
+   *
+   * <p>This class is safe for concurrent use by multiple threads.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see #readObject(GetObjectRequest, ByteBuffer)
+   */
+  private static final class PooledFetch extends SharedFetch {
+
+    /**
+     * The number of callers that have {@linkplain #join() joined} this
+     * {@link PooledFetch}.
+     *
+     * <p>This field is guarded by {@code this}.</p>
+     */
+    private int sharers;
+
+    /**
+     * Whether the result of this {@link PooledFetch} has been
+     * {@linkplain #publish() published}.
+     *
+     * <p>This field is guarded by {@code this}.</p>
+     */
+    private boolean published;
+
+    /**
+     * Creates a new {@link PooledFetch}.
+     */
+    private PooledFetch() {
+      super(new Runnable() {
+          @Override
+          public final void run() {
+            // PooledFetches are completed, not run.
+          }
+        });
+    }
+
+    /**
+     * Joins this {@link PooledFetch} and returns {@code true} if its
+     * result has not yet been {@linkplain #publish() published}, or
+     * returns {@code false} if it has.
+     *
+     * @return {@code true} if the caller may share the result of this
+     * {@link PooledFetch}; {@code false} if it must fetch the object
+     * itself
+     */
+    @Override
+    final synchronized boolean join() {
+      if (this.published) {
+        return false;
+      }
+      this.sharers++;
+      return true;
+    }
+
+    /**
+     * Prevents any further callers from {@linkplain #join() joining}
+     * this {@link PooledFetch} and returns {@code true} if any have.
+     *
+     * @return {@code true} if this {@link PooledFetch} has been
+     * joined; {@code false} otherwise
+     */
+    final synchronized boolean publish() {
+      this.published = true;
+      return this.sharers > 0;
+    }
+
+    /**
+     * Completes this {@link PooledFetch} successfully.
+     *
+     * @param bytes the bytes to give to those who {@linkplain #join()
+     * joined} it; may be {@code null}
+     */
+    final void succeed(final byte[] bytes) {
+      this.set(bytes);
+    }
+
+    /**
+     * Completes this {@link PooledFetch} exceptionally.
+     *
+     * @param failure the reason; must not be {@code null}
+     */
+    final void fail(final Throwable failure) {
+      this.setException(failure);
+    }
+
+  }
+
+  /**
+   * A {@linkplain #prefetch(String) prefetch} sent through an
+   * {@linkplain #setAsyncObjectFetcher(AsyncObjectFetcher)
+   * <code>AsyncObjectFetcher</code>}, which occupies no thread while
+   * its response is outstanding.
+   *
+   * <p>Running an {@link AsyncFetch} only sends its request; it is
+   * completed later, on one of the {@link AsyncObjectFetcher}'s
+   * completion threads, once the response has arrived.  An {@link AsyncFetch} takes part in
+   * {@linkplain #getObjectBytes(GetObjectRequest) coalescing} like any
+   * other fetch, but never waits for another: if the object is already
+   * being fetched, it completes when that fetch does.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see #setAsyncObjectFetcher(AsyncObjectFetcher)
+   */
+  private final class AsyncFetch extends SharedFetch implements AsyncObjectFetcher.Listener {
+
+    /**
+     * The {@link AsyncObjectFetcher} through which the request is
+     * sent.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final AsyncObjectFetcher asyncObjectFetcher;
+
+    /**
+     * The {@link GetObjectRequest}.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final GetObjectRequest request;
+
+    /**
+     * Whether the fetched bytes are those of a class whose references
+     * should be {@linkplain #prefetchReferencedClasses(byte[], int,
+     * int) prefetched} in turn.
+     */
+    private final boolean isClass;
+
+    /**
+     * Whether the request has been sent.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final AtomicBoolean started;
+
+    /**
+     * The key under which this {@link AsyncFetch} is registered in
+     * {@link #inFlightFetches}.
+     */
+    private String fetchKey;
+
+    /**
+     * The {@link Fetch} awaiting the response.
+     */
+    private Fetch fetch;
+
+    /**
+     * The value of {@link System#nanoTime()} at which the request was
+     * sent.
+     */
+    private long start;
+
+    /**
+     * Creates a new {@link AsyncFetch}.
+     *
+     * @param asyncObjectFetcher the {@link AsyncObjectFetcher}; must
+     * not be {@code null}
+     *
+     * @param request the {@link GetObjectRequest}; must not be {@code
+     * null}; must be {@linkplain
+     * AsyncObjectFetcher#supports(GetObjectRequest) supported}
+     *
+     * @param isClass whether the object holds a class
+     */
+    private AsyncFetch(final AsyncObjectFetcher asyncObjectFetcher, final GetObjectRequest request, final boolean isClass) {
+      super(new Runnable() {
+          @Override
+          public final void run() {
+            // AsyncFetches are completed, not run.
+          }
+        });
+      this.asyncObjectFetcher = asyncObjectFetcher;
+      this.request = request;
+      this.isClass = isClass;
+      this.started = new AtomicBoolean();
+    }
+
+    /**
+     * Sends the request, unless it has been sent already, completes
+     * this {@link AsyncFetch} at once if the caches suffice, or
+     * arranges for it to complete with the result of another fetch of
+     * the same object that is already in progress.
+     *
+     * <p>This method never blocks, since it may run on the only
+     * thread of the {@linkplain #prefetchExecutor prefetch
+     * executor}.</p>
+     */
+    @Override
+    public final void run() {
+      if (!this.started.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        this.fetchKey = this.request.getBucketName() + '/' + getCacheKey(this.request);
+        final SharedFetch inFlightFetch = registerOrJoin(this.fetchKey, this);
+        if (inFlightFetch != null) {
+          // Someone else is fetching the object already; share their
+          // result once they have it.
+          this.fetchKey = null;
+          metrics.recordCoalescedFetch();
+          inFlightFetch.whenDone(new Runnable() {
+              @Override
+              public final void run() {
+                try {
+                  finish(getUninterruptibly(inFlightFetch));
+                } catch (final IOException | RuntimeException e) {
+                  fail(e);
+                }
+              }
+            });
+          return;
+        }
+        this.fetch = new Fetch(this.request, null);
+        if (this.fetch.isComplete()) {
+          this.finish(toArray(this.fetch.getResult()));
+          return;
+        }
+        this.start = System.nanoTime();
+        this.asyncObjectFetcher.getObject(this.request, this);
+      } catch (final RuntimeException e) {
+        this.fail(e);
+      }
+    }
+
+    /**
+     * Completes this {@link AsyncFetch} with the supplied outcome on
+     * one of the {@link AsyncObjectFetcher}'s completion threads,
+     * recording it in this {@link AbstractS3ClassLoader}'s {@linkplain
+     * #getMetrics() metrics} as a blocking request would be.
+     *
+     * <p>Completion is not handed to the {@linkplain #prefetchExecutor
+     * prefetch executor}, whose threads may all be waiting for this
+     * very fetch, nor run on the thread that performs the {@link
+     * AsyncObjectFetcher}'s input and output.  It caches the response
+     * and schedules prefetches, none of which waits for another
+     * fetch.</p>
+     *
+     * @param s3Object the response; may be {@code null}
+     *
+     * @param failure the reason the request failed; may be {@code
+     * null}
+     */
+    @Override
+    public final void onCompletion(final S3Object s3Object, final AmazonClientException failure) {
+      metrics.recordRequest(System.nanoTime() - this.start);
+      try {
+        if (failure == null) {
+          this.finish(toArray(this.fetch.complete(s3Object)));
+        } else if (failure instanceof AmazonS3Exception && ((AmazonS3Exception)failure).getStatusCode() == 404) {
+          this.finish(toArray(this.fetch.completeNotFound()));
+        } else {
+          metrics.recordError(failure);
+          this.fail(failure);
+        }
+      } catch (final IOException | RuntimeException e) {
+        this.fail(e);
+      }
+    }
+
+    /**
+     * Completes this {@link AsyncFetch} successfully, {@linkplain
+     * #prefetchReferencedClasses(byte[], int, int) prefetching} the
+     * classes the fetched class refers to.
+     *
+     * @param bytes the contents of the object; may be {@code null}
+     */
+    private final void finish(final byte[] bytes) {
+      try {
+        if (bytes != null && this.isClass) {
+          prefetchReferencedClasses(bytes, 0, bytes.length);
+        }
+        this.set(bytes);
+      } finally {
+        this.unregister();
+      }
+    }
+
+    /**
+     * Completes this {@link AsyncFetch} exceptionally.
+     *
+     * @param failure the reason; must not be {@code null}
+     */
+    private final void fail(final Exception failure) {
+      try {
+        this.setException(failure);
+      } finally {
+        this.unregister();
+      }
+    }
+
+    /**
+     * Removes this {@link AsyncFetch} from {@link #inFlightFetches},
+     * if it was registered there.
+     */
+    private final void unregister() {
+      if (this.fetchKey != null) {
+        inFlightFetches.remove(this.fetchKey, this);
+      }
+    }
+
+  }
+
+  /**
+   * The hedging configuration installed by the {@link
+   * #setHedging(Executor, long, TimeUnit)} or {@link
+   * #setHedging(Executor, double, long, TimeUnit)} method, together
+   * with the current adaptive delay, if any.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class HedgePolicy {
+
+    /**
+     * The {@link Executor} on which requests run.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Executor executor;
+
+    /**
+     * The percentile of request latency after which a request is
+     * hedged, or {@link Double#NaN} if the delay is fixed.
+     */
+    private final double percentile;
+
+    /**
+     * The fixed or minimum delay, in nanoseconds.
+     */
+    private final long minimumDelay;
+
+    /**
+     * The current delay, in nanoseconds.
+     */
+    private volatile long delay;
+
+    /**
+     * The value of {@link System#nanoTime()} at or after which the
+     * {@link #delay} should be recomputed.
+     */
+    private volatile long refreshTime;
+
+    /**
+     * Creates a new {@link HedgePolicy}.
+     *
+     * @param executor the {@link Executor} on which requests run;
+     * must not be {@code null}
+     *
+     * @param percentile the percentile of request latency after
+     * which a request is hedged, or {@link Double#NaN}
+     *
+     * @param minimumDelay the fixed or minimum delay, in nanoseconds
+     */
+    private HedgePolicy(final Executor executor, final double percentile, final long minimumDelay) {
+      super();
+      this.executor = executor;
+      this.percentile = percentile;
+      this.minimumDelay = minimumDelay;
+      this.delay = minimumDelay;
+      this.refreshTime = System.nanoTime();
+    }
+
+  }
+
+  /**
+   * The rendezvous between a caller of the {@link
+   * #getObject(GetObjectRequest)} method and the requests it has
+   * issued on its behalf.
+   *
+   * <p>Once the caller has {@linkplain #decide() decided} which
+   * request to use, every other successful response, whether it has
+   * already arrived or arrives later, is aborted, so that its
+   * connection is not left holding an unread body.</p>
+   *
+   * <h2>Thread Safety</h2>
+   *
+   * <p>This class is safe for concurrent use by multiple threads.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class HedgedGet {
+
+    /**
+     * The outcomes that have arrived and have not been taken.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Deque<Outcome> outcomes;
+
+    /**
+     * Whether a response has been chosen.
+     */
+    private boolean decided;
+
+    /**
+     * Creates a new {@link HedgedGet}.
+     */
+    private HedgedGet() {
+      super();
+      this.outcomes = new ArrayDeque<>(2);
+    }
+
+    /**
+     * Accepts the supplied {@link Outcome}, aborting its response if a
+     * response has already been chosen.
+     *
+     * @param outcome the {@link Outcome}; must not be {@code null}
+     */
+    private final synchronized void offer(final Outcome outcome) {
+      if (this.decided) {
+        outcome.abort();
+      } else {
+        this.outcomes.add(outcome);
+        this.notifyAll();
+      }
+    }
+
+    /**
+     * Waits uninterruptibly for an {@link Outcome} to arrive and
+     * returns it, or returns {@code null} if none arrives within the
+     * supplied time.
+     *
+     * @param timeout the time to wait, in nanoseconds, or a negative
+     * number to wait indefinitely
+     *
+     * @return an {@link Outcome}, or {@code null}
+     */
+    private final synchronized Outcome await(final long timeout) {
+      final long deadline = System.nanoTime() + timeout;
+      boolean interrupted = false;
+      try {
+        while (this.outcomes.isEmpty()) {
+          try {
+            if (timeout < 0L) {
+              this.wait();
+            } else {
+              final long remaining = deadline - System.nanoTime();
+              if (remaining <= 0L) {
+                return null;
+              }
+              TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+          } catch (final InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        return this.outcomes.remove();
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    /**
+     * Records that a response has been chosen and aborts every other
+     * response that has arrived.
+     */
+    private final synchronized void decide() {
+      this.decided = true;
+      for (final Outcome outcome : this.outcomes) {
+        outcome.abort();
+      }
+      this.outcomes.clear();
+    }
+
+    /**
+     * The outcome of a single request: either a response, which may
+     * be {@code null}, or a failure.
+     *
+     * @author <a href="http://about.me/lairdnelson"
+     * target="_parent">Laird Nelson</a>
+     */
+    private static final class Outcome {
+
+      /**
+       * The response; may be {@code null}.
+       */
+      private final S3Object s3Object;
+
+      /**
+       * The failure; may be {@code null}.
+       */
+      private final Throwable failure;
+
+      /**
+       * Whether the request was a hedge.
+       */
+      private final boolean hedge;
+
+      /**
+       * Creates a new {@link Outcome}.
+       *
+       * @param s3Object the response; may be {@code null}
+       *
+       * @param failure the failure; may be {@code null}
+       *
+       * @param hedge whether the request was a hedge
+       */
+      private Outcome(final S3Object s3Object, final Throwable failure, final boolean hedge) {
+        super();
+        this.s3Object = s3Object;
+        this.failure = failure;
+        this.hedge = hedge;
+      }
+
+      /**
+       * Aborts the response, if there is one, discarding its body
+       * without reading it.
+       */
+      private final void abort() {
+        if (this.s3Object != null) {
+          final S3ObjectInputStream content = this.s3Object.getObjectContent();
+          if (content != null) {
+            content.abort();
+          }
+        }
+      }
+
+    }
+
+  }
+
 }
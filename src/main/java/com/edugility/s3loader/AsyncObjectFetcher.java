@@ -0,0 +1,1694 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+import com.amazonaws.AmazonClientException;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Fetches objects from Amazon S3 through pre-signed {@code GET}
+ * {@link URL}s without blocking, multiplexing any number of
+ * outstanding requests over a bounded number of keep-alive
+ * connections per host, all driven by a single thread.
+ *
+ * <p>Each {@linkplain #getObject(GetObjectRequest) request} returns a
+ * {@link Future} at once.  The response, including its entire body,
+ * is read by this {@link AsyncObjectFetcher}'s thread, so an {@link
+ * S3Object} yielded by such a {@link Future} needs neither to be read
+ * promptly nor closed.  Requests beyond the number of connections
+ * allowed to a host wait, in order, for a connection to become
+ * free.</p>
+ *
+ * <p>Nothing that might block runs on that thread.  Host names are
+ * resolved, and callers notified of the outcomes of their requests,
+ * on a small pool of completion threads instead, so a caller that
+ * takes its time over a response delays other notifications but
+ * never the input and output of the requests still in flight.</p>
+ *
+ * <p>{@link URL}s are obtained from a {@link PresignedUrlFetcher},
+ * and only the requests it {@linkplain
+ * PresignedUrlFetcher#supports(GetObjectRequest) supports} can be
+ * sent.  Every connection is secured with TLS by an {@link SSLEngine},
+ * which verifies that the server's certificate names its host as an
+ * {@code https} client must; objects, and in particular class files,
+ * are never fetched in plain text, so a client whose endpoint is
+ * {@code http} yields {@link URL}s that are not supported.  See the
+ * {@link #supports(GetObjectRequest)} method.  As with the {@link
+ * PresignedUrlFetcher} itself, a request refused because the
+ * credentials that signed its {@link URL} are no longer valid is sent
+ * once more with a freshly signed {@link URL}.</p>
+ *
+ * <p>Neither the AWS SDK used here nor the Java platform that it
+ * supports offers an asynchronous HTTP client, which is why this
+ * class speaks HTTP/1.1 itself.  It sends only {@code GET} requests
+ * and understands only the responses Amazon S3 gives to them.</p>
+ *
+ * <p>{@link AbstractS3ClassLoader}s send their {@linkplain
+ * AbstractS3ClassLoader#prefetch(String) prefetches} through an
+ * {@linkplain
+ * AbstractS3ClassLoader#setAsyncObjectFetcher(AsyncObjectFetcher)
+ * installed} {@link AsyncObjectFetcher}, so that thousands of
+ * prefetches need not occupy thousands of threads.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #getObject(GetObjectRequest)
+ *
+ * @see AbstractS3ClassLoader#setAsyncObjectFetcher(AsyncObjectFetcher)
+ */
+public final class AsyncObjectFetcher implements Closeable {
+
+  /**
+   * The time, in nanoseconds, a connection attempt or a response may
+   * go without progress before it fails.
+   */
+  private static final long READ_TIMEOUT = TimeUnit.SECONDS.toNanos(50L);
+
+  /**
+   * The time, in nanoseconds, an idle connection is kept open.
+   *
+   * <p>Amazon S3 closes idle connections after about twenty
+   * seconds.</p>
+   */
+  private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(15L);
+
+  /**
+   * The time, in milliseconds, the selector waits between checks for
+   * expired connections.
+   */
+  private static final long SELECT_TIMEOUT = 1000L;
+
+  /**
+   * The largest status line and header block that is accepted.
+   */
+  private static final int MAXIMUM_HEAD_SIZE = 64 * 1024;
+
+  /**
+   * The size, in bytes, of the buffer into which responses are
+   * decrypted.
+   *
+   * <p>It must be larger than the largest TLS record.</p>
+   */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The largest number of completion threads.
+   *
+   * @see #completionExecutor
+   */
+  private static final int COMPLETION_THREADS = 4;
+
+  /**
+   * The time, in seconds, an idle completion thread is kept alive.
+   *
+   * @see #completionExecutor
+   */
+  private static final long COMPLETION_THREAD_KEEP_ALIVE = 30L;
+
+  /**
+   * An empty {@link ByteBuffer} from which the {@link SSLEngine}s of
+   * connections encrypt handshake messages.
+   */
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  /**
+   * The {@link PresignedUrlFetcher} supplying pre-signed {@link URL}s.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final PresignedUrlFetcher presignedUrlFetcher;
+
+  /**
+   * The largest number of connections that may be open to any one
+   * host.
+   */
+  private final int maximumConnectionsPerHost;
+
+  /**
+   * The {@link SSLContext} from which each connection's {@link
+   * SSLEngine} is created.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final SSLContext sslContext;
+
+  /**
+   * The {@link Selector} on which all connections are registered.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Selector selector;
+
+  /**
+   * {@link Exchange}s submitted by callers that the {@linkplain
+   * #thread selector thread} has not yet dispatched.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Queue<Exchange> submissions;
+
+  /**
+   * Work handed back to the {@linkplain #thread selector thread} by
+   * the {@linkplain #completionExecutor completion threads}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Queue<Runnable> tasks;
+
+  /**
+   * The {@link Host}s to which requests have been sent, indexed by
+   * the authority of their {@link URL}s.
+   *
+   * <p>This field is never {@code null}.  It is confined to the
+   * {@linkplain #thread selector thread}.</p>
+   */
+  private final Map<String, Host> hosts;
+
+  /**
+   * The buffer into which responses are decrypted.
+   *
+   * <p>This field is never {@code null}.  It is confined to the
+   * {@linkplain #thread selector thread}.</p>
+   */
+  private final ByteBuffer readBuffer;
+
+  /**
+   * The thread that performs all input and output.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Thread thread;
+
+  /**
+   * The {@link ExecutorService} on which host names are resolved and
+   * {@link Listener}s notified, so that neither blocks the
+   * {@linkplain #thread selector thread}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final ExecutorService completionExecutor;
+
+  /**
+   * Whether this {@link AsyncObjectFetcher} has been {@linkplain
+   * #close() closed}.
+   */
+  private volatile boolean closed;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link AsyncObjectFetcher} that secures its
+   * connections with the {@linkplain SSLContext#getDefault() default
+   * <code>SSLContext</code>} and starts its thread.
+   *
+   * @param presignedUrlFetcher the {@link PresignedUrlFetcher}
+   * supplying pre-signed {@link URL}s; must not be {@code null}
+   *
+   * @param maximumConnectionsPerHost the largest number of
+   * connections that may be open to any one host; must be positive
+   *
+   * @exception NullPointerException if {@code presignedUrlFetcher} is
+   * {@code null}
+   *
+   * @exception IllegalArgumentException if {@code
+   * maximumConnectionsPerHost} is not positive
+   *
+   * @exception IOException if a {@link Selector} could not be opened
+   * or the default {@link SSLContext} could not be created
+   *
+   * @see #AsyncObjectFetcher(PresignedUrlFetcher, int, SSLContext)
+   */
+  public AsyncObjectFetcher(final PresignedUrlFetcher presignedUrlFetcher, final int maximumConnectionsPerHost) throws IOException {
+    this(presignedUrlFetcher, maximumConnectionsPerHost, null);
+  }
+
+  /**
+   * Creates a new {@link AsyncObjectFetcher} that secures its
+   * connections with the supplied {@link SSLContext} and starts its
+   * thread.
+   *
+   * @param presignedUrlFetcher the {@link PresignedUrlFetcher}
+   * supplying pre-signed {@link URL}s; must not be {@code null}
+   *
+   * @param maximumConnectionsPerHost the largest number of
+   * connections that may be open to any one host; must be positive
+   *
+   * @param sslContext the {@link SSLContext}; may be {@code null} in
+   * which case the {@linkplain SSLContext#getDefault() default
+   * <code>SSLContext</code>} is used
+   *
+   * @exception NullPointerException if {@code presignedUrlFetcher} is
+   * {@code null}
+   *
+   * @exception IllegalArgumentException if {@code
+   * maximumConnectionsPerHost} is not positive
+   *
+   * @exception IOException if a {@link Selector} could not be opened
+   * or the default {@link SSLContext} could not be created
+   */
+  public AsyncObjectFetcher(final PresignedUrlFetcher presignedUrlFetcher, final int maximumConnectionsPerHost, final SSLContext sslContext) throws IOException {
+    super();
+    Objects.requireNonNull(presignedUrlFetcher, "presignedUrlFetcher == null");
+    if (maximumConnectionsPerHost <= 0) {
+      throw new IllegalArgumentException("maximumConnectionsPerHost <= 0: " + maximumConnectionsPerHost);
+    }
+    this.presignedUrlFetcher = presignedUrlFetcher;
+    this.maximumConnectionsPerHost = maximumConnectionsPerHost;
+    if (sslContext == null) {
+      try {
+        this.sslContext = SSLContext.getDefault();
+      } catch (final NoSuchAlgorithmException e) {
+        throw new IOException(e);
+      }
+    } else {
+      this.sslContext = sslContext;
+    }
+    this.selector = Selector.open();
+    this.submissions = new ConcurrentLinkedQueue<>();
+    this.tasks = new ConcurrentLinkedQueue<>();
+    this.hosts = new HashMap<>();
+    this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    final ThreadPoolExecutor completionExecutor =
+      new ThreadPoolExecutor(COMPLETION_THREADS, COMPLETION_THREADS,
+                             COMPLETION_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                             new LinkedBlockingQueue<Runnable>(),
+                             new ThreadFactory() {
+                               @Override
+                               public final Thread newThread(final Runnable runnable) {
+                                 final Thread thread = new Thread(runnable, "s3loader-async-completion");
+                                 thread.setDaemon(true);
+                                 return thread;
+                               }
+                             });
+    completionExecutor.allowCoreThreadTimeOut(true);
+    this.completionExecutor = completionExecutor;
+    this.thread = new Thread(new Runnable() {
+        @Override
+        public final void run() {
+          select();
+        }
+      }, "s3loader-async-fetcher");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns {@code true} if the supplied {@link GetObjectRequest} can
+   * be sent by this {@link AsyncObjectFetcher}.
+   *
+   * <p>A request can be sent if this {@link AsyncObjectFetcher} has
+   * not been {@linkplain #close() closed}, if its {@link
+   * PresignedUrlFetcher} {@linkplain
+   * PresignedUrlFetcher#supports(GetObjectRequest) supports} it, and
+   * if the pre-signed {@link URL} for it is an {@code https} {@link
+   * URL}.  This method may therefore sign a {@link URL}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; may be {@code null}
+   * in which case {@code false} is returned
+   *
+   * @return {@code true} if the request can be sent; {@code false}
+   * otherwise
+   *
+   * @exception AmazonClientException if a {@link URL} could not be
+   * signed
+   */
+  public final boolean supports(final GetObjectRequest request) {
+    return !this.closed &&
+      this.presignedUrlFetcher.supports(request) &&
+      "https".equalsIgnoreCase(this.presignedUrlFetcher.getUrl(request.getBucketName(), request.getKey()).getProtocol());
+  }
+
+  /**
+   * Sends the supplied {@link GetObjectRequest} without waiting for
+   * its response and returns a {@link Future} that will yield the
+   * response as Amazon S3's client would.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The {@link Future} yields {@code null} if a non-matching entity
+   * tag constraint was not met.  Its {@link Future#get()} method
+   * throws an {@link java.util.concurrent.ExecutionException} whose
+   * cause is an {@link com.amazonaws.services.s3.model.AmazonS3Exception}
+   * if Amazon S3 answered with an error, such as {@code 404 Not
+   * Found}, or an {@link AmazonClientException} if there was a problem
+   * communicating with it.  Cancelling the {@link Future} does not
+   * withdraw the request.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must be {@linkplain
+   * #supports(GetObjectRequest) supported}; must not be modified
+   * afterwards
+   *
+   * @return a non-{@code null} {@link Future}
+   *
+   * @exception IllegalArgumentException if {@code request} is not
+   * supported
+   */
+  public final Future<S3Object> getObject(final GetObjectRequest request) {
+    final Promise returnValue = new Promise();
+    this.getObject(request, returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Sends the supplied {@link GetObjectRequest} without waiting for
+   * its response and arranges for the supplied {@link Listener} to be
+   * notified of the outcome.
+   *
+   * <p>The {@link Listener} is notified on one of this {@link
+   * AsyncObjectFetcher}'s completion threads, or on the calling thread
+   * if this {@link AsyncObjectFetcher} has been {@linkplain #close()
+   * closed}.  It should not block for long, since there are few
+   * completion threads.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must be {@linkplain
+   * #supports(GetObjectRequest) supported}; must not be modified
+   * afterwards
+   *
+   * @param listener the {@link Listener}; must not be {@code null}
+   *
+   * @exception IllegalArgumentException if {@code request} is not
+   * supported
+   */
+  final void getObject(final GetObjectRequest request, final Listener listener) {
+    Objects.requireNonNull(listener, "listener == null");
+    if (!this.presignedUrlFetcher.supports(request)) {
+      throw new IllegalArgumentException("!supports(request): " + request);
+    }
+    final URL url = this.presignedUrlFetcher.getUrl(request.getBucketName(), request.getKey());
+    if (!"https".equalsIgnoreCase(url.getProtocol())) {
+      throw new IllegalArgumentException("!supports(request): " + url.getProtocol() + " URL");
+    }
+    final Exchange exchange = new Exchange(request, url, listener);
+    if (this.closed) {
+      exchange.fail(new AmazonClientException("closed"));
+      return;
+    }
+    this.submissions.add(exchange);
+    this.selector.wakeup();
+    if (this.closed && this.submissions.remove(exchange)) {
+      exchange.fail(new AmazonClientException("closed"));
+    }
+  }
+
+  /**
+   * Closes this {@link AsyncObjectFetcher}, failing any requests that
+   * are outstanding and closing all connections.
+   *
+   * <p>This method is idempotent.</p>
+   */
+  @Override
+  public final void close() {
+    this.closed = true;
+    this.selector.wakeup();
+  }
+
+  /**
+   * Submits the supplied {@link Exchange}, which was refused because
+   * the credentials that signed its {@link URL} are no longer valid,
+   * once more with a freshly signed {@link URL}, or fails it with the
+   * supplied {@link AmazonS3Exception} if no {@link URL} can be
+   * signed.
+   *
+   * @param exchange the refused {@link Exchange}; must not be {@code
+   * null}
+   *
+   * @param failure the reason it was refused; must not be {@code
+   * null}
+   */
+  private final void resign(final Exchange exchange, final AmazonS3Exception failure) {
+    this.presignedUrlFetcher.evict(exchange.bucketName, exchange.key, exchange.url);
+    final Exchange retry;
+    try {
+      retry = new Exchange(exchange.request, this.presignedUrlFetcher.getUrl(exchange.bucketName, exchange.key), exchange.listener);
+    } catch (final AmazonClientException e) {
+      exchange.fail(failure);
+      return;
+    }
+    retry.resigned = true;
+    this.submissions.add(retry);
+  }
+
+  /**
+   * Runs the selector loop on this {@link AsyncObjectFetcher}'s
+   * thread until it is {@linkplain #close() closed}.
+   */
+  private final void select() {
+    long nextExpiry = System.nanoTime();
+    try {
+      while (!this.closed) {
+        this.selector.select(SELECT_TIMEOUT);
+        final Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+          final SelectionKey key = iterator.next();
+          iterator.remove();
+          final Connection connection = (Connection)key.attachment();
+          try {
+            if (key.isValid() && key.isConnectable()) {
+              connection.finishConnect();
+            }
+            if (key.isValid() && (key.isWritable() || key.isReadable())) {
+              connection.process();
+            }
+          } catch (final IOException | RuntimeException e) {
+            connection.fail(e);
+          }
+        }
+        Exchange exchange;
+        while ((exchange = this.submissions.poll()) != null) {
+          this.dispatch(exchange);
+        }
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+          task.run();
+        }
+        final long now = System.nanoTime();
+        if (now - nextExpiry >= 0L) {
+          for (final Host host : this.hosts.values()) {
+            host.expire(now);
+          }
+          nextExpiry = now + TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT);
+        }
+      }
+    } catch (final IOException | RuntimeException e) {
+      this.closed = true;
+    } finally {
+      final AmazonClientException failure = new AmazonClientException("closed");
+      Exchange exchange;
+      while ((exchange = this.submissions.poll()) != null) {
+        exchange.fail(failure);
+      }
+      for (final Host host : this.hosts.values()) {
+        host.close(failure);
+      }
+      this.hosts.clear();
+      try {
+        this.selector.close();
+      } catch (final IOException ignore) {
+        // Nothing more can be done.
+      }
+      // Notifications already handed to the completion threads are
+      // still delivered.
+      this.completionExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Queues the supplied {@link Exchange} with its {@link Host} and
+   * starts it if a connection is available.
+   *
+   * @param exchange the {@link Exchange}; must not be {@code null}
+   */
+  private final void dispatch(final Exchange exchange) {
+    final String authority = exchange.url.getAuthority();
+    Host host = this.hosts.get(authority);
+    if (host == null) {
+      host = new Host(exchange.url);
+      this.hosts.put(authority, host);
+    }
+    host.pending.addLast(exchange);
+    host.dispatch();
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * AsyncObjectFetcher}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return "maximumConnectionsPerHost=" + this.maximumConnectionsPerHost + ", closed=" + this.closed;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a new array holding the first {@code length} bytes of the
+   * supplied array and having at least the supplied capacity.
+   *
+   * @param bytes the array; must not be {@code null}
+   *
+   * @param length the number of bytes in use
+   *
+   * @param capacity the capacity required
+   *
+   * @return the supplied array if it is large enough, or a larger
+   * copy
+   *
+   * @exception IOException if {@code capacity} is too large
+   */
+  private static final byte[] ensureCapacity(final byte[] bytes, final int length, final long capacity) throws IOException {
+    if (capacity <= bytes.length) {
+      return bytes;
+    }
+    if (capacity > Integer.MAX_VALUE - 8) {
+      throw new IOException("Response body too large: " + capacity);
+    }
+    return Arrays.copyOf(bytes, (int)Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, 2L * bytes.length)));
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Notified of the outcome of a request sent by an {@link
+   * AsyncObjectFetcher}.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see AsyncObjectFetcher#getObject(GetObjectRequest, Listener)
+   */
+  static interface Listener {
+
+    /**
+     * Called once when a request has completed.
+     *
+     * <p>Implementations should not block for long, since they run on
+     * one of a small number of completion threads.</p>
+     *
+     * @param s3Object the response, whose content has been read in
+     * full, or {@code null} if the request failed or a non-matching
+     * entity tag constraint was not met
+     *
+     * @param failure the reason the request failed, or {@code null}
+     * if it succeeded; an {@link
+     * com.amazonaws.services.s3.model.AmazonS3Exception} if Amazon S3
+     * answered with an error
+     */
+    void onCompletion(final S3Object s3Object, final AmazonClientException failure);
+
+  }
+
+  /**
+   * A {@link FutureTask} completed by a {@link Listener} rather than
+   * by running it.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see AsyncObjectFetcher#getObject(GetObjectRequest)
+   */
+  private static final class Promise extends FutureTask<S3Object> implements Listener {
+
+    /**
+     * Creates a new {@link Promise}.
+     */
+    private Promise() {
+      super(new Runnable() {
+          @Override
+          public final void run() {
+            // Promises are completed, not run.
+          }
+        }, null);
+    }
+
+    /**
+     * Does nothing, since a {@link Promise} is completed by the
+     * {@link #onCompletion(S3Object, AmazonClientException)} method.
+     */
+    @Override
+    public final void run() {
+
+    }
+
+    /**
+     * Completes this {@link Promise}.
+     *
+     * @param s3Object the response; may be {@code null}
+     *
+     * @param failure the reason the request failed; may be {@code
+     * null}
+     */
+    @Override
+    public final void onCompletion(final S3Object s3Object, final AmazonClientException failure) {
+      if (failure == null) {
+        this.set(s3Object);
+      } else {
+        this.setException(failure);
+      }
+    }
+
+  }
+
+  /**
+   * A request, its {@link Listener}, and the number of times it has
+   * been attempted.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private final class Exchange {
+
+    /**
+     * The {@link GetObjectRequest}.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final GetObjectRequest request;
+
+    /**
+     * The bucket name.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final String bucketName;
+
+    /**
+     * The key.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final String key;
+
+    /**
+     * The pre-signed {@link URL}.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final URL url;
+
+    /**
+     * The encoded request line and headers.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final byte[] requestBytes;
+
+    /**
+     * The {@link Listener} to notify.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Listener listener;
+
+    /**
+     * Whether this {@link Exchange} has been retried on a fresh
+     * connection.
+     */
+    private boolean retried;
+
+    /**
+     * Whether this {@link Exchange} is being sent with a {@link URL}
+     * signed again because an earlier one was refused.
+     */
+    private boolean resigned;
+
+    /**
+     * Creates a new {@link Exchange}.
+     *
+     * @param request the {@link GetObjectRequest}; must not be {@code
+     * null}
+     *
+     * @param url the pre-signed {@link URL}; must not be {@code null}
+     *
+     * @param listener the {@link Listener}; must not be {@code null}
+     */
+    private Exchange(final GetObjectRequest request, final URL url, final Listener listener) {
+      super();
+      this.request = request;
+      this.bucketName = request.getBucketName();
+      this.key = request.getKey();
+      this.url = url;
+      this.listener = listener;
+      final StringBuilder sb = new StringBuilder("GET ").append(url.getFile()).append(" HTTP/1.1\r\n");
+      sb.append("Host: ").append(url.getAuthority()).append("\r\n");
+      final String range = PresignedUrlFetcher.getRangeHeader(request);
+      if (range != null) {
+        sb.append("Range: ").append(range).append("\r\n");
+      }
+      final String ifNoneMatch = PresignedUrlFetcher.getIfNoneMatchHeader(request);
+      if (ifNoneMatch != null) {
+        sb.append("If-None-Match: ").append(ifNoneMatch).append("\r\n");
+      }
+      sb.append("\r\n");
+      this.requestBytes = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Notifies the {@link Listener} of success.
+     *
+     * @param s3Object the response; may be {@code null}
+     */
+    private final void succeed(final S3Object s3Object) {
+      this.complete(s3Object, null);
+    }
+
+    /**
+     * Notifies the {@link Listener} of failure.
+     *
+     * @param failure the reason; must not be {@code null}
+     */
+    private final void fail(final AmazonClientException failure) {
+      this.complete(null, failure);
+    }
+
+    /**
+     * Notifies the {@link Listener} on a {@linkplain
+     * #completionExecutor completion thread}, or on the calling thread
+     * if this {@link AsyncObjectFetcher} has been {@linkplain #close()
+     * closed}.
+     *
+     * @param s3Object the response; may be {@code null}
+     *
+     * @param failure the reason the request failed; may be {@code
+     * null}
+     */
+    private final void complete(final S3Object s3Object, final AmazonClientException failure) {
+      final Runnable notification = new Runnable() {
+          @Override
+          public final void run() {
+            notifyListener(s3Object, failure);
+          }
+        };
+      try {
+        completionExecutor.execute(notification);
+      } catch (final RejectedExecutionException e) {
+        notification.run();
+      }
+    }
+
+    /**
+     * Notifies the {@link Listener}, shielding the caller from any
+     * exception it throws.
+     *
+     * @param s3Object the response; may be {@code null}
+     *
+     * @param failure the reason the request failed; may be {@code
+     * null}
+     */
+    private final void notifyListener(final S3Object s3Object, final AmazonClientException failure) {
+      try {
+        this.listener.onCompletion(s3Object, failure);
+      } catch (final RuntimeException ignore) {
+        // The listener's problem is not the fetcher's.
+      }
+    }
+
+  }
+
+  /**
+   * The connections to one host and the {@link Exchange}s waiting for
+   * them.
+   *
+   * <p>Instances of this class are confined to the {@linkplain
+   * AsyncObjectFetcher#thread selector thread}.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private final class Host {
+
+    /**
+     * The host's name.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final String hostName;
+
+    /**
+     * The host's port.
+     */
+    private final int port;
+
+    /**
+     * {@link Exchange}s waiting for a connection, in order.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Deque<Exchange> pending;
+
+    /**
+     * Open connections that are not in use, the most recently used
+     * first.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Deque<Connection> idle;
+
+    /**
+     * All open connections.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final List<Connection> connections;
+
+    /**
+     * The number of connections waiting for the host's name to be
+     * resolved on a {@linkplain #completionExecutor completion
+     * thread}.
+     */
+    private int resolving;
+
+    /**
+     * Creates a new {@link Host}.
+     *
+     * @param url a {@link URL} naming the host; must not be {@code
+     * null}
+     */
+    private Host(final URL url) {
+      super();
+      this.hostName = url.getHost();
+      this.port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+      this.pending = new ArrayDeque<>();
+      this.idle = new ArrayDeque<>();
+      this.connections = new ArrayList<>();
+    }
+
+    /**
+     * Starts as many pending {@link Exchange}s as there are idle
+     * connections for, and begins opening as many new connections as
+     * the remaining {@link Exchange}s need and the limit allows.
+     */
+    private final void dispatch() {
+      Connection connection;
+      while (!this.pending.isEmpty() && (connection = this.idle.pollFirst()) != null) {
+        connection.start(this.pending.removeFirst());
+      }
+      while (this.resolving < this.pending.size() && this.connections.size() + this.resolving < maximumConnectionsPerHost) {
+        this.resolve();
+      }
+    }
+
+    /**
+     * Resolves the host's name on a {@linkplain #completionExecutor
+     * completion thread}, since doing so may block, and then {@linkplain
+     * #connect(InetSocketAddress) opens a connection} to the address on
+     * the {@linkplain #thread selector thread}.
+     */
+    private final void resolve() {
+      this.resolving++;
+      try {
+        completionExecutor.execute(new Runnable() {
+            @Override
+            public final void run() {
+              final InetSocketAddress address = new InetSocketAddress(hostName, port);
+              tasks.add(new Runnable() {
+                  @Override
+                  public final void run() {
+                    connect(address);
+                  }
+                });
+              selector.wakeup();
+            }
+          });
+      } catch (final RejectedExecutionException e) {
+        // Closed; the selector thread is failing everything anyway.
+        this.resolving--;
+      }
+    }
+
+    /**
+     * Opens a new {@link Connection} to the supplied address, or fails
+     * the first pending {@link Exchange} if it could not be resolved
+     * or connected to, and dispatches pending {@link Exchange}s.
+     *
+     * @param address the address; must not be {@code null}
+     */
+    private final void connect(final InetSocketAddress address) {
+      this.resolving--;
+      try {
+        if (address.isUnresolved()) {
+          throw new IOException("Unable to resolve " + this.hostName);
+        }
+        final Connection connection = new Connection(this, address);
+        this.connections.add(connection);
+        connection.lastUsed = System.nanoTime();
+        this.idle.addFirst(connection);
+      } catch (final IOException | RuntimeException e) {
+        final Exchange exchange = this.pending.pollFirst();
+        if (exchange != null) {
+          exchange.fail(new AmazonClientException("Unable to connect to " + this.hostName + ":" + this.port + ": " + e.getMessage(), e));
+        }
+      }
+      this.dispatch();
+    }
+
+    /**
+     * Fails connections that have made no progress for too long and
+     * closes those that have been idle for too long.
+     *
+     * @param now the current value of {@link System#nanoTime()}
+     */
+    private final void expire(final long now) {
+      for (final Connection connection : new ArrayList<>(this.connections)) {
+        if (connection.exchange != null) {
+          if (now - connection.deadline >= 0L) {
+            connection.fail(new SocketTimeoutException("No response from " + this.hostName + ":" + this.port));
+          }
+        } else if (now - connection.lastUsed >= IDLE_TIMEOUT) {
+          connection.close();
+        }
+      }
+    }
+
+    /**
+     * Fails every pending {@link Exchange} and every {@link Exchange}
+     * in progress, and closes all connections.
+     *
+     * @param failure the reason; must not be {@code null}
+     */
+    private final void close(final AmazonClientException failure) {
+      for (final Connection connection : new ArrayList<>(this.connections)) {
+        final Exchange exchange = connection.exchange;
+        connection.exchange = null;
+        connection.close();
+        if (exchange != null) {
+          exchange.fail(failure);
+        }
+      }
+      Exchange exchange;
+      while ((exchange = this.pending.poll()) != null) {
+        exchange.fail(failure);
+      }
+    }
+
+  }
+
+  /**
+   * A keep-alive HTTP/1.1 connection secured by TLS and the state of
+   * the response being read on it.
+   *
+   * <p>Instances of this class are confined to the {@linkplain
+   * AsyncObjectFetcher#thread selector thread}.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private final class Connection {
+
+    /**
+     * The {@link Host} to which this {@link Connection} is open.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Host host;
+
+    /**
+     * The {@link SocketChannel}.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The {@link SelectionKey} registering the {@link #channel} with
+     * the {@link #selector}.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final SelectionKey key;
+
+    /**
+     * The {@link SSLEngine} securing the {@link #channel}.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final SSLEngine engine;
+
+    /**
+     * Encrypted bytes received but not yet decrypted, between the
+     * start of the buffer and its position.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Encrypted bytes not yet sent, between the buffer's position and
+     * its limit.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final ByteBuffer netOut;
+
+    /**
+     * Whether the last call to the {@link #transfer(ByteBuffer)}
+     * method stopped because its buffer was full rather than because
+     * nothing more could be done without waiting.
+     */
+    private boolean overflowed;
+
+    /**
+     * Whether the {@link #channel} has finished connecting.
+     */
+    private boolean connected;
+
+    /**
+     * Whether a response has been read in full on this {@link
+     * Connection}.
+     */
+    private boolean reused;
+
+    /**
+     * The {@link Exchange} in progress, or {@code null} if this
+     * {@link Connection} is idle.
+     */
+    private Exchange exchange;
+
+    /**
+     * The request bytes remaining to be encrypted.
+     */
+    private ByteBuffer out;
+
+    /**
+     * The value of {@link System#nanoTime()} by which the {@link
+     * #exchange} must next make progress.
+     */
+    private long deadline;
+
+    /**
+     * The value of {@link System#nanoTime()} at which this {@link
+     * Connection} last became idle.
+     */
+    private long lastUsed;
+
+    /**
+     * The {@link State} of the response being read.
+     */
+    private State state;
+
+    /**
+     * The bytes of the status line and headers, or of the chunk
+     * header or trailer line, read so far.
+     */
+    private byte[] line;
+
+    /**
+     * The number of bytes in use in {@link #line}.
+     */
+    private int lineLength;
+
+    /**
+     * The response's status code.
+     */
+    private int status;
+
+    /**
+     * The response's headers, with lower-case names.
+     */
+    private Map<String, String> headers;
+
+    /**
+     * Whether the connection must be closed once the response has
+     * been read.
+     */
+    private boolean closeAfterResponse;
+
+    /**
+     * The response body read so far.
+     */
+    private byte[] body;
+
+    /**
+     * The number of bytes in use in {@link #body}.
+     */
+    private int bodyLength;
+
+    /**
+     * The number of bytes remaining in the body, or in the current
+     * chunk of a chunked body.
+     */
+    private long remaining;
+
+    /**
+     * Opens a new {@link Connection} to the supplied {@link Host}.
+     *
+     * @param host the {@link Host}; must not be {@code null}
+     *
+     * @param address the {@link Host}'s resolved address; must not be
+     * {@code null}
+     *
+     * @exception IOException if the connection could not be opened
+     */
+    private Connection(final Host host, final InetSocketAddress address) throws IOException {
+      super();
+      this.host = host;
+      this.engine = sslContext.createSSLEngine(host.hostName, host.port);
+      this.engine.setUseClientMode(true);
+      final SSLParameters parameters = this.engine.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      this.engine.setSSLParameters(parameters);
+      final int packetBufferSize = this.engine.getSession().getPacketBufferSize();
+      this.netIn = ByteBuffer.allocate(packetBufferSize);
+      this.netOut = ByteBuffer.allocate(packetBufferSize);
+      this.netOut.flip();
+      this.engine.beginHandshake();
+      this.channel = SocketChannel.open();
+      try {
+        this.channel.configureBlocking(false);
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+        this.connected = this.channel.connect(address);
+        this.key = this.channel.register(selector, this.connected ? 0 : SelectionKey.OP_CONNECT, this);
+      } catch (final IOException | RuntimeException e) {
+        this.channel.close();
+        throw e;
+      }
+      this.line = new byte[256];
+    }
+
+    /**
+     * Starts sending the supplied {@link Exchange}.
+     *
+     * @param exchange the {@link Exchange}; must not be {@code null}
+     */
+    private final void start(final Exchange exchange) {
+      this.exchange = exchange;
+      this.out = ByteBuffer.wrap(exchange.requestBytes);
+      this.state = State.HEAD;
+      this.lineLength = 0;
+      this.status = 0;
+      this.headers = new HashMap<>();
+      this.closeAfterResponse = false;
+      this.body = null;
+      this.bodyLength = 0;
+      this.remaining = 0L;
+      this.deadline = System.nanoTime() + READ_TIMEOUT;
+      if (this.connected) {
+        this.key.interestOps(SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * Completes connecting.
+     *
+     * @exception IOException if the connection failed
+     */
+    private final void finishConnect() throws IOException {
+      if (this.channel.finishConnect()) {
+        this.connected = true;
+        this.key.interestOps(this.exchange == null ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * Sends what it can of the TLS handshake and of the request, and
+     * reads and consumes what has arrived of the response, without
+     * waiting.
+     *
+     * @exception IOException if an input or output error occurs or the
+     * response is malformed
+     */
+    private final void process() throws IOException {
+      final ByteBuffer buffer = readBuffer;
+      do {
+        buffer.clear();
+        final int bytesRead = this.transfer(buffer);
+        if (bytesRead < 0) {
+          if (this.exchange == null) {
+            // The server closed an idle connection.
+            this.close();
+          } else if (this.state == State.BODY_TO_EOF) {
+            this.closeAfterResponse = true;
+            this.complete();
+          } else {
+            throw new EOFException("Connection closed before the response was complete");
+          }
+          return;
+        }
+        if (bytesRead > 0) {
+          if (this.exchange == null) {
+            throw new IOException("Unexpected data on an idle connection");
+          }
+          this.deadline = System.nanoTime() + READ_TIMEOUT;
+          buffer.flip();
+          while (buffer.hasRemaining() && this.exchange != null) {
+            this.consume(buffer);
+          }
+        }
+      } while (this.overflowed && this.key.isValid());
+      if (this.key.isValid()) {
+        // Consuming the response may have started another request.
+        final boolean sending =
+          this.netOut.hasRemaining() ||
+          (this.exchange != null && this.out.hasRemaining() && this.engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING);
+        this.key.interestOps(sending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      }
+    }
+
+    /**
+     * Advances the TLS session until it must wait for the {@link
+     * #channel} or the supplied {@link ByteBuffer} is full, sending
+     * handshake messages and the request as they are produced and
+     * decrypting what is received into the supplied {@link
+     * ByteBuffer}, and returns the number of bytes decrypted, or
+     * {@code -1} if the server closed the connection before any were.
+     *
+     * @param dst the {@link ByteBuffer} into which response bytes are
+     * decrypted; must not be {@code null}
+     *
+     * @return the number of bytes decrypted, or {@code -1}
+     *
+     * @exception IOException if an input or output error occurs or the
+     * TLS session fails, as it does if the server's certificate is not
+     * trusted
+     */
+    private final int transfer(final ByteBuffer dst) throws IOException {
+      this.overflowed = false;
+      int bytesProduced = 0;
+      while (true) {
+        while (this.netOut.hasRemaining()) {
+          if (this.channel.write(this.netOut) == 0) {
+            return bytesProduced;
+          }
+        }
+        final HandshakeStatus handshakeStatus = this.engine.getHandshakeStatus();
+        if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+          // Typically the verification of the server's certificate.
+          Runnable task;
+          while ((task = this.engine.getDelegatedTask()) != null) {
+            task.run();
+          }
+        } else if (handshakeStatus == HandshakeStatus.NEED_WRAP ||
+                   (handshakeStatus == HandshakeStatus.NOT_HANDSHAKING && this.exchange != null && this.out.hasRemaining())) {
+          this.netOut.clear();
+          final SSLEngineResult result;
+          try {
+            result = this.engine.wrap(handshakeStatus == HandshakeStatus.NEED_WRAP ? EMPTY : this.out, this.netOut);
+          } finally {
+            this.netOut.flip();
+          }
+          if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new SSLException("Unable to encrypt: " + result.getStatus());
+          }
+        } else {
+          this.netIn.flip();
+          final SSLEngineResult result;
+          try {
+            result = this.engine.unwrap(this.netIn, dst);
+          } finally {
+            this.netIn.compact();
+          }
+          bytesProduced += result.bytesProduced();
+          switch (result.getStatus()) {
+          case OK:
+            break;
+          case BUFFER_OVERFLOW:
+            if (bytesProduced == 0) {
+              throw new SSLException("TLS record too large");
+            }
+            this.overflowed = true;
+            return bytesProduced;
+          case BUFFER_UNDERFLOW:
+            if (!this.netIn.hasRemaining()) {
+              // The session now allows larger records.
+              final ByteBuffer netIn = ByteBuffer.allocate(Math.max(2 * this.netIn.capacity(), this.engine.getSession().getPacketBufferSize()));
+              this.netIn.flip();
+              netIn.put(this.netIn);
+              this.netIn = netIn;
+            }
+            final int bytesRead = this.channel.read(this.netIn);
+            if (bytesRead < 0) {
+              return bytesProduced > 0 ? bytesProduced : -1;
+            } else if (bytesRead == 0) {
+              return bytesProduced;
+            }
+            break;
+          case CLOSED:
+            return bytesProduced > 0 ? bytesProduced : -1;
+          default:
+            throw new IllegalStateException("result.getStatus(): " + result.getStatus());
+          }
+        }
+      }
+    }
+
+    /**
+     * Consumes bytes from the supplied {@link ByteBuffer} according to
+     * the current {@link State}, advancing it as appropriate.
+     *
+     * @param buffer the {@link ByteBuffer}; must not be {@code null}
+     *
+     * @exception IOException if the response is malformed
+     */
+    private final void consume(final ByteBuffer buffer) throws IOException {
+      switch (this.state) {
+      case HEAD:
+        if (this.readLine(buffer, true)) {
+          this.parseHead();
+        }
+        break;
+      case BODY:
+      case CHUNK:
+        final int length = (int)Math.min(this.remaining, buffer.remaining());
+        this.body = ensureCapacity(this.body, this.bodyLength, (long)this.bodyLength + length);
+        buffer.get(this.body, this.bodyLength, length);
+        this.bodyLength += length;
+        this.remaining -= length;
+        if (this.remaining == 0L) {
+          if (this.state == State.BODY) {
+            this.complete();
+          } else {
+            this.state = State.CHUNK_END;
+          }
+        }
+        break;
+      case BODY_TO_EOF:
+        this.body = ensureCapacity(this.body, this.bodyLength, (long)this.bodyLength + buffer.remaining());
+        final int available = buffer.remaining();
+        buffer.get(this.body, this.bodyLength, available);
+        this.bodyLength += available;
+        break;
+      case CHUNK_SIZE:
+        if (this.readLine(buffer, false)) {
+          String size = new String(this.line, 0, this.lineLength, StandardCharsets.ISO_8859_1).trim();
+          final int semicolon = size.indexOf(';');
+          if (semicolon >= 0) {
+            size = size.substring(0, semicolon).trim();
+          }
+          try {
+            this.remaining = Long.parseLong(size, 16);
+          } catch (final NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + size, e);
+          }
+          this.lineLength = 0;
+          this.state = this.remaining == 0L ? State.TRAILER : State.CHUNK;
+        }
+        break;
+      case CHUNK_END:
+        if (this.readLine(buffer, false)) {
+          this.lineLength = 0;
+          this.state = State.CHUNK_SIZE;
+        }
+        break;
+      case TRAILER:
+        if (this.readLine(buffer, false)) {
+          final boolean empty = this.lineLength <= 2;
+          this.lineLength = 0;
+          if (empty) {
+            this.complete();
+          }
+        }
+        break;
+      default:
+        throw new IllegalStateException("state: " + this.state);
+      }
+    }
+
+    /**
+     * Appends bytes from the supplied {@link ByteBuffer} to the {@link
+     * #line} until it ends with a line feed or, if {@code head} is
+     * {@code true}, with an empty line, and returns {@code true} if it
+     * does.
+     *
+     * @param buffer the {@link ByteBuffer}; must not be {@code null}
+     *
+     * @param head whether an entire header block is to be read
+     *
+     * @return {@code true} if the line or header block is complete
+     *
+     * @exception IOException if it is too long
+     */
+    private final boolean readLine(final ByteBuffer buffer, final boolean head) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (this.lineLength >= MAXIMUM_HEAD_SIZE) {
+          throw new IOException("Response header too large");
+        }
+        this.line = ensureCapacity(this.line, this.lineLength, this.lineLength + 1L);
+        final byte b = buffer.get();
+        this.line[this.lineLength++] = b;
+        if (b == '\n' && (!head || (this.lineLength >= 4 && this.line[this.lineLength - 2] == '\r' && this.line[this.lineLength - 3] == '\n'))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Parses the status line and headers in the {@link #line} and
+     * prepares to read the body.
+     *
+     * @exception IOException if they are malformed
+     */
+    private final void parseHead() throws IOException {
+      final String[] lines = new String(this.line, 0, this.lineLength, StandardCharsets.ISO_8859_1).split("\r\n");
+      this.lineLength = 0;
+      final String[] statusLine = lines[0].split(" ", 3);
+      if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/1.")) {
+        throw new IOException("Malformed status line: " + lines[0]);
+      }
+      try {
+        this.status = Integer.parseInt(statusLine[1]);
+      } catch (final NumberFormatException e) {
+        throw new IOException("Malformed status line: " + lines[0], e);
+      }
+      for (int i = 1; i < lines.length; i++) {
+        final int colon = lines[i].indexOf(':');
+        if (colon > 0) {
+          final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+          if (!this.headers.containsKey(name)) {
+            this.headers.put(name, lines[i].substring(colon + 1).trim());
+          }
+        }
+      }
+      final String connectionHeader = this.headers.get("connection");
+      this.closeAfterResponse = connectionHeader == null ? statusLine[0].equals("HTTP/1.0") : connectionHeader.equalsIgnoreCase("close");
+      if (this.status / 100 == 1) {
+        // An interim response; the real one follows.
+        this.headers.clear();
+        return;
+      }
+      final String transferEncoding = this.headers.get("transfer-encoding");
+      final String contentLength = this.headers.get("content-length");
+      this.body = new byte[0];
+      if (this.status == 204 || this.status == 304) {
+        this.complete();
+      } else if (transferEncoding != null && !transferEncoding.equalsIgnoreCase("identity")) {
+        this.state = State.CHUNK_SIZE;
+      } else if (contentLength != null) {
+        try {
+          this.remaining = Long.parseLong(contentLength);
+        } catch (final NumberFormatException e) {
+          throw new IOException("Malformed Content-Length: " + contentLength, e);
+        }
+        this.body = ensureCapacity(this.body, 0, this.remaining);
+        if (this.remaining == 0L) {
+          this.complete();
+        } else {
+          this.state = State.BODY;
+        }
+      } else {
+        this.state = State.BODY_TO_EOF;
+      }
+    }
+
+    /**
+     * Completes the {@link #exchange} in progress with the response
+     * read, returns this {@link Connection} to its {@link Host} or
+     * closes it, and dispatches the next pending {@link Exchange}.
+     */
+    private final void complete() {
+      final Exchange exchange = this.exchange;
+      this.exchange = null;
+      this.reused = true;
+      if (this.closeAfterResponse) {
+        this.close();
+      } else {
+        this.lastUsed = System.nanoTime();
+        this.key.interestOps(SelectionKey.OP_READ);
+        this.host.idle.addFirst(this);
+      }
+      if (this.status == 200 || this.status == 206) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(this.bodyLength);
+        final String eTag = this.headers.get("etag");
+        if (eTag != null) {
+          metadata.setHeader("ETag", PresignedUrlFetcher.unquote(eTag));
+        }
+        final String contentRange = this.headers.get("content-range");
+        if (contentRange != null) {
+          metadata.setHeader("Content-Range", contentRange);
+        }
+        final String contentType = this.headers.get("content-type");
+        if (contentType != null) {
+          metadata.setContentType(contentType);
+        }
+        final S3Object s3Object = new S3Object();
+        s3Object.setBucketName(exchange.bucketName);
+        s3Object.setKey(exchange.key);
+        s3Object.setObjectMetadata(metadata);
+        s3Object.setObjectContent(new ByteArrayInputStream(this.body, 0, this.bodyLength));
+        exchange.succeed(s3Object);
+      } else if (this.status == 304) {
+        exchange.succeed(null);
+      } else {
+        final String body = new String(this.body, 0, this.bodyLength, StandardCharsets.UTF_8);
+        final AmazonS3Exception failure = PresignedUrlFetcher.newException(this.status, body, this.headers.get("x-amz-request-id"));
+        if (exchange.resigned || !PresignedUrlFetcher.isSignatureFailure(failure)) {
+          exchange.fail(failure);
+        } else {
+          resign(exchange, failure);
+        }
+      }
+      this.body = null;
+      this.headers = null;
+      this.host.dispatch();
+    }
+
+    /**
+     * Closes this {@link Connection} because of the supplied failure,
+     * retrying the {@link Exchange} in progress on a fresh connection
+     * if this one had been reused and had yielded nothing for it,
+     * since the server may simply have closed it first, and failing
+     * it otherwise.
+     *
+     * @param cause the failure; must not be {@code null}
+     */
+    private final void fail(final Exception cause) {
+      final Exchange exchange = this.exchange;
+      final boolean responseStarted = this.status != 0 || this.lineLength > 0;
+      this.exchange = null;
+      this.close();
+      if (exchange != null) {
+        if (this.reused && !responseStarted && !exchange.retried && !(cause instanceof SocketTimeoutException)) {
+          exchange.retried = true;
+          this.host.pending.addFirst(exchange);
+        } else {
+          exchange.fail(cause instanceof AmazonClientException ? (AmazonClientException)cause : new AmazonClientException("Unable to fetch " + exchange.bucketName + "/" + exchange.key + ": " + cause.getMessage(), cause));
+        }
+      }
+      this.host.dispatch();
+    }
+
+    /**
+     * Closes this {@link Connection} and removes it from its {@link
+     * Host}.
+     */
+    private final void close() {
+      this.key.cancel();
+      try {
+        this.channel.close();
+      } catch (final IOException ignore) {
+        // Nothing more can be done.
+      }
+      this.host.connections.remove(this);
+      this.host.idle.remove(this);
+    }
+
+  }
+
+  /**
+   * The states through which the reading of a response passes.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static enum State {
+
+    /**
+     * The status line and headers are being read.
+     */
+    HEAD,
+
+    /**
+     * A body of known length is being read.
+     */
+    BODY,
+
+    /**
+     * A body delimited by the end of the connection is being read.
+     */
+    BODY_TO_EOF,
+
+    /**
+     * The size line of a chunk is being read.
+     */
+    CHUNK_SIZE,
+
+    /**
+     * The data of a chunk is being read.
+     */
+    CHUNK,
+
+    /**
+     * The line ending that follows the data of a chunk is being read.
+     */
+    CHUNK_END,
+
+    /**
+     * The trailer of a chunked body is being read.
+     */
+    TRAILER
+
+  }
+
+}
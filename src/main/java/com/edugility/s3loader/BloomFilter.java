@@ -0,0 +1,154 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size <a href="https://en.wikipedia.org/wiki/Bloom_filter">Bloom
+ * filter</a> over {@link String}s.
+ *
+ * <p>{@link #mightContain(String)} never returns {@code false} for a
+ * {@link String} that has been {@linkplain #put(String) added}, and
+ * returns {@code true} for a {@link String} that has not been added
+ * with a probability governed by the parameters supplied at
+ * construction time.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads
+ * without locking.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NegativeLookupCache
+ */
+final class BloomFilter {
+
+  /**
+   * The bits of this {@link BloomFilter}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicLongArray words;
+
+  /**
+   * The number of bits in this {@link BloomFilter}; always a positive
+   * multiple of {@code 64}.
+   */
+  private final long bitCount;
+
+  /**
+   * The number of bits set per {@link String} added.
+   */
+  private final int hashCount;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link BloomFilter} sized so that it will exhibit a
+   * false positive rate of roughly one percent once {@code
+   * expectedInsertions} {@link String}s have been added.
+   *
+   * @param expectedInsertions the number of {@link String}s that are
+   * expected to be {@linkplain #put(String) added}; must be positive
+   *
+   * @exception IllegalArgumentException if {@code expectedInsertions}
+   * is not positive
+   */
+  BloomFilter(final int expectedInsertions) {
+    super();
+    if (expectedInsertions <= 0) {
+      throw new IllegalArgumentException("expectedInsertions <= 0: " + expectedInsertions);
+    }
+    // About 9.6 bits and 7 hash functions per element yield a 1%
+    // false positive rate.
+    final long words = Math.max(1L, ((long)expectedInsertions * 10L + 63L) / 64L);
+    this.words = new AtomicLongArray((int)Math.min(words, Integer.MAX_VALUE));
+    this.bitCount = this.words.length() * 64L;
+    this.hashCount = 7;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Adds the supplied {@link String} to this {@link BloomFilter}.
+   *
+   * @param s the {@link String} to add; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code s} is {@code null}
+   */
+  final void put(final String s) {
+    final int h1 = s.hashCode();
+    final int h2 = mix(h1);
+    for (int i = 0; i < this.hashCount; i++) {
+      final long bit = ((h1 + (long)i * h2) & Long.MAX_VALUE) % this.bitCount;
+      final int index = (int)(bit >>> 6);
+      final long mask = 1L << bit;
+      long word;
+      do {
+        word = this.words.get(index);
+      } while ((word & mask) == 0L && !this.words.compareAndSet(index, word, word | mask));
+    }
+  }
+
+  /**
+   * Returns {@code true} if the supplied {@link String} might have
+   * been {@linkplain #put(String) added} to this {@link BloomFilter}
+   * and {@code false} if it definitely has not been.
+   *
+   * @param s the {@link String} to test; must not be {@code null}
+   *
+   * @return {@code true} if {@code s} might have been added; {@code
+   * false} if it definitely has not been
+   *
+   * @exception NullPointerException if {@code s} is {@code null}
+   */
+  final boolean mightContain(final String s) {
+    final int h1 = s.hashCode();
+    final int h2 = mix(h1);
+    for (int i = 0; i < this.hashCount; i++) {
+      final long bit = ((h1 + (long)i * h2) & Long.MAX_VALUE) % this.bitCount;
+      if ((this.words.get((int)(bit >>> 6)) & (1L << bit)) == 0L) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Derives a second, well-distributed hash from the supplied hash
+   * code for use in double hashing.
+   *
+   * @param h a hash code
+   *
+   * @return a second hash code; always odd
+   */
+  private static final int mix(int h) {
+    // The finalization step of MurmurHash3.
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h | 1;
+  }
+
+}
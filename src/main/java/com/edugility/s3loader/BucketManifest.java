@@ -0,0 +1,381 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.amazonaws.AmazonClientException;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * An immutable, compact, in-memory index of the keys present in an <a
+ * href="https://aws.amazon.com/s3/">Amazon Simple Storage
+ * Service</a> <a
+ * href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html">bucket</a>,
+ * together with the size and ETag of the object stored under each.
+ *
+ * <p>A {@link BucketManifest} is typically {@linkplain #load(AmazonS3,
+ * String, String, boolean) loaded} from a single manifest object
+ * written by a publishing tool using the {@link #write(OutputStream)}
+ * method, or else {@linkplain #list(AmazonS3, String, String) built}
+ * once by listing the bucket.</p>
+ *
+ * <p>The manifest format is UTF-8 text with one object per line.
+ * Each line consists of the object's size in bytes, a tab, its ETag
+ * (which may be empty), a tab, and its key.  Blank lines and lines
+ * beginning with {@code #} are ignored.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see S3ClassLoader#S3ClassLoader(ClassLoader, AmazonS3, String,
+ * boolean, BucketManifest)
+ */
+public final class BucketManifest {
+
+  /**
+   * The name of the bucket this {@link BucketManifest} describes.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final String bucketName;
+
+  /**
+   * The keys present in the bucket, in ascending order.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final String[] keys;
+
+  /**
+   * The sizes of the objects stored under the corresponding elements
+   * of the {@link #keys} array.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final long[] sizes;
+
+  /**
+   * The ETags of the objects stored under the corresponding elements
+   * of the {@link #keys} array; elements may be {@code null}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final String[] eTags;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link BucketManifest}.
+   *
+   * @param bucketName the name of the bucket described; must not be
+   * {@code null}
+   *
+   * @param summaries a {@link SortedMap} of {@link S3ObjectSummary}
+   * instances indexed by their keys; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  private BucketManifest(final String bucketName, final SortedMap<String, S3ObjectSummary> summaries) {
+    super();
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    this.bucketName = bucketName;
+    final int size = summaries.size();
+    this.keys = new String[size];
+    this.sizes = new long[size];
+    this.eTags = new String[size];
+    int i = 0;
+    for (final Map.Entry<String, S3ObjectSummary> entry : summaries.entrySet()) {
+      final S3ObjectSummary summary = entry.getValue();
+      this.keys[i] = entry.getKey();
+      this.sizes[i] = summary.getSize();
+      this.eTags[i] = summary.getETag();
+      i++;
+    }
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the bucket this {@link BucketManifest}
+   * describes.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the name of the bucket; never {@code null}
+   */
+  public final String getBucketName() {
+    return this.bucketName;
+  }
+
+  /**
+   * Returns the number of keys in this {@link BucketManifest}.
+   *
+   * @return the number of keys; never negative
+   */
+  public final int size() {
+    return this.keys.length;
+  }
+
+  /**
+   * Returns {@code true} if the supplied key is present in this
+   * {@link BucketManifest}.
+   *
+   * @param key the key to look for; may be {@code null} in which case
+   * {@code false} will be returned
+   *
+   * @return {@code true} if {@code key} is present; {@code false}
+   * otherwise
+   */
+  public final boolean contains(final String key) {
+    return key != null && Arrays.binarySearch(this.keys, key) >= 0;
+  }
+
+  /**
+   * Returns an {@link S3ObjectSummary} describing the object stored
+   * under the supplied key, or {@code null} if the key is not present
+   * in this {@link BucketManifest}.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>A new {@link S3ObjectSummary} is returned on each invocation;
+   * only its {@linkplain S3ObjectSummary#getBucketName() bucket
+   * name}, {@linkplain S3ObjectSummary#getKey() key}, {@linkplain
+   * S3ObjectSummary#getSize() size} and {@linkplain
+   * S3ObjectSummary#getETag() ETag} are set.</p>
+   *
+   * @param key the key to look for; may be {@code null} in which case
+   * {@code null} will be returned
+   *
+   * @return an {@link S3ObjectSummary}, or {@code null}
+   */
+  public final S3ObjectSummary getObjectSummary(final String key) {
+    S3ObjectSummary returnValue = null;
+    if (key != null) {
+      final int index = Arrays.binarySearch(this.keys, key);
+      if (index >= 0) {
+        returnValue = new S3ObjectSummary();
+        returnValue.setBucketName(this.bucketName);
+        returnValue.setKey(key);
+        returnValue.setSize(this.sizes[index]);
+        returnValue.setETag(this.eTags[index]);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Writes this {@link BucketManifest} to the supplied {@link
+   * OutputStream} in the format understood by the {@link
+   * #read(String, InputStream)} method.
+   *
+   * <p>The supplied {@link OutputStream} is flushed but not
+   * closed.</p>
+   *
+   * @param outputStream the {@link OutputStream} to write to; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if {@code outputStream} is {@code
+   * null}
+   *
+   * @exception IOException if an error occurs while writing
+   */
+  public final void write(final OutputStream outputStream) throws IOException {
+    Objects.requireNonNull(outputStream, "outputStream == null");
+    final Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+    for (int i = 0; i < this.keys.length; i++) {
+      writer.write(Long.toString(this.sizes[i]));
+      writer.write('\t');
+      if (this.eTags[i] != null) {
+        writer.write(this.eTags[i]);
+      }
+      writer.write('\t');
+      writer.write(this.keys[i]);
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Reads a {@link BucketManifest} describing the supplied bucket from
+   * the supplied {@link InputStream}, which is not closed.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param bucketName the name of the bucket the manifest describes;
+   * must not be {@code null}
+   *
+   * @param inputStream the {@link InputStream} to read from; must not
+   * be {@code null}
+   *
+   * @return a new {@link BucketManifest}; never {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IOException if an error occurs while reading or if the
+   * manifest is malformed
+   */
+  public static final BucketManifest read(final String bucketName, final InputStream inputStream) throws IOException {
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(inputStream, "inputStream == null");
+    final SortedMap<String, S3ObjectSummary> summaries = new TreeMap<>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    int lineNumber = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (!line.isEmpty() && line.charAt(0) != '#') {
+        final String[] fields = line.split("\t", 3);
+        if (fields.length != 3 || fields[2].isEmpty()) {
+          throw new IOException("Malformed manifest line " + lineNumber + ": " + line);
+        }
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        try {
+          summary.setSize(Long.parseLong(fields[0]));
+        } catch (final NumberFormatException e) {
+          throw new IOException("Malformed manifest line " + lineNumber + ": " + line, e);
+        }
+        summary.setETag(fields[1].isEmpty() ? null : fields[1]);
+        summaries.put(fields[2], summary);
+      }
+    }
+    return new BucketManifest(bucketName, summaries);
+  }
+
+  /**
+   * Fetches the manifest object stored under the supplied key in the
+   * supplied bucket and {@linkplain #read(String, InputStream) reads}
+   * a {@link BucketManifest} from it.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param client the {@link AmazonS3} implementation to use; must not
+   * be {@code null}
+   *
+   * @param bucketName the name of the bucket housing the manifest
+   * object and described by it; must not be {@code null}
+   *
+   * @param manifestKey the key of the manifest object; must not be
+   * {@code null}
+   *
+   * @param requesterPays how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when requesting the manifest object
+   *
+   * @return a new {@link BucketManifest}; never {@code null}
+   *
+   * @exception NullPointerException if {@code client}, {@code
+   * bucketName} or {@code manifestKey} is {@code null}
+   *
+   * @exception IOException if the manifest object does not exist,
+   * could not be read or is malformed
+   */
+  public static final BucketManifest load(final AmazonS3 client, final String bucketName, final String manifestKey, final boolean requesterPays) throws IOException {
+    Objects.requireNonNull(client, "client == null");
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(manifestKey, "manifestKey == null");
+    final GetObjectRequest request = new GetObjectRequest(bucketName, manifestKey);
+    request.setRequesterPays(requesterPays);
+    try (final S3Object s3Object = client.getObject(request)) {
+      if (s3Object == null) {
+        throw new IOException("No manifest found at " + bucketName + "/" + manifestKey);
+      }
+      try (final InputStream inputStream = s3Object.getObjectContent()) {
+        return read(bucketName, inputStream);
+      }
+    } catch (final AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Builds a {@link BucketManifest} by {@linkplain
+   * AmazonS3#listObjects(ListObjectsRequest) listing} every key in the
+   * supplied bucket that begins with the supplied prefix.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>This costs one request per thousand keys, so the result is
+   * typically {@linkplain #write(OutputStream) written} somewhere
+   * durable and {@linkplain #load(AmazonS3, String, String, boolean)
+   * loaded} thereafter.</p>
+   *
+   * @param client the {@link AmazonS3} implementation to use; must not
+   * be {@code null}
+   *
+   * @param bucketName the name of the bucket to list; must not be
+   * {@code null}
+   *
+   * @param prefix the prefix of keys to include; may be {@code null}
+   * in which case every key is included
+   *
+   * @return a new {@link BucketManifest}; never {@code null}
+   *
+   * @exception NullPointerException if either {@code client} or
+   * {@code bucketName} is {@code null}
+   *
+   * @exception IOException if the bucket could not be listed
+   */
+  public static final BucketManifest list(final AmazonS3 client, final String bucketName, final String prefix) throws IOException {
+    Objects.requireNonNull(client, "client == null");
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    final SortedMap<String, S3ObjectSummary> summaries = new TreeMap<>();
+    try {
+      ObjectListing listing = client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+      while (listing != null) {
+        for (final S3ObjectSummary summary : listing.getObjectSummaries()) {
+          summaries.put(summary.getKey(), summary);
+        }
+        listing = listing.isTruncated() ? client.listNextBatchOfObjects(listing) : null;
+      }
+    } catch (final AmazonClientException e) {
+      throw new IOException(e);
+    }
+    return new BucketManifest(bucketName, summaries);
+  }
+
+}
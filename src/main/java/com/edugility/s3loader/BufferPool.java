@@ -0,0 +1,113 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small, fixed-size pool of reusable heap {@link ByteBuffer}s of a
+ * single capacity.
+ *
+ * <p>Neither {@linkplain #acquire() acquiring} a pooled buffer nor
+ * {@linkplain #release(ByteBuffer) releasing} one allocates.  When
+ * the pool is empty a new buffer is allocated; when it is full a
+ * released buffer is simply dropped.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class BufferPool {
+
+  /**
+   * The capacity of every buffer this {@link BufferPool} hands out.
+   */
+  private final int bufferSize;
+
+  /**
+   * The pooled buffers; {@code null} elements are empty slots.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicReferenceArray<ByteBuffer> slots;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link BufferPool}.
+   *
+   * @param bufferSize the capacity of every buffer; must be positive
+   *
+   * @param maximumPooledBuffers the maximum number of idle buffers to
+   * retain; must be positive
+   *
+   * @exception IllegalArgumentException if either parameter is not
+   * positive
+   */
+  BufferPool(final int bufferSize, final int maximumPooledBuffers) {
+    super();
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize <= 0: " + bufferSize);
+    } else if (maximumPooledBuffers <= 0) {
+      throw new IllegalArgumentException("maximumPooledBuffers <= 0: " + maximumPooledBuffers);
+    }
+    this.bufferSize = bufferSize;
+    this.slots = new AtomicReferenceArray<>(maximumPooledBuffers);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns a {@linkplain ByteBuffer#clear() cleared} heap {@link
+   * ByteBuffer}, reusing a pooled one if one is available.
+   *
+   * @return a non-{@code null} {@link ByteBuffer} whose capacity is
+   * this {@link BufferPool}'s buffer size
+   */
+  final ByteBuffer acquire() {
+    final int length = this.slots.length();
+    for (int i = 0; i < length; i++) {
+      final ByteBuffer buffer = this.slots.get(i);
+      if (buffer != null && this.slots.compareAndSet(i, buffer, null)) {
+        buffer.clear();
+        return buffer;
+      }
+    }
+    return ByteBuffer.allocate(this.bufferSize);
+  }
+
+  /**
+   * Returns the supplied {@link ByteBuffer}, which must have been
+   * {@linkplain #acquire() acquired} from this {@link BufferPool} and
+   * must no longer be used by the caller, to the pool.
+   *
+   * @param buffer the {@link ByteBuffer} to return; may be {@code
+   * null} in which case no action is taken
+   */
+  final void release(final ByteBuffer buffer) {
+    if (buffer != null && buffer.capacity() == this.bufferSize) {
+      final int length = this.slots.length();
+      for (int i = 0; i < length; i++) {
+        if (this.slots.get(i) == null && this.slots.compareAndSet(i, null, buffer)) {
+          return;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,106 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.Objects;
+
+/**
+ * An immutable pairing of the contents of an <a
+ * href="https://aws.amazon.com/s3/">Amazon Simple Storage
+ * Service</a> object with the <a
+ * href="http://docs.aws.amazon.com/AmazonS3/latest/API/RESTCommonResponseHeaders.html">ETag</a>
+ * that identified those contents at the time they were fetched.
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads
+ * provided that callers honor the contract of the {@link #getBytes()}
+ * method.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ObjectCache
+ */
+public final class CachedObject {
+
+  /**
+   * The ETag of the object whose contents are represented by the
+   * {@link #bytes} field.
+   *
+   * <p>This field may be {@code null}.</p>
+   *
+   * @see #getETag()
+   */
+  private final String eTag;
+
+  /**
+   * The contents of the object in question.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #getBytes()
+   */
+  private final byte[] bytes;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link CachedObject}.
+   *
+   * @param eTag the ETag of the object whose contents are being
+   * cached; may be {@code null} in which case the resulting {@link
+   * CachedObject} cannot be revalidated
+   *
+   * @param bytes the contents of the object; must not be {@code
+   * null}; not copied
+   *
+   * @exception NullPointerException if {@code bytes} is {@code null}
+   */
+  public CachedObject(final String eTag, final byte[] bytes) {
+    super();
+    Objects.requireNonNull(bytes, "bytes == null");
+    this.eTag = eTag;
+    this.bytes = bytes;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the ETag of the object whose contents are represented by
+   * this {@link CachedObject}, or {@code null} if it is not known.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the ETag, or {@code null}
+   */
+  public final String getETag() {
+    return this.eTag;
+  }
+
+  /**
+   * Returns the contents of the object represented by this {@link
+   * CachedObject}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The returned array is not copied, so callers must not modify
+   * it.</p>
+   *
+   * @return the contents of the object; never {@code null}
+   */
+  public final byte[] getBytes() {
+    return this.bytes;
+  }
+
+}
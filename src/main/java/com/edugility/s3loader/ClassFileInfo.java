@@ -0,0 +1,287 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The names of the classes mentioned in a Java class file, obtained
+ * by parsing its header and <a
+ * href="https://docs.oracle.com/javase/specs/jvms/se7/html/jvms-4.html#jvms-4.4">constant
+ * pool</a> without defining it.
+ *
+ * <p>All names are binary names, such as {@code java.lang.String}.
+ * Array types contribute the names of their element types;
+ * primitive types contribute nothing.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is immutable and safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see <a
+ * href="https://docs.oracle.com/javase/specs/jvms/se7/html/jvms-4.html">The
+ * <code>class</code> File Format</a>
+ */
+final class ClassFileInfo {
+
+  /**
+   * The binary name of the class the class file defines.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final String name;
+
+  /**
+   * The binary name of the superclass of the class the class file
+   * defines, or {@code null} if it has none.
+   */
+  private final String superclassName;
+
+  /**
+   * The binary names of the interfaces directly implemented by the
+   * class the class file defines.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final List<String> interfaceNames;
+
+  /**
+   * The binary names of every class named by a {@code
+   * CONSTANT_Class} entry in the constant pool, in constant pool
+   * order, excluding the class the class file defines.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Set<String> referencedClassNames;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ClassFileInfo} by parsing the supplied class
+   * file bytes.
+   *
+   * @param bytes an array containing a class file; must not be
+   * {@code null}
+   *
+   * @param offset the offset within {@code bytes} at which the class
+   * file begins
+   *
+   * @param length the length of the class file
+   *
+   * @exception NullPointerException if {@code bytes} is {@code null}
+   *
+   * @exception IllegalArgumentException if the bytes do not contain
+   * a well-formed class file header and constant pool
+   */
+  ClassFileInfo(final byte[] bytes, final int offset, final int length) {
+    super();
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+    try {
+      if (in.readInt() != 0xCAFEBABE) {
+        throw new IllegalArgumentException("Not a class file");
+      }
+      in.readUnsignedShort(); // minor_version
+      in.readUnsignedShort(); // major_version
+      final int constantPoolCount = in.readUnsignedShort();
+      final String[] utf8s = new String[constantPoolCount];
+      final int[] classNameIndices = new int[constantPoolCount];
+      for (int i = 1; i < constantPoolCount; i++) {
+        final int tag = in.readUnsignedByte();
+        switch (tag) {
+        case 1: // Utf8
+          utf8s[i] = in.readUTF();
+          break;
+        case 7: // Class
+          classNameIndices[i] = in.readUnsignedShort();
+          break;
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          skipFully(in, 2);
+          break;
+        case 15: // MethodHandle
+          skipFully(in, 3);
+          break;
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          skipFully(in, 4);
+          break;
+        case 5: // Long
+        case 6: // Double
+          skipFully(in, 8);
+          i++; // these occupy two constant pool slots
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at index " + i);
+        }
+      }
+      in.readUnsignedShort(); // access_flags
+      this.name = className(utf8s, classNameIndices, in.readUnsignedShort());
+      if (this.name == null) {
+        throw new IllegalArgumentException("Invalid this_class");
+      }
+      this.superclassName = className(utf8s, classNameIndices, in.readUnsignedShort());
+      final int interfacesCount = in.readUnsignedShort();
+      final List<String> interfaceNames = new ArrayList<>(interfacesCount);
+      for (int i = 0; i < interfacesCount; i++) {
+        final String interfaceName = className(utf8s, classNameIndices, in.readUnsignedShort());
+        if (interfaceName != null) {
+          interfaceNames.add(interfaceName);
+        }
+      }
+      this.interfaceNames = Collections.unmodifiableList(interfaceNames);
+      final Set<String> referencedClassNames = new LinkedHashSet<>();
+      for (int i = 1; i < constantPoolCount; i++) {
+        if (classNameIndices[i] != 0) {
+          final String referencedClassName = className(utf8s, classNameIndices, i);
+          if (referencedClassName != null && !referencedClassName.equals(this.name)) {
+            referencedClassNames.add(referencedClassName);
+          }
+        }
+      }
+      this.referencedClassNames = Collections.unmodifiableSet(referencedClassNames);
+    } catch (final IOException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Malformed class file", e);
+    }
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the binary name of the class the class file defines.
+   *
+   * @return the class name; never {@code null}
+   */
+  final String getName() {
+    return this.name;
+  }
+
+  /**
+   * Returns the binary name of the superclass of the class the class
+   * file defines, or {@code null} if it has none.
+   *
+   * @return the superclass name, or {@code null}
+   */
+  final String getSuperclassName() {
+    return this.superclassName;
+  }
+
+  /**
+   * Returns an unmodifiable {@link List} of the binary names of the
+   * interfaces directly implemented by the class the class file
+   * defines.
+   *
+   * @return a non-{@code null} {@link List}
+   */
+  final List<String> getInterfaceNames() {
+    return this.interfaceNames;
+  }
+
+  /**
+   * Returns an unmodifiable {@link Set} of the binary names of every
+   * class the class file's constant pool refers to, other than the
+   * class it defines.
+   *
+   * <p>The superclass and interfaces are included.</p>
+   *
+   * @return a non-{@code null} {@link Set}
+   */
+  final Set<String> getReferencedClassNames() {
+    return this.referencedClassNames;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the binary name of the class named by the {@code
+   * CONSTANT_Class} entry at the supplied constant pool index, or
+   * {@code null} if the index is zero or names an array of primitive
+   * types.
+   *
+   * @param utf8s the {@code CONSTANT_Utf8} entries, by index
+   *
+   * @param classNameIndices the name indices of the {@code
+   * CONSTANT_Class} entries, by index
+   *
+   * @param index the constant pool index
+   *
+   * @return a binary class name, or {@code null}
+   *
+   * @exception IllegalArgumentException if the index does not
+   * designate a {@code CONSTANT_Class} entry
+   */
+  private static final String className(final String[] utf8s, final int[] classNameIndices, final int index) {
+    if (index == 0) {
+      return null;
+    }
+    final int nameIndex = classNameIndices[index];
+    final String internalName = nameIndex == 0 ? null : utf8s[nameIndex];
+    if (internalName == null) {
+      throw new IllegalArgumentException("Invalid CONSTANT_Class index: " + index);
+    }
+    String name = internalName;
+    if (name.startsWith("[")) {
+      int dimensions = 0;
+      while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+        dimensions++;
+      }
+      if (name.length() > dimensions + 2 && name.charAt(dimensions) == 'L' && name.endsWith(";")) {
+        name = name.substring(dimensions + 1, name.length() - 1);
+      } else {
+        return null;
+      }
+    }
+    return name.replace('/', '.');
+  }
+
+  /**
+   * Skips exactly the supplied number of bytes of the supplied {@link
+   * DataInputStream}.
+   *
+   * @param in the {@link DataInputStream}; must not be {@code null}
+   *
+   * @param count the number of bytes to skip
+   *
+   * @exception IOException if the stream ends first
+   */
+  private static final void skipFully(final DataInputStream in, final int count) throws IOException {
+    if (in.skipBytes(count) != count) {
+      throw new EOFException();
+    }
+  }
+
+}
@@ -0,0 +1,237 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An additive-increase, multiplicative-decrease limit on the number
+ * of Amazon S3 requests that may be in flight at once.
+ *
+ * <p>Amazon S3 answers requests that arrive faster than a bucket
+ * prefix can serve them with {@code 503 Slow Down}.  A {@link
+ * ConcurrencyLimiter} halves its limit when a request is throttled
+ * and raises it by roughly one request per round trip while requests
+ * succeed and the limit is in use, so that the number of concurrent
+ * requests settles just under what the bucket will accept.  Only one
+ * decrease is made for all the requests that were in flight when a
+ * throttling response arrived, since they were all sent at the old
+ * limit.</p>
+ *
+ * <p>A single {@link ConcurrencyLimiter} is meant to be {@linkplain
+ * AbstractS3ClassLoader#setConcurrencyLimiter(ConcurrencyLimiter,
+ * int) shared} by every loader that reads from the same bucket.</p>
+ *
+ * <p>By default Amazon S3's client retries {@code 503 Slow Down}
+ * itself, with backoff but without lowering any limit, so that a
+ * {@link ConcurrencyLimiter} would only learn of throttling once the
+ * client had given up, and would then retry on top of the client's
+ * retries.  The client used by loaders that share a {@link
+ * ConcurrencyLimiter} should therefore be configured not to retry,
+ * with {@link
+ * com.amazonaws.ClientConfiguration#withMaxErrorRetry(int)
+ * ClientConfiguration.withMaxErrorRetry(0)}.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see AbstractS3ClassLoader#setConcurrencyLimiter(ConcurrencyLimiter,
+ * int)
+ */
+public final class ConcurrencyLimiter {
+
+  /**
+   * The factor by which the limit is multiplied when a request is
+   * throttled.
+   */
+  private static final double DECREASE_FACTOR = 0.5;
+
+  /**
+   * The upper bound, in nanoseconds, of the first backoff delay.
+   *
+   * @see #backOff(int)
+   */
+  private static final long BASE_BACKOFF = TimeUnit.MILLISECONDS.toNanos(50L);
+
+  /**
+   * The upper bound, in nanoseconds, of any backoff delay.
+   *
+   * @see #backOff(int)
+   */
+  private static final long MAXIMUM_BACKOFF = TimeUnit.SECONDS.toNanos(2L);
+
+  /**
+   * The largest value the limit may take.
+   */
+  private final int maximumLimit;
+
+  /**
+   * The current limit.
+   *
+   * <p>The limit is fractional so that it can grow by a fraction of a
+   * request for each successful response.</p>
+   */
+  private double limit;
+
+  /**
+   * The number of requests in flight.
+   */
+  private int inFlight;
+
+  /**
+   * The number of times the limit has been decreased.
+   *
+   * @see #acquire()
+   */
+  private long generation;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ConcurrencyLimiter}.
+   *
+   * @param initialLimit the number of requests that may be in flight
+   * at first; must be positive and no greater than {@code
+   * maximumLimit}
+   *
+   * @param maximumLimit the largest number of requests that may ever
+   * be in flight at once; must be positive
+   *
+   * @exception IllegalArgumentException if {@code initialLimit} is
+   * not positive or is greater than {@code maximumLimit}
+   */
+  public ConcurrencyLimiter(final int initialLimit, final int maximumLimit) {
+    super();
+    if (initialLimit <= 0) {
+      throw new IllegalArgumentException("initialLimit <= 0: " + initialLimit);
+    }
+    if (initialLimit > maximumLimit) {
+      throw new IllegalArgumentException("initialLimit > maximumLimit: " + initialLimit + " > " + maximumLimit);
+    }
+    this.limit = initialLimit;
+    this.maximumLimit = maximumLimit;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the number of requests that may currently be in flight.
+   *
+   * @return the current limit; always positive
+   */
+  public final synchronized int getLimit() {
+    return (int)this.limit;
+  }
+
+  /**
+   * Returns the number of requests currently in flight.
+   *
+   * @return the number of requests in flight; never negative
+   */
+  public final synchronized int getInFlightCount() {
+    return this.inFlight;
+  }
+
+  /**
+   * Waits uninterruptibly until another request may be sent, records
+   * that it is in flight, and returns a permit that must be passed to
+   * the {@link #release(long, boolean)} method when its response
+   * arrives.
+   *
+   * @return a permit
+   *
+   * @see #release(long, boolean)
+   */
+  final synchronized long acquire() {
+    boolean interrupted = false;
+    try {
+      while (this.inFlight >= (int)this.limit) {
+        try {
+          this.wait();
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.inFlight++;
+    return this.generation;
+  }
+
+  /**
+   * Records that the request for which the supplied permit was
+   * {@linkplain #acquire() acquired} is no longer in flight, and
+   * adjusts the limit according to whether it was throttled.
+   *
+   * @param permit the permit returned by the {@link #acquire()}
+   * method
+   *
+   * @param throttled whether Amazon S3 throttled the request
+   *
+   * @see #acquire()
+   */
+  final synchronized void release(final long permit, final boolean throttled) {
+    if (throttled) {
+      if (permit == this.generation) {
+        this.limit = Math.max(1.0, Math.floor(this.limit * DECREASE_FACTOR));
+        this.generation++;
+      }
+    } else if (2 * this.inFlight >= (int)this.limit) {
+      // The limit is only raised while it is being used; otherwise a
+      // quiet period would let it grow without bound.
+      this.limit = Math.min(this.maximumLimit, this.limit + 1.0 / this.limit);
+    }
+    this.inFlight--;
+    this.notifyAll();
+  }
+
+  /**
+   * Sleeps for a random time before the supplied retry of a throttled
+   * request.
+   *
+   * <p>The time is chosen uniformly from zero up to an exponentially
+   * growing bound, so that retries from many threads do not arrive
+   * together.</p>
+   *
+   * @param retry the number of the retry, starting at {@code 0}
+   *
+   * @exception InterruptedException if the calling thread was
+   * interrupted
+   */
+  final void backOff(final int retry) throws InterruptedException {
+    final long bound = retry >= 32 ? MAXIMUM_BACKOFF : Math.min(MAXIMUM_BACKOFF, BASE_BACKOFF << retry);
+    TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(bound + 1L));
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * ConcurrencyLimiter}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final synchronized String toString() {
+    return "limit=" + this.getLimit() + ", inFlight=" + this.inFlight + ", maximumLimit=" + this.maximumLimit;
+  }
+
+}
@@ -0,0 +1,316 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Objects;
+
+import java.util.zip.CRC32;
+
+/**
+ * An {@link ObjectCache} that stores {@link CachedObject}s as files
+ * in a directory on the local filesystem so that they survive
+ * restarts of the Java virtual machine.
+ *
+ * <p>Each {@link CachedObject} is stored in a file whose name is
+ * derived from a SHA-256 digest of the bucket name and key under
+ * which it was {@linkplain #put(String, String, CachedObject)
+ * stored}.  The file records the bucket name, key and ETag alongside
+ * the object's contents, so digest collisions are detected rather
+ * than served, and a CRC-32 checksum of the contents, so that
+ * corruption on disk is detected too.</p>
+ *
+ * <p>Files are written to a temporary file first and then moved into
+ * place, so concurrent readers, including readers in other
+ * processes sharing the same directory, never observe a partially
+ * written entry.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ObjectCache
+ *
+ * @see AbstractS3ClassLoader#setObjectCache(ObjectCache, boolean)
+ */
+public class DiskObjectCache implements ObjectCache {
+
+  /**
+   * A number written at the start of every cache file to identify its
+   * format.
+   */
+  private static final int MAGIC = 0x53334C32; // "S3L2"
+
+  /**
+   * Hexadecimal digits used by the {@link #toFileName(String,
+   * String)} method.
+   */
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /**
+   * The directory in which cache files are stored.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #DiskObjectCache(Path)
+   */
+  protected final Path directory;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link DiskObjectCache}.
+   *
+   * @param directory the directory in which cache files will be
+   * stored; must not be {@code null}; will be created if it does not
+   * exist when the first entry is {@linkplain #put(String, String,
+   * CachedObject) stored}
+   *
+   * @exception NullPointerException if {@code directory} is {@code
+   * null}
+   */
+  public DiskObjectCache(final Path directory) {
+    super();
+    Objects.requireNonNull(directory, "directory == null");
+    this.directory = directory;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the {@link CachedObject} stored under the supplied bucket
+   * name and key, or {@code null} if there is no such {@link
+   * CachedObject}.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>A cache file that is truncated, corrupt, in an older format,
+   * or that records a different bucket name or key is deleted and
+   * {@code null} is returned.  The length the file records for the
+   * contents is checked against the file's actual size before any
+   * array is allocated for them.</p>
+   *
+   * @param bucketName the name of the bucket housing the object in
+   * question; must not be {@code null}
+   *
+   * @param key the key of the object in question; must not be {@code
+   * null}
+   *
+   * @return a {@link CachedObject}, or {@code null}
+   *
+   * @exception NullPointerException if either {@code bucketName} or
+   * {@code key} is {@code null}
+   *
+   * @exception IOException if the cache file could not be read
+   */
+  @Override
+  public CachedObject get(final String bucketName, final String key) throws IOException {
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(key, "key == null");
+    final Path file = this.directory.resolve(toFileName(bucketName, key));
+    CachedObject returnValue = null;
+    boolean corrupt = false;
+    try (final SeekableByteChannel channel = Files.newByteChannel(file);
+         final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+      final long fileSize = channel.size();
+      if (in.readInt() == MAGIC && bucketName.equals(in.readUTF()) && key.equals(in.readUTF())) {
+        final String eTag = in.readUTF();
+        final int length = in.readInt();
+        final int checksum = in.readInt();
+        if (length < 0 || length != fileSize - headerSize(bucketName, key, eTag)) {
+          corrupt = true;
+        } else {
+          final byte[] bytes = new byte[length];
+          in.readFully(bytes);
+          final CRC32 crc = new CRC32();
+          crc.update(bytes, 0, length);
+          if ((int)crc.getValue() == checksum) {
+            returnValue = new CachedObject(eTag.isEmpty() ? null : eTag, bytes);
+          } else {
+            corrupt = true;
+          }
+        }
+      } else {
+        corrupt = true;
+      }
+    } catch (final NoSuchFileException notCached) {
+
+    } catch (final EOFException truncated) {
+      corrupt = true;
+    }
+    if (corrupt) {
+      Files.deleteIfExists(file);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Stores the supplied {@link CachedObject} under the supplied bucket
+   * name and key, replacing any {@link CachedObject} previously
+   * stored there.
+   *
+   * @param bucketName the name of the bucket housing the object in
+   * question; must not be {@code null}
+   *
+   * @param key the key of the object in question; must not be {@code
+   * null}
+   *
+   * @param object the {@link CachedObject} to store; must not be
+   * {@code null}
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   *
+   * @exception IOException if the cache file could not be written
+   */
+  @Override
+  public void put(final String bucketName, final String key, final CachedObject object) throws IOException {
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(key, "key == null");
+    Objects.requireNonNull(object, "object == null");
+    Files.createDirectories(this.directory);
+    final Path file = this.directory.resolve(toFileName(bucketName, key));
+    final Path temporaryFile = Files.createTempFile(this.directory, file.getFileName().toString(), ".tmp");
+    boolean moved = false;
+    try {
+      try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+        final String eTag = object.getETag();
+        final byte[] bytes = object.getBytes();
+        out.writeInt(MAGIC);
+        out.writeUTF(bucketName);
+        out.writeUTF(key);
+        out.writeUTF(eTag == null ? "" : eTag);
+        out.writeInt(bytes.length);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt((int)crc.getValue());
+        out.write(bytes);
+      }
+      try {
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (final AtomicMoveNotSupportedException e) {
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      moved = true;
+    } finally {
+      if (!moved) {
+        Files.deleteIfExists(temporaryFile);
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the number of bytes that precede an object's contents in
+   * a cache file recording the supplied bucket name, key and ETag.
+   *
+   * @param bucketName the bucket name; must not be {@code null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @param eTag the ETag as recorded; must not be {@code null}
+   *
+   * @return the size of the header, in bytes
+   *
+   * @see DataOutputStream#writeUTF(String)
+   */
+  private static final long headerSize(final String bucketName, final String key, final String eTag) {
+    // The magic number, three strings each preceded by its length,
+    // the length of the contents and their checksum.
+    return 4L + 2L + utfLength(bucketName) + 2L + utfLength(key) + 2L + utfLength(eTag) + 4L + 4L;
+  }
+
+  /**
+   * Returns the number of bytes the {@link
+   * DataOutputStream#writeUTF(String)} method writes for the supplied
+   * {@link String}, excluding the two that record that number.
+   *
+   * @param s the {@link String}; must not be {@code null}
+   *
+   * @return the length of its modified UTF-8 encoding
+   */
+  private static final long utfLength(final String s) {
+    long returnValue = 0L;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        returnValue += 1L;
+      } else if (c > 0x07FF) {
+        returnValue += 3L;
+      } else {
+        returnValue += 2L;
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a file name suitable for storing the object identified by
+   * the supplied bucket name and key.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param bucketName the bucket name; must not be {@code null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @return a non-{@code null} file name consisting solely of
+   * lowercase hexadecimal digits
+   */
+  private static final String toFileName(final String bucketName, final String key) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      // All Java platforms are required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+    digest.update(bucketName.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte)'/');
+    final byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+    final char[] chars = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      chars[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+      chars[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+}
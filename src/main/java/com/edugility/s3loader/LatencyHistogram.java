@@ -0,0 +1,142 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with exponentially sized buckets that many
+ * threads may record into at once without contending with one
+ * another.
+ *
+ * <p>Bucket {@code 0} counts durations shorter than one microsecond;
+ * bucket {@code i} counts durations of at least 2<sup>i-1</sup> and
+ * less than 2<sup>i</sup> microseconds; the last bucket also counts
+ * every longer duration.  As with {@link StripedCounter}, each
+ * thread records into its own cache-line-aligned row, and the rows
+ * are summed when a {@linkplain #snapshot() snapshot} is taken.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see LatencyStatistics
+ */
+final class LatencyHistogram {
+
+  /**
+   * The number of buckets.
+   */
+  static final int BUCKETS = 32;
+
+  /**
+   * The offset within a row of the number of recorded durations.
+   */
+  private static final int COUNT = 0;
+
+  /**
+   * The offset within a row of the sum of the recorded durations, in
+   * nanoseconds.
+   */
+  private static final int TOTAL = 1;
+
+  /**
+   * The offset within a row of the longest recorded duration, in
+   * nanoseconds.
+   */
+  private static final int MAXIMUM = 2;
+
+  /**
+   * The offset within a row of the first bucket.
+   */
+  private static final int FIRST_BUCKET = 3;
+
+  /**
+   * The length of a row, rounded up to a whole number of 64-byte
+   * cache lines.
+   */
+  private static final int ROW_LENGTH = (FIRST_BUCKET + BUCKETS + 7) & ~7;
+
+  /**
+   * The rows, one per {@linkplain StripedCounter#stripe() stripe}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicLongArray rows;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new, empty {@link LatencyHistogram}.
+   */
+  LatencyHistogram() {
+    super();
+    this.rows = new AtomicLongArray(StripedCounter.STRIPES * ROW_LENGTH);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Records the supplied duration.
+   *
+   * @param nanoseconds the duration in nanoseconds; negative values
+   * are treated as zero
+   */
+  final void record(long nanoseconds) {
+    if (nanoseconds < 0L) {
+      nanoseconds = 0L;
+    }
+    final int row = StripedCounter.stripe() * ROW_LENGTH;
+    final long microseconds = nanoseconds / 1000L;
+    final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(microseconds));
+    this.rows.getAndIncrement(row + FIRST_BUCKET + bucket);
+    this.rows.getAndAdd(row + TOTAL, nanoseconds);
+    long maximum;
+    while ((maximum = this.rows.get(row + MAXIMUM)) < nanoseconds && !this.rows.compareAndSet(row + MAXIMUM, maximum, nanoseconds)) {
+      // Retry.
+    }
+    this.rows.getAndIncrement(row + COUNT);
+  }
+
+  /**
+   * Returns a {@link LatencyStatistics} summarizing the durations
+   * recorded so far.
+   *
+   * @return a non-{@code null} {@link LatencyStatistics}
+   */
+  final LatencyStatistics snapshot() {
+    long count = 0L;
+    long total = 0L;
+    long maximum = 0L;
+    final long[] buckets = new long[BUCKETS];
+    for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+      final int row = stripe * ROW_LENGTH;
+      count += this.rows.get(row + COUNT);
+      total += this.rows.get(row + TOTAL);
+      maximum = Math.max(maximum, this.rows.get(row + MAXIMUM));
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] += this.rows.get(row + FIRST_BUCKET + i);
+      }
+    }
+    return new LatencyStatistics(count,
+                                 TimeUnit.NANOSECONDS.toMicros(total),
+                                 TimeUnit.NANOSECONDS.toMicros(maximum),
+                                 buckets);
+  }
+
+}
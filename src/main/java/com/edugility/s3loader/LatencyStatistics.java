@@ -0,0 +1,240 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.beans.ConstructorProperties;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * An immutable summary of a set of recorded durations, as exposed by
+ * {@link S3ClassLoaderMetricsMXBean}.
+ *
+ * <p>Durations are reported in microseconds.  Percentiles are
+ * estimated from an exponential histogram and are therefore
+ * reported as the upper bound of the bucket in which they fall; they
+ * are accurate to within a factor of two.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is immutable and safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see S3ClassLoaderMetricsMXBean
+ */
+public final class LatencyStatistics {
+
+  /**
+   * The number of recorded durations.
+   */
+  private final long count;
+
+  /**
+   * The sum of the recorded durations, in microseconds.
+   */
+  private final long totalMicroseconds;
+
+  /**
+   * The longest recorded duration, in microseconds.
+   */
+  private final long maximumMicroseconds;
+
+  /**
+   * The bucket counts.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #getBucketCounts()
+   */
+  private final long[] bucketCounts;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link LatencyStatistics}.
+   *
+   * @param count the number of recorded durations; must not be
+   * negative
+   *
+   * @param totalMicroseconds the sum of the recorded durations, in
+   * microseconds; must not be negative
+   *
+   * @param maximumMicroseconds the longest recorded duration, in
+   * microseconds; must not be negative
+   *
+   * @param bucketCounts the bucket counts, as described by the {@link
+   * #getBucketCounts()} method; must not be {@code null}; is copied
+   *
+   * @exception NullPointerException if {@code bucketCounts} is {@code
+   * null}
+   */
+  @ConstructorProperties({ "count", "totalMicroseconds", "maximumMicroseconds", "bucketCounts" })
+  public LatencyStatistics(final long count, final long totalMicroseconds, final long maximumMicroseconds, final long[] bucketCounts) {
+    super();
+    Objects.requireNonNull(bucketCounts, "bucketCounts == null");
+    this.count = count;
+    this.totalMicroseconds = totalMicroseconds;
+    this.maximumMicroseconds = maximumMicroseconds;
+    this.bucketCounts = bucketCounts.clone();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the number of recorded durations.
+   *
+   * @return the number of recorded durations; never negative
+   */
+  public final long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Returns the sum of the recorded durations, in microseconds.
+   *
+   * @return the sum of the recorded durations; never negative
+   */
+  public final long getTotalMicroseconds() {
+    return this.totalMicroseconds;
+  }
+
+  /**
+   * Returns the mean recorded duration, in microseconds, or {@code 0}
+   * if there are none.
+   *
+   * @return the mean recorded duration; never negative
+   */
+  public final double getMeanMicroseconds() {
+    return this.count == 0L ? 0.0 : (double)this.totalMicroseconds / (double)this.count;
+  }
+
+  /**
+   * Returns the longest recorded duration, in microseconds.
+   *
+   * @return the longest recorded duration; never negative
+   */
+  public final long getMaximumMicroseconds() {
+    return this.maximumMicroseconds;
+  }
+
+  /**
+   * Returns an estimate of the median recorded duration, in
+   * microseconds.
+   *
+   * @return an estimate of the median; never negative
+   *
+   * @see #getPercentileMicroseconds(double)
+   */
+  public final long getMedianMicroseconds() {
+    return this.getPercentileMicroseconds(50.0);
+  }
+
+  /**
+   * Returns an estimate of the 90th percentile of the recorded
+   * durations, in microseconds.
+   *
+   * @return an estimate of the 90th percentile; never negative
+   *
+   * @see #getPercentileMicroseconds(double)
+   */
+  public final long getNinetiethPercentileMicroseconds() {
+    return this.getPercentileMicroseconds(90.0);
+  }
+
+  /**
+   * Returns an estimate of the 99th percentile of the recorded
+   * durations, in microseconds.
+   *
+   * @return an estimate of the 99th percentile; never negative
+   *
+   * @see #getPercentileMicroseconds(double)
+   */
+  public final long getNinetyNinthPercentileMicroseconds() {
+    return this.getPercentileMicroseconds(99.0);
+  }
+
+  /**
+   * Returns the bucket counts from which percentiles are estimated.
+   *
+   * <p>Element {@code 0} counts durations shorter than one
+   * microsecond; element {@code i} counts durations of at least
+   * 2<sup>i-1</sup> and less than 2<sup>i</sup> microseconds; the last
+   * element also counts every longer duration.</p>
+   *
+   * @return a new, non-{@code null} array
+   */
+  public final long[] getBucketCounts() {
+    return this.bucketCounts.clone();
+  }
+
+  /**
+   * Returns an estimate of the supplied percentile of the recorded
+   * durations, in microseconds, or {@code 0} if there are none.
+   *
+   * <p>The estimate is the upper bound of the bucket containing the
+   * percentile, capped at the {@linkplain #getMaximumMicroseconds()
+   * longest recorded duration}.</p>
+   *
+   * @param percentile the percentile, from {@code 0} to {@code 100}
+   *
+   * @return an estimate of the percentile; never negative
+   *
+   * @exception IllegalArgumentException if {@code percentile} is not
+   * between {@code 0} and {@code 100}
+   */
+  public final long getPercentileMicroseconds(final double percentile) {
+    if (!(percentile >= 0.0 && percentile <= 100.0)) {
+      throw new IllegalArgumentException("percentile: " + percentile);
+    }
+    long total = 0L;
+    for (final long bucketCount : this.bucketCounts) {
+      total += bucketCount;
+    }
+    if (total == 0L) {
+      return 0L;
+    }
+    final long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0 * total));
+    long seen = 0L;
+    for (int i = 0; i < this.bucketCounts.length; i++) {
+      seen += this.bucketCounts[i];
+      if (seen >= rank) {
+        return i == this.bucketCounts.length - 1 ? this.maximumMicroseconds : Math.min(1L << i, this.maximumMicroseconds);
+      }
+    }
+    return this.maximumMicroseconds;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * LatencyStatistics}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return "count=" + this.count +
+      ", mean=" + this.getMeanMicroseconds() + "us" +
+      ", p50=" + this.getMedianMicroseconds() + "us" +
+      ", p90=" + this.getNinetiethPercentileMicroseconds() + "us" +
+      ", p99=" + this.getNinetyNinthPercentileMicroseconds() + "us" +
+      ", max=" + this.maximumMicroseconds + "us" +
+      ", buckets=" + Arrays.toString(this.bucketCounts);
+  }
+
+}
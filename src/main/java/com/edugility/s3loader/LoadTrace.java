@@ -0,0 +1,444 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.amazonaws.AmazonClientException;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * An ordered record of the classes and resources an {@link
+ * AbstractS3ClassLoader} fetched from <a
+ * href="https://aws.amazon.com/s3/">Amazon Simple Storage
+ * Service</a>, suitable for saving at the end of one run and
+ * {@linkplain AbstractS3ClassLoader#replay(LoadTrace) replaying} as a
+ * parallel prefetch at the start of the next.
+ *
+ * <p>A {@link LoadTrace} records each name at most once, in the order
+ * in which it was first recorded.</p>
+ *
+ * <p>The trace format is UTF-8 text with one entry per line.  Each
+ * line consists of either {@code class} or {@code resource}, a tab,
+ * and a class or resource name.  Blank lines and lines beginning with
+ * {@code #} are ignored.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see AbstractS3ClassLoader#setLoadTrace(LoadTrace)
+ *
+ * @see AbstractS3ClassLoader#replay(LoadTrace)
+ */
+public final class LoadTrace {
+
+  /**
+   * The prefix of lines recording class names.
+   */
+  private static final String CLASS_PREFIX = "class\t";
+
+  /**
+   * The prefix of lines recording resource names.
+   */
+  private static final String RESOURCE_PREFIX = "resource\t";
+
+  /**
+   * The lines of this {@link LoadTrace}, in the order in which they
+   * were recorded.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Queue<String> lines;
+
+  /**
+   * The lines of this {@link LoadTrace}, used to discard duplicates.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Set<String> recordedLines;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new, empty {@link LoadTrace}.
+   */
+  public LoadTrace() {
+    super();
+    this.lines = new ConcurrentLinkedQueue<>();
+    this.recordedLines = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Records that the class with the supplied name was loaded, unless
+   * it has been recorded already.
+   *
+   * @param className the binary name of the class; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code className} is {@code
+   * null}
+   */
+  public final void recordClass(final String className) {
+    Objects.requireNonNull(className, "className == null");
+    this.record(CLASS_PREFIX + className);
+  }
+
+  /**
+   * Records that the resource with the supplied name was loaded,
+   * unless it has been recorded already.
+   *
+   * @param resourceName the name of the resource; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code resourceName} is {@code
+   * null}
+   */
+  public final void recordResource(final String resourceName) {
+    Objects.requireNonNull(resourceName, "resourceName == null");
+    this.record(RESOURCE_PREFIX + resourceName);
+  }
+
+  /**
+   * Appends the supplied line to this {@link LoadTrace} unless it is
+   * already present.
+   *
+   * @param line the line; must not be {@code null}
+   */
+  private final void record(final String line) {
+    assert line != null;
+    if (this.recordedLines.add(line)) {
+      this.lines.add(line);
+    }
+  }
+
+  /**
+   * Returns the number of classes and resources recorded by this
+   * {@link LoadTrace}.
+   *
+   * @return the number of entries; never negative
+   */
+  public final int size() {
+    return this.recordedLines.size();
+  }
+
+  /**
+   * Returns an unmodifiable snapshot of the class names recorded by
+   * this {@link LoadTrace}, in the order in which they were recorded.
+   *
+   * @return a non-{@code null} {@link List}
+   */
+  public final List<String> getClassNames() {
+    return this.getNames(CLASS_PREFIX);
+  }
+
+  /**
+   * Returns an unmodifiable snapshot of the resource names recorded by
+   * this {@link LoadTrace}, in the order in which they were recorded.
+   *
+   * @return a non-{@code null} {@link List}
+   */
+  public final List<String> getResourceNames() {
+    return this.getNames(RESOURCE_PREFIX);
+  }
+
+  /**
+   * Returns an unmodifiable snapshot of the names recorded by this
+   * {@link LoadTrace} on lines beginning with the supplied prefix.
+   *
+   * @param prefix the prefix; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link List}
+   */
+  private final List<String> getNames(final String prefix) {
+    assert prefix != null;
+    final List<String> returnValue = new ArrayList<>();
+    for (final String line : this.lines) {
+      if (line.startsWith(prefix)) {
+        returnValue.add(line.substring(prefix.length()));
+      }
+    }
+    return Collections.unmodifiableList(returnValue);
+  }
+
+  /**
+   * Asks the supplied {@link AbstractS3ClassLoader} to prefetch every
+   * class and resource recorded by this {@link LoadTrace}, in the
+   * order in which they were recorded, and returns the number of
+   * prefetches that were scheduled.
+   *
+   * @param loader the {@link AbstractS3ClassLoader}; must not be
+   * {@code null}
+   *
+   * @return the number of prefetches scheduled; never negative
+   *
+   * @see AbstractS3ClassLoader#replay(LoadTrace)
+   */
+  final int replayInto(final AbstractS3ClassLoader loader) {
+    assert loader != null;
+    int returnValue = 0;
+    for (final String line : this.lines) {
+      final boolean scheduled;
+      if (line.startsWith(CLASS_PREFIX)) {
+        scheduled = loader.prefetchRecordedClass(line.substring(CLASS_PREFIX.length()));
+      } else {
+        scheduled = loader.prefetchResource(line.substring(RESOURCE_PREFIX.length()));
+      }
+      if (scheduled) {
+        returnValue++;
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Writes this {@link LoadTrace} to the supplied {@link OutputStream}
+   * in the format understood by the {@link #read(InputStream)}
+   * method.
+   *
+   * <p>The supplied {@link OutputStream} is flushed but not
+   * closed.</p>
+   *
+   * @param outputStream the {@link OutputStream} to write to; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if {@code outputStream} is {@code
+   * null}
+   *
+   * @exception IOException if an error occurs while writing
+   */
+  public final void write(final OutputStream outputStream) throws IOException {
+    Objects.requireNonNull(outputStream, "outputStream == null");
+    final Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+    for (final String line : this.lines) {
+      writer.write(line);
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+
+  /**
+   * {@linkplain #write(OutputStream) Writes} this {@link LoadTrace} to
+   * the file at the supplied {@link Path}, replacing it atomically if
+   * it exists.
+   *
+   * @param path the {@link Path} of the file; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code path} is {@code null}
+   *
+   * @exception IOException if an error occurs while writing
+   *
+   * @see #load(Path)
+   */
+  public final void save(final Path path) throws IOException {
+    Objects.requireNonNull(path, "path == null");
+    final Path directory = path.toAbsolutePath().getParent();
+    final Path temporaryFile = Files.createTempFile(directory, ".trace", ".tmp");
+    try {
+      try (final OutputStream outputStream = Files.newOutputStream(temporaryFile)) {
+        this.write(outputStream);
+      }
+      Files.move(temporaryFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+
+  /**
+   * {@linkplain #write(OutputStream) Writes} this {@link LoadTrace} to
+   * an Amazon S3 object stored under the supplied key in the supplied
+   * bucket, typically alongside the classes it names.
+   *
+   * @param client the {@link AmazonS3} implementation to use; must not
+   * be {@code null}
+   *
+   * @param bucketName the name of the bucket; must not be {@code null}
+   *
+   * @param key the key of the object to write; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   *
+   * @exception IOException if the object could not be written
+   *
+   * @see #load(AmazonS3, String, String, boolean)
+   */
+  public final void save(final AmazonS3 client, final String bucketName, final String key) throws IOException {
+    Objects.requireNonNull(client, "client == null");
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(key, "key == null");
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    this.write(outputStream);
+    final byte[] bytes = outputStream.toByteArray();
+    final ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(bytes.length);
+    metadata.setContentType("text/plain; charset=UTF-8");
+    try {
+      client.putObject(bucketName, key, new ByteArrayInputStream(bytes), metadata);
+    } catch (final AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Reads a {@link LoadTrace} from the supplied {@link InputStream},
+   * which is not closed.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param inputStream the {@link InputStream} to read from; must not
+   * be {@code null}
+   *
+   * @return a new {@link LoadTrace}; never {@code null}
+   *
+   * @exception NullPointerException if {@code inputStream} is {@code
+   * null}
+   *
+   * @exception IOException if an error occurs while reading or if the
+   * trace is malformed
+   */
+  public static final LoadTrace read(final InputStream inputStream) throws IOException {
+    Objects.requireNonNull(inputStream, "inputStream == null");
+    final LoadTrace returnValue = new LoadTrace();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    int lineNumber = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (!line.isEmpty() && line.charAt(0) != '#') {
+        if ((line.startsWith(CLASS_PREFIX) && line.length() > CLASS_PREFIX.length()) ||
+            (line.startsWith(RESOURCE_PREFIX) && line.length() > RESOURCE_PREFIX.length())) {
+          returnValue.record(line);
+        } else {
+          throw new IOException("Malformed trace line " + lineNumber + ": " + line);
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * {@linkplain #read(InputStream) Reads} a {@link LoadTrace} from the
+   * file at the supplied {@link Path}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param path the {@link Path} of the file; must not be {@code
+   * null}
+   *
+   * @return a new {@link LoadTrace}; never {@code null}
+   *
+   * @exception NullPointerException if {@code path} is {@code null}
+   *
+   * @exception IOException if the file does not exist, could not be
+   * read or is malformed
+   *
+   * @see #save(Path)
+   */
+  public static final LoadTrace load(final Path path) throws IOException {
+    Objects.requireNonNull(path, "path == null");
+    try (final InputStream inputStream = Files.newInputStream(path)) {
+      return read(inputStream);
+    }
+  }
+
+  /**
+   * Fetches the trace object stored under the supplied key in the
+   * supplied bucket and {@linkplain #read(InputStream) reads} a {@link
+   * LoadTrace} from it.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param client the {@link AmazonS3} implementation to use; must not
+   * be {@code null}
+   *
+   * @param bucketName the name of the bucket housing the trace
+   * object; must not be {@code null}
+   *
+   * @param key the key of the trace object; must not be {@code null}
+   *
+   * @param requesterPays how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when requesting the trace object
+   *
+   * @return a new {@link LoadTrace}; never {@code null}
+   *
+   * @exception NullPointerException if {@code client}, {@code
+   * bucketName} or {@code key} is {@code null}
+   *
+   * @exception IOException if the trace object does not exist, could
+   * not be read or is malformed
+   *
+   * @see #save(AmazonS3, String, String)
+   */
+  public static final LoadTrace load(final AmazonS3 client, final String bucketName, final String key, final boolean requesterPays) throws IOException {
+    Objects.requireNonNull(client, "client == null");
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(key, "key == null");
+    final GetObjectRequest request = new GetObjectRequest(bucketName, key);
+    request.setRequesterPays(requesterPays);
+    try (final S3Object s3Object = client.getObject(request)) {
+      if (s3Object == null) {
+        throw new IOException("No trace found at " + bucketName + "/" + key);
+      }
+      try (final InputStream inputStream = s3Object.getObjectContent()) {
+        return read(inputStream);
+      }
+    } catch (final AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+}
@@ -0,0 +1,471 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.nio.ByteBuffer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded {@link ObjectCache} that keeps small {@link
+ * CachedObject}s on the Java heap and larger ones in {@linkplain
+ * ByteBuffer#allocateDirect(int) direct <code>ByteBuffer</code>s}
+ * outside of it.
+ *
+ * <p>Each tier is bounded by the total number of content bytes it
+ * holds and evicts its least recently used entries to make room for
+ * new ones.  An object larger than a tier's entire capacity is not
+ * cached at all.  Off-heap memory is returned to the operating system
+ * when the garbage collector reclaims an evicted entry's {@link
+ * ByteBuffer}.</p>
+ *
+ * <p>A {@link MemoryObjectCache} holds only object contents, ETags
+ * and keys.  It never refers to a {@link ClassLoader} or to any
+ * {@link Class} defined from the bytes it holds, so sharing one among
+ * several {@link AbstractS3ClassLoader}s does not prevent any of them
+ * from being garbage collected.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ObjectCache
+ *
+ * @see AbstractS3ClassLoader#setObjectCache(ObjectCache, boolean)
+ */
+public class MemoryObjectCache implements ObjectCache {
+
+  /**
+   * The largest object, in bytes, that will be stored on the heap;
+   * larger objects are stored off the heap.
+   *
+   * @see #MemoryObjectCache(long, long, int)
+   */
+  private final int maximumHeapObjectSize;
+
+  /**
+   * The on-heap tier.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Tier<CachedObject> heapTier;
+
+  /**
+   * The off-heap tier.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Tier<OffHeapObject> offHeapTier;
+
+  /**
+   * The number of {@link #get(String, String)} calls that returned a
+   * {@link CachedObject}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicLong hitCount;
+
+  /**
+   * The number of {@link #get(String, String)} calls that returned
+   * {@code null}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicLong missCount;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link MemoryObjectCache}.
+   *
+   * @param maximumHeapSize the maximum total size, in bytes, of the
+   * objects held on the heap; must not be negative
+   *
+   * @param maximumOffHeapSize the maximum total size, in bytes, of the
+   * objects held off the heap; must not be negative
+   *
+   * @param maximumHeapObjectSize the size, in bytes, of the largest
+   * object that will be held on the heap; larger objects are held off
+   * the heap; must not be negative
+   *
+   * @exception IllegalArgumentException if any parameter is negative
+   */
+  public MemoryObjectCache(final long maximumHeapSize, final long maximumOffHeapSize, final int maximumHeapObjectSize) {
+    super();
+    if (maximumHeapSize < 0L) {
+      throw new IllegalArgumentException("maximumHeapSize < 0: " + maximumHeapSize);
+    } else if (maximumOffHeapSize < 0L) {
+      throw new IllegalArgumentException("maximumOffHeapSize < 0: " + maximumOffHeapSize);
+    } else if (maximumHeapObjectSize < 0) {
+      throw new IllegalArgumentException("maximumHeapObjectSize < 0: " + maximumHeapObjectSize);
+    }
+    this.maximumHeapObjectSize = maximumHeapObjectSize;
+    this.heapTier = new Tier<>(maximumHeapSize);
+    this.offHeapTier = new Tier<>(maximumOffHeapSize);
+    this.hitCount = new AtomicLong();
+    this.missCount = new AtomicLong();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the {@link CachedObject} stored under the supplied bucket
+   * name and key in either tier, or {@code null} if there is none.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>Objects held on the heap are returned as is; objects held off
+   * the heap are copied into a new {@code byte} array.</p>
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key of the object; must not be {@code null}
+   *
+   * @return a {@link CachedObject}, or {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  @Override
+  public CachedObject get(final String bucketName, final String key) {
+    final String compositeKey = toKey(bucketName, key);
+    CachedObject returnValue = this.heapTier.get(compositeKey);
+    if (returnValue == null) {
+      final OffHeapObject offHeapObject = this.offHeapTier.get(compositeKey);
+      if (offHeapObject != null) {
+        returnValue = offHeapObject.toCachedObject();
+      }
+    }
+    if (returnValue == null) {
+      this.missCount.incrementAndGet();
+    } else {
+      this.hitCount.incrementAndGet();
+    }
+    return returnValue;
+  }
+
+  /**
+   * Stores the supplied {@link CachedObject} under the supplied bucket
+   * name and key, on the heap if its contents are no larger than the
+   * {@linkplain #MemoryObjectCache(long, long, int) maximum heap
+   * object size} and off the heap otherwise, evicting least recently
+   * used entries from that tier as necessary.
+   *
+   * <p>Any entry previously stored under the same bucket name and key
+   * is replaced, whichever tier it occupied.</p>
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key of the object; must not be {@code null}
+   *
+   * @param object the {@link CachedObject} to store; must not be
+   * {@code null}
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   */
+  @Override
+  public void put(final String bucketName, final String key, final CachedObject object) {
+    final String compositeKey = toKey(bucketName, key);
+    Objects.requireNonNull(object, "object == null");
+    final int size = object.getBytes().length;
+    if (size <= this.maximumHeapObjectSize) {
+      this.offHeapTier.remove(compositeKey);
+      if (size <= this.heapTier.maximumSize) {
+        this.heapTier.put(compositeKey, object, size);
+      } else {
+        this.heapTier.remove(compositeKey);
+      }
+    } else {
+      this.heapTier.remove(compositeKey);
+      if (size <= this.offHeapTier.maximumSize) {
+        this.offHeapTier.put(compositeKey, new OffHeapObject(object), size);
+      } else {
+        this.offHeapTier.remove(compositeKey);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of {@link #get(String, String)} calls that have
+   * found an object.
+   *
+   * @return the hit count; never negative
+   */
+  public final long getHitCount() {
+    return this.hitCount.get();
+  }
+
+  /**
+   * Returns the number of {@link #get(String, String)} calls that have
+   * not found an object.
+   *
+   * @return the miss count; never negative
+   */
+  public final long getMissCount() {
+    return this.missCount.get();
+  }
+
+  /**
+   * Returns the total size, in bytes, of the objects currently held on
+   * the heap.
+   *
+   * @return the size of the heap tier; never negative
+   */
+  public final long getHeapSize() {
+    return this.heapTier.size();
+  }
+
+  /**
+   * Returns the total size, in bytes, of the objects currently held
+   * off the heap.
+   *
+   * @return the size of the off-heap tier; never negative
+   */
+  public final long getOffHeapSize() {
+    return this.offHeapTier.size();
+  }
+
+  /**
+   * Removes every object from both tiers.
+   *
+   * <p>The hit and miss counts are not reset.</p>
+   */
+  public void clear() {
+    this.heapTier.clear();
+    this.offHeapTier.clear();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a single {@link String} combining the supplied bucket name
+   * and key.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key of the object; must not be {@code null}
+   *
+   * @return a non-{@code null} composite key
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  private static final String toKey(final String bucketName, final String key) {
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(key, "key == null");
+    // Bucket names cannot contain '/'.
+    return bucketName + '/' + key;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A least-recently-used map of composite keys to values, bounded by
+   * the total size of the values' contents.
+   *
+   * @param <V> the type of value held
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Tier<V> {
+
+    /**
+     * The maximum total size of the values held.
+     */
+    private final long maximumSize;
+
+    /**
+     * The values held, in access order.
+     *
+     * <p>This field is never {@code null}.</p>
+     *
+     * <p>This field is guarded by {@code this}.</p>
+     */
+    private final LinkedHashMap<String, V> values;
+
+    /**
+     * The sizes of the values held.
+     *
+     * <p>This field is never {@code null}.</p>
+     *
+     * <p>This field is guarded by {@code this}.</p>
+     */
+    private final Map<String, Integer> sizes;
+
+    /**
+     * The total size of the values held.
+     *
+     * <p>This field is guarded by {@code this}.</p>
+     */
+    private long size;
+
+    /**
+     * Creates a new {@link Tier}.
+     *
+     * @param maximumSize the maximum total size of the values held
+     */
+    private Tier(final long maximumSize) {
+      super();
+      this.maximumSize = maximumSize;
+      this.values = new LinkedHashMap<>(16, 0.75f, true);
+      this.sizes = new HashMap<>();
+    }
+
+    /**
+     * Returns the value stored under the supplied key, marking it as
+     * most recently used, or {@code null} if there is none.
+     *
+     * @param key the key; must not be {@code null}
+     *
+     * @return the value, or {@code null}
+     */
+    private final synchronized V get(final String key) {
+      return this.values.get(key);
+    }
+
+    /**
+     * Stores the supplied value, whose contents are of the supplied
+     * size, under the supplied key, evicting least recently used
+     * values until the total size no longer exceeds the maximum.
+     *
+     * @param key the key; must not be {@code null}
+     *
+     * @param value the value; must not be {@code null}
+     *
+     * @param size the size of the value's contents; must not exceed
+     * the maximum total size
+     */
+    private final synchronized void put(final String key, final V value, final int size) {
+      assert size <= this.maximumSize;
+      this.remove(key);
+      final Iterator<String> iterator = this.values.keySet().iterator();
+      while (this.size + size > this.maximumSize && iterator.hasNext()) {
+        final String eldest = iterator.next();
+        iterator.remove();
+        this.size -= this.sizes.remove(eldest).intValue();
+      }
+      this.values.put(key, value);
+      this.sizes.put(key, Integer.valueOf(size));
+      this.size += size;
+    }
+
+    /**
+     * Removes any value stored under the supplied key.
+     *
+     * @param key the key; must not be {@code null}
+     */
+    private final synchronized void remove(final String key) {
+      if (this.values.remove(key) != null) {
+        this.size -= this.sizes.remove(key).intValue();
+      }
+    }
+
+    /**
+     * Removes every value.
+     */
+    private final synchronized void clear() {
+      this.values.clear();
+      this.sizes.clear();
+      this.size = 0L;
+    }
+
+    /**
+     * Returns the total size of the values held.
+     *
+     * @return the total size; never negative
+     */
+    private final synchronized long size() {
+      return this.size;
+    }
+
+  }
+
+  /**
+   * The contents and ETag of an object held in a direct {@link
+   * ByteBuffer}.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class OffHeapObject {
+
+    /**
+     * The ETag of the object.
+     *
+     * <p>This field may be {@code null}.</p>
+     */
+    private final String eTag;
+
+    /**
+     * The contents of the object, between position zero and the
+     * limit.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final ByteBuffer contents;
+
+    /**
+     * Creates a new {@link OffHeapObject} by copying the contents of
+     * the supplied {@link CachedObject} into a new direct {@link
+     * ByteBuffer}.
+     *
+     * @param cachedObject the {@link CachedObject} to copy; must not be
+     * {@code null}
+     */
+    private OffHeapObject(final CachedObject cachedObject) {
+      super();
+      this.eTag = cachedObject.getETag();
+      final byte[] bytes = cachedObject.getBytes();
+      final ByteBuffer contents = ByteBuffer.allocateDirect(bytes.length);
+      contents.put(bytes);
+      contents.flip();
+      this.contents = contents;
+    }
+
+    /**
+     * Returns a new {@link CachedObject} whose contents are a copy of
+     * those held by this {@link OffHeapObject}.
+     *
+     * @return a new {@link CachedObject}; never {@code null}
+     */
+    private final CachedObject toCachedObject() {
+      final ByteBuffer contents = this.contents.duplicate();
+      final byte[] bytes = new byte[contents.remaining()];
+      contents.get(bytes);
+      return new CachedObject(this.eTag, bytes);
+    }
+
+  }
+
+}
@@ -0,0 +1,295 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded record of <a href="https://aws.amazon.com/s3/">Amazon
+ * Simple Storage Service</a> objects that are known not to exist,
+ * each of which is forgotten after a fixed time to live.
+ *
+ * <p>Lookups for objects that have never been recorded as missing,
+ * which is the overwhelmingly common case, are answered by a {@link
+ * BloomFilter} without locking.  Only lookups that the {@link
+ * BloomFilter} cannot rule out consult the underlying, synchronized
+ * map of expiration times.  When the map is full, the entry recorded
+ * earliest is evicted.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see AbstractS3ClassLoader#setNegativeLookupCache(NegativeLookupCache)
+ */
+public class NegativeLookupCache {
+
+  /**
+   * The maximum number of entries this {@link NegativeLookupCache}
+   * will hold.
+   *
+   * @see #NegativeLookupCache(int, long, TimeUnit)
+   */
+  private final int maximumSize;
+
+  /**
+   * The time to live of each entry, in nanoseconds.
+   *
+   * @see #NegativeLookupCache(int, long, TimeUnit)
+   */
+  private final long timeToLiveInNanoseconds;
+
+  /**
+   * A map of {@linkplain #toKey(String, String) composite keys} to the
+   * {@link System#nanoTime()} values at which they expire, in
+   * insertion order.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * <p>This field is guarded by itself.</p>
+   */
+  private final LinkedHashMap<String, Long> expirations;
+
+  /**
+   * A {@link BloomFilter} containing at least every key present in
+   * the {@link #expirations} map.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * <p>This field is written only while the {@link #expirations} map
+   * is locked.</p>
+   */
+  private volatile BloomFilter filter;
+
+  /**
+   * The number of keys that have been removed from the {@link
+   * #expirations} map since the {@linkplain #filter current
+   * <code>BloomFilter</code>} was built.
+   *
+   * <p>This field is guarded by the {@link #expirations} map.</p>
+   */
+  private int removalsSinceRebuild;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link NegativeLookupCache}.
+   *
+   * @param maximumSize the maximum number of missing objects to
+   * remember; must be positive
+   *
+   * @param timeToLive how long each missing object is remembered;
+   * must be positive
+   *
+   * @param unit the {@link TimeUnit} in which {@code timeToLive} is
+   * expressed; must not be {@code null}
+   *
+   * @exception IllegalArgumentException if either {@code maximumSize}
+   * or {@code timeToLive} is not positive
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   */
+  public NegativeLookupCache(final int maximumSize, final long timeToLive, final TimeUnit unit) {
+    super();
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize <= 0: " + maximumSize);
+    } else if (timeToLive <= 0L) {
+      throw new IllegalArgumentException("timeToLive <= 0: " + timeToLive);
+    }
+    Objects.requireNonNull(unit, "unit == null");
+    this.maximumSize = maximumSize;
+    this.timeToLiveInNanoseconds = unit.toNanos(timeToLive);
+    this.expirations = new LinkedHashMap<>();
+    this.filter = new BloomFilter(maximumSize);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns {@code true} if the object identified by the supplied
+   * bucket name and key has been {@linkplain #recordMissing(String,
+   * String) recorded as missing} and that record has not yet expired.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key of the object; must not be {@code null}
+   *
+   * @return {@code true} if the object is known not to exist; {@code
+   * false} otherwise
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public boolean isMissing(final String bucketName, final String key) {
+    final String compositeKey = toKey(bucketName, key);
+    if (!this.filter.mightContain(compositeKey)) {
+      return false;
+    }
+    synchronized (this.expirations) {
+      final Long expiration = this.expirations.get(compositeKey);
+      if (expiration == null) {
+        return false;
+      } else if (System.nanoTime() - expiration.longValue() >= 0L) {
+        this.expirations.remove(compositeKey);
+        this.removed();
+        return false;
+      } else {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Records that the object identified by the supplied bucket name
+   * and key does not exist.
+   *
+   * <p>If this {@link NegativeLookupCache} is full, the entry that was
+   * recorded earliest is forgotten.</p>
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key of the object; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public void recordMissing(final String bucketName, final String key) {
+    final String compositeKey = toKey(bucketName, key);
+    final Long expiration = Long.valueOf(System.nanoTime() + this.timeToLiveInNanoseconds);
+    synchronized (this.expirations) {
+      // Remove first so that re-recording moves the entry to the end
+      // of the insertion order.
+      if (this.expirations.remove(compositeKey) == null) {
+        this.filter.put(compositeKey);
+      }
+      this.expirations.put(compositeKey, expiration);
+      if (this.expirations.size() > this.maximumSize) {
+        final Iterator<String> iterator = this.expirations.keySet().iterator();
+        iterator.next();
+        iterator.remove();
+        this.removed();
+      }
+    }
+  }
+
+  /**
+   * Forgets any record of the object identified by the supplied bucket
+   * name and key being missing.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key of the object; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public void invalidate(final String bucketName, final String key) {
+    final String compositeKey = toKey(bucketName, key);
+    synchronized (this.expirations) {
+      if (this.expirations.remove(compositeKey) != null) {
+        this.removed();
+      }
+    }
+  }
+
+  /**
+   * Forgets every record held by this {@link NegativeLookupCache}.
+   */
+  public void clear() {
+    synchronized (this.expirations) {
+      this.expirations.clear();
+      this.filter = new BloomFilter(this.maximumSize);
+      this.removalsSinceRebuild = 0;
+    }
+  }
+
+  /**
+   * Returns the number of records currently held by this {@link
+   * NegativeLookupCache}, including any that have expired but have
+   * not yet been purged.
+   *
+   * @return the number of records held; never negative
+   */
+  public int size() {
+    synchronized (this.expirations) {
+      return this.expirations.size();
+    }
+  }
+
+  /**
+   * Notes that a key has been removed from the {@link #expirations}
+   * map and, once enough keys have been removed that the {@linkplain
+   * #filter current <code>BloomFilter</code>} has become stale,
+   * purges expired entries and rebuilds it.
+   *
+   * <p>This method must be called while the {@link #expirations} map
+   * is locked.</p>
+   */
+  private final void removed() {
+    assert Thread.holdsLock(this.expirations);
+    if (++this.removalsSinceRebuild >= this.maximumSize) {
+      final long now = System.nanoTime();
+      final BloomFilter filter = new BloomFilter(this.maximumSize);
+      final Iterator<Map.Entry<String, Long>> iterator = this.expirations.entrySet().iterator();
+      while (iterator.hasNext()) {
+        final Map.Entry<String, Long> entry = iterator.next();
+        if (now - entry.getValue().longValue() >= 0L) {
+          iterator.remove();
+        } else {
+          filter.put(entry.getKey());
+        }
+      }
+      this.filter = filter;
+      this.removalsSinceRebuild = 0;
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a single {@link String} combining the supplied bucket name
+   * and key.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key of the object; must not be {@code null}
+   *
+   * @return a non-{@code null} composite key
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  private static final String toKey(final String bucketName, final String key) {
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(key, "key == null");
+    // Bucket names cannot contain '/'.
+    return bucketName + '/' + key;
+  }
+
+}
@@ -0,0 +1,70 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.IOException;
+
+/**
+ * A store of {@link CachedObject}s indexed by the bucket name and key
+ * of the <a href="https://aws.amazon.com/s3/">Amazon Simple Storage
+ * Service</a> objects whose contents they hold.
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>Implementations of this interface must be safe for concurrent
+ * use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see AbstractS3ClassLoader#setObjectCache(ObjectCache, boolean)
+ *
+ * @see DiskObjectCache
+ */
+public interface ObjectCache {
+
+  /**
+   * Returns the {@link CachedObject} stored under the supplied bucket
+   * name and key, or {@code null} if there is no such {@link
+   * CachedObject}.
+   *
+   * <p>Implementations of this method may return {@code null}.</p>
+   *
+   * @param bucketName the name of the bucket housing the object in
+   * question; must not be {@code null}
+   *
+   * @param key the key of the object in question; must not be {@code
+   * null}
+   *
+   * @return a {@link CachedObject}, or {@code null}
+   *
+   * @exception NullPointerException if either {@code bucketName} or
+   * {@code key} is {@code null}
+   *
+   * @exception IOException if the cache could not be read
+   */
+  public CachedObject get(final String bucketName, final String key) throws IOException;
+
+  /**
+   * Stores the supplied {@link CachedObject} under the supplied bucket
+   * name and key, replacing any {@link CachedObject} previously
+   * stored there.
+   *
+   * @param bucketName the name of the bucket housing the object in
+   * question; must not be {@code null}
+   *
+   * @param key the key of the object in question; must not be {@code
+   * null}
+   *
+   * @param object the {@link CachedObject} to store; must not be
+   * {@code null}
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   *
+   * @exception IOException if the cache could not be written
+   */
+  public void put(final String bucketName, final String key, final CachedObject object) throws IOException;
+
+}
@@ -0,0 +1,645 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.HttpMethod;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Fetches objects from Amazon S3 through pre-signed {@code GET}
+ * {@link URL}s and the Java platform's own keep-alive HTTP client,
+ * so that each request is neither signed nor run through the AWS
+ * SDK's request pipeline.
+ *
+ * <p>{@link URL}s are signed with a long expiry, either in bulk
+ * ahead of time by the {@link #presign(String, Collection)} method or
+ * on first use, and are signed again once less than a quarter of
+ * their lifetime remains, or once the credentials that signed them
+ * {@linkplain #setCredentialsExpiration(Date) expire}.  A request
+ * refused because its {@link URL} was signed with credentials that
+ * have since expired or been revoked is retried once with a freshly
+ * signed {@link URL}.</p>
+ *
+ * <p>Only plain requests are supported: those with at most a range
+ * and non-matching entity tag constraints, which is to say every
+ * request the loaders in this package make unless their buckets are
+ * "requester pays".  Other requests should be sent through the AWS
+ * SDK instead; see the {@link #supports(GetObjectRequest)}
+ * method.</p>
+ *
+ * <p>A single {@link PresignedUrlFetcher} may be {@linkplain
+ * AbstractS3ClassLoader#setPresignedUrlFetcher(PresignedUrlFetcher)
+ * shared} by several loaders.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see AbstractS3ClassLoader#setPresignedUrlFetcher(PresignedUrlFetcher)
+ *
+ * @see AmazonS3#generatePresignedUrl(String, String, Date, HttpMethod)
+ */
+public final class PresignedUrlFetcher {
+
+  /**
+   * The time, in milliseconds, a connection attempt may take.
+   */
+  private static final int CONNECT_TIMEOUT = 10 * 1000;
+
+  /**
+   * The time, in milliseconds, a read may block.
+   */
+  private static final int READ_TIMEOUT = 50 * 1000;
+
+  /**
+   * The largest error response body that is read.
+   */
+  private static final int MAXIMUM_ERROR_BODY_SIZE = 64 * 1024;
+
+  /**
+   * A {@link Pattern} matching the error code in an error response
+   * body.
+   */
+  private static final Pattern CODE_PATTERN = Pattern.compile("<Code>([^<]*)</Code>");
+
+  /**
+   * A {@link Pattern} matching the message in an error response body.
+   */
+  private static final Pattern MESSAGE_PATTERN = Pattern.compile("<Message>([^<]*)</Message>");
+
+  /**
+   * The {@link AmazonS3} client that signs {@link URL}s.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AmazonS3 client;
+
+  /**
+   * The lifetime of a signed {@link URL}, in milliseconds.
+   */
+  private final long expiry;
+
+  /**
+   * The signed {@link URL}s, indexed by bucket name and key.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final ConcurrentMap<String, SignedUrl> urls;
+
+  /**
+   * The value of {@link System#currentTimeMillis()} at which the
+   * credentials signing {@link URL}s expire, or {@link Long#MAX_VALUE}
+   * if that is not known.
+   *
+   * @see #setCredentialsExpiration(Date)
+   */
+  private volatile long credentialsExpiration;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link PresignedUrlFetcher}.
+   *
+   * @param client the {@link AmazonS3} client that signs {@link
+   * URL}s, with its credentials; must not be {@code null}
+   *
+   * @param expiry the lifetime of a signed {@link URL}; must be
+   * positive; Amazon S3 accepts no more than seven days, and a {@link
+   * URL} signed with temporary credentials, such as those of an
+   * instance profile or an assumed role, stops working when they
+   * expire, however long its own lifetime; see {@link
+   * #setCredentialsExpiration(Date)}
+   *
+   * @param unit the {@link TimeUnit} in which {@code expiry} is
+   * expressed; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code client} or {@code unit}
+   * is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code expiry} is not
+   * positive
+   */
+  public PresignedUrlFetcher(final AmazonS3 client, final long expiry, final TimeUnit unit) {
+    super();
+    Objects.requireNonNull(client, "client == null");
+    Objects.requireNonNull(unit, "unit == null");
+    if (expiry <= 0L) {
+      throw new IllegalArgumentException("expiry <= 0: " + expiry);
+    }
+    this.client = client;
+    this.expiry = unit.toMillis(expiry);
+    this.urls = new ConcurrentHashMap<>();
+    this.credentialsExpiration = Long.MAX_VALUE;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Tells this {@link PresignedUrlFetcher} when the credentials with
+   * which its {@link AmazonS3} client signs {@link URL}s expire, so
+   * that {@link URL}s signed before then are signed again, presumably
+   * with fresh credentials, once they have.
+   *
+   * <p>Callers using temporary credentials should call this method
+   * whenever the credentials are renewed.  A {@link URL} whose
+   * credentials expire unannounced is signed again only once a request
+   * made with it has been refused.</p>
+   *
+   * @param expiration the time at which the credentials expire; may
+   * be {@code null} if it is not known
+   */
+  public final void setCredentialsExpiration(final Date expiration) {
+    this.credentialsExpiration = expiration == null ? Long.MAX_VALUE : expiration.getTime();
+  }
+
+  /**
+   * Signs {@link URL}s for the objects stored under the supplied keys
+   * in the bucket with the supplied name, ahead of their use, and
+   * returns the number signed.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param keys the keys; must not be {@code null}; {@code null}
+   * elements are ignored
+   *
+   * @return the number of {@link URL}s signed
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception AmazonClientException if a {@link URL} could not be
+   * signed
+   */
+  public final int presign(final String bucketName, final Collection<? extends String> keys) {
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(keys, "keys == null");
+    int returnValue = 0;
+    for (final String key : keys) {
+      if (key != null) {
+        this.getUrl(bucketName, key);
+        returnValue++;
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Signs a {@link URL} for the object described by the supplied
+   * {@link GetObjectRequest}, ahead of its use, if the request is
+   * {@linkplain #supports(GetObjectRequest) supported}, and returns
+   * {@code true} if it is.
+   *
+   * @param request the {@link GetObjectRequest}; may be {@code null}
+   * in which case {@code false} is returned
+   *
+   * @return {@code true} if a {@link URL} is now signed for the
+   * request; {@code false} otherwise
+   *
+   * @exception AmazonClientException if a {@link URL} could not be
+   * signed
+   */
+  final boolean presign(final GetObjectRequest request) {
+    final boolean returnValue = this.supports(request);
+    if (returnValue) {
+      this.getUrl(request.getBucketName(), request.getKey());
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns {@code true} if the supplied {@link GetObjectRequest} can
+   * be sent through a pre-signed {@link URL}.
+   *
+   * @param request the {@link GetObjectRequest}; may be {@code null}
+   * in which case {@code false} is returned
+   *
+   * @return {@code true} if the request is supported; {@code false}
+   * otherwise
+   */
+  public final boolean supports(final GetObjectRequest request) {
+    return request != null &&
+      request.getBucketName() != null &&
+      request.getKey() != null &&
+      request.getVersionId() == null &&
+      !request.isRequesterPays() &&
+      request.getSSECustomerKey() == null &&
+      request.getPartNumber() == null &&
+      request.getResponseHeaders() == null &&
+      request.getModifiedSinceConstraint() == null &&
+      request.getUnmodifiedSinceConstraint() == null &&
+      (request.getMatchingETagConstraints() == null || request.getMatchingETagConstraints().isEmpty());
+  }
+
+  /**
+   * Fetches the object described by the supplied {@link
+   * GetObjectRequest} through a pre-signed {@link URL} and returns it
+   * as Amazon S3's client would.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The returned {@link S3Object}'s content should be read to its
+   * end and closed, so that its connection can be reused.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must be {@linkplain
+   * #supports(GetObjectRequest) supported}
+   *
+   * @return the {@link S3Object}, or {@code null} if a non-matching
+   * entity tag constraint was not met
+   *
+   * @exception IllegalArgumentException if {@code request} is not
+   * supported
+   *
+   * @exception AmazonS3Exception if Amazon S3 answered with an error,
+   * such as {@code 404 Not Found}
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   */
+  public final S3Object getObject(final GetObjectRequest request) {
+    if (!this.supports(request)) {
+      throw new IllegalArgumentException("!supports(request): " + request);
+    }
+    final String bucketName = request.getBucketName();
+    final String key = request.getKey();
+    for (int attempt = 0; ; attempt++) {
+      final URL url = this.getUrl(bucketName, key);
+      HttpURLConnection connection = null;
+      try {
+        connection = (HttpURLConnection)url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setUseCaches(false);
+        final String range = getRangeHeader(request);
+        if (range != null) {
+          connection.setRequestProperty("Range", range);
+        }
+        final String ifNoneMatch = getIfNoneMatchHeader(request);
+        if (ifNoneMatch != null) {
+          connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        final int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_PARTIAL) {
+          final ObjectMetadata metadata = new ObjectMetadata();
+          final long contentLength = connection.getContentLengthLong();
+          if (contentLength >= 0L) {
+            metadata.setContentLength(contentLength);
+          }
+          final String eTag = connection.getHeaderField("ETag");
+          if (eTag != null) {
+            metadata.setHeader("ETag", unquote(eTag));
+          }
+          final String contentRange = connection.getHeaderField("Content-Range");
+          if (contentRange != null) {
+            metadata.setHeader("Content-Range", contentRange);
+          }
+          final String contentType = connection.getContentType();
+          if (contentType != null) {
+            metadata.setContentType(contentType);
+          }
+          final S3Object returnValue = new S3Object();
+          returnValue.setBucketName(bucketName);
+          returnValue.setKey(key);
+          returnValue.setObjectMetadata(metadata);
+          returnValue.setObjectContent(connection.getInputStream());
+          connection = null;
+          return returnValue;
+        } else if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+          return null;
+        } else {
+          final AmazonS3Exception failure = newException(connection, status);
+          if (attempt > 0 || !isSignatureFailure(failure)) {
+            throw failure;
+          }
+          // The credentials that signed the URL are no longer valid.
+          this.evict(bucketName, key, url);
+        }
+      } catch (final IOException e) {
+        throw new AmazonClientException("Unable to fetch " + bucketName + "/" + key + ": " + e.getMessage(), e);
+      } finally {
+        if (connection != null) {
+          drain(connection);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a pre-signed {@link URL} for the object stored under the
+   * supplied key in the bucket with the supplied name, signing a new
+   * one if there is none, if the existing one is more than three
+   * quarters of the way to expiring, or if the credentials that signed
+   * it have {@linkplain #setCredentialsExpiration(Date) expired}.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link URL}
+   *
+   * @exception AmazonClientException if a {@link URL} could not be
+   * signed
+   */
+  final URL getUrl(final String bucketName, final String key) {
+    final String path = bucketName + '/' + key;
+    final long now = System.currentTimeMillis();
+    final long credentialsExpiration = this.credentialsExpiration;
+    SignedUrl signedUrl = this.urls.get(path);
+    if (signedUrl == null || now >= signedUrl.refreshTime || (now >= credentialsExpiration && signedUrl.signingTime < credentialsExpiration)) {
+      // Racing threads may both sign; either URL will do.
+      final long expiration = now + this.expiry;
+      final URL url = this.client.generatePresignedUrl(bucketName, key, new Date(expiration), HttpMethod.GET);
+      signedUrl = new SignedUrl(url, now, expiration - this.expiry / 4L);
+      this.urls.put(path, signedUrl);
+    }
+    return signedUrl.url;
+  }
+
+  /**
+   * Discards the supplied pre-signed {@link URL} for the object stored
+   * under the supplied key in the bucket with the supplied name, so
+   * that the next call to the {@link #getUrl(String, String)} method
+   * signs a new one, unless it has been replaced already.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @param url a {@link URL} previously returned by the {@link
+   * #getUrl(String, String)} method; must not be {@code null}
+   */
+  final void evict(final String bucketName, final String key, final URL url) {
+    final String path = bucketName + '/' + key;
+    final SignedUrl signedUrl = this.urls.get(path);
+    // URL.equals() may resolve host names.
+    if (signedUrl != null && signedUrl.url == url) {
+      this.urls.remove(path, signedUrl);
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the value of the {@code Range} header to send with the
+   * supplied {@link GetObjectRequest}, or {@code null} if it has no
+   * range.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @return the header value, or {@code null}
+   */
+  static final String getRangeHeader(final GetObjectRequest request) {
+    final long[] range = request.getRange();
+    if (range == null || range.length != 2) {
+      return null;
+    }
+    return "bytes=" + range[0] + "-" + range[1];
+  }
+
+  /**
+   * Returns the value of the {@code If-None-Match} header to send
+   * with the supplied {@link GetObjectRequest}, or {@code null} if it
+   * has no non-matching entity tag constraints.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @return the header value, or {@code null}
+   */
+  static final String getIfNoneMatchHeader(final GetObjectRequest request) {
+    final List<String> nonmatchingETags = request.getNonmatchingETagConstraints();
+    if (nonmatchingETags == null || nonmatchingETags.isEmpty()) {
+      return null;
+    }
+    final StringBuilder sb = new StringBuilder();
+    for (final String eTag : nonmatchingETags) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append('"').append(eTag).append('"');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns a new {@link AmazonS3Exception} describing the error
+   * response on the supplied {@link HttpURLConnection}.
+   *
+   * @param connection the {@link HttpURLConnection}; must not be
+   * {@code null}
+   *
+   * @param status the response's status code
+   *
+   * @return a new, non-{@code null} {@link AmazonS3Exception}
+   */
+  private static final AmazonS3Exception newException(final HttpURLConnection connection, final int status) {
+    String body = "";
+    try (final InputStream errorStream = connection.getErrorStream()) {
+      if (errorStream != null) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int bytesRead;
+        while (bytes.size() < MAXIMUM_ERROR_BODY_SIZE && (bytesRead = errorStream.read(buffer)) >= 0) {
+          bytes.write(buffer, 0, bytesRead);
+        }
+        body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+      }
+    } catch (final IOException ignore) {
+      // The status code says enough.
+    }
+    return newException(status, body, connection.getHeaderField("x-amz-request-id"));
+  }
+
+  /**
+   * Returns a new {@link AmazonS3Exception} describing an error
+   * response with the supplied status code, body and request
+   * identifier.
+   *
+   * @param status the response's status code
+   *
+   * @param body the response's body; must not be {@code null}
+   *
+   * @param requestId the value of the response's {@code
+   * x-amz-request-id} header; may be {@code null}
+   *
+   * @return a new, non-{@code null} {@link AmazonS3Exception}
+   */
+  static final AmazonS3Exception newException(final int status, final String body, final String requestId) {
+    final Matcher messageMatcher = MESSAGE_PATTERN.matcher(body);
+    final AmazonS3Exception returnValue = new AmazonS3Exception(messageMatcher.find() ? messageMatcher.group(1) : "HTTP " + status);
+    returnValue.setStatusCode(status);
+    final Matcher codeMatcher = CODE_PATTERN.matcher(body);
+    if (codeMatcher.find()) {
+      returnValue.setErrorCode(codeMatcher.group(1));
+    }
+    returnValue.setErrorType(status >= 500 ? AmazonServiceException.ErrorType.Service : AmazonServiceException.ErrorType.Client);
+    returnValue.setRequestId(requestId);
+    returnValue.setServiceName("Amazon S3");
+    return returnValue;
+  }
+
+  /**
+   * Returns {@code true} if the supplied {@link AmazonS3Exception}
+   * indicates that a request was refused because the credentials
+   * that signed its {@link URL} have expired or been revoked, in which
+   * case a freshly signed {@link URL} may succeed.
+   *
+   * @param failure the {@link AmazonS3Exception}; must not be {@code
+   * null}
+   *
+   * @return {@code true} if a freshly signed {@link URL} may succeed;
+   * {@code false} otherwise
+   */
+  static final boolean isSignatureFailure(final AmazonS3Exception failure) {
+    final String errorCode = failure.getErrorCode();
+    return failure.getStatusCode() == HttpURLConnection.HTTP_FORBIDDEN && ("AccessDenied".equals(errorCode) || "ExpiredToken".equals(errorCode));
+  }
+
+  /**
+   * Reads and closes whatever remains of the response on the supplied
+   * {@link HttpURLConnection}, so that its connection can be reused.
+   *
+   * @param connection the {@link HttpURLConnection}; must not be
+   * {@code null}
+   */
+  private static final void drain(final HttpURLConnection connection) {
+    try {
+      InputStream stream = connection.getErrorStream();
+      if (stream == null) {
+        stream = connection.getInputStream();
+      }
+      try (final InputStream s = stream) {
+        final byte[] buffer = new byte[4096];
+        while (s.read(buffer) >= 0) {
+          // Discard.
+        }
+      }
+    } catch (final IOException ignore) {
+      // The connection will not be reused.
+    }
+  }
+
+  /**
+   * Returns the supplied entity tag without surrounding quotation
+   * marks.
+   *
+   * @param eTag the entity tag; must not be {@code null}
+   *
+   * @return the unquoted entity tag; never {@code null}
+   */
+  static final String unquote(final String eTag) {
+    if (eTag.length() >= 2 && eTag.startsWith("\"") && eTag.endsWith("\"")) {
+      return eTag.substring(1, eTag.length() - 1);
+    }
+    return eTag;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A pre-signed {@link URL} together with the times at which it was
+   * signed and should be signed again.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class SignedUrl {
+
+    /**
+     * The {@link URL}.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final URL url;
+
+    /**
+     * The value of {@link System#currentTimeMillis()} at which the
+     * {@link URL} was signed.
+     */
+    private final long signingTime;
+
+    /**
+     * The value of {@link System#currentTimeMillis()} at or after
+     * which the {@link URL} should be signed again.
+     */
+    private final long refreshTime;
+
+    /**
+     * Creates a new {@link SignedUrl}.
+     *
+     * @param url the {@link URL}; must not be {@code null}
+     *
+     * @param signingTime the value of {@link
+     * System#currentTimeMillis()} at which the {@link URL} was signed
+     *
+     * @param refreshTime the value of {@link
+     * System#currentTimeMillis()} at or after which the {@link URL}
+     * should be signed again
+     */
+    private SignedUrl(final URL url, final long signingTime, final long refreshTime) {
+      super();
+      this.url = url;
+      this.signingTime = signingTime;
+      this.refreshTime = refreshTime;
+    }
+
+  }
+
+}
@@ -0,0 +1,1074 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.CodeSource;
+
+import java.security.cert.Certificate;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.amazonaws.AmazonClientException;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * A {@linkplain ClassLoader#registerAsParallelCapable()
+ * parallel-capable} {@link AbstractS3ClassLoader} that {@linkplain
+ * #findClass(String) loads <code>Class</code>es} and resources from
+ * a bundle&mdash;a ZIP, JAR, TAR or gzipped TAR file&mdash;stored as
+ * one <a href="https://aws.amazon.com/s3">Amazon Simple Storage
+ * Service</a> object and downloaded with a single streaming request.
+ *
+ * <p>The bundle is {@linkplain #start() read} sequentially on a
+ * background thread.  Each entry is retained in memory as soon as it
+ * has been read, and any thread waiting for that entry is released
+ * immediately, without waiting for the rest of the bundle.  A request
+ * for an entry that is absent from the bundle blocks until the whole
+ * bundle has been read.  Cold starts therefore cost one sequential
+ * download rather than one round trip per class, and bundles are best
+ * built with classes in the order in which they are loaded.</p>
+ *
+ * <p>If the bundle cannot be read in full, entries read before the
+ * failure remain available and the read is retried, with exponential
+ * backoff, a few times.  Where the bundle's format permits, which is
+ * to say unless it is gzipped, each retry requests only the bytes
+ * following the last entry read in full.  Requests for entries not
+ * yet read fail at once while a retry is pending.  Once the retries
+ * are exhausted such requests fail, and the first of them made after
+ * a further delay begins a new series of attempts.</p>
+ *
+ * <p>Resource {@link URL}s returned by this {@link
+ * S3BundleClassLoader} are served from memory.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see AbstractS3ClassLoader
+ */
+public class S3BundleClassLoader extends AbstractS3ClassLoader {
+
+  /**
+   * Static initializer; calls the {@link
+   * ClassLoader#registerAsParallelCapable()} method.
+   */
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  /**
+   * The size of a TAR block.
+   */
+  private static final int TAR_BLOCK_SIZE = 512;
+
+  /**
+   * The number of attempts made to read the bundle before requests
+   * for entries not yet read are failed.
+   */
+  private static final int MAXIMUM_READ_ATTEMPTS = 4;
+
+  /**
+   * The number of milliseconds to wait before the first retry of a
+   * failed read; each subsequent retry waits twice as long as the
+   * last.
+   */
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 100L;
+
+  /**
+   * The number of milliseconds that must pass, once all {@linkplain
+   * #MAXIMUM_READ_ATTEMPTS attempts} to read the bundle have failed,
+   * before a request for an entry not yet read begins a new series of
+   * attempts.
+   */
+  private static final long RESTART_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10L);
+
+  /**
+   * The size of a ZIP local file header, excluding the file name and
+   * extra field that follow it.
+   */
+  private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+
+  /**
+   * The name of the <a
+   * href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html">bucket</a>
+   * housing the bundle.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #S3BundleClassLoader(ClassLoader, AmazonS3, String, String,
+   * boolean)
+   */
+  protected final String bucketName;
+
+  /**
+   * The key of the bundle within the {@linkplain #bucketName
+   * affiliated bucket}.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #S3BundleClassLoader(ClassLoader, AmazonS3, String, String,
+   * boolean)
+   */
+  protected final String bundleKey;
+
+  /**
+   * Indicates how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when {@linkplain AmazonS3#getObject(GetObjectRequest)
+   * requesting} the bundle.
+   *
+   * @see #S3BundleClassLoader(ClassLoader, AmazonS3, String, String,
+   * boolean)
+   */
+  protected final boolean requesterPays;
+
+  /**
+   * The {@link URL} of the bundle.
+   *
+   * <p>This field may be {@code null} in rare cases.</p>
+   *
+   * @see AmazonS3#getUrl(String, String)
+   */
+  protected final URL bundleUrl;
+
+  /**
+   * The contents of the entries read so far, indexed by entry name.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * <p>This field is guarded by itself.</p>
+   */
+  private final Map<String, byte[]> entries;
+
+  /**
+   * The {@link URLStreamHandler} that serves resource {@link URL}s
+   * from the {@link #entries} map.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final URLStreamHandler urlStreamHandler;
+
+  /**
+   * Whether a series of attempts to read the bundle has begun and has
+   * not failed.
+   *
+   * <p>This field is guarded by the {@link #entries} map.</p>
+   */
+  private boolean started;
+
+  /**
+   * Whether the most recent series of attempts to read the bundle has
+   * finished, successfully or not.
+   *
+   * <p>This field is guarded by the {@link #entries} map.</p>
+   */
+  private boolean finished;
+
+  /**
+   * The {@link Throwable} that prevented the most recent attempt from
+   * reading the bundle in full, if any; non-{@code null} while a retry
+   * is pending.
+   *
+   * <p>This field is guarded by the {@link #entries} map.</p>
+   */
+  private Throwable failure;
+
+  /**
+   * The value of {@link System#nanoTime()} before which a failed
+   * series of attempts to read the bundle may not be {@linkplain
+   * #start() restarted}.
+   *
+   * <p>This field is guarded by the {@link #entries} map.</p>
+   */
+  private long restartTime;
+
+  /**
+   * The offset within the bundle of the first entry not yet read in
+   * full, or {@code 0} if a retry must read the bundle from the
+   * beginning.
+   *
+   * <p>This field is guarded by the {@link #entries} map.</p>
+   */
+  private long resumeOffset;
+
+  /**
+   * The {@link Format} of the bundle, or {@code null} if it is not
+   * yet known.
+   *
+   * <p>This field is guarded by the {@link #entries} map.</p>
+   */
+  private Format format;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link S3BundleClassLoader}.
+   *
+   * <p>No communication with <a href="https://aws.amazon.com/s3">Amazon
+   * Simple Storage Service</a> takes place until either the {@link
+   * #start()} method is called or the first class or resource is
+   * requested.</p>
+   *
+   * @param parent the {@link ClassLoader} to which class loading
+   * requests will be initially delegated; may be {@code null}
+   *
+   * @param client the {@link AmazonS3} implementation to use to
+   * communicate with <a href="https://aws.amazon.com/s3/">Amazon's
+   * Simple Storage Service</a>; must not be {@code null}
+   *
+   * @param bucketName the name of the <a
+   * href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html">bucket</a>
+   * housing the bundle; must not be {@code null}
+   *
+   * @param bundleKey the key of the bundle within the bucket
+   * identified by the {@code bucketName} parameter; must not be
+   * {@code null}
+   *
+   * @param requesterPays indicates how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when {@linkplain AmazonS3#getObject(GetObjectRequest)
+   * requesting} the bundle
+   *
+   * @exception NullPointerException if {@code client}, {@code
+   * bucketName} or {@code bundleKey} is {@code null}
+   *
+   * @see AbstractS3ClassLoader#AbstractS3ClassLoader(ClassLoader,
+   * AmazonS3)
+   */
+  public S3BundleClassLoader(final ClassLoader parent,
+                             final AmazonS3 client,
+                             final String bucketName,
+                             final String bundleKey,
+                             final boolean requesterPays) {
+    super(parent, client);
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(bundleKey, "bundleKey == null");
+    this.bucketName = bucketName;
+    this.bundleKey = bundleKey;
+    this.requesterPays = requesterPays;
+    this.entries = new HashMap<>();
+    this.urlStreamHandler = new EntryURLStreamHandler();
+    URL bundleUrl = null;
+    try {
+      bundleUrl = client.getUrl(bucketName, bundleKey);
+    } catch (final AmazonClientException ignore) {
+
+    } finally {
+      this.bundleUrl = bundleUrl;
+    }
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Begins reading the bundle on a new daemon {@link Thread} if that
+   * has not already happened, or if the last series of attempts to
+   * read it failed long enough ago.
+   *
+   * <p>Calling this method is optional; it is called automatically
+   * when the first class or resource is requested.  Calling it early,
+   * for example at the very start of an application's {@code main}
+   * method, overlaps the download with other startup work.</p>
+   *
+   * <p>This method is idempotent while an attempt to read the bundle
+   * is in progress or pending, or has succeeded.</p>
+   */
+  public final void start() {
+    synchronized (this.entries) {
+      if (this.started || (this.failure != null && System.nanoTime() - this.restartTime < 0L)) {
+        return;
+      }
+      this.started = true;
+      this.finished = false;
+      this.failure = null;
+    }
+    final Thread thread = new Thread(new Runnable() {
+        @Override
+        public final void run() {
+          readBundle();
+        }
+      }, "S3BundleClassLoader " + this.bucketName + "/" + this.bundleKey);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns a {@link GetObjectRequest} whose {@linkplain
+   * GetObjectRequest#getKey() key} is the name of the bundle entry
+   * corresponding to the supplied {@code className}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The returned {@link GetObjectRequest} is never sent to Amazon
+   * S3; it serves only to identify the entry to the {@link
+   * #getObjectBytes(GetObjectRequest)} method.</p>
+   *
+   * @param className the name of a Java class; may be {@code null}
+   *
+   * @return a non-{@code null} {@link GetObjectRequest}
+   */
+  @Override
+  protected GetObjectRequest classNameToGetObjectRequest(final String className) {
+    return this.resourceNameToGetObjectRequest(className == null ? null : className.replace('.', '/') + ".class");
+  }
+
+  /**
+   * Returns a {@link GetObjectRequest} whose {@linkplain
+   * GetObjectRequest#getKey() key} is the supplied bundle entry name.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The returned {@link GetObjectRequest} is never sent to Amazon
+   * S3; it serves only to identify the entry to the {@link
+   * #getObjectBytes(GetObjectRequest)} method.</p>
+   *
+   * @param resourceName the name of a bundle entry; may be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link GetObjectRequest}
+   */
+  @Override
+  protected GetObjectRequest resourceNameToGetObjectRequest(final String resourceName) {
+    final GetObjectRequest returnValue = new GetObjectRequest(this.bucketName, resourceName);
+    returnValue.setRequesterPays(this.requesterPays);
+    return returnValue;
+  }
+
+  /**
+   * Returns {@code false} if the bundle has been read in full and does
+   * not contain the entry identified by the supplied {@link
+   * GetObjectRequest}'s {@linkplain GetObjectRequest#getKey() key}.
+   *
+   * <p>If the last attempt to read the bundle failed, entries that
+   * were not read may yet exist.</p>
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code false} if the entry is known not to exist; {@code
+   * true} otherwise
+   */
+  @Override
+  protected boolean mayExist(final GetObjectRequest request) {
+    final String key = request.getKey();
+    if (key == null) {
+      return false;
+    }
+    synchronized (this.entries) {
+      return !this.finished || this.failure != null || this.entries.containsKey(key);
+    }
+  }
+
+  /**
+   * Returns the contents of the bundle entry identified by the
+   * supplied {@link GetObjectRequest}'s {@linkplain
+   * GetObjectRequest#getKey() key}, blocking until the entry has been
+   * read or the bundle has been read in full, or {@code null} if the
+   * bundle has no such entry.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The returned array is shared and must not be modified.</p>
+   *
+   * <p>If an attempt to read the bundle failed and the entry was not
+   * among those read, this method fails at once rather than wait for
+   * a pending retry, or {@linkplain #start() begins} a new series of
+   * attempts if the last one was exhausted long enough ago.</p>
+   *
+   * @param request the {@link GetObjectRequest} identifying the entry;
+   * must not be {@code null}
+   *
+   * @return the contents of the entry, or {@code null}
+   *
+   * @exception IOException if the most recent attempt to read the
+   * bundle failed and the entry was not among those read, or if the
+   * calling thread was interrupted while waiting
+   */
+  @Override
+  protected byte[] getObjectBytes(final GetObjectRequest request) throws IOException {
+    final String key = request.getKey();
+    if (key == null || !this.bucketName.equals(request.getBucketName())) {
+      return null;
+    }
+    this.start();
+    synchronized (this.entries) {
+      byte[] returnValue = this.entries.get(key);
+      while (returnValue == null && !this.finished && this.failure == null) {
+        try {
+          this.entries.wait();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+        returnValue = this.entries.get(key);
+      }
+      if (returnValue == null && this.failure != null) {
+        throw new IOException("Failed to read " + this.bucketName + "/" + this.bundleKey, this.failure);
+      }
+      return returnValue;
+    }
+  }
+
+  /**
+   * Returns a {@link URL} whose contents are served from memory for
+   * the bundle entry named by the supplied {@code name}, or {@code
+   * null} if the bundle has no such entry.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>This method blocks until the entry has been read or the bundle
+   * has been read in full.</p>
+   *
+   * @param name the name of the entry; may be {@code null} in which
+   * case {@code null} will be returned
+   *
+   * @return a {@link URL}, or {@code null}
+   */
+  @Override
+  protected URL findResource(final String name) {
+    URL returnValue = null;
+    if (name != null) {
+      try {
+        if (this.getObjectBytes(this.resourceNameToGetObjectRequest(name)) != null) {
+          returnValue = new URL("s3bundle", null, -1, "/" + name, this.urlStreamHandler);
+        }
+      } catch (final IOException e) {
+        // The failure was recorded in the metrics when the bundle was
+        // read.
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns an {@link Enumeration} containing the sole {@link URL}
+   * that the {@link #findResource(String)} method returns for the
+   * supplied {@code name}, or an empty {@link Enumeration} if that
+   * method returns {@code null}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param name the name of the entry; may be {@code null}
+   *
+   * @return a non-{@code null} {@link Enumeration} of {@link URL}s
+   */
+  @Override
+  protected Enumeration<URL> findResources(final String name) {
+    final URL url = this.findResource(name);
+    if (url == null) {
+      return Collections.emptyEnumeration();
+    } else {
+      return Collections.enumeration(Collections.singleton(url));
+    }
+  }
+
+  /**
+   * Returns a {@link CodeSource} whose location is the {@link URL} of
+   * this {@link S3BundleClassLoader}'s bundle, or {@code null} if that
+   * {@link URL} could not be determined.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request ignored
+   *
+   * @return a {@link CodeSource}, or {@code null}
+   */
+  @Override
+  protected CodeSource getCodeSource(final GetObjectRequest request) {
+    if (this.bundleUrl == null) {
+      return null;
+    } else {
+      return new CodeSource(this.bundleUrl, (Certificate[])null /* no certificates */);
+    }
+  }
+
+  /**
+   * Reads the bundle with a single streaming request, publishing each
+   * entry as soon as it has been read, and retries, with exponential
+   * backoff, up to {@value #MAXIMUM_READ_ATTEMPTS} times in all if
+   * that fails.
+   *
+   * <p>This method is run on the {@link Thread} created by the {@link
+   * #start()} method.  If every attempt fails, a later call to that
+   * method begins another series of attempts.</p>
+   */
+  private final void readBundle() {
+    long retryDelay = INITIAL_RETRY_DELAY_MILLIS;
+    for (int attempt = 1; ; attempt++) {
+      final Throwable failure = this.readBundleOnce();
+      synchronized (this.entries) {
+        this.failure = failure;
+        if (failure == null || attempt >= MAXIMUM_READ_ATTEMPTS) {
+          this.finished = true;
+          if (failure != null) {
+            // Let a later request for a missing entry try again.
+            this.started = false;
+            this.restartTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESTART_DELAY_MILLIS);
+          }
+          this.entries.notifyAll();
+          return;
+        }
+        // Until the retry begins, requests for entries not yet read
+        // fail rather than wait.
+        this.entries.notifyAll();
+      }
+      try {
+        Thread.sleep(retryDelay);
+      } catch (final InterruptedException e) {
+        synchronized (this.entries) {
+          this.finished = true;
+          this.started = false;
+          this.entries.notifyAll();
+        }
+        Thread.currentThread().interrupt();
+        return;
+      }
+      retryDelay *= 2L;
+      synchronized (this.entries) {
+        this.failure = null;
+      }
+    }
+  }
+
+  /**
+   * Makes a single attempt to read the bundle, or the part of it
+   * following the last entry read in full, publishing each entry as
+   * soon as it has been read, and returns the {@link Throwable} that
+   * caused the attempt to fail, or {@code null} if it succeeded.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the cause of the failure, or {@code null}
+   */
+  private final Throwable readBundleOnce() {
+    Throwable returnValue = null;
+    final long offset;
+    final Format format;
+    synchronized (this.entries) {
+      offset = this.resumeOffset;
+      format = this.format;
+    }
+    final GetObjectRequest request = new GetObjectRequest(this.bucketName, this.bundleKey);
+    request.setRequesterPays(this.requesterPays);
+    if (offset > 0L) {
+      request.setRange(offset);
+    }
+    final S3ClassLoaderMetrics metrics = this.getMetrics();
+    final long requestStart = System.nanoTime();
+    try (final S3Object s3Object = this.client.getObject(request)) {
+      final long readStart = System.nanoTime();
+      metrics.recordRequest(readStart - requestStart);
+      if (s3Object == null) {
+        throw new IOException("No such object: " + this.bucketName + "/" + this.bundleKey);
+      }
+      try (final InputStream objectContent = s3Object.getObjectContent()) {
+        if (objectContent == null) {
+          throw new IOException("No content: " + this.bucketName + "/" + this.bundleKey);
+        }
+        this.readEntries(new BufferedInputStream(objectContent), offset, format);
+      }
+      final ObjectMetadata metadata = s3Object.getObjectMetadata();
+      metrics.recordRead(metadata == null ? 0L : Math.max(0L, metadata.getContentLength()), System.nanoTime() - readStart);
+    } catch (final IOException | RuntimeException | Error e) {
+      metrics.recordError(e);
+      returnValue = e;
+    }
+    return returnValue;
+  }
+
+  /**
+   * Reads entries from the supplied {@link BufferedInputStream},
+   * whose format is detected from its first bytes unless it is
+   * already known, and {@linkplain #publish(String, byte[], long)
+   * publishes} each one.
+   *
+   * @param inputStream the {@link BufferedInputStream} to read; must
+   * not be {@code null}
+   *
+   * @param offset the offset within the bundle of the first byte of
+   * {@code inputStream}
+   *
+   * @param format the {@link Format} of the bundle; may be {@code
+   * null} if {@code offset} is {@code 0} and it is not yet known
+   *
+   * @exception IOException if an error occurs
+   */
+  private final void readEntries(BufferedInputStream inputStream, final long offset, Format format) throws IOException {
+    if (format == null) {
+      inputStream.mark(2);
+      final int b0 = inputStream.read();
+      final int b1 = inputStream.read();
+      inputStream.reset();
+      if (b0 == 0x1f && b1 == 0x8b) {
+        // gzip; the contents are assumed to be a TAR file.
+        format = Format.GZIPPED_TAR;
+      } else if (b0 == 'P' && b1 == 'K') {
+        format = Format.ZIP;
+      } else {
+        format = Format.TAR;
+      }
+      synchronized (this.entries) {
+        this.format = format;
+      }
+    }
+    switch (format) {
+    case GZIPPED_TAR:
+      inputStream = new BufferedInputStream(new GZIPInputStream(inputStream));
+      // The offsets of entries within a compressed stream cannot be
+      // resumed from.
+      this.readTarEntries(inputStream, -1L);
+      break;
+    case ZIP:
+      if (offset > 0L) {
+        inputStream.mark(4);
+        final int b0 = inputStream.read();
+        final int b1 = inputStream.read();
+        final int b2 = inputStream.read();
+        final int b3 = inputStream.read();
+        inputStream.reset();
+        // A local file header, central directory header or end of
+        // central directory record should begin here.
+        if (b0 != 'P' || b1 != 'K' || !((b2 == 3 && b3 == 4) || (b2 == 1 && b3 == 2) || (b2 == 5 && b3 == 6))) {
+          synchronized (this.entries) {
+            this.resumeOffset = 0L;
+          }
+          throw new IOException("Cannot resume reading " + this.bucketName + "/" + this.bundleKey + " at offset " + offset);
+        }
+      }
+      this.readZipEntries(new ZipInputStream(inputStream), offset);
+      break;
+    default:
+      this.readTarEntries(inputStream, offset);
+      break;
+    }
+  }
+
+  /**
+   * Reads entries from the supplied {@link ZipInputStream} and
+   * {@linkplain #publish(String, byte[], long) publishes} each one.
+   *
+   * @param zipInputStream the {@link ZipInputStream} to read; must
+   * not be {@code null}
+   *
+   * @param offset the offset within the bundle of the first byte of
+   * {@code zipInputStream}
+   *
+   * @exception IOException if an error occurs
+   */
+  private final void readZipEntries(final ZipInputStream zipInputStream, long offset) throws IOException {
+    final byte[] buffer = new byte[8192];
+    ZipEntry entry;
+    while ((entry = zipInputStream.getNextEntry()) != null) {
+      // Sizes are only known in advance if no data descriptor follows
+      // the entry's contents.
+      final boolean dataDescriptor = entry.getCompressedSize() < 0L;
+      final long size = entry.getSize();
+      final ByteArrayOutputStream contents = new ByteArrayOutputStream(size > 0L && size < Integer.MAX_VALUE ? (int)size : 8192);
+      int read;
+      while ((read = zipInputStream.read(buffer)) >= 0) {
+        contents.write(buffer, 0, read);
+      }
+      final byte[] extra = entry.getExtra();
+      offset += ZIP_LOCAL_HEADER_SIZE + entry.getName().getBytes(StandardCharsets.UTF_8).length + (extra == null ? 0 : extra.length) + entry.getCompressedSize();
+      if (dataDescriptor) {
+        // A signature, a CRC-32, and 32- or 64-bit sizes.
+        offset += entry.getCompressedSize() >= 0xFFFFFFFFL || entry.getSize() >= 0xFFFFFFFFL ? 24L : 16L;
+      }
+      if (entry.isDirectory()) {
+        this.publish(null, null, offset);
+      } else {
+        this.publish(entry.getName(), contents.toByteArray(), offset);
+      }
+    }
+  }
+
+  /**
+   * Reads entries from the supplied {@link InputStream}, which must
+   * be in POSIX {@code ustar} format, and {@linkplain #publish(String,
+   * byte[], long) publishes} each regular file.
+   *
+   * <p>GNU long names and the {@code path} keyword of PAX extended
+   * headers are honored.  Other extensions are ignored.</p>
+   *
+   * @param inputStream the {@link InputStream} to read; must not be
+   * {@code null}
+   *
+   * @param offset the offset within the bundle of the first byte of
+   * {@code inputStream}, or {@code -1} if {@code inputStream} is
+   * decompressed from the bundle
+   *
+   * @exception IOException if an error occurs
+   */
+  private final void readTarEntries(final InputStream inputStream, long offset) throws IOException {
+    final byte[] header = new byte[TAR_BLOCK_SIZE];
+    String longName = null;
+    while (true) {
+      if (!readBlock(inputStream, header)) {
+        return;
+      }
+      boolean empty = true;
+      for (final byte b : header) {
+        if (b != 0) {
+          empty = false;
+          break;
+        }
+      }
+      if (empty) {
+        // End of archive.
+        return;
+      }
+      final long size = parseOctal(header, 124, 12);
+      if (size < 0L || size > Integer.MAX_VALUE) {
+        throw new IOException("Invalid TAR entry size: " + size);
+      }
+      final byte[] contents = new byte[(int)size];
+      readFully(inputStream, contents);
+      final long padding = (TAR_BLOCK_SIZE - (size % TAR_BLOCK_SIZE)) % TAR_BLOCK_SIZE;
+      skipFully(inputStream, padding);
+      if (offset >= 0L) {
+        offset += TAR_BLOCK_SIZE + size + padding;
+      }
+      final char type = (char)header[156];
+      switch (type) {
+      case 'L': // GNU long name for the next entry
+        longName = cString(contents, 0, contents.length);
+        break;
+      case 'x': // PAX extended header for the next entry
+        final String path = paxPath(contents);
+        if (path != null) {
+          longName = path;
+        }
+        break;
+      case '0':
+      case '\0':
+        String name = longName;
+        if (name == null) {
+          name = cString(header, 0, 100);
+          if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+            final String prefix = cString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+              name = prefix + "/" + name;
+            }
+          }
+        }
+        if (name.startsWith("./")) {
+          name = name.substring(2);
+        }
+        this.publish(name, contents, offset);
+        longName = null;
+        break;
+      default:
+        this.publish(null, null, offset);
+        longName = null;
+        break;
+      }
+    }
+  }
+
+  /**
+   * Makes the supplied entry contents available under the supplied
+   * name, releases any threads waiting for them, and records where in
+   * the bundle a retry may resume.
+   *
+   * @param name the entry name; may be {@code null} if the entry,
+   * such as a directory, has no contents to make available
+   *
+   * @param contents the entry contents; must not be {@code null}
+   * unless {@code name} is {@code null}
+   *
+   * @param nextOffset the offset within the bundle of the entry
+   * following this one, or a negative number if it is not known
+   */
+  private final void publish(final String name, final byte[] contents, final long nextOffset) {
+    synchronized (this.entries) {
+      if (name != null) {
+        this.entries.put(name, contents);
+        this.entries.notifyAll();
+      }
+      if (nextOffset >= 0L) {
+        this.resumeOffset = nextOffset;
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Reads a full TAR block into the supplied array, returning {@code
+   * false} if the stream ended cleanly before any of it was read.
+   *
+   * @param inputStream the {@link InputStream} to read from; must not
+   * be {@code null}
+   *
+   * @param block the array to read into; must not be {@code null}
+   *
+   * @return {@code true} if a block was read; {@code false} at the end
+   * of the stream
+   *
+   * @exception IOException if an error occurs or the stream ends
+   * partway through the block
+   */
+  private static final boolean readBlock(final InputStream inputStream, final byte[] block) throws IOException {
+    final int first = inputStream.read(block, 0, block.length);
+    if (first < 0) {
+      return false;
+    }
+    int offset = first;
+    while (offset < block.length) {
+      final int read = inputStream.read(block, offset, block.length - offset);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+    return true;
+  }
+
+  /**
+   * Fills the supplied array from the supplied {@link InputStream}.
+   *
+   * @param inputStream the {@link InputStream} to read from; must not
+   * be {@code null}
+   *
+   * @param bytes the array to fill; must not be {@code null}
+   *
+   * @exception IOException if an error occurs or the stream ends
+   * before the array has been filled
+   */
+  private static final void readFully(final InputStream inputStream, final byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      final int read = inputStream.read(bytes, offset, bytes.length - offset);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+  }
+
+  /**
+   * Skips exactly the supplied number of bytes of the supplied {@link
+   * InputStream}.
+   *
+   * @param inputStream the {@link InputStream}; must not be {@code
+   * null}
+   *
+   * @param count the number of bytes to skip
+   *
+   * @exception IOException if an error occurs or the stream ends
+   * first
+   */
+  private static final void skipFully(final InputStream inputStream, long count) throws IOException {
+    while (count > 0L) {
+      final long skipped = inputStream.skip(count);
+      if (skipped <= 0L) {
+        if (inputStream.read() < 0) {
+          throw new EOFException();
+        }
+        count--;
+      } else {
+        count -= skipped;
+      }
+    }
+  }
+
+  /**
+   * Parses a NUL- or space-terminated octal number from a TAR header.
+   *
+   * @param header the header; must not be {@code null}
+   *
+   * @param offset the offset of the field
+   *
+   * @param length the length of the field
+   *
+   * @return the parsed number
+   */
+  private static final long parseOctal(final byte[] header, final int offset, final int length) {
+    long returnValue = 0L;
+    for (int i = offset; i < offset + length; i++) {
+      final byte b = header[i];
+      if (b >= '0' && b <= '7') {
+        returnValue = (returnValue << 3) + (b - '0');
+      } else if (b != ' ' || returnValue != 0L) {
+        break;
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the NUL-terminated UTF-8 string found in the supplied
+   * array region.
+   *
+   * @param bytes the array; must not be {@code null}
+   *
+   * @param offset the offset of the region
+   *
+   * @param length the length of the region
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  private static final String cString(final byte[] bytes, final int offset, final int length) {
+    int end = offset;
+    while (end < offset + length && bytes[end] != 0) {
+      end++;
+    }
+    return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the value of the {@code path} keyword in the supplied PAX
+   * extended header, or {@code null} if there is none.
+   *
+   * @param contents the contents of the extended header; must not be
+   * {@code null}
+   *
+   * @return the path, or {@code null}
+   */
+  private static final String paxPath(final byte[] contents) {
+    // Each record is "<length> <keyword>=<value>\n", where <length>
+    // counts the whole record.
+    int position = 0;
+    while (position < contents.length) {
+      int space = position;
+      while (space < contents.length && contents[space] != ' ') {
+        space++;
+      }
+      final int recordLength;
+      try {
+        recordLength = Integer.parseInt(new String(contents, position, space - position, StandardCharsets.US_ASCII));
+      } catch (final NumberFormatException e) {
+        return null;
+      }
+      if (recordLength <= 0 || position + recordLength > contents.length) {
+        return null;
+      }
+      final String record = new String(contents, space + 1, position + recordLength - space - 2, StandardCharsets.UTF_8);
+      if (record.startsWith("path=")) {
+        return record.substring(5);
+      }
+      position += recordLength;
+    }
+    return null;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * The formats in which a bundle may be stored.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static enum Format {
+
+    /**
+     * A gzipped TAR file, which cannot be resumed partway through.
+     */
+    GZIPPED_TAR,
+
+    /**
+     * A ZIP or JAR file.
+     */
+    ZIP,
+
+    /**
+     * A TAR file.
+     */
+    TAR
+
+  }
+
+  /**
+   * A {@link URLStreamHandler} that serves the contents of bundle
+   * entries from memory.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private final class EntryURLStreamHandler extends URLStreamHandler {
+
+    /**
+     * Creates a new {@link EntryURLStreamHandler}.
+     */
+    private EntryURLStreamHandler() {
+      super();
+    }
+
+    /**
+     * Returns a {@link URLConnection} whose {@link
+     * URLConnection#getInputStream()} method returns the contents of
+     * the bundle entry named by the supplied {@link URL}'s path.
+     *
+     * @param url the {@link URL}; must not be {@code null}
+     *
+     * @return a non-{@code null} {@link URLConnection}
+     */
+    @Override
+    protected final URLConnection openConnection(final URL url) {
+      return new URLConnection(url) {
+        @Override
+        public final void connect() {
+          this.connected = true;
+        }
+
+        @Override
+        public final InputStream getInputStream() throws IOException {
+          final String path = this.url.getPath();
+          final byte[] contents = getObjectBytes(resourceNameToGetObjectRequest(path.startsWith("/") ? path.substring(1) : path));
+          if (contents == null) {
+            throw new IOException("No such entry: " + this.url);
+          }
+          return new ByteArrayInputStream(contents);
+        }
+      };
+    }
+
+  }
+
+}
@@ -4,8 +4,12 @@
  */
 package com.edugility.s3loader;
 
+import java.io.IOException;
+
 import java.net.URL;
 
+import java.nio.ByteBuffer;
+
 import java.security.CodeSource;
 
 import java.security.cert.Certificate;
@@ -17,6 +21,7 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 /**
  * A {@linkplain ClassLoader#registerAsParallelCapable()
@@ -88,6 +93,22 @@ public class S3ClassLoader extends AbstractS3ClassLoader {
    */
   protected final boolean requesterPays;
 
+  /**
+   * A {@link BucketManifest} describing the contents of this {@link
+   * S3ClassLoader}'s {@linkplain #bucketName affiliated bucket}.
+   *
+   * <p>This field may be {@code null}, in which case every class and
+   * resource lookup results in a request to <a
+   * href="https://aws.amazon.com/s3/">Amazon's Simple Storage
+   * Service</a>.</p>
+   *
+   * @see #S3ClassLoader(ClassLoader, AmazonS3, String, boolean,
+   * BucketManifest)
+   *
+   * @see #mayExist(GetObjectRequest)
+   */
+  protected final BucketManifest manifest;
+
 
   /*
    * Constructors.
@@ -128,10 +149,64 @@ public class S3ClassLoader extends AbstractS3ClassLoader {
                        final AmazonS3 client,
                        final String bucketName,
                        final boolean requesterPays) {
+    this(parent, client, bucketName, requesterPays, null);
+  }
+
+  /**
+   * Creates a new {@link S3ClassLoader} that consults the supplied
+   * {@link BucketManifest} to reject requests for classes and
+   * resources that do not exist without communicating with <a
+   * href="https://aws.amazon.com/s3/">Amazon's Simple Storage
+   * Service</a>.
+   *
+   * @param parent the {@link ClassLoader} to which class loading
+   * requests will be initially delegated; may be {@code null}
+   *
+   * @param client the {@link AmazonS3} implementation to use to
+   * communicate with <a href="https://aws.amazon.com/s3/">Amazon's
+   * Simple Storage Service</a>; must not be {@code null}
+   *
+   * @param bucketName the name of the <a
+   * href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html">bucket</a>
+   * from which Java {@link Class} instances will be assembled; must
+   * not be {@code null}
+   *
+   * @param requesterPays indicates how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when {@linkplain AmazonS3#getObject(GetObjectRequest)
+   * requesting} data from the <a
+   * href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html">bucket</a>
+   * identified by the {@code bucketName} parameter
+   *
+   * @param manifest a {@link BucketManifest} describing the bucket
+   * identified by the {@code bucketName} parameter; may be {@code
+   * null}
+   *
+   * @exception NullPointerException if either {@code client} or
+   * {@code bucketName} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code manifest} is
+   * non-{@code null} and describes a bucket other than the one
+   * identified by the {@code bucketName} parameter
+   *
+   * @see AbstractS3ClassLoader#AbstractS3ClassLoader(ClassLoader,
+   * AmazonS3)
+   *
+   * @see BucketManifest
+   */
+  public S3ClassLoader(final ClassLoader parent,
+                       final AmazonS3 client,
+                       final String bucketName,
+                       final boolean requesterPays,
+                       final BucketManifest manifest) {
     super(parent, client);
     Objects.requireNonNull(bucketName, "bucketName == null");
+    if (manifest != null && !bucketName.equals(manifest.getBucketName())) {
+      throw new IllegalArgumentException("!bucketName.equals(manifest.getBucketName()): " + bucketName + ", " + manifest.getBucketName());
+    }
     this.bucketName = bucketName;
     this.requesterPays = requesterPays;
+    this.manifest = manifest;
     URL bucketUrl = null;
     try {
       bucketUrl = client.getUrl(bucketName, null /* no key on purpose */);
@@ -190,6 +265,18 @@ public class S3ClassLoader extends AbstractS3ClassLoader {
    *
    * <p>This method never returns {@code null}.</p>
    *
+   * <p>If the supplied {@code resourceName} names a class file, such
+   * as {@code com/foo/Bar.class}, then the {@link GetObjectRequest}
+   * that the {@link #classNameToGetObjectRequest(String)} method
+   * returns for the corresponding class name, {@code com.foo.Bar}, is
+   * returned instead, unless this {@link S3ClassLoader}'s {@linkplain
+   * #manifest <code>BucketManifest</code>} lists an object stored
+   * under the resource name itself.  This way a class read first as a
+   * resource, as bytecode-scanning frameworks do, and then loaded as a
+   * class resolves to the same object, and the two reads share any
+   * {@linkplain #setObjectCache(ObjectCache, boolean) cached} or
+   * {@linkplain #prefetch(String) prefetched} copy of its bytes.</p>
+   *
    * <p>Overrides of this method are permitted to return {@code null},
    * which will typically cause {@code null} to be returned by the
    * {@link #findResource(String)} method.</p>
@@ -201,17 +288,114 @@ public class S3ClassLoader extends AbstractS3ClassLoader {
    *
    * @see #findResource(String)
    *
+   * @see #classNameToGetObjectRequest(String)
+   *
    * @see GetObjectRequest
    *
    * @see AmazonS3#getObject(GetObjectRequest)
    */
   @Override
   protected GetObjectRequest resourceNameToGetObjectRequest(final String resourceName) {
+    final String className = toClassName(resourceName);
+    if (className != null && (this.manifest == null || !this.manifest.contains(resourceName))) {
+      return this.classNameToGetObjectRequest(className);
+    }
     final GetObjectRequest request = new GetObjectRequest(this.bucketName, resourceName);
     request.setRequesterPays(this.requesterPays);
     return request;
   }
 
+  /**
+   * Calls the {@link #readObject(GetObjectRequest, ByteBuffer)} method
+   * with the supplied parameters and returns its result, so that
+   * classes are read into the supplied pooled buffer rather than into
+   * arrays of their own.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest} describing the object
+   * to fetch; must not be {@code null}
+   *
+   * @param buffer a cleared heap {@link ByteBuffer} into which the
+   * contents may be read; must not be {@code null}
+   *
+   * @return a {@link ByteBuffer} holding the contents of the object,
+   * or {@code null}
+   *
+   * @exception IOException if there was a problem reading the
+   * object's contents
+   *
+   * @see #readObject(GetObjectRequest, ByteBuffer)
+   */
+  @Override
+  protected ByteBuffer getObjectBuffer(final GetObjectRequest request, final ByteBuffer buffer) throws IOException {
+    return this.readObject(request, buffer);
+  }
+
+  /**
+   * Returns {@code false} if this {@link S3ClassLoader} has a
+   * {@linkplain #manifest <code>BucketManifest</code>} and the object
+   * described by the supplied {@link GetObjectRequest} is not listed
+   * in it, and {@code true} otherwise.
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code false} if the object is known not to exist; {@code
+   * true} otherwise
+   *
+   * @see #manifest
+   *
+   * @see BucketManifest#contains(String)
+   */
+  @Override
+  protected boolean mayExist(final GetObjectRequest request) {
+    return this.manifest == null || !this.bucketName.equals(request.getBucketName()) || this.manifest.contains(request.getKey());
+  }
+
+  /**
+   * Returns {@code true}, since an {@link S3ClassLoader} fetches each
+   * object with a single, plain request.
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code true}
+   *
+   * @see #setAsyncObjectFetcher(AsyncObjectFetcher)
+   */
+  @Override
+  protected boolean mayFetchAsynchronously(final GetObjectRequest request) {
+    return true;
+  }
+
+  /**
+   * Returns the {@link S3ObjectSummary} recorded in this {@link
+   * S3ClassLoader}'s {@linkplain #manifest
+   * <code>BucketManifest</code>} for the object described by the
+   * supplied {@link GetObjectRequest}, or {@code null} if there is no
+   * such {@link S3ObjectSummary}.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return an {@link S3ObjectSummary}, or {@code null}
+   *
+   * @see #manifest
+   *
+   * @see BucketManifest#getObjectSummary(String)
+   */
+  @Override
+  protected S3ObjectSummary getObjectSummary(final GetObjectRequest request) {
+    if (this.manifest == null || !this.bucketName.equals(request.getBucketName())) {
+      return null;
+    } else {
+      return this.manifest.getObjectSummary(request.getKey());
+    }
+  }
+
   /**
    * Overrides the {@link
    * AbstractS3ClassLoader#getCodeSource(GetObjectRequest)} method to
@@ -244,5 +428,35 @@ public class S3ClassLoader extends AbstractS3ClassLoader {
       return new CodeSource(this.bucketUrl, (Certificate[])null /* no certificates */);
     }
   }
-  
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the binary name of the class whose class file is named by
+   * the supplied resource name, or {@code null} if the resource name
+   * does not name a class file.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param resourceName a resource name, such as {@code
+   * com/foo/Bar.class}; may be {@code null}
+   *
+   * @return a binary class name, such as {@code com.foo.Bar}, or
+   * {@code null}
+   */
+  static final String toClassName(final String resourceName) {
+    String returnValue = null;
+    if (resourceName != null && resourceName.endsWith(".class")) {
+      final String path = resourceName.substring(0, resourceName.length() - ".class".length());
+      if (!path.isEmpty() && path.indexOf('.') < 0 && !path.startsWith("/") && !path.endsWith("/")) {
+        returnValue = path.replace('/', '.');
+      }
+    }
+    return returnValue;
+  }
+
 }
@@ -0,0 +1,357 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Counters and latency histograms describing the work done by an
+ * {@link AbstractS3ClassLoader}, exposed for management by way of
+ * the {@link S3ClassLoaderMetricsMXBean} interface.
+ *
+ * <p>The counters and histograms are striped so that the many threads
+ * loading classes in parallel record into them without contending
+ * with one another.  A {@link S3ClassLoaderMetrics} holds no
+ * reference to the {@link AbstractS3ClassLoader} it describes, so
+ * leaving one registered with an {@link
+ * javax.management.MBeanServer} does not prevent that loader from
+ * being garbage collected.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see AbstractS3ClassLoader#getMetrics()
+ *
+ * @see AbstractS3ClassLoader#registerMetrics(javax.management.MBeanServer)
+ */
+public final class S3ClassLoaderMetrics implements S3ClassLoaderMetricsMXBean {
+
+  /**
+   * The number of {@code GET} requests issued.
+   */
+  private final StripedCounter requestCount;
+
+  /**
+   * The number of bytes of object contents read.
+   */
+  private final StripedCounter bytesTransferred;
+
+  /**
+   * The number of object cache hits.
+   */
+  private final StripedCounter objectCacheHitCount;
+
+  /**
+   * The number of object cache misses.
+   */
+  private final StripedCounter objectCacheMissCount;
+
+  /**
+   * The number of lookups answered by negative information.
+   */
+  private final StripedCounter negativeHitCount;
+
+  /**
+   * The number of {@code 404 Not Found} responses.
+   */
+  private final StripedCounter notFoundCount;
+
+  /**
+   * The number of coalesced fetches.
+   */
+  private final StripedCounter coalescedFetchCount;
+
+  /**
+   * The number of hedged {@code GET} requests issued.
+   */
+  private final StripedCounter hedgedRequestCount;
+
+  /**
+   * The number of hedged {@code GET} requests that responded first.
+   */
+  private final StripedCounter hedgeWinCount;
+
+  /**
+   * The number of throttled {@code GET} requests retried.
+   */
+  private final StripedCounter retryCount;
+
+  /**
+   * The number of objects whose size or ETag differed from what their
+   * summaries reported.
+   */
+  private final StripedCounter manifestMismatchCount;
+
+  /**
+   * Error counts indexed by description.
+   *
+   * <p>Errors are rare, so these counters are not striped.</p>
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final ConcurrentMap<String, AtomicLong> errorCounts;
+
+  /**
+   * Request latencies.
+   */
+  private final LatencyHistogram requestLatency;
+
+  /**
+   * Body read latencies.
+   */
+  private final LatencyHistogram readLatency;
+
+  /**
+   * Class definition latencies.
+   */
+  private final LatencyHistogram defineClassLatency;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link S3ClassLoaderMetrics} with all counts set to
+   * zero.
+   */
+  S3ClassLoaderMetrics() {
+    super();
+    this.requestCount = new StripedCounter();
+    this.bytesTransferred = new StripedCounter();
+    this.objectCacheHitCount = new StripedCounter();
+    this.objectCacheMissCount = new StripedCounter();
+    this.negativeHitCount = new StripedCounter();
+    this.notFoundCount = new StripedCounter();
+    this.coalescedFetchCount = new StripedCounter();
+    this.hedgedRequestCount = new StripedCounter();
+    this.hedgeWinCount = new StripedCounter();
+    this.retryCount = new StripedCounter();
+    this.manifestMismatchCount = new StripedCounter();
+    this.errorCounts = new ConcurrentHashMap<>();
+    this.requestLatency = new LatencyHistogram();
+    this.readLatency = new LatencyHistogram();
+    this.defineClassLatency = new LatencyHistogram();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public final long getRequestCount() {
+    return this.requestCount.sum();
+  }
+
+  @Override
+  public final long getBytesTransferred() {
+    return this.bytesTransferred.sum();
+  }
+
+  @Override
+  public final long getObjectCacheHitCount() {
+    return this.objectCacheHitCount.sum();
+  }
+
+  @Override
+  public final long getObjectCacheMissCount() {
+    return this.objectCacheMissCount.sum();
+  }
+
+  @Override
+  public final long getNegativeHitCount() {
+    return this.negativeHitCount.sum();
+  }
+
+  @Override
+  public final long getNotFoundCount() {
+    return this.notFoundCount.sum();
+  }
+
+  @Override
+  public final long getCoalescedFetchCount() {
+    return this.coalescedFetchCount.sum();
+  }
+
+  @Override
+  public final long getHedgedRequestCount() {
+    return this.hedgedRequestCount.sum();
+  }
+
+  @Override
+  public final long getHedgeWinCount() {
+    return this.hedgeWinCount.sum();
+  }
+
+  @Override
+  public final long getRetryCount() {
+    return this.retryCount.sum();
+  }
+
+  @Override
+  public final long getManifestMismatchCount() {
+    return this.manifestMismatchCount.sum();
+  }
+
+  @Override
+  public final Map<String, Long> getErrorCounts() {
+    final Map<String, Long> returnValue = new TreeMap<>();
+    for (final Map.Entry<String, AtomicLong> entry : this.errorCounts.entrySet()) {
+      returnValue.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+    }
+    return Collections.unmodifiableMap(returnValue);
+  }
+
+  @Override
+  public final LatencyStatistics getRequestLatency() {
+    return this.requestLatency.snapshot();
+  }
+
+  @Override
+  public final LatencyStatistics getReadLatency() {
+    return this.readLatency.snapshot();
+  }
+
+  @Override
+  public final LatencyStatistics getDefineClassLatency() {
+    return this.defineClassLatency.snapshot();
+  }
+
+  /**
+   * Records that a {@code GET} request was issued and took the
+   * supplied time to return a response.
+   *
+   * @param nanoseconds the time taken, in nanoseconds
+   */
+  final void recordRequest(final long nanoseconds) {
+    this.requestCount.increment();
+    this.requestLatency.record(nanoseconds);
+  }
+
+  /**
+   * Records that a response body of the supplied length was read in
+   * the supplied time.
+   *
+   * @param bytes the number of bytes read
+   *
+   * @param nanoseconds the time taken, in nanoseconds
+   */
+  final void recordRead(final long bytes, final long nanoseconds) {
+    this.bytesTransferred.add(bytes);
+    this.readLatency.record(nanoseconds);
+  }
+
+  /**
+   * Records that a class was defined in the supplied time.
+   *
+   * @param nanoseconds the time taken, in nanoseconds
+   */
+  final void recordDefineClass(final long nanoseconds) {
+    this.defineClassLatency.record(nanoseconds);
+  }
+
+  /**
+   * Records an object cache hit.
+   */
+  final void recordObjectCacheHit() {
+    this.objectCacheHitCount.increment();
+  }
+
+  /**
+   * Records an object cache miss.
+   */
+  final void recordObjectCacheMiss() {
+    this.objectCacheMissCount.increment();
+  }
+
+  /**
+   * Records that a lookup was answered by negative information.
+   */
+  final void recordNegativeHit() {
+    this.negativeHitCount.increment();
+  }
+
+  /**
+   * Records a {@code 404 Not Found} response.
+   */
+  final void recordNotFound() {
+    this.notFoundCount.increment();
+  }
+
+  /**
+   * Records a coalesced fetch.
+   */
+  final void recordCoalescedFetch() {
+    this.coalescedFetchCount.increment();
+  }
+
+  /**
+   * Records that a hedged {@code GET} request was issued.
+   */
+  final void recordHedge() {
+    this.hedgedRequestCount.increment();
+  }
+
+  /**
+   * Records that a hedged {@code GET} request responded before the
+   * request it duplicated.
+   */
+  final void recordHedgeWin() {
+    this.hedgeWinCount.increment();
+  }
+
+  /**
+   * Records that a throttled {@code GET} request is being retried.
+   */
+  final void recordRetry() {
+    this.retryCount.increment();
+  }
+
+  /**
+   * Records that an object's size or ETag differed from what its
+   * summary reported.
+   */
+  final void recordManifestMismatch() {
+    this.manifestMismatchCount.increment();
+  }
+
+  /**
+   * Records the supplied error.
+   *
+   * @param error the error; must not be {@code null}
+   */
+  final void recordError(final Throwable error) {
+    String description = error.getClass().getSimpleName();
+    if (error instanceof AmazonServiceException) {
+      description = description + " " + ((AmazonServiceException)error).getStatusCode();
+    }
+    AtomicLong count = this.errorCounts.get(description);
+    if (count == null) {
+      final AtomicLong newCount = new AtomicLong();
+      count = this.errorCounts.putIfAbsent(description, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+}
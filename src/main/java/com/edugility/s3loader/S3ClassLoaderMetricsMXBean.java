@@ -0,0 +1,153 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@linkplain S3ClassLoaderMetrics
+ * metrics} kept by an {@link AbstractS3ClassLoader}.
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see S3ClassLoaderMetrics
+ *
+ * @see AbstractS3ClassLoader#registerMetrics(javax.management.MBeanServer)
+ */
+public interface S3ClassLoaderMetricsMXBean {
+
+  /**
+   * Returns the number of {@code GET} requests issued to Amazon S3.
+   *
+   * @return the number of requests; never negative
+   */
+  public long getRequestCount();
+
+  /**
+   * Returns the number of bytes of object contents read from Amazon
+   * S3.
+   *
+   * @return the number of bytes; never negative
+   */
+  public long getBytesTransferred();
+
+  /**
+   * Returns the number of times an {@linkplain ObjectCache object
+   * cache} supplied an object's contents, whether directly or after a
+   * successful revalidation.
+   *
+   * @return the number of object cache hits; never negative
+   */
+  public long getObjectCacheHitCount();
+
+  /**
+   * Returns the number of times an {@linkplain ObjectCache object
+   * cache} was consulted and did not hold the requested object.
+   *
+   * @return the number of object cache misses; never negative
+   */
+  public long getObjectCacheMissCount();
+
+  /**
+   * Returns the number of lookups answered without a request because
+   * the object was known not to exist, either from a {@linkplain
+   * NegativeLookupCache negative lookup cache} or from a manifest.
+   *
+   * @return the number of negative hits; never negative
+   */
+  public long getNegativeHitCount();
+
+  /**
+   * Returns the number of requests to which Amazon S3 answered that
+   * the object does not exist.
+   *
+   * @return the number of objects not found; never negative
+   */
+  public long getNotFoundCount();
+
+  /**
+   * Returns the number of fetches that waited for an identical,
+   * concurrent fetch instead of issuing a request of their own.
+   *
+   * @return the number of coalesced fetches; never negative
+   */
+  public long getCoalescedFetchCount();
+
+  /**
+   * Returns the number of duplicate {@code GET} requests issued
+   * because the original request had not responded within the
+   * hedging delay.
+   *
+   * <p>Hedged requests are also counted by the {@link
+   * #getRequestCount()} method.</p>
+   *
+   * @return the number of hedged requests; never negative
+   */
+  public long getHedgedRequestCount();
+
+  /**
+   * Returns the number of hedged {@code GET} requests that responded
+   * before the requests they duplicated.
+   *
+   * @return the number of hedges that won; never negative
+   */
+  public long getHedgeWinCount();
+
+  /**
+   * Returns the number of times a {@code GET} request throttled by
+   * Amazon S3 was retried.
+   *
+   * <p>Retries are also counted by the {@link #getRequestCount()}
+   * method.</p>
+   *
+   * @return the number of retries; never negative
+   */
+  public long getRetryCount();
+
+  /**
+   * Returns the number of objects whose size or ETag, as fetched,
+   * differed from what a manifest or other summary reported, which
+   * suggests that the manifest is stale.
+   *
+   * @return the number of mismatches; never negative
+   */
+  public long getManifestMismatchCount();
+
+  /**
+   * Returns the number of errors encountered, indexed by a
+   * description of their type.
+   *
+   * <p>Errors reported by Amazon S3 are described by their exception
+   * type and HTTP status code, for example {@code AmazonS3Exception
+   * 503}; other errors are described by their exception type.</p>
+   *
+   * @return a non-{@code null} {@link Map} of error counts
+   */
+  public Map<String, Long> getErrorCounts();
+
+  /**
+   * Returns statistics about the time taken by {@code GET} requests
+   * to return a response, not including reading its body.
+   *
+   * @return a non-{@code null} {@link LatencyStatistics}
+   */
+  public LatencyStatistics getRequestLatency();
+
+  /**
+   * Returns statistics about the time taken to read response bodies.
+   *
+   * @return a non-{@code null} {@link LatencyStatistics}
+   */
+  public LatencyStatistics getReadLatency();
+
+  /**
+   * Returns statistics about the time taken to define classes.
+   *
+   * @return a non-{@code null} {@link LatencyStatistics}
+   */
+  public LatencyStatistics getDefineClassLatency();
+
+}
@@ -0,0 +1,1423 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.CodeSource;
+
+import java.security.cert.Certificate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.amazonaws.AmazonClientException;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * A {@linkplain ClassLoader#registerAsParallelCapable()
+ * parallel-capable} {@link AbstractS3ClassLoader} that {@linkplain
+ * #findClass(String) loads <code>Class</code>es} and resources from
+ * a single JAR file stored as one <a
+ * href="https://aws.amazon.com/s3">Amazon Simple Storage Service</a>
+ * object.
+ *
+ * <p>The JAR file is never downloaded in its entirety.  The first
+ * time a class or resource is requested, the JAR file's <a
+ * href="https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT">central
+ * directory</a> is read using {@linkplain
+ * GetObjectRequest#setRange(long, long) ranged requests}.
+ * Thereafter each class or resource is fetched with a single ranged
+ * request covering just its entry, which is then inflated and
+ * checked against its CRC-32.</p>
+ *
+ * <p>Entries that are stored or compressed with the {@code DEFLATE}
+ * method are supported.  ZIP64 archives are not.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see AbstractS3ClassLoader
+ *
+ * @see <a
+ * href="https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT">ZIP
+ * File Format Specification</a>
+ */
+public class S3JarClassLoader extends AbstractS3ClassLoader {
+
+  /**
+   * Static initializer; calls the {@link
+   * ClassLoader#registerAsParallelCapable()} method.
+   */
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  /**
+   * The size of the fixed portion of the end of central directory
+   * record.
+   */
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+  /**
+   * The maximum size of a ZIP file comment, which may follow the end
+   * of central directory record.
+   */
+  private static final int MAXIMUM_COMMENT_SIZE = 0xFFFF;
+
+  /**
+   * The size of the fixed portion of a local file header.
+   */
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
+
+  /**
+   * The largest range, in bytes, that coalesced entry reads will
+   * span.
+   *
+   * @see #setCoalescingGapThreshold(long)
+   */
+  private static final long MAXIMUM_COALESCED_RANGE_SIZE = 8L * 1024L * 1024L;
+
+  /**
+   * The name of the <a
+   * href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html">bucket</a>
+   * housing the JAR file.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #S3JarClassLoader(ClassLoader, AmazonS3, String, String,
+   * boolean)
+   */
+  protected final String bucketName;
+
+  /**
+   * The key of the JAR file within the {@linkplain #bucketName
+   * affiliated bucket}.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see #S3JarClassLoader(ClassLoader, AmazonS3, String, String,
+   * boolean)
+   */
+  protected final String jarKey;
+
+  /**
+   * Indicates how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when {@linkplain AmazonS3#getObject(GetObjectRequest)
+   * requesting} data from this {@link S3JarClassLoader}'s {@linkplain
+   * #bucketName affiliated bucket}.
+   *
+   * @see #S3JarClassLoader(ClassLoader, AmazonS3, String, String,
+   * boolean)
+   */
+  protected final boolean requesterPays;
+
+  /**
+   * The {@link URL} of the JAR file.
+   *
+   * <p>This field may be {@code null} in rare cases.</p>
+   *
+   * @see AmazonS3#getUrl(String, String)
+   */
+  protected final URL jarUrl;
+
+  /**
+   * The {@link URLStreamHandler} that serves resource {@link URL}s
+   * through the {@link #getObjectBytes(GetObjectRequest)} method.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final URLStreamHandler urlStreamHandler;
+
+  /**
+   * The {@link JarIndex} describing the JAR file's entries.
+   *
+   * <p>This field is {@code null} until the JAR file's central
+   * directory has been read.</p>
+   *
+   * @see #getJarIndex()
+   */
+  private volatile JarIndex jarIndex;
+
+  /**
+   * The largest number of unrequested bytes that may separate two
+   * entries whose reads are coalesced into a single ranged request,
+   * or a negative number if reads are never coalesced.
+   *
+   * @see #setCoalescingGapThreshold(long)
+   */
+  private volatile long coalescingGapThreshold;
+
+  /**
+   * {@link PendingRead}s that have not yet been claimed by a thread
+   * {@linkplain #readCoalesced(PendingRead) reading} a range.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * <p>This field is guarded by itself.</p>
+   */
+  private final List<PendingRead> pendingReads;
+
+  /**
+   * The {@link RangeRead}s whose requests are in progress.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * <p>This field is guarded by the {@link #pendingReads} list.</p>
+   */
+  private final List<RangeRead> rangeReads;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link S3JarClassLoader}.
+   *
+   * <p>No communication with <a href="https://aws.amazon.com/s3">Amazon
+   * Simple Storage Service</a> takes place until the first class or
+   * resource is requested.</p>
+   *
+   * @param parent the {@link ClassLoader} to which class loading
+   * requests will be initially delegated; may be {@code null}
+   *
+   * @param client the {@link AmazonS3} implementation to use to
+   * communicate with <a href="https://aws.amazon.com/s3/">Amazon's
+   * Simple Storage Service</a>; must not be {@code null}
+   *
+   * @param bucketName the name of the <a
+   * href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html">bucket</a>
+   * housing the JAR file; must not be {@code null}
+   *
+   * @param jarKey the key of the JAR file within the bucket
+   * identified by the {@code bucketName} parameter; must not be
+   * {@code null}
+   *
+   * @param requesterPays indicates how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when {@linkplain AmazonS3#getObject(GetObjectRequest)
+   * requesting} data from the <a
+   * href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html">bucket</a>
+   * identified by the {@code bucketName} parameter
+   *
+   * @exception NullPointerException if {@code client}, {@code
+   * bucketName} or {@code jarKey} is {@code null}
+   *
+   * @see AbstractS3ClassLoader#AbstractS3ClassLoader(ClassLoader,
+   * AmazonS3)
+   */
+  public S3JarClassLoader(final ClassLoader parent,
+                          final AmazonS3 client,
+                          final String bucketName,
+                          final String jarKey,
+                          final boolean requesterPays) {
+    super(parent, client);
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(jarKey, "jarKey == null");
+    this.bucketName = bucketName;
+    this.jarKey = jarKey;
+    this.requesterPays = requesterPays;
+    this.coalescingGapThreshold = 8L * 1024L;
+    this.pendingReads = new ArrayList<>();
+    this.rangeReads = new ArrayList<>();
+    this.urlStreamHandler = new EntryURLStreamHandler();
+    URL jarUrl = null;
+    try {
+      jarUrl = client.getUrl(bucketName, jarKey);
+    } catch (final AmazonClientException ignore) {
+
+    } finally {
+      this.jarUrl = jarUrl;
+    }
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the largest number of unrequested bytes that may separate
+   * two JAR file entries whose reads are coalesced into a single
+   * ranged request, or a negative number if reads are never
+   * coalesced.
+   *
+   * @return the coalescing gap threshold
+   *
+   * @see #setCoalescingGapThreshold(long)
+   */
+  public final long getCoalescingGapThreshold() {
+    return this.coalescingGapThreshold;
+  }
+
+  /**
+   * Sets the largest number of unrequested bytes that may separate two
+   * JAR file entries whose reads are coalesced into a single ranged
+   * request.
+   *
+   * <p>When several threads request entries at once, as typically
+   * happens during a startup burst, entries whose byte ranges lie
+   * within this many bytes of one another are fetched with a single
+   * request spanning all of them, and the response is split.  Entries
+   * further apart are fetched in parallel, each by a thread that
+   * wants it.  A larger threshold saves round trips at the cost of
+   * downloading bytes that no one asked for.  A single request never
+   * spans more than eight megabytes.</p>
+   *
+   * <p>The default threshold is eight kilobytes.  Entries that
+   * directly follow one another in the JAR file have a gap of zero
+   * bytes.</p>
+   *
+   * @param coalescingGapThreshold the coalescing gap threshold, in
+   * bytes; a negative number disables coalescing altogether
+   *
+   * @see #getCoalescingGapThreshold()
+   */
+  public final void setCoalescingGapThreshold(final long coalescingGapThreshold) {
+    this.coalescingGapThreshold = coalescingGapThreshold;
+  }
+
+  /**
+   * Ensures that the JAR file's central directory has been read and
+   * then calls the {@link AbstractS3ClassLoader#findClass(String)}
+   * method.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param name a valid class name; must not be {@code null}
+   *
+   * @return a {@link Class} object; never {@code null}
+   *
+   * @exception ClassNotFoundException if a {@link Class} object could
+   * not be found for the supplied {@code name} for any reason,
+   * including a failure to read the JAR file's central directory
+   *
+   * @see AbstractS3ClassLoader#findClass(String)
+   */
+  @Override
+  protected Class<?> findClass(final String name) throws ClassNotFoundException {
+    try {
+      this.getJarIndex();
+    } catch (final AmazonClientException | IOException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+    return super.findClass(name);
+  }
+
+  /**
+   * Returns a {@link GetObjectRequest} for the JAR file entry
+   * corresponding to the supplied {@code className}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>If the JAR file contains such an entry, the returned {@link
+   * GetObjectRequest} has its {@linkplain
+   * GetObjectRequest#setRange(long, long) range} set to the bytes the
+   * entry occupies.  Otherwise it has no range, and the {@link
+   * #mayExist(GetObjectRequest)} method will return {@code false} for
+   * it.</p>
+   *
+   * @param className the name of a Java class; may be {@code null}
+   *
+   * @return a non-{@code null} {@link GetObjectRequest}
+   *
+   * @see #resourceNameToGetObjectRequest(String)
+   */
+  @Override
+  protected GetObjectRequest classNameToGetObjectRequest(final String className) {
+    return this.resourceNameToGetObjectRequest(className == null ? null : className.replace('.', '/') + ".class");
+  }
+
+  /**
+   * Returns a {@link GetObjectRequest} for the JAR file entry named by
+   * the supplied {@code resourceName}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>If the JAR file contains such an entry, the returned {@link
+   * GetObjectRequest} has its {@linkplain
+   * GetObjectRequest#setRange(long, long) range} set to the bytes the
+   * entry occupies.  Otherwise it has no range, and the {@link
+   * #mayExist(GetObjectRequest)} method will return {@code false} for
+   * it.</p>
+   *
+   * @param resourceName the name of a JAR file entry; may be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link GetObjectRequest}
+   */
+  @Override
+  protected GetObjectRequest resourceNameToGetObjectRequest(final String resourceName) {
+    final GetObjectRequest request = new GetObjectRequest(this.bucketName, this.jarKey);
+    request.setRequesterPays(this.requesterPays);
+    if (resourceName != null) {
+      JarIndex jarIndex = null;
+      try {
+        jarIndex = this.getJarIndex();
+      } catch (final AmazonClientException | IOException e) {
+        this.getMetrics().recordError(e);
+      }
+      if (jarIndex != null) {
+        final Entry entry = jarIndex.getEntry(resourceName);
+        if (entry != null) {
+          request.setRange(entry.start, entry.end);
+        }
+      }
+    }
+    return request;
+  }
+
+  /**
+   * Returns {@code true} if the supplied {@link GetObjectRequest}
+   * designates an entry in this {@link S3JarClassLoader}'s JAR file,
+   * or requests a range of the JAR file before its central directory
+   * has been read.
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code true} if the request may designate existing bytes;
+   * {@code false} otherwise
+   */
+  @Override
+  protected boolean mayExist(final GetObjectRequest request) {
+    final long[] range = request.getRange();
+    if (range == null || range.length != 2 || !this.bucketName.equals(request.getBucketName()) || !this.jarKey.equals(request.getKey())) {
+      return false;
+    } else if (this.jarIndex == null) {
+      return true;
+    } else {
+      return this.getEntry(request) != null;
+    }
+  }
+
+  /**
+   * Returns {@code false} if the supplied {@link GetObjectRequest}
+   * requests a range spanning several {@linkplain
+   * #setCoalescingGapThreshold(long) coalesced} JAR file entries.
+   *
+   * <p>Which entries are coalesced depends on which happen to be
+   * requested at the same time, so such ranges are not cached.  A
+   * range holding a single entry is cached under the same key however
+   * it was requested.</p>
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code true} if the requested bytes may be cached; {@code
+   * false} otherwise
+   */
+  @Override
+  protected boolean isCacheable(final GetObjectRequest request) {
+    final long[] range = request.getRange();
+    if (range == null || range.length != 2 || this.jarIndex == null) {
+      // The central directory, read before the index exists, is
+      // always requested the same way.
+      return true;
+    }
+    final Entry entry = this.getEntry(request);
+    return entry != null && entry.end == range[1];
+  }
+
+  /**
+   * Returns an {@link S3ObjectSummary} whose {@linkplain
+   * S3ObjectSummary#getSize() size} is the length of the range
+   * requested by the supplied {@link GetObjectRequest}, or {@code
+   * null} if no range is requested.
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return an {@link S3ObjectSummary}, or {@code null}
+   */
+  @Override
+  protected S3ObjectSummary getObjectSummary(final GetObjectRequest request) {
+    final long[] range = request.getRange();
+    if (range == null || range.length != 2) {
+      return null;
+    }
+    final S3ObjectSummary summary = new S3ObjectSummary();
+    summary.setBucketName(request.getBucketName());
+    summary.setKey(request.getKey());
+    summary.setSize(range[1] - range[0] + 1L);
+    return summary;
+  }
+
+  /**
+   * Fetches the bytes of the JAR file entry designated by the supplied
+   * {@link GetObjectRequest} and returns its uncompressed contents, or
+   * {@code null} if there is no such entry.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>Unless coalescing has been {@linkplain
+   * #setCoalescingGapThreshold(long) disabled}, the read may be
+   * combined with reads of neighbouring entries requested
+   * concurrently by other threads.</p>
+   *
+   * @param request the {@link GetObjectRequest} designating a JAR file
+   * entry; must not be {@code null}
+   *
+   * @return the uncompressed contents of the entry, or {@code null}
+   *
+   * @exception IOException if the entry could not be fetched or is
+   * corrupt
+   *
+   * @see AbstractS3ClassLoader#getObjectBytes(GetObjectRequest)
+   *
+   * @see #setCoalescingGapThreshold(long)
+   */
+  @Override
+  protected byte[] getObjectBytes(final GetObjectRequest request) throws IOException {
+    final Entry entry = this.getEntry(request);
+    if (entry == null) {
+      return null;
+    }
+    final byte[] rawBytes;
+    final int offset;
+    if (this.coalescingGapThreshold < 0L) {
+      rawBytes = super.getObjectBytes(request);
+      offset = 0;
+    } else {
+      final PendingRead read = new PendingRead(entry);
+      this.readCoalesced(read);
+      rawBytes = read.rawBytes;
+      offset = read.offset;
+    }
+    if (rawBytes == null) {
+      return null;
+    }
+    try {
+      return entry.extract(rawBytes, offset);
+    } catch (final ZipException e) {
+      this.getMetrics().recordError(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Enqueues the supplied {@link PendingRead} and blocks until it has
+   * been satisfied, either by this thread or by another.
+   *
+   * <p>If a request already in progress spans the entry, the read is
+   * satisfied by its response.  Otherwise, if no request in progress
+   * spans bytes within the {@linkplain
+   * #setCoalescingGapThreshold(long) coalescing gap threshold} of the
+   * entry, the calling thread at once claims the read, together with
+   * every other pending read near enough to it, and issues a single
+   * request for all of them.  Only reads near a request in progress
+   * wait for it to finish, so that they may then be coalesced with one
+   * another; reads of distant entries are never held up, and no
+   * thread waits for a batch to fill up.</p>
+   *
+   * @param read the {@link PendingRead} to satisfy; must not be {@code
+   * null}
+   *
+   * @exception IOException if the read failed
+   */
+  private final void readCoalesced(final PendingRead read) throws IOException {
+    final Entry entry = read.entry;
+    boolean interrupted = false;
+    RangeRead rangeRead = null;
+    synchronized (this.pendingReads) {
+      for (final RangeRead r : this.rangeReads) {
+        if (r.start <= entry.start && entry.end <= r.end) {
+          // The bytes are already on their way.
+          r.reads.add(read);
+          read.claimed = true;
+          break;
+        }
+      }
+      if (!read.claimed) {
+        this.pendingReads.add(read);
+      }
+      while (!read.done && rangeRead == null) {
+        if (!read.claimed && !this.isNearRangeRead(entry)) {
+          rangeRead = this.claimRangeRead(read);
+        } else {
+          try {
+            this.pendingReads.wait();
+          } catch (final InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (rangeRead != null) {
+      this.performRangeRead(rangeRead);
+    }
+    assert read.done;
+    if (read.failure instanceof IOException) {
+      throw (IOException)read.failure;
+    } else if (read.failure instanceof RuntimeException) {
+      throw (RuntimeException)read.failure;
+    } else if (read.failure instanceof Error) {
+      throw (Error)read.failure;
+    }
+  }
+
+  /**
+   * Returns {@code true} if a {@linkplain #rangeReads request in
+   * progress} spans bytes within the {@linkplain
+   * #setCoalescingGapThreshold(long) coalescing gap threshold} of the
+   * supplied {@link Entry}.
+   *
+   * <p>This method must be called while holding the {@link
+   * #pendingReads} list's monitor.</p>
+   *
+   * @param entry the {@link Entry}; must not be {@code null}
+   *
+   * @return {@code true} if the {@link Entry} is near a request in
+   * progress; {@code false} otherwise
+   */
+  private final boolean isNearRangeRead(final Entry entry) {
+    final long gapThreshold = this.coalescingGapThreshold;
+    for (final RangeRead rangeRead : this.rangeReads) {
+      if (entry.start - rangeRead.end - 1L <= gapThreshold && rangeRead.start - entry.end - 1L <= gapThreshold) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Removes the supplied {@link PendingRead}, and every other
+   * {@linkplain #pendingReads pending read} that can be coalesced with
+   * it, from the {@link #pendingReads} list, and returns a new {@link
+   * RangeRead}, registered in the {@link #rangeReads} list, that will
+   * satisfy them all.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>This method must be called while holding the {@link
+   * #pendingReads} list's monitor.</p>
+   *
+   * @param read the {@link PendingRead} to claim; must not be {@code
+   * null} and must be pending
+   *
+   * @return a new {@link RangeRead}; never {@code null}
+   */
+  private final RangeRead claimRangeRead(final PendingRead read) {
+    final List<PendingRead> pending = this.pendingReads;
+    Collections.sort(pending);
+    final int index = pending.indexOf(read);
+    assert index >= 0;
+    final long gapThreshold = this.coalescingGapThreshold;
+    long start = read.entry.start;
+    long end = read.entry.end;
+    int first = index;
+    while (first > 0) {
+      final Entry previous = pending.get(first - 1).entry;
+      if (start - previous.end - 1L > gapThreshold || Math.max(end, previous.end) - previous.start + 1L > MAXIMUM_COALESCED_RANGE_SIZE) {
+        break;
+      }
+      start = previous.start;
+      end = Math.max(end, previous.end);
+      first--;
+    }
+    int last = index + 1;
+    while (last < pending.size()) {
+      final Entry next = pending.get(last).entry;
+      if (next.start - end - 1L > gapThreshold || Math.max(end, next.end) - start + 1L > MAXIMUM_COALESCED_RANGE_SIZE) {
+        break;
+      }
+      end = Math.max(end, next.end);
+      last++;
+    }
+    final List<PendingRead> group = pending.subList(first, last);
+    final RangeRead returnValue = new RangeRead(start, end, new ArrayList<>(group));
+    for (final PendingRead r : group) {
+      r.claimed = true;
+    }
+    group.clear();
+    this.rangeReads.add(returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Issues the single ranged request of the supplied {@link
+   * RangeRead}, satisfies every {@link PendingRead} it has gathered,
+   * and wakes any threads waiting for them or for it to finish.
+   *
+   * @param rangeRead the {@link RangeRead}; must not be {@code null}
+   */
+  private final void performRangeRead(final RangeRead rangeRead) {
+    byte[] rawBytes = null;
+    Throwable failure = null;
+    try {
+      rawBytes = this.getRange(rangeRead.start, rangeRead.end);
+    } catch (final IOException | RuntimeException | Error e) {
+      failure = e;
+    } finally {
+      synchronized (this.pendingReads) {
+        this.rangeReads.remove(rangeRead);
+        for (final PendingRead read : rangeRead.reads) {
+          if (failure == null) {
+            read.rawBytes = rawBytes;
+            read.offset = (int)(read.entry.start - rangeRead.start);
+          } else {
+            read.failure = failure;
+          }
+          read.done = true;
+        }
+        this.pendingReads.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns a {@link URL} designating the JAR file entry named by the
+   * supplied {@code name}, or {@code null} if there is no such entry.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The contents of the returned {@link URL} are read through the
+   * {@link #getObjectBytes(GetObjectRequest)} method, and so with a
+   * ranged request for the entry alone, subject to the caches and to
+   * coalescing like any other read.  A {@code jar:} {@link URL} would
+   * instead have the platform download the whole JAR file to open it,
+   * bypassing this {@link S3JarClassLoader}'s client and its
+   * credentials.</p>
+   *
+   * @param name the name of the entry; may be {@code null} in which
+   * case {@code null} will be returned
+   *
+   * @return a {@link URL}, or {@code null}
+   */
+  @Override
+  protected URL findResource(final String name) {
+    URL returnValue = null;
+    if (name != null && this.mayExist(this.resourceNameToGetObjectRequest(name))) {
+      try {
+        returnValue = new URL("s3jar", null, -1, "/" + name, this.urlStreamHandler);
+      } catch (final MalformedURLException e) {
+        this.getMetrics().recordError(e);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns an {@link Enumeration} containing the sole {@link URL}
+   * that the {@link #findResource(String)} method returns for the
+   * supplied {@code name}, or an empty {@link Enumeration} if that
+   * method returns {@code null}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param name the name of the entry; may be {@code null}
+   *
+   * @return a non-{@code null} {@link Enumeration} of {@link URL}s
+   */
+  @Override
+  protected Enumeration<URL> findResources(final String name) {
+    final URL url = this.findResource(name);
+    if (url == null) {
+      return Collections.emptyEnumeration();
+    } else {
+      return Collections.enumeration(Collections.singleton(url));
+    }
+  }
+
+  /**
+   * Returns a {@link CodeSource} whose location is the {@link URL} of
+   * this {@link S3JarClassLoader}'s JAR file, or {@code null} if that
+   * {@link URL} could not be determined.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request ignored
+   *
+   * @return a {@link CodeSource}, or {@code null}
+   */
+  @Override
+  protected CodeSource getCodeSource(final GetObjectRequest request) {
+    if (this.jarUrl == null) {
+      return null;
+    } else {
+      return new CodeSource(this.jarUrl, (Certificate[])null /* no certificates */);
+    }
+  }
+
+  /**
+   * Returns the {@link Entry} whose bytes begin at the start of the
+   * range requested by the supplied {@link GetObjectRequest}, or
+   * {@code null} if there is no such {@link Entry} or the JAR file's
+   * central directory has not been read.
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return an {@link Entry}, or {@code null}
+   */
+  final Entry getEntry(final GetObjectRequest request) {
+    final JarIndex jarIndex = this.jarIndex;
+    final long[] range = request.getRange();
+    if (jarIndex == null || range == null || range.length != 2 || !this.bucketName.equals(request.getBucketName()) || !this.jarKey.equals(request.getKey())) {
+      return null;
+    }
+    return jarIndex.getEntryAt(range[0]);
+  }
+
+  /**
+   * Returns the {@link JarIndex} describing this {@link
+   * S3JarClassLoader}'s JAR file, reading the JAR file's central
+   * directory if necessary.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link JarIndex}
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   *
+   * @exception IOException if the central directory could not be read
+   * or is malformed
+   */
+  final JarIndex getJarIndex() throws IOException {
+    JarIndex returnValue = this.jarIndex;
+    if (returnValue == null) {
+      synchronized (this) {
+        returnValue = this.jarIndex;
+        if (returnValue == null) {
+          returnValue = this.readJarIndex();
+          this.jarIndex = returnValue;
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Reads the JAR file's central directory and returns a new {@link
+   * JarIndex} describing it.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The JAR file's length is determined with a {@linkplain
+   * AmazonS3#getObjectMetadata(GetObjectMetadataRequest) metadata
+   * request}.  Its tail, which is large enough to contain the end of
+   * central directory record and the longest possible file comment,
+   * is then fetched with a ranged request.  If the central directory
+   * does not lie entirely within that tail, it is fetched with one
+   * further ranged request.</p>
+   *
+   * @return a new {@link JarIndex}; never {@code null}
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   *
+   * @exception IOException if the central directory could not be read
+   * or is malformed
+   */
+  private final JarIndex readJarIndex() throws IOException {
+    final GetObjectMetadataRequest metadataRequest = new GetObjectMetadataRequest(this.bucketName, this.jarKey);
+    metadataRequest.setRequesterPays(this.requesterPays);
+    final ObjectMetadata metadata;
+    final long start = System.nanoTime();
+    try {
+      metadata = this.client.getObjectMetadata(metadataRequest);
+    } catch (final AmazonClientException e) {
+      this.getMetrics().recordError(e);
+      throw e;
+    } finally {
+      this.getMetrics().recordRequest(System.nanoTime() - start);
+    }
+    final long jarLength = metadata == null ? -1L : metadata.getContentLength();
+    if (jarLength < END_OF_CENTRAL_DIRECTORY_SIZE) {
+      throw new ZipException("Not a JAR file: " + this.bucketName + "/" + this.jarKey);
+    }
+
+    final long tailStart = Math.max(0L, jarLength - END_OF_CENTRAL_DIRECTORY_SIZE - MAXIMUM_COMMENT_SIZE);
+    final byte[] tail = this.getRange(tailStart, jarLength - 1L);
+
+    int eocd = tail.length - END_OF_CENTRAL_DIRECTORY_SIZE;
+    while (eocd >= 0 && readInt(tail, eocd) != 0x06054b50) {
+      eocd--;
+    }
+    if (eocd < 0) {
+      throw new ZipException("No end of central directory record found in " + this.bucketName + "/" + this.jarKey);
+    }
+    final long centralDirectorySize = readInt(tail, eocd + 12) & 0xFFFFFFFFL;
+    final long centralDirectoryStart = readInt(tail, eocd + 16) & 0xFFFFFFFFL;
+    if (centralDirectorySize == 0xFFFFFFFFL || centralDirectoryStart == 0xFFFFFFFFL) {
+      throw new ZipException("ZIP64 archives are not supported: " + this.bucketName + "/" + this.jarKey);
+    } else if (centralDirectoryStart + centralDirectorySize > jarLength) {
+      throw new ZipException("Invalid central directory location in " + this.bucketName + "/" + this.jarKey);
+    }
+
+    final byte[] centralDirectory;
+    final int centralDirectoryOffset;
+    if (centralDirectoryStart >= tailStart) {
+      centralDirectory = tail;
+      centralDirectoryOffset = (int)(centralDirectoryStart - tailStart);
+    } else if (centralDirectorySize == 0L) {
+      centralDirectory = new byte[0];
+      centralDirectoryOffset = 0;
+    } else {
+      centralDirectory = this.getRange(centralDirectoryStart, centralDirectoryStart + centralDirectorySize - 1L);
+      centralDirectoryOffset = 0;
+    }
+    return new JarIndex(centralDirectory, centralDirectoryOffset, (int)centralDirectorySize, centralDirectoryStart);
+  }
+
+  /**
+   * Fetches the supplied inclusive range of bytes of the JAR file.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param start the index of the first byte to fetch
+   *
+   * @param end the index of the last byte to fetch
+   *
+   * @return the requested bytes; never {@code null}
+   *
+   * @exception IOException if the bytes could not be fetched
+   */
+  private final byte[] getRange(final long start, final long end) throws IOException {
+    final GetObjectRequest request = new GetObjectRequest(this.bucketName, this.jarKey);
+    request.setRequesterPays(this.requesterPays);
+    request.setRange(start, end);
+    final byte[] returnValue = super.getObjectBytes(request);
+    if (returnValue == null) {
+      throw new IOException("No such object: " + this.bucketName + "/" + this.jarKey);
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Reads a little-endian unsigned 16-bit quantity from the supplied
+   * array at the supplied offset.
+   *
+   * @param bytes the array; must not be {@code null}
+   *
+   * @param offset the offset
+   *
+   * @return the value read
+   */
+  static final int readShort(final byte[] bytes, final int offset) {
+    return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+  }
+
+  /**
+   * Reads a little-endian 32-bit quantity from the supplied array at
+   * the supplied offset.
+   *
+   * @param bytes the array; must not be {@code null}
+   *
+   * @param offset the offset
+   *
+   * @return the value read
+   */
+  static final int readInt(final byte[] bytes, final int offset) {
+    return readShort(bytes, offset) | (readShort(bytes, offset + 2) << 16);
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An immutable description of the entries in a JAR file, built from
+   * its central directory.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  static final class JarIndex {
+
+    /**
+     * {@link Entry} instances indexed by name.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Map<String, Entry> entriesByName;
+
+    /**
+     * {@link Entry} instances sorted by the offset of their local file
+     * headers.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Entry[] entriesByOffset;
+
+    /**
+     * The {@link Entry#start} values of the elements of the {@link
+     * #entriesByOffset} array, for binary searching.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final long[] starts;
+
+    /**
+     * Creates a new {@link JarIndex}.
+     *
+     * @param bytes an array containing the central directory; must
+     * not be {@code null}
+     *
+     * @param offset the offset within {@code bytes} at which the
+     * central directory begins
+     *
+     * @param length the length of the central directory
+     *
+     * @param centralDirectoryStart the offset within the JAR file at
+     * which the central directory begins, which is also where the
+     * data of the last entry ends
+     *
+     * @exception ZipException if the central directory is malformed
+     */
+    JarIndex(final byte[] bytes, final int offset, final int length, final long centralDirectoryStart) throws ZipException {
+      super();
+      final Map<String, Entry> entriesByName = new HashMap<>();
+      final int limit = offset + length;
+      int position = offset;
+      while (position + 46 <= limit && readInt(bytes, position) == 0x02014b50) {
+        final int method = readShort(bytes, position + 10);
+        final int crc = readInt(bytes, position + 16);
+        final long compressedSize = readInt(bytes, position + 20) & 0xFFFFFFFFL;
+        final long size = readInt(bytes, position + 24) & 0xFFFFFFFFL;
+        final int nameLength = readShort(bytes, position + 28);
+        final int extraLength = readShort(bytes, position + 30);
+        final int commentLength = readShort(bytes, position + 32);
+        final long start = readInt(bytes, position + 42) & 0xFFFFFFFFL;
+        if (position + 46 + nameLength > limit) {
+          throw new ZipException("Truncated central directory");
+        } else if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || start == 0xFFFFFFFFL) {
+          throw new ZipException("ZIP64 archives are not supported");
+        }
+        final String name = new String(bytes, position + 46, nameLength, StandardCharsets.UTF_8);
+        if (!name.endsWith("/")) {
+          entriesByName.put(name, new Entry(name, method, crc, compressedSize, size, start));
+        }
+        position += 46 + nameLength + extraLength + commentLength;
+      }
+      final Entry[] entriesByOffset = entriesByName.values().toArray(new Entry[entriesByName.size()]);
+      Arrays.sort(entriesByOffset);
+      this.starts = new long[entriesByOffset.length];
+      for (int i = 0; i < entriesByOffset.length; i++) {
+        // Each entry's bytes extend to the start of the next entry, or
+        // to the start of the central directory, which covers its
+        // local file header, its data and any data descriptor.
+        final long nextStart = i + 1 < entriesByOffset.length ? entriesByOffset[i + 1].start : centralDirectoryStart;
+        entriesByOffset[i].end = nextStart - 1L;
+        if (entriesByOffset[i].end - entriesByOffset[i].start + 1L < LOCAL_FILE_HEADER_SIZE + entriesByOffset[i].compressedSize) {
+          throw new ZipException("Overlapping entries: " + entriesByOffset[i].name);
+        }
+        this.starts[i] = entriesByOffset[i].start;
+      }
+      this.entriesByName = entriesByName;
+      this.entriesByOffset = entriesByOffset;
+    }
+
+    /**
+     * Returns the {@link Entry} with the supplied name, or {@code null}
+     * if there is no such {@link Entry}.
+     *
+     * @param name the name; must not be {@code null}
+     *
+     * @return an {@link Entry}, or {@code null}
+     */
+    final Entry getEntry(final String name) {
+      return this.entriesByName.get(name);
+    }
+
+    /**
+     * Returns the {@link Entry} whose local file header begins at the
+     * supplied offset, or {@code null} if there is no such {@link
+     * Entry}.
+     *
+     * @param start the offset within the JAR file
+     *
+     * @return an {@link Entry}, or {@code null}
+     */
+    final Entry getEntryAt(final long start) {
+      final int index = Arrays.binarySearch(this.starts, start);
+      return index < 0 ? null : this.entriesByOffset[index];
+    }
+
+    /**
+     * Returns all {@link Entry} instances in this {@link JarIndex},
+     * sorted by the offsets of their local file headers.
+     *
+     * <p>The returned array must not be modified.</p>
+     *
+     * @return a non-{@code null} array of {@link Entry} instances
+     */
+    final Entry[] getEntries() {
+      return this.entriesByOffset;
+    }
+
+  }
+
+  /**
+   * A description of a single JAR file entry and the bytes it occupies
+   * within the JAR file.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  static final class Entry implements Comparable<Entry> {
+
+    /**
+     * The entry's name.
+     */
+    final String name;
+
+    /**
+     * The entry's compression method.
+     */
+    final int method;
+
+    /**
+     * The CRC-32 of the entry's uncompressed contents.
+     */
+    final int crc;
+
+    /**
+     * The entry's compressed size.
+     */
+    final long compressedSize;
+
+    /**
+     * The entry's uncompressed size.
+     */
+    final long size;
+
+    /**
+     * The offset within the JAR file of the entry's local file header.
+     */
+    final long start;
+
+    /**
+     * The offset within the JAR file of the last byte belonging to
+     * the entry; set once by the {@link JarIndex} constructor.
+     */
+    long end;
+
+    /**
+     * Creates a new {@link Entry}.
+     *
+     * @param name the entry's name
+     *
+     * @param method the entry's compression method
+     *
+     * @param crc the CRC-32 of the entry's uncompressed contents
+     *
+     * @param compressedSize the entry's compressed size
+     *
+     * @param size the entry's uncompressed size
+     *
+     * @param start the offset within the JAR file of the entry's local
+     * file header
+     */
+    private Entry(final String name, final int method, final int crc, final long compressedSize, final long size, final long start) {
+      super();
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.start = start;
+    }
+
+    /**
+     * Extracts this {@link Entry}'s uncompressed contents from the
+     * supplied array, which holds the bytes of this {@link Entry}
+     * beginning with its local file header at the supplied offset.
+     *
+     * <p>This method never returns {@code null}.</p>
+     *
+     * @param bytes the array; must not be {@code null}
+     *
+     * @param offset the offset within {@code bytes} of this {@link
+     * Entry}'s local file header
+     *
+     * @return the uncompressed contents; never {@code null}
+     *
+     * @exception ZipException if the bytes are malformed or corrupt
+     */
+    final byte[] extract(final byte[] bytes, final int offset) throws ZipException {
+      if (offset + LOCAL_FILE_HEADER_SIZE > bytes.length || readInt(bytes, offset) != 0x04034b50) {
+        throw new ZipException("Invalid local file header: " + this.name);
+      }
+      final int dataOffset = offset + LOCAL_FILE_HEADER_SIZE + readShort(bytes, offset + 26) + readShort(bytes, offset + 28);
+      if (this.size > Integer.MAX_VALUE || dataOffset + this.compressedSize > bytes.length) {
+        throw new ZipException("Truncated entry: " + this.name);
+      }
+      final byte[] returnValue = new byte[(int)this.size];
+      switch (this.method) {
+      case 0: // STORED
+        if (this.compressedSize != this.size) {
+          throw new ZipException("Invalid stored entry: " + this.name);
+        }
+        System.arraycopy(bytes, dataOffset, returnValue, 0, returnValue.length);
+        break;
+      case 8: // DEFLATED
+        final Inflater inflater = new Inflater(true);
+        try {
+          inflater.setInput(bytes, dataOffset, (int)this.compressedSize);
+          int inflated = 0;
+          while (inflated < returnValue.length) {
+            final int n = inflater.inflate(returnValue, inflated, returnValue.length - inflated);
+            if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+              throw new ZipException("Truncated entry: " + this.name);
+            }
+            inflated += n;
+          }
+        } catch (final DataFormatException e) {
+          final ZipException zipException = new ZipException("Corrupt entry: " + this.name);
+          zipException.initCause(e);
+          throw zipException;
+        } finally {
+          inflater.end();
+        }
+        break;
+      default:
+        throw new ZipException("Unsupported compression method " + this.method + ": " + this.name);
+      }
+      final CRC32 crc32 = new CRC32();
+      crc32.update(returnValue, 0, returnValue.length);
+      if ((int)crc32.getValue() != this.crc) {
+        throw new ZipException("CRC-32 mismatch: " + this.name);
+      }
+      return returnValue;
+    }
+
+    /**
+     * Compares this {@link Entry} to the supplied {@link Entry} by the
+     * offsets of their local file headers.
+     *
+     * @param other the {@link Entry} to compare to; must not be {@code
+     * null}
+     *
+     * @return a negative number, zero or a positive number as this
+     * {@link Entry}'s local file header precedes, coincides with or
+     * follows that of {@code other}
+     */
+    @Override
+    public final int compareTo(final Entry other) {
+      return Long.compare(this.start, other.start);
+    }
+
+  }
+
+  /**
+   * A request by one thread for the bytes of an {@link Entry},
+   * satisfied by whichever thread performs the {@link RangeRead} that
+   * {@linkplain #claimed claims} it.
+   *
+   * <p>All fields other than {@link #entry} are guarded by the {@link
+   * S3JarClassLoader#pendingReads} list once the {@link PendingRead}
+   * has been enqueued.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see S3JarClassLoader#readCoalesced(PendingRead)
+   */
+  private static final class PendingRead implements Comparable<PendingRead> {
+
+    /**
+     * The {@link Entry} to read.
+     */
+    final Entry entry;
+
+    /**
+     * An array containing the bytes of the {@link #entry}, once read.
+     */
+    byte[] rawBytes;
+
+    /**
+     * The offset within {@link #rawBytes} of the {@link #entry}'s
+     * local file header.
+     */
+    int offset;
+
+    /**
+     * Any {@link Throwable} that prevented the read from succeeding.
+     */
+    Throwable failure;
+
+    /**
+     * Whether the read has been performed, successfully or not.
+     */
+    boolean done;
+
+    /**
+     * Whether this {@link PendingRead} has been claimed by a {@link
+     * RangeRead}.
+     */
+    boolean claimed;
+
+    /**
+     * Creates a new {@link PendingRead}.
+     *
+     * @param entry the {@link Entry} to read; must not be {@code null}
+     */
+    private PendingRead(final Entry entry) {
+      super();
+      this.entry = entry;
+    }
+
+    /**
+     * Compares this {@link PendingRead} to the supplied {@link
+     * PendingRead} by the positions of their {@link Entry} instances.
+     *
+     * @param other the {@link PendingRead} to compare to; must not be
+     * {@code null}
+     *
+     * @return the result of comparing the two {@link Entry} instances
+     */
+    @Override
+    public final int compareTo(final PendingRead other) {
+      return this.entry.compareTo(other.entry);
+    }
+
+  }
+
+  /**
+   * A single ranged request for bytes of the JAR file, in progress,
+   * together with the {@link PendingRead}s its response will satisfy.
+   *
+   * <p>The {@link #reads} list is guarded by the {@link
+   * S3JarClassLoader#pendingReads} list.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see S3JarClassLoader#readCoalesced(PendingRead)
+   */
+  private static final class RangeRead {
+
+    /**
+     * The offset within the JAR file of the first byte requested.
+     */
+    final long start;
+
+    /**
+     * The offset within the JAR file of the last byte requested.
+     */
+    final long end;
+
+    /**
+     * The {@link PendingRead}s to satisfy.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    final List<PendingRead> reads;
+
+    /**
+     * Creates a new {@link RangeRead}.
+     *
+     * @param start the offset within the JAR file of the first byte to
+     * request
+     *
+     * @param end the offset within the JAR file of the last byte to
+     * request
+     *
+     * @param reads the {@link PendingRead}s to satisfy; must not be
+     * {@code null}
+     */
+    private RangeRead(final long start, final long end, final List<PendingRead> reads) {
+      super();
+      this.start = start;
+      this.end = end;
+      this.reads = reads;
+    }
+
+  }
+
+  /**
+   * A {@link URLStreamHandler} that serves the contents of JAR file
+   * entries through the {@link #getObjectBytes(GetObjectRequest)}
+   * method.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see S3JarClassLoader#findResource(String)
+   */
+  private final class EntryURLStreamHandler extends URLStreamHandler {
+
+    /**
+     * Creates a new {@link EntryURLStreamHandler}.
+     */
+    private EntryURLStreamHandler() {
+      super();
+    }
+
+    /**
+     * Returns a {@link URLConnection} whose {@link
+     * URLConnection#getInputStream()} method returns the contents of
+     * the JAR file entry named by the supplied {@link URL}'s path.
+     *
+     * @param url the {@link URL}; must not be {@code null}
+     *
+     * @return a non-{@code null} {@link URLConnection}
+     */
+    @Override
+    protected final URLConnection openConnection(final URL url) {
+      return new URLConnection(url) {
+        @Override
+        public final void connect() {
+          this.connected = true;
+        }
+
+        @Override
+        public final InputStream getInputStream() throws IOException {
+          final String path = this.url.getPath();
+          final byte[] contents = getObjectBytes(resourceNameToGetObjectRequest(path.startsWith("/") ? path.substring(1) : path));
+          if (contents == null) {
+            throw new IOException("No such entry: " + this.url);
+          }
+          return new ByteArrayInputStream(contents);
+        }
+      };
+    }
+
+  }
+
+}
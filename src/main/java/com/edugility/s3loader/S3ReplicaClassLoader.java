@@ -0,0 +1,495 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * A {@linkplain ClassLoader#registerAsParallelCapable()
+ * parallel-capable} {@link S3ClassLoader} that loads from whichever
+ * of a set of equivalent {@linkplain Replica replicas}, typically
+ * buckets replicated into several regions, currently answers
+ * fastest.
+ *
+ * <p>Each {@link Replica} keeps an exponentially weighted moving
+ * average of the time its {@code GET} requests take to return a
+ * response, that is, of their time to first byte.  Each request is
+ * sent to the replica with the lowest average.  If that replica
+ * fails with a server error or cannot be reached, the request fails
+ * over to the next fastest, and so on; the failed replica's average
+ * is penalized.  Client errors, including {@code 404 Not Found}, are
+ * answers, not failures, since the replicas are equivalent.</p>
+ *
+ * <p>A replica that has not yet answered, or that has not been used
+ * for {@value #REPROBE_INTERVAL_SECONDS} seconds, is preferred once so
+ * that its average reflects current conditions.  Probing costs at
+ * most one request per replica per interval.</p>
+ *
+ * <p>The first replica's bucket is the one named in requests, in
+ * {@linkplain #setObjectCache(ObjectCache, boolean) cache} keys and
+ * in the {@link java.security.CodeSource}s of loaded classes, and is
+ * the one any {@link BucketManifest} must describe.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Replica
+ *
+ * @see S3ClassLoader
+ */
+public class S3ReplicaClassLoader extends S3ClassLoader {
+
+  /**
+   * The time, in seconds, after which a replica that has not been
+   * used is probed.
+   */
+  private static final long REPROBE_INTERVAL_SECONDS = 10L;
+
+  /**
+   * The time, in nanoseconds, after which a replica that has not been
+   * used is probed.
+   */
+  private static final long REPROBE_INTERVAL = TimeUnit.SECONDS.toNanos(REPROBE_INTERVAL_SECONDS);
+
+  /**
+   * Static initializer; calls the {@link
+   * ClassLoader#registerAsParallelCapable()} method.
+   */
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  /**
+   * The {@link Replica}s.
+   *
+   * <p>This field is never {@code null} and is never empty.</p>
+   */
+  private final List<Replica> replicas;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link S3ReplicaClassLoader}.
+   *
+   * @param parent the {@link ClassLoader} to which class loading
+   * requests will be initially delegated; may be {@code null}
+   *
+   * @param replicas the {@link Replica}s; must not be {@code null},
+   * empty or contain {@code null} elements; is copied
+   *
+   * @param requesterPays indicates how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when requesting data from the replicas
+   *
+   * @exception NullPointerException if {@code replicas} is {@code
+   * null} or contains {@code null}
+   *
+   * @exception IllegalArgumentException if {@code replicas} is empty
+   *
+   * @see #S3ReplicaClassLoader(ClassLoader, List, boolean,
+   * BucketManifest)
+   */
+  public S3ReplicaClassLoader(final ClassLoader parent,
+                              final List<? extends Replica> replicas,
+                              final boolean requesterPays) {
+    this(parent, replicas, requesterPays, null);
+  }
+
+  /**
+   * Creates a new {@link S3ReplicaClassLoader} that consults the
+   * supplied {@link BucketManifest} to reject requests for classes
+   * and resources that do not exist.
+   *
+   * @param parent the {@link ClassLoader} to which class loading
+   * requests will be initially delegated; may be {@code null}
+   *
+   * @param replicas the {@link Replica}s; must not be {@code null},
+   * empty or contain {@code null} elements; is copied
+   *
+   * @param requesterPays indicates how the {@link
+   * GetObjectRequest#setRequesterPays(boolean)} method should be
+   * called when requesting data from the replicas
+   *
+   * @param manifest a {@link BucketManifest} describing the first
+   * replica's bucket; may be {@code null}
+   *
+   * @exception NullPointerException if {@code replicas} is {@code
+   * null} or contains {@code null}
+   *
+   * @exception IllegalArgumentException if {@code replicas} is empty,
+   * or if {@code manifest} is non-{@code null} and describes a bucket
+   * other than the first replica's
+   *
+   * @see S3ClassLoader#S3ClassLoader(ClassLoader, AmazonS3, String,
+   * boolean, BucketManifest)
+   */
+  public S3ReplicaClassLoader(final ClassLoader parent,
+                              final List<? extends Replica> replicas,
+                              final boolean requesterPays,
+                              final BucketManifest manifest) {
+    super(parent, firstReplica(replicas).getClient(), firstReplica(replicas).getBucketName(), requesterPays, manifest);
+    final List<Replica> replicaList = new ArrayList<>(replicas);
+    for (final Replica replica : replicaList) {
+      Objects.requireNonNull(replica, "replicas contains null");
+    }
+    this.replicas = Collections.unmodifiableList(replicaList);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the {@link Replica}s this {@link S3ReplicaClassLoader}
+   * chooses among.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null}, non-empty, unmodifiable {@link List}
+   * of {@link Replica}s
+   */
+  public final List<Replica> getReplicas() {
+    return this.replicas;
+  }
+
+  /**
+   * Returns {@code false}, since an {@link S3ReplicaClassLoader}
+   * {@linkplain #requestObject(GetObjectRequest) sends} each request
+   * to a replica of its own choosing.
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code false}
+   */
+  @Override
+  protected boolean mayFetchAsynchronously(final GetObjectRequest request) {
+    return false;
+  }
+
+  /**
+   * Sends a copy of the supplied {@link GetObjectRequest}, addressed
+   * to the fastest {@linkplain Replica replica}, and returns the
+   * response, failing over to the other replicas in order of their
+   * speed if necessary.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @return the {@link S3Object} returned by a replica, or {@code
+   * null} if a constraint in the request was not met
+   *
+   * @exception AmazonClientException if every replica failed, or if
+   * a replica answered with a client error
+   */
+  @Override
+  protected S3Object requestObject(final GetObjectRequest request) {
+    final Replica[] ranking = this.rank();
+    for (int i = 0; i < ranking.length; i++) {
+      final Replica replica = ranking[i];
+      final GetObjectRequest replicaRequest = (GetObjectRequest)request.clone();
+      replicaRequest.setBucketName(replica.getBucketName());
+      final long start = System.nanoTime();
+      try {
+        final S3Object returnValue = replica.getClient().getObject(replicaRequest);
+        replica.recordLatency(System.nanoTime() - start);
+        return returnValue;
+      } catch (final AmazonServiceException e) {
+        if (e.getStatusCode() < 500) {
+          replica.recordLatency(System.nanoTime() - start);
+          throw e;
+        }
+        replica.recordFailure();
+        if (i + 1 == ranking.length) {
+          throw e;
+        }
+        // The caller records only the failure it sees.
+        this.getMetrics().recordError(e);
+      } catch (final AmazonClientException e) {
+        replica.recordFailure();
+        if (i + 1 == ranking.length) {
+          throw e;
+        }
+        this.getMetrics().recordError(e);
+      }
+    }
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns the {@link Replica}s in the order in which they should be
+   * tried, marking as probed any replica placed first because it
+   * needed probing.
+   *
+   * @return a new, non-{@code null}, non-empty array of {@link
+   * Replica}s
+   */
+  private final Replica[] rank() {
+    final int size = this.replicas.size();
+    final Replica[] returnValue = this.replicas.toArray(new Replica[size]);
+    final long now = System.nanoTime();
+    // Scores are read once so that concurrent updates cannot disturb
+    // the sort.
+    final long[] scores = new long[size];
+    for (int i = 0; i < size; i++) {
+      scores[i] = returnValue[i].score(now);
+    }
+    for (int i = 1; i < size; i++) {
+      final Replica replica = returnValue[i];
+      final long score = scores[i];
+      int j = i - 1;
+      while (j >= 0 && scores[j] > score) {
+        returnValue[j + 1] = returnValue[j];
+        scores[j + 1] = scores[j];
+        j--;
+      }
+      returnValue[j + 1] = replica;
+      scores[j + 1] = score;
+    }
+    if (scores[0] == 0L) {
+      returnValue[0].markProbed(now);
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the first of the supplied {@link Replica}s.
+   *
+   * @param replicas the {@link Replica}s; must not be {@code null} or
+   * empty
+   *
+   * @return the first {@link Replica}; never {@code null}
+   *
+   * @exception NullPointerException if {@code replicas} or its first
+   * element is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code replicas} is empty
+   */
+  private static final Replica firstReplica(final List<? extends Replica> replicas) {
+    Objects.requireNonNull(replicas, "replicas == null");
+    if (replicas.isEmpty()) {
+      throw new IllegalArgumentException("replicas.isEmpty()");
+    }
+    return Objects.requireNonNull(replicas.get(0), "replicas contains null");
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A bucket holding a copy of the classes and resources a {@link
+   * S3ReplicaClassLoader} loads, together with the {@link AmazonS3}
+   * client to use to reach it and a running estimate of how quickly
+   * it answers.
+   *
+   * <p>A {@link Replica} may be shared by several {@link
+   * S3ReplicaClassLoader}s, which then share its estimate.</p>
+   *
+   * <h2>Thread Safety</h2>
+   *
+   * <p>This class is safe for concurrent use by multiple threads.
+   * Concurrent updates to the estimate may occasionally lose a
+   * sample, which does not matter to a moving average.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see S3ReplicaClassLoader
+   */
+  public static final class Replica {
+
+    /**
+     * The weight given to each new sample.
+     */
+    private static final double ALPHA = 0.25;
+
+    /**
+     * The smallest estimate, in nanoseconds, a replica is given when
+     * it fails.
+     */
+    private static final long FAILURE_PENALTY = TimeUnit.SECONDS.toNanos(1L);
+
+    /**
+     * The {@link AmazonS3} client to use to reach the bucket.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final AmazonS3 client;
+
+    /**
+     * The name of the bucket.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final String bucketName;
+
+    /**
+     * The moving average time to first byte, in nanoseconds, or
+     * {@code -1} if no request has been answered.
+     */
+    private volatile long estimate;
+
+    /**
+     * The value of {@link System#nanoTime()} when this replica was
+     * last used.
+     */
+    private volatile long lastUsed;
+
+    /**
+     * Creates a new {@link Replica}.
+     *
+     * @param client the {@link AmazonS3} client to use to reach the
+     * bucket, typically one configured for the bucket's region; must
+     * not be {@code null}
+     *
+     * @param bucketName the name of the bucket; must not be {@code
+     * null}
+     *
+     * @exception NullPointerException if either parameter is {@code
+     * null}
+     */
+    public Replica(final AmazonS3 client, final String bucketName) {
+      super();
+      Objects.requireNonNull(client, "client == null");
+      Objects.requireNonNull(bucketName, "bucketName == null");
+      this.client = client;
+      this.bucketName = bucketName;
+      this.estimate = -1L;
+      this.lastUsed = System.nanoTime() - REPROBE_INTERVAL;
+    }
+
+    /**
+     * Returns the {@link AmazonS3} client used to reach the bucket.
+     *
+     * @return the non-{@code null} {@link AmazonS3} client
+     */
+    public final AmazonS3 getClient() {
+      return this.client;
+    }
+
+    /**
+     * Returns the name of the bucket.
+     *
+     * @return the non-{@code null} name of the bucket
+     */
+    public final String getBucketName() {
+      return this.bucketName;
+    }
+
+    /**
+     * Returns the moving average time this replica has taken to
+     * answer requests, in the supplied {@link TimeUnit}, or {@code
+     * -1} if it has not answered any.
+     *
+     * @param unit the {@link TimeUnit} in which to express the
+     * estimate; must not be {@code null}
+     *
+     * @return the estimate, or {@code -1}
+     *
+     * @exception NullPointerException if {@code unit} is {@code null}
+     */
+    public final long getLatencyEstimate(final TimeUnit unit) {
+      Objects.requireNonNull(unit, "unit == null");
+      final long estimate = this.estimate;
+      return estimate < 0L ? -1L : unit.convert(estimate, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the score by which this replica is ranked at the
+     * supplied time: {@code 0} if it needs probing, {@link
+     * Long#MAX_VALUE} if its first probe is outstanding, and otherwise
+     * its estimate.
+     *
+     * @param now the current value of {@link System#nanoTime()}
+     *
+     * @return the score; never negative
+     */
+    private final long score(final long now) {
+      if (now - this.lastUsed >= REPROBE_INTERVAL) {
+        return 0L;
+      }
+      final long estimate = this.estimate;
+      return estimate < 0L ? Long.MAX_VALUE : Math.max(1L, estimate);
+    }
+
+    /**
+     * Records that this replica is being probed, so that concurrent
+     * requests do not all probe it.
+     *
+     * @param now the current value of {@link System#nanoTime()}
+     */
+    private final void markProbed(final long now) {
+      this.lastUsed = now;
+    }
+
+    /**
+     * Folds the supplied time to first byte into the estimate.
+     *
+     * @param nanoseconds the time, in nanoseconds
+     */
+    private final void recordLatency(final long nanoseconds) {
+      final long estimate = this.estimate;
+      this.estimate = estimate < 0L ? Math.max(1L, nanoseconds) : estimate + (long)(ALPHA * (nanoseconds - estimate));
+      this.lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Penalizes the estimate after a failure.
+     */
+    private final void recordFailure() {
+      this.estimate = Math.max(FAILURE_PENALTY, 2L * Math.max(1L, this.estimate));
+      this.lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Returns a {@link String} representation of this {@link
+     * Replica}.
+     *
+     * <p>This method never returns {@code null}.</p>
+     *
+     * @return a non-{@code null} {@link String}
+     */
+    @Override
+    public final String toString() {
+      return this.bucketName + " (" + this.getLatencyEstimate(TimeUnit.MICROSECONDS) + "us)";
+    }
+
+  }
+
+}
@@ -0,0 +1,819 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.IOException;
+
+import java.net.URL;
+
+import java.nio.ByteBuffer;
+
+import java.security.CodeSource;
+
+import java.security.cert.Certificate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.amazonaws.AmazonClientException;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * A {@linkplain ClassLoader#registerAsParallelCapable()
+ * parallel-capable} {@link AbstractS3ClassLoader} that {@linkplain
+ * #findClass(String) loads <code>Class</code>es} and resources from
+ * an ordered list of {@linkplain Source sources}, each a bucket and a
+ * key prefix, the first source that holds an object taking
+ * precedence.
+ *
+ * <p>A typical search path lists an overlay bucket holding hotfixes
+ * ahead of the buckets holding the classes they fix.</p>
+ *
+ * <p>Sources whose {@linkplain Source#getManifest() manifests} do not
+ * list an object are skipped without communicating with Amazon S3.
+ * If the first source that remains has a manifest, the object is
+ * fetched from it directly.  Otherwise every remaining source must be
+ * asked.  Without an {@link Executor} they are asked one after
+ * another, in order, until one holds the object.  With one, they are
+ * asked all at once and their answers are considered in order, so
+ * that an object found in no source costs one round trip rather than
+ * one per source.  In the latter case the fetches from lower-priority
+ * sources that turn out not to be needed are not aborted; they
+ * complete in the background, populating the {@linkplain
+ * #setObjectCache(ObjectCache, boolean) object cache}, if any.</p>
+ *
+ * <p>The source in which each such object was found is remembered,
+ * so later requests for it, and the {@link CodeSource} of the class
+ * it defines, go straight to that source.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Source
+ *
+ * @see AbstractS3ClassLoader
+ */
+public class S3SearchPathClassLoader extends AbstractS3ClassLoader {
+
+  /**
+   * Static initializer; calls the {@link
+   * ClassLoader#registerAsParallelCapable()} method.
+   */
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  /**
+   * The {@link Source}s, in order of precedence.
+   *
+   * <p>This field is never {@code null} and is never empty.</p>
+   */
+  private final List<Source> sources;
+
+  /**
+   * The {@link CodeSource}s of the {@linkplain #sources sources},
+   * indexed as they are; elements may be {@code null}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final List<CodeSource> codeSources;
+
+  /**
+   * The {@link Executor} on which lower-priority sources are asked
+   * for objects, or {@code null} if sources are asked one after
+   * another.
+   *
+   * <p>This field may be {@code null}.</p>
+   */
+  private final Executor executor;
+
+  /**
+   * The indices of the sources in which objects that had to be
+   * searched for were found, indexed by class or resource name.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final ConcurrentMap<String, Integer> resolutions;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link S3SearchPathClassLoader}.
+   *
+   * @param parent the {@link ClassLoader} to which class loading
+   * requests will be initially delegated; may be {@code null}
+   *
+   * @param client the {@link AmazonS3} implementation to use to
+   * communicate with <a href="https://aws.amazon.com/s3/">Amazon's
+   * Simple Storage Service</a>; must not be {@code null}
+   *
+   * @param sources the {@link Source}s to search, in order of
+   * precedence; must not be {@code null}, empty or contain {@code
+   * null} elements; is copied
+   *
+   * @param executor the {@link Executor} on which lower-priority
+   * sources are asked for objects in parallel with the first; may be
+   * {@code null} in which case sources are asked one after another
+   *
+   * @exception NullPointerException if {@code client} or {@code
+   * sources} is {@code null} or {@code sources} contains {@code null}
+   *
+   * @exception IllegalArgumentException if {@code sources} is empty
+   *
+   * @see AbstractS3ClassLoader#AbstractS3ClassLoader(ClassLoader,
+   * AmazonS3)
+   */
+  public S3SearchPathClassLoader(final ClassLoader parent,
+                                 final AmazonS3 client,
+                                 final List<? extends Source> sources,
+                                 final Executor executor) {
+    super(parent, client);
+    Objects.requireNonNull(sources, "sources == null");
+    if (sources.isEmpty()) {
+      throw new IllegalArgumentException("sources.isEmpty()");
+    }
+    final List<Source> sourceList = new ArrayList<>(sources);
+    final List<CodeSource> codeSources = new ArrayList<>(sourceList.size());
+    for (final Source source : sourceList) {
+      Objects.requireNonNull(source, "sources contains null");
+      URL url = null;
+      try {
+        url = client.getUrl(source.getBucketName(), source.getPrefix().isEmpty() ? null : source.getPrefix());
+      } catch (final AmazonClientException ignore) {
+
+      }
+      codeSources.add(url == null ? null : new CodeSource(url, (Certificate[])null /* no certificates */));
+    }
+    this.sources = Collections.unmodifiableList(sourceList);
+    this.codeSources = Collections.unmodifiableList(codeSources);
+    this.executor = executor;
+    this.resolutions = new ConcurrentHashMap<>();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the {@link Source}s this {@link S3SearchPathClassLoader}
+   * searches, in order of precedence.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null}, non-empty, unmodifiable {@link List}
+   * of {@link Source}s
+   */
+  public final List<Source> getSources() {
+    return this.sources;
+  }
+
+  /**
+   * Returns a {@link GetObjectRequest} for the class with the
+   * supplied name, as described in the {@linkplain
+   * S3SearchPathClassLoader class documentation}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>Overrides of this method are permitted to return {@code null},
+   * which will typically cause a {@link ClassNotFoundException} to be
+   * thrown by the {@link #findClass(String)} method.</p>
+   *
+   * @param className the name of a Java class to load as supplied by
+   * the user; may be {@code null}
+   *
+   * @return a non-{@code null} {@link GetObjectRequest}
+   *
+   * @see #findClass(String)
+   */
+  @Override
+  protected GetObjectRequest classNameToGetObjectRequest(final String className) {
+    return this.newRequest(className);
+  }
+
+  /**
+   * Returns a {@link GetObjectRequest} for the resource with the
+   * supplied name, as described in the {@linkplain
+   * S3SearchPathClassLoader class documentation}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>As with {@link S3ClassLoader}, a resource that names a class
+   * file, such as {@code com/foo/Bar.class}, resolves to the object
+   * holding the corresponding class, {@code com.foo.Bar}, unless some
+   * source's {@linkplain Source#getManifest() manifest} lists an
+   * object stored under the resource name itself.</p>
+   *
+   * <p>Overrides of this method are permitted to return {@code null},
+   * which will typically cause {@code null} to be returned by the
+   * {@link #findResource(String)} method.</p>
+   *
+   * @param resourceName the name of a resource to find as supplied by
+   * the user; may be {@code null}
+   *
+   * @return a non-{@code null} {@link GetObjectRequest}
+   *
+   * @see #findResource(String)
+   */
+  @Override
+  protected GetObjectRequest resourceNameToGetObjectRequest(final String resourceName) {
+    final String className = S3ClassLoader.toClassName(resourceName);
+    if (className != null) {
+      boolean listed = false;
+      for (final Source source : this.sources) {
+        final BucketManifest manifest = source.getManifest();
+        if (manifest != null && manifest.contains(source.getPrefix() + resourceName)) {
+          listed = true;
+          break;
+        }
+      }
+      if (!listed) {
+        return this.newRequest(className);
+      }
+    }
+    return this.newRequest(resourceName);
+  }
+
+  /**
+   * Returns a {@link GetObjectRequest} for the object with the
+   * supplied name.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param name the name of a class or resource; may be {@code null}
+   *
+   * @return a {@link SourceRequest} if the object is known to be in,
+   * or can only be in, a single source, or if no source can hold it;
+   * otherwise a {@link SearchRequest}
+   */
+  private final GetObjectRequest newRequest(final String name) {
+    final Integer resolution = name == null ? null : this.resolutions.get(name);
+    if (resolution != null) {
+      return new SourceRequest(this.sources.get(resolution.intValue()), resolution.intValue(), name);
+    }
+    final List<SourceRequest> candidates = new ArrayList<>(this.sources.size());
+    for (int i = 0; i < this.sources.size(); i++) {
+      final Source source = this.sources.get(i);
+      final SourceRequest request = new SourceRequest(source, i, name);
+      final BucketManifest manifest = source.getManifest();
+      if (manifest == null || manifest.contains(request.getKey())) {
+        candidates.add(request);
+        if (manifest != null) {
+          // Lower-priority sources cannot win.
+          break;
+        }
+      }
+    }
+    switch (candidates.size()) {
+    case 0:
+      // No source can hold the object; the first source's manifest
+      // will say so.
+      return new SourceRequest(this.sources.get(0), 0, name);
+    case 1:
+      return candidates.get(0);
+    default:
+      return new SearchRequest(name, candidates);
+    }
+  }
+
+  /**
+   * Returns the contents of the object described by the supplied
+   * {@link GetObjectRequest}, searching the sources it may be in if
+   * it is a {@link SearchRequest}.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest} describing the object
+   * to fetch; must not be {@code null}
+   *
+   * @return the contents of the object, or {@code null} if it does
+   * not exist
+   *
+   * @exception IOException if there was a problem reading the
+   * object's contents
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   *
+   * @see AbstractS3ClassLoader#getObjectBytes(GetObjectRequest)
+   */
+  @Override
+  protected byte[] getObjectBytes(final GetObjectRequest request) throws IOException {
+    if (request instanceof SearchRequest) {
+      return this.search((SearchRequest)request);
+    } else {
+      return super.getObjectBytes(request);
+    }
+  }
+
+  /**
+   * Returns a {@link ByteBuffer} holding the contents of the object
+   * described by the supplied {@link GetObjectRequest}, searching the
+   * sources it may be in if it is a {@link SearchRequest}, and
+   * otherwise reading it into the supplied pooled buffer.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest} describing the object
+   * to fetch; must not be {@code null}
+   *
+   * @param buffer a cleared heap {@link ByteBuffer} into which the
+   * contents may be read; must not be {@code null}
+   *
+   * @return a {@link ByteBuffer} holding the contents of the object,
+   * or {@code null}
+   *
+   * @exception IOException if there was a problem reading the
+   * object's contents
+   *
+   * @see #readObject(GetObjectRequest, ByteBuffer)
+   */
+  @Override
+  protected ByteBuffer getObjectBuffer(final GetObjectRequest request, final ByteBuffer buffer) throws IOException {
+    if (request instanceof SearchRequest) {
+      final byte[] bytes = this.search((SearchRequest)request);
+      return bytes == null ? null : ByteBuffer.wrap(bytes);
+    } else {
+      return this.readObject(request, buffer);
+    }
+  }
+
+  /**
+   * Asks the candidate sources of the supplied {@link SearchRequest}
+   * for its object and returns the contents held by the
+   * highest-priority source that has it, remembering which source
+   * that was.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>A failure to ask a source is reported even if a
+   * lower-priority source holds the object, since the failed source
+   * might have held a different version of it.</p>
+   *
+   * @param request the {@link SearchRequest}; must not be {@code null}
+   *
+   * @return the contents of the object, or {@code null} if no source
+   * holds it
+   *
+   * @exception IOException if there was a problem reading the
+   * object's contents
+   *
+   * @exception AmazonClientException if there was a problem
+   * communicating with Amazon S3
+   */
+  private final byte[] search(final SearchRequest request) throws IOException {
+    final List<SourceRequest> candidates = request.candidates;
+    final int size = candidates.size();
+    final List<FutureTask<byte[]>> tasks = new ArrayList<>(size);
+    for (final SourceRequest candidate : candidates) {
+      tasks.add(new FutureTask<>(new Callable<byte[]>() {
+          @Override
+          public final byte[] call() throws IOException {
+            return S3SearchPathClassLoader.super.getObjectBytes(candidate);
+          }
+        }));
+    }
+    final Executor executor = this.executor;
+    if (executor != null) {
+      // The first candidate is asked on this thread.
+      for (int i = 1; i < size; i++) {
+        try {
+          executor.execute(tasks.get(i));
+        } catch (final RejectedExecutionException e) {
+          // The candidate will be asked on this thread in its turn.
+        }
+      }
+    }
+    for (int i = 0; i < size; i++) {
+      final FutureTask<byte[]> task = tasks.get(i);
+      // Running a task that is already running or done does nothing.
+      task.run();
+      final byte[] bytes = getUninterruptibly(task);
+      if (bytes != null) {
+        final SourceRequest winner = candidates.get(i);
+        this.resolutions.putIfAbsent(request.name, Integer.valueOf(winner.index));
+        return bytes;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a {@link URL} to the resource with the supplied name, or
+   * {@code null} if it could not be located.
+   *
+   * <p>If the resource must be searched for, it is fetched in order
+   * to find out which source holds it.</p>
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param name the name of the resource to locate; may be {@code
+   * null} in which case {@code null} will be returned
+   *
+   * @return a {@link URL} to the resource, or {@code null}
+   *
+   * @see AbstractS3ClassLoader#findResource(String)
+   */
+  @Override
+  protected URL findResource(final String name) {
+    if (name != null && this.resolve(name)) {
+      return super.findResource(name);
+    }
+    return null;
+  }
+
+  /**
+   * Returns an {@link Enumeration} holding a {@link URL} to the
+   * resource with the supplied name, if it could be located.
+   *
+   * <p>If the resource must be searched for, it is fetched in order
+   * to find out which source holds it.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param name the name identifying resources to find; may be {@code
+   * null} in which case an {@linkplain Collections#emptyEnumeration()
+   * empty <code>Enumeration</code>} will be returned
+   *
+   * @return a non-{@code null} {@link Enumeration} of {@link URL}s
+   *
+   * @exception IOException if an error occurs
+   *
+   * @see AbstractS3ClassLoader#findResources(String)
+   */
+  @Override
+  protected Enumeration<URL> findResources(final String name) throws IOException {
+    if (name != null && this.resolve(name)) {
+      return super.findResources(name);
+    }
+    return Collections.emptyEnumeration();
+  }
+
+  /**
+   * Ensures that the resource with the supplied name will not need
+   * to be searched for, searching for it if necessary, and returns
+   * {@code false} if the search showed that it does not exist.
+   *
+   * @param name the name of the resource; must not be {@code null}
+   *
+   * @return {@code false} if the resource is known not to exist;
+   * {@code true} otherwise
+   */
+  private final boolean resolve(final String name) {
+    final GetObjectRequest request = this.resourceNameToGetObjectRequest(name);
+    if (request instanceof SearchRequest) {
+      try {
+        return this.search((SearchRequest)request) != null;
+      } catch (final AmazonClientException | IOException e) {
+        // The failure was recorded in the metrics where it occurred.
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns {@code false} if the supplied {@link GetObjectRequest}
+   * names an object that its source's {@linkplain Source#getManifest()
+   * manifest} does not list, and {@code true} otherwise.
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return {@code false} if the object is known not to exist; {@code
+   * true} otherwise
+   */
+  @Override
+  protected boolean mayExist(final GetObjectRequest request) {
+    if (request instanceof SourceRequest) {
+      final BucketManifest manifest = ((SourceRequest)request).source.getManifest();
+      return manifest == null || manifest.contains(request.getKey());
+    }
+    return true;
+  }
+
+  /**
+   * Returns the {@link S3ObjectSummary} recorded in the {@linkplain
+   * Source#getManifest() manifest} of the source of the supplied
+   * {@link GetObjectRequest}, or {@code null} if there is no such
+   * {@link S3ObjectSummary}.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest} in question; must not
+   * be {@code null}
+   *
+   * @return an {@link S3ObjectSummary}, or {@code null}
+   */
+  @Override
+  protected S3ObjectSummary getObjectSummary(final GetObjectRequest request) {
+    if (request instanceof SourceRequest) {
+      final BucketManifest manifest = ((SourceRequest)request).source.getManifest();
+      if (manifest != null) {
+        return manifest.getObjectSummary(request.getKey());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a {@link CodeSource} for the source from which the object
+   * described by the supplied {@link GetObjectRequest} was, or will
+   * be, fetched.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param request the {@link GetObjectRequest}; may be {@code null}
+   * in which case {@code null} will be returned
+   *
+   * @return a {@link CodeSource}, or {@code null}
+   */
+  @Override
+  protected CodeSource getCodeSource(final GetObjectRequest request) {
+    if (request instanceof SourceRequest) {
+      return this.codeSources.get(((SourceRequest)request).index);
+    } else if (request instanceof SearchRequest) {
+      final SearchRequest searchRequest = (SearchRequest)request;
+      final Integer resolution = this.resolutions.get(searchRequest.name);
+      return this.codeSources.get(resolution == null ? searchRequest.candidates.get(0).index : resolution.intValue());
+    } else {
+      return super.getCodeSource(request);
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An immutable description of a place in which a {@link
+   * S3SearchPathClassLoader} looks for objects: a bucket, a prefix
+   * prepended to the names of classes and resources to form keys, and
+   * optionally a {@link BucketManifest} listing the keys that exist.
+   *
+   * <h2>Thread Safety</h2>
+   *
+   * <p>This class is immutable and safe for concurrent use by
+   * multiple threads.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see S3SearchPathClassLoader
+   */
+  public static final class Source {
+
+    /**
+     * The name of the bucket.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final String bucketName;
+
+    /**
+     * The prefix prepended to names to form keys.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final String prefix;
+
+    /**
+     * Whether requests to the bucket are made with the "requester
+     * pays" flag set.
+     */
+    private final boolean requesterPays;
+
+    /**
+     * A {@link BucketManifest} listing the objects in the bucket.
+     *
+     * <p>This field may be {@code null}.</p>
+     */
+    private final BucketManifest manifest;
+
+    /**
+     * Creates a new {@link Source} with no prefix and no manifest.
+     *
+     * @param bucketName the name of the bucket; must not be {@code
+     * null}
+     *
+     * @param requesterPays whether requests to the bucket are made
+     * with the "requester pays" flag set
+     *
+     * @exception NullPointerException if {@code bucketName} is {@code
+     * null}
+     *
+     * @see #Source(String, String, boolean, BucketManifest)
+     */
+    public Source(final String bucketName, final boolean requesterPays) {
+      this(bucketName, null, requesterPays, null);
+    }
+
+    /**
+     * Creates a new {@link Source}.
+     *
+     * @param bucketName the name of the bucket; must not be {@code
+     * null}
+     *
+     * @param prefix the prefix prepended to the names of classes and
+     * resources to form keys, such as {@code hotfixes/}; may be
+     * {@code null} in which case no prefix is used
+     *
+     * @param requesterPays whether requests to the bucket are made
+     * with the "requester pays" flag set
+     *
+     * @param manifest a {@link BucketManifest} listing the objects in
+     * the bucket, or at least every object under {@code prefix}; may
+     * be {@code null}
+     *
+     * @exception NullPointerException if {@code bucketName} is {@code
+     * null}
+     *
+     * @exception IllegalArgumentException if {@code manifest} is
+     * non-{@code null} and describes a bucket other than the one
+     * identified by the {@code bucketName} parameter
+     */
+    public Source(final String bucketName, final String prefix, final boolean requesterPays, final BucketManifest manifest) {
+      super();
+      Objects.requireNonNull(bucketName, "bucketName == null");
+      if (manifest != null && !bucketName.equals(manifest.getBucketName())) {
+        throw new IllegalArgumentException("!bucketName.equals(manifest.getBucketName()): " + bucketName + ", " + manifest.getBucketName());
+      }
+      this.bucketName = bucketName;
+      this.prefix = prefix == null ? "" : prefix;
+      this.requesterPays = requesterPays;
+      this.manifest = manifest;
+    }
+
+    /**
+     * Returns the name of the bucket.
+     *
+     * @return the non-{@code null} name of the bucket
+     */
+    public final String getBucketName() {
+      return this.bucketName;
+    }
+
+    /**
+     * Returns the prefix prepended to the names of classes and
+     * resources to form keys.
+     *
+     * @return the non-{@code null} prefix, which may be empty
+     */
+    public final String getPrefix() {
+      return this.prefix;
+    }
+
+    /**
+     * Returns whether requests to the bucket are made with the
+     * "requester pays" flag set.
+     *
+     * @return whether the requester pays
+     */
+    public final boolean isRequesterPays() {
+      return this.requesterPays;
+    }
+
+    /**
+     * Returns the {@link BucketManifest} listing the objects in the
+     * bucket, or {@code null} if there is none.
+     *
+     * @return a {@link BucketManifest}, or {@code null}
+     */
+    public final BucketManifest getManifest() {
+      return this.manifest;
+    }
+
+    /**
+     * Returns a {@link String} representation of this {@link Source}.
+     *
+     * <p>This method never returns {@code null}.</p>
+     *
+     * @return a non-{@code null} {@link String}
+     */
+    @Override
+    public final String toString() {
+      return this.bucketName + "/" + this.prefix;
+    }
+
+  }
+
+  /**
+   * A {@link GetObjectRequest} for an object in a particular {@link
+   * Source}.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class SourceRequest extends GetObjectRequest {
+
+    /**
+     * The version of this class for serialization purposes.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The {@link Source}.
+     *
+     * <p>This field is never {@code null}.</p>
+     */
+    private final Source source;
+
+    /**
+     * The index of the {@link Source} in the search path.
+     */
+    private final int index;
+
+    /**
+     * Creates a new {@link SourceRequest}.
+     *
+     * @param source the {@link Source}; must not be {@code null}
+     *
+     * @param index the index of the {@link Source} in the search path
+     *
+     * @param name the name of the class or resource; may be {@code
+     * null}
+     */
+    private SourceRequest(final Source source, final int index, final String name) {
+      super(source.getBucketName(), name == null ? null : source.getPrefix() + name);
+      this.source = source;
+      this.index = index;
+      this.setRequesterPays(source.isRequesterPays());
+    }
+
+  }
+
+  /**
+   * A {@link GetObjectRequest} for an object that may be in any of
+   * several {@link Source}s.
+   *
+   * <p>Its bucket name and key are those of its first candidate.</p>
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class SearchRequest extends GetObjectRequest {
+
+    /**
+     * The version of this class for serialization purposes.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The name of the class or resource.
+     */
+    private final String name;
+
+    /**
+     * The requests for the object in each {@link Source} that may
+     * hold it, in order of precedence.
+     *
+     * <p>This field is never {@code null} and holds at least two
+     * elements.</p>
+     */
+    private final List<SourceRequest> candidates;
+
+    /**
+     * Creates a new {@link SearchRequest}.
+     *
+     * @param name the name of the class or resource; may be {@code
+     * null}
+     *
+     * @param candidates the candidate requests; must not be {@code
+     * null} and must hold at least two elements
+     */
+    private SearchRequest(final String name, final List<SourceRequest> candidates) {
+      super(candidates.get(0).getBucketName(), candidates.get(0).getKey());
+      this.name = name;
+      this.candidates = candidates;
+    }
+
+  }
+
+}
@@ -0,0 +1,133 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads may increment at once without
+ * contending with one another.
+ *
+ * <p>The count is spread across several cells, each on its own cache
+ * line, and each thread adds to the cell selected by its identifier;
+ * the {@linkplain #sum() sum} of the cells is the count.  This is the
+ * technique of {@code java.util.concurrent.atomic.LongAdder}, which
+ * is not available on all of the platforms this project
+ * supports.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class StripedCounter {
+
+  /**
+   * The number of {@code long} elements between the starts of
+   * adjacent cells, chosen so that each cell occupies its own 64-byte
+   * cache line.
+   */
+  private static final int STRIDE = 8;
+
+  /**
+   * The number of cells, which is a power of two.
+   */
+  static final int STRIPES = stripes();
+
+  /**
+   * The cells.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicLongArray cells;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link StripedCounter} whose count is zero.
+   */
+  StripedCounter() {
+    super();
+    this.cells = new AtomicLongArray(STRIPES * STRIDE);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Adds one to this {@link StripedCounter}.
+   */
+  final void increment() {
+    this.add(1L);
+  }
+
+  /**
+   * Adds the supplied amount to this {@link StripedCounter}.
+   *
+   * @param amount the amount to add
+   */
+  final void add(final long amount) {
+    this.cells.getAndAdd(stripe() * STRIDE, amount);
+  }
+
+  /**
+   * Returns the count.
+   *
+   * <p>The result is exact if no thread is concurrently modifying this
+   * {@link StripedCounter}.</p>
+   *
+   * @return the count
+   */
+  final long sum() {
+    long returnValue = 0L;
+    for (int i = 0; i < STRIPES; i++) {
+      returnValue += this.cells.get(i * STRIDE);
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the index of the cell the calling thread should use.
+   *
+   * @return an index from {@code 0} to {@link #STRIPES} exclusive
+   */
+  static final int stripe() {
+    final long id = Thread.currentThread().getId();
+    // Spread consecutive thread identifiers across cells.
+    return (int)((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+  }
+
+  /**
+   * Returns the number of cells to use: the smallest power of two no
+   * smaller than twice the number of available processors, capped at
+   * 64.
+   *
+   * @return a power of two
+   */
+  private static final int stripes() {
+    final int target = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+    int returnValue = 1;
+    while (returnValue < target) {
+      returnValue <<= 1;
+    }
+    return returnValue;
+  }
+
+}
@@ -0,0 +1,1033 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.URL;
+
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.amazonaws.AmazonClientException;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * An in-process {@link com.amazonaws.services.s3.AmazonS3}
+ * implementation for tests that serves objects from memory or from a
+ * local directory and can simulate the ways a real connection to
+ * Amazon S3 degrades.
+ *
+ * <p>Objects are {@linkplain #putObject(String, String, byte[])
+ * stored in memory}, or, if a directory was supplied at construction
+ * time, read from the file whose path relative to that directory is
+ * the bucket name followed by the key.  Objects stored in memory take
+ * precedence.</p>
+ *
+ * <p>The following degradations may be configured, and are applied
+ * to every request: a {@linkplain #setLatency(long, long, TimeUnit)
+ * log-normally distributed latency}; a {@linkplain
+ * #setBytesPerSecond(long) cap} on the rate at which object contents
+ * are delivered; a {@linkplain #setSlowDownRate(double) rate} at
+ * which requests are refused with {@code 503 SlowDown}; a {@linkplain
+ * #setResetRate(double) rate} at which connections are reset halfway
+ * through an object's contents; a {@linkplain
+ * #setTruncationRate(double) rate} at which object contents end early
+ * without error; and a {@linkplain #setMaximumReadSize(int) limit} on
+ * the number of bytes any single read returns.  Random choices are
+ * made with a {@link Random} whose {@linkplain #setSeed(long) seed}
+ * may be set so that a degraded run can be reproduced.</p>
+ *
+ * <p>{@link #getObject(GetObjectRequest)}, including ranged requests,
+ * {@link #getObjectMetadata(GetObjectMetadataRequest)}, {@link
+ * #listObjects(ListObjectsRequest)}, {@link
+ * #listNextBatchOfObjects(ObjectListing)}, {@link
+ * #putObject(PutObjectRequest)} and {@link #getUrl(String, String)}
+ * are implemented; all other operations throw {@link
+ * UnsupportedOperationException}.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+public class FakeAmazonS3 extends AbstractAmazonS3 {
+
+  /**
+   * The number of standard deviations above the mean at which the
+   * 99th percentile of a normal distribution lies.
+   */
+  private static final double Z_99 = 2.3263478740408408;
+
+  /**
+   * The directory from which objects not stored in memory are read.
+   *
+   * <p>This field may be {@code null}.</p>
+   */
+  private final Path directory;
+
+  /**
+   * The objects stored in memory, indexed by bucket name, a slash and
+   * key.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final ConcurrentSkipListMap<String, byte[]> objects;
+
+  /**
+   * The source of random choices.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final Random random;
+
+  /**
+   * The number of {@link #getObject(GetObjectRequest)} calls made.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicLong requestCount;
+
+  /**
+   * The median latency, in nanoseconds.
+   */
+  private volatile long medianLatencyNanoseconds;
+
+  /**
+   * The 99th percentile latency, in nanoseconds.
+   */
+  private volatile long ninetyNinthPercentileLatencyNanoseconds;
+
+  /**
+   * The rate at which object contents are delivered, in bytes per
+   * second, or {@code 0} if delivery is not throttled.
+   */
+  private volatile long bytesPerSecond;
+
+  /**
+   * The probability that a request is refused with {@code 503
+   * SlowDown}.
+   */
+  private volatile double slowDownRate;
+
+  /**
+   * The probability that a connection is reset halfway through an
+   * object's contents.
+   */
+  private volatile double resetRate;
+
+  /**
+   * The probability that an object's contents end halfway through
+   * without error.
+   */
+  private volatile double truncationRate;
+
+  /**
+   * The largest number of bytes a single read returns, or {@code 0}
+   * if reads are not limited.
+   */
+  private volatile int maximumReadSize;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link FakeAmazonS3} that serves only objects
+   * stored in memory.
+   *
+   * @see #putObject(String, String, byte[])
+   */
+  public FakeAmazonS3() {
+    this(null);
+  }
+
+  /**
+   * Creates a new {@link FakeAmazonS3} that serves objects stored in
+   * memory and files beneath the supplied directory.
+   *
+   * @param directory the directory whose subdirectories are buckets
+   * and whose files are objects; may be {@code null}
+   *
+   * @see #putObject(String, String, byte[])
+   */
+  public FakeAmazonS3(final Path directory) {
+    super();
+    this.directory = directory;
+    this.objects = new ConcurrentSkipListMap<>();
+    this.random = new Random();
+    this.requestCount = new AtomicLong();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Stores the supplied contents in memory as the object identified
+   * by the supplied bucket name and key, replacing any existing
+   * object.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @param contents the contents; must not be {@code null}; is not
+   * copied
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   */
+  public final void putObject(final String bucketName, final String key, final byte[] contents) {
+    Objects.requireNonNull(contents, "contents == null");
+    this.objects.put(toPath(bucketName, key), contents);
+  }
+
+  /**
+   * Removes the object stored in memory under the supplied bucket
+   * name and key, if there is one.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  @Override
+  public void deleteObject(final String bucketName, final String key) {
+    this.objects.remove(toPath(bucketName, key));
+  }
+
+  /**
+   * Sets the seed of the {@link Random} used to decide how each
+   * request is degraded.
+   *
+   * @param seed the seed
+   */
+  public final void setSeed(final long seed) {
+    this.random.setSeed(seed);
+  }
+
+  /**
+   * Sets the distribution of the time each request takes before it
+   * returns.
+   *
+   * <p>Latencies are drawn from a log-normal distribution with the
+   * supplied median and 99th percentile, which resembles the
+   * long-tailed latencies of real requests.  If the two are equal
+   * every request takes the same time; if both are {@code 0}, the
+   * default, requests return immediately.</p>
+   *
+   * @param median the median latency; must not be negative
+   *
+   * @param ninetyNinthPercentile the 99th percentile latency; must
+   * not be less than {@code median}
+   *
+   * @param unit the {@link TimeUnit} in which the latencies are
+   * expressed; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code median} is negative
+   * or greater than {@code ninetyNinthPercentile}
+   */
+  public final synchronized void setLatency(final long median, final long ninetyNinthPercentile, final TimeUnit unit) {
+    Objects.requireNonNull(unit, "unit == null");
+    if (median < 0L) {
+      throw new IllegalArgumentException("median < 0: " + median);
+    } else if (ninetyNinthPercentile < median) {
+      throw new IllegalArgumentException("ninetyNinthPercentile < median: " + ninetyNinthPercentile);
+    }
+    this.medianLatencyNanoseconds = unit.toNanos(median);
+    this.ninetyNinthPercentileLatencyNanoseconds = unit.toNanos(ninetyNinthPercentile);
+  }
+
+  /**
+   * Sets the rate at which object contents are delivered.
+   *
+   * @param bytesPerSecond the rate, in bytes per second, or {@code 0},
+   * the default, if delivery should not be throttled; must not be
+   * negative
+   *
+   * @exception IllegalArgumentException if {@code bytesPerSecond} is
+   * negative
+   */
+  public final void setBytesPerSecond(final long bytesPerSecond) {
+    if (bytesPerSecond < 0L) {
+      throw new IllegalArgumentException("bytesPerSecond < 0: " + bytesPerSecond);
+    }
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * Sets the probability that a request is refused, as Amazon S3
+   * refuses requests that exceed its request rate, with an {@link
+   * AmazonS3Exception} whose status code is {@code 503} and whose
+   * error code is {@code SlowDown}.
+   *
+   * @param slowDownRate the probability, from {@code 0}, the default,
+   * to {@code 1}
+   *
+   * @exception IllegalArgumentException if {@code slowDownRate} is
+   * not a probability
+   */
+  public final void setSlowDownRate(final double slowDownRate) {
+    this.slowDownRate = checkProbability(slowDownRate);
+  }
+
+  /**
+   * Sets the probability that the connection delivering an object's
+   * contents is reset halfway through them, causing a read to throw a
+   * {@link SocketException}.
+   *
+   * @param resetRate the probability, from {@code 0}, the default, to
+   * {@code 1}
+   *
+   * @exception IllegalArgumentException if {@code resetRate} is not a
+   * probability
+   */
+  public final void setResetRate(final double resetRate) {
+    this.resetRate = checkProbability(resetRate);
+  }
+
+  /**
+   * Sets the probability that an object's contents end halfway
+   * through without error, although its metadata reports its full
+   * length.
+   *
+   * @param truncationRate the probability, from {@code 0}, the
+   * default, to {@code 1}
+   *
+   * @exception IllegalArgumentException if {@code truncationRate} is
+   * not a probability
+   */
+  public final void setTruncationRate(final double truncationRate) {
+    this.truncationRate = checkProbability(truncationRate);
+  }
+
+  /**
+   * Sets the largest number of bytes that a single read of an
+   * object's contents returns, no matter how many were requested.
+   *
+   * @param maximumReadSize the largest number of bytes, or {@code 0},
+   * the default, if reads should not be limited; must not be
+   * negative
+   *
+   * @exception IllegalArgumentException if {@code maximumReadSize} is
+   * negative
+   */
+  public final void setMaximumReadSize(final int maximumReadSize) {
+    if (maximumReadSize < 0) {
+      throw new IllegalArgumentException("maximumReadSize < 0: " + maximumReadSize);
+    }
+    this.maximumReadSize = maximumReadSize;
+  }
+
+  /**
+   * Returns the number of {@link #getObject(GetObjectRequest)} calls
+   * made, including those that failed.
+   *
+   * @return the number of calls; never negative
+   */
+  public final long getRequestCount() {
+    return this.requestCount.get();
+  }
+
+  /**
+   * Returns the object identified by the supplied {@link
+   * GetObjectRequest}, subject to the configured degradations.
+   *
+   * <p>Ranged requests and non-matching ETag constraints are
+   * honored.</p>
+   *
+   * @param request the {@link GetObjectRequest}; must not be {@code
+   * null}
+   *
+   * @return an {@link S3Object}, or {@code null} if a non-matching
+   * ETag constraint was not met, as Amazon S3's client returns
+   *
+   * @exception AmazonS3Exception if the object does not exist or the
+   * request was refused
+   *
+   * @exception AmazonClientException if the object could not be read
+   * from the local directory
+   */
+  @Override
+  public S3Object getObject(final GetObjectRequest request) {
+    Objects.requireNonNull(request, "request == null");
+    this.requestCount.incrementAndGet();
+    this.degrade();
+    byte[] contents = this.get(request.getBucketName(), request.getKey());
+    final ObjectMetadata metadata = newObjectMetadata(contents);
+    final List<String> nonmatchingETags = request.getNonmatchingETagConstraints();
+    if (nonmatchingETags != null && nonmatchingETags.contains(metadata.getETag())) {
+      return null;
+    }
+    final long[] range = request.getRange();
+    if (range != null && range.length == 2 && contents.length > 0) {
+      final int start = (int)Math.min(range[0], contents.length);
+      final int end = (int)Math.min(range[1] + 1L, contents.length);
+      if (start >= end) {
+        final AmazonS3Exception notSatisfiable = new AmazonS3Exception("The requested range is not satisfiable");
+        notSatisfiable.setStatusCode(416);
+        notSatisfiable.setErrorCode("InvalidRange");
+        throw notSatisfiable;
+      }
+      metadata.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + contents.length);
+      contents = Arrays.copyOfRange(contents, start, end);
+      metadata.setContentLength(contents.length);
+    }
+    final double failure = this.nextDouble();
+    final long failAt;
+    final long endAt;
+    if (failure < this.resetRate) {
+      failAt = contents.length / 2;
+      endAt = -1L;
+    } else if (failure < this.resetRate + this.truncationRate) {
+      failAt = -1L;
+      endAt = contents.length / 2;
+    } else {
+      failAt = -1L;
+      endAt = -1L;
+    }
+    final S3Object returnValue = new S3Object();
+    returnValue.setBucketName(request.getBucketName());
+    returnValue.setKey(request.getKey());
+    returnValue.setObjectMetadata(metadata);
+    returnValue.setObjectContent(new DegradedInputStream(new ByteArrayInputStream(contents),
+                                                         this.bytesPerSecond,
+                                                         this.maximumReadSize,
+                                                         failAt,
+                                                         endAt));
+    return returnValue;
+  }
+
+  /**
+   * Returns the metadata of the object identified by the supplied
+   * {@link GetObjectMetadataRequest}, subject to the configured
+   * latency and {@linkplain #setSlowDownRate(double) refusals}.
+   *
+   * @param request the {@link GetObjectMetadataRequest}; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link ObjectMetadata}
+   *
+   * @exception AmazonS3Exception if the object does not exist or the
+   * request was refused
+   */
+  @Override
+  public ObjectMetadata getObjectMetadata(final GetObjectMetadataRequest request) {
+    Objects.requireNonNull(request, "request == null");
+    this.degrade();
+    return newObjectMetadata(this.get(request.getBucketName(), request.getKey()));
+  }
+
+  /**
+   * Lists the objects described by the supplied {@link
+   * ListObjectsRequest}, subject to the configured latency and
+   * {@linkplain #setSlowDownRate(double) refusals}.
+   *
+   * <p>Prefixes, delimiters, markers and maximum key counts are
+   * honored.</p>
+   *
+   * @param request the {@link ListObjectsRequest}; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link ObjectListing}
+   */
+  @Override
+  public ObjectListing listObjects(final ListObjectsRequest request) {
+    Objects.requireNonNull(request, "request == null");
+    this.degrade();
+    final String bucketName = request.getBucketName();
+    final String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+    final String delimiter = request.getDelimiter();
+    final String marker = request.getMarker();
+    final int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys().intValue();
+    final ObjectListing returnValue = new ObjectListing();
+    returnValue.setBucketName(bucketName);
+    returnValue.setPrefix(request.getPrefix());
+    returnValue.setDelimiter(delimiter);
+    returnValue.setMarker(marker);
+    returnValue.setMaxKeys(maxKeys);
+    final SortedSet<String> commonPrefixes = new TreeSet<>();
+    int count = 0;
+    String lastKey = null;
+    for (final Map.Entry<String, byte[]> entry : this.list(bucketName, prefix).entrySet()) {
+      final String key = entry.getKey();
+      if (marker != null && key.compareTo(marker) <= 0) {
+        continue;
+      }
+      if (delimiter != null && !delimiter.isEmpty()) {
+        final int index = key.indexOf(delimiter, prefix.length());
+        if (index >= 0) {
+          final String commonPrefix = key.substring(0, index + delimiter.length());
+          if (commonPrefixes.contains(commonPrefix)) {
+            continue;
+          } else if (count >= maxKeys) {
+            returnValue.setTruncated(true);
+            break;
+          }
+          commonPrefixes.add(commonPrefix);
+          count++;
+          lastKey = key;
+          continue;
+        }
+      }
+      if (count >= maxKeys) {
+        returnValue.setTruncated(true);
+        break;
+      }
+      final byte[] contents = entry.getValue();
+      final S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setBucketName(bucketName);
+      summary.setKey(key);
+      summary.setSize(contents.length);
+      summary.setETag(eTag(contents));
+      summary.setLastModified(new Date(0L));
+      summary.setStorageClass("STANDARD");
+      returnValue.getObjectSummaries().add(summary);
+      count++;
+      lastKey = key;
+    }
+    returnValue.setCommonPrefixes(new ArrayList<>(commonPrefixes));
+    if (returnValue.isTruncated()) {
+      returnValue.setNextMarker(lastKey);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Lists the next batch of objects following the supplied {@link
+   * ObjectListing}.
+   *
+   * @param previousListing the previous {@link ObjectListing}; must
+   * not be {@code null}
+   *
+   * @return a non-{@code null} {@link ObjectListing}, which is empty
+   * if {@code previousListing} was not truncated
+   */
+  @Override
+  public ObjectListing listNextBatchOfObjects(final ObjectListing previousListing) {
+    Objects.requireNonNull(previousListing, "previousListing == null");
+    final ObjectListing returnValue;
+    if (previousListing.isTruncated()) {
+      returnValue = this.listObjects(new ListObjectsRequest(previousListing.getBucketName(),
+                                                            previousListing.getPrefix(),
+                                                            previousListing.getNextMarker(),
+                                                            previousListing.getDelimiter(),
+                                                            Integer.valueOf(previousListing.getMaxKeys())));
+    } else {
+      returnValue = new ObjectListing();
+      returnValue.setBucketName(previousListing.getBucketName());
+      returnValue.setPrefix(previousListing.getPrefix());
+      returnValue.setDelimiter(previousListing.getDelimiter());
+      returnValue.setMarker(previousListing.getNextMarker());
+      returnValue.setMaxKeys(previousListing.getMaxKeys());
+    }
+    return returnValue;
+  }
+
+  /**
+   * Stores the object described by the supplied {@link
+   * PutObjectRequest} in memory.
+   *
+   * @param request the {@link PutObjectRequest}; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link PutObjectResult}
+   *
+   * @exception AmazonClientException if the object's contents could
+   * not be read
+   */
+  @Override
+  public PutObjectResult putObject(final PutObjectRequest request) {
+    Objects.requireNonNull(request, "request == null");
+    final byte[] contents;
+    try {
+      if (request.getFile() != null) {
+        contents = Files.readAllBytes(request.getFile().toPath());
+      } else {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final InputStream stream = request.getInputStream()) {
+          final byte[] buffer = new byte[8192];
+          int bytesRead;
+          while ((bytesRead = stream.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, bytesRead);
+          }
+        }
+        contents = bytes.toByteArray();
+      }
+    } catch (final IOException e) {
+      throw new AmazonClientException(e.getMessage(), e);
+    }
+    this.putObject(request.getBucketName(), request.getKey(), contents);
+    final PutObjectResult returnValue = new PutObjectResult();
+    returnValue.setETag(eTag(contents));
+    return returnValue;
+  }
+
+  /**
+   * Stores the supplied object in memory.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @param input the object's contents; must not be {@code null}
+   *
+   * @param metadata the object's metadata; may be {@code null}; is
+   * ignored
+   *
+   * @return a non-{@code null} {@link PutObjectResult}
+   *
+   * @see #putObject(PutObjectRequest)
+   */
+  @Override
+  public PutObjectResult putObject(final String bucketName, final String key, final InputStream input, final ObjectMetadata metadata) {
+    return this.putObject(new PutObjectRequest(bucketName, key, input, metadata));
+  }
+
+  /**
+   * Returns a {@link URL} of the form Amazon S3 would use for the
+   * supplied bucket name and key.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; may be {@code null}
+   *
+   * @return a non-{@code null} {@link URL}
+   *
+   * @exception AmazonClientException if a {@link URL} could not be
+   * formed
+   */
+  @Override
+  public URL getUrl(final String bucketName, final String key) {
+    try {
+      return new URL("https", bucketName + ".s3.amazonaws.com", "/" + (key == null ? "" : key));
+    } catch (final MalformedURLException e) {
+      throw new AmazonClientException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Waits for a latency drawn from the configured distribution and
+   * then refuses the current request at the configured {@linkplain
+   * #setSlowDownRate(double) rate}.
+   *
+   * @exception AmazonS3Exception if the request is refused
+   */
+  private final void degrade() {
+    final long median;
+    final long ninetyNinthPercentile;
+    synchronized (this) {
+      median = this.medianLatencyNanoseconds;
+      ninetyNinthPercentile = this.ninetyNinthPercentileLatencyNanoseconds;
+    }
+    if (median > 0L) {
+      long latency = median;
+      if (ninetyNinthPercentile > median) {
+        final double sigma = Math.log((double)ninetyNinthPercentile / (double)median) / Z_99;
+        final double gaussian;
+        synchronized (this.random) {
+          gaussian = this.random.nextGaussian();
+        }
+        latency = (long)(median * Math.exp(sigma * gaussian));
+      }
+      final long deadline = System.nanoTime() + latency;
+      long remaining;
+      while ((remaining = deadline - System.nanoTime()) > 0L) {
+        LockSupport.parkNanos(remaining);
+      }
+    }
+    if (this.nextDouble() < this.slowDownRate) {
+      final AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+      slowDown.setStatusCode(503);
+      slowDown.setErrorCode("SlowDown");
+      throw slowDown;
+    }
+  }
+
+  /**
+   * Returns a random {@code double} from {@code 0} inclusive to
+   * {@code 1} exclusive.
+   *
+   * @return a random {@code double}
+   */
+  private final double nextDouble() {
+    synchronized (this.random) {
+      return this.random.nextDouble();
+    }
+  }
+
+  /**
+   * Returns the contents of the object identified by the supplied
+   * bucket name and key.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @return the non-{@code null} contents
+   *
+   * @exception AmazonS3Exception if the object does not exist
+   *
+   * @exception AmazonClientException if the object could not be read
+   * from the local directory
+   */
+  private final byte[] get(final String bucketName, final String key) {
+    byte[] returnValue = this.objects.get(toPath(bucketName, key));
+    if (returnValue == null && this.directory != null) {
+      final Path bucket = this.directory.resolve(bucketName).normalize();
+      final Path file = bucket.resolve(key).normalize();
+      if (file.startsWith(bucket) && Files.isRegularFile(file)) {
+        try {
+          returnValue = Files.readAllBytes(file);
+        } catch (final IOException e) {
+          throw new AmazonClientException(e.getMessage(), e);
+        }
+      }
+    }
+    if (returnValue == null) {
+      final AmazonS3Exception notFound = new AmazonS3Exception("The specified key does not exist.");
+      notFound.setStatusCode(404);
+      notFound.setErrorCode("NoSuchKey");
+      throw notFound;
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the objects in the supplied bucket whose keys begin with
+   * the supplied prefix, indexed and sorted by key.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param prefix the prefix; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link NavigableMap}
+   *
+   * @exception AmazonClientException if the local directory could not
+   * be read
+   */
+  private final NavigableMap<String, byte[]> list(final String bucketName, final String prefix) {
+    final NavigableMap<String, byte[]> returnValue = new TreeMap<>();
+    if (this.directory != null) {
+      final Path bucket = this.directory.resolve(bucketName);
+      if (Files.isDirectory(bucket)) {
+        try {
+          Files.walkFileTree(bucket, new SimpleFileVisitor<Path>() {
+              @Override
+              public final FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) throws IOException {
+                final String key = bucket.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                if (key.startsWith(prefix)) {
+                  returnValue.put(key, Files.readAllBytes(file));
+                }
+                return FileVisitResult.CONTINUE;
+              }
+            });
+        } catch (final IOException e) {
+          throw new AmazonClientException(e.getMessage(), e);
+        }
+      }
+    }
+    final String start = toPath(bucketName, prefix);
+    for (final Map.Entry<String, byte[]> entry : this.objects.tailMap(start).entrySet()) {
+      final String path = entry.getKey();
+      if (!path.startsWith(start)) {
+        break;
+      }
+      returnValue.put(path.substring(bucketName.length() + 1), entry.getValue());
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the key under which the object identified by the supplied
+   * bucket name and key is stored in memory.
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link String}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  private static final String toPath(final String bucketName, final String key) {
+    Objects.requireNonNull(bucketName, "bucketName == null");
+    Objects.requireNonNull(key, "key == null");
+    return bucketName + '/' + key;
+  }
+
+  /**
+   * Returns a new {@link ObjectMetadata} describing the supplied
+   * contents.
+   *
+   * @param contents the contents; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link ObjectMetadata}
+   */
+  private static final ObjectMetadata newObjectMetadata(final byte[] contents) {
+    final ObjectMetadata returnValue = new ObjectMetadata();
+    returnValue.setContentLength(contents.length);
+    returnValue.setHeader("ETag", eTag(contents));
+    returnValue.setLastModified(new Date(0L));
+    return returnValue;
+  }
+
+  /**
+   * Returns the entity tag Amazon S3 would assign to the supplied
+   * contents: the hexadecimal form of their MD5 digest.
+   *
+   * @param contents the contents; must not be {@code null}
+   *
+   * @return a non-{@code null} entity tag
+   */
+  private static final String eTag(final byte[] contents) {
+    final byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(contents);
+    } catch (final NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    final StringBuilder sb = new StringBuilder(2 * digest.length);
+    for (final byte b : digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the supplied probability.
+   *
+   * @param probability the probability
+   *
+   * @return {@code probability}
+   *
+   * @exception IllegalArgumentException if {@code probability} is not
+   * between {@code 0} and {@code 1}
+   */
+  private static final double checkProbability(final double probability) {
+    if (!(probability >= 0.0 && probability <= 1.0)) {
+      throw new IllegalArgumentException("probability: " + probability);
+    }
+    return probability;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A {@link FilterInputStream} that delivers bytes no faster than a
+   * given rate and no more than a given number at a time, and that
+   * may fail or end early at a given position.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class DegradedInputStream extends FilterInputStream {
+
+    /**
+     * The rate at which bytes are delivered, in bytes per second, or
+     * {@code 0} if delivery is not throttled.
+     */
+    private final long bytesPerSecond;
+
+    /**
+     * The largest number of bytes a single read returns, or {@code
+     * 0} if reads are not limited.
+     */
+    private final int maximumReadSize;
+
+    /**
+     * The position at which reads throw a {@link SocketException}, or
+     * {@code -1}.
+     */
+    private final long failAt;
+
+    /**
+     * The position at which reads report the end of the stream, or
+     * {@code -1}.
+     */
+    private final long endAt;
+
+    /**
+     * The value of {@link System#nanoTime()} when this {@link
+     * DegradedInputStream} was created.
+     */
+    private final long start;
+
+    /**
+     * The number of bytes delivered so far.
+     */
+    private long position;
+
+    /**
+     * Creates a new {@link DegradedInputStream}.
+     *
+     * @param delegate the {@link InputStream} to read from; must not
+     * be {@code null}
+     *
+     * @param bytesPerSecond the rate at which bytes are delivered, or
+     * {@code 0}
+     *
+     * @param maximumReadSize the largest number of bytes a single
+     * read returns, or {@code 0}
+     *
+     * @param failAt the position at which reads throw a {@link
+     * SocketException}, or {@code -1}
+     *
+     * @param endAt the position at which reads report the end of the
+     * stream, or {@code -1}
+     */
+    private DegradedInputStream(final InputStream delegate,
+                                final long bytesPerSecond,
+                                final int maximumReadSize,
+                                final long failAt,
+                                final long endAt) {
+      super(delegate);
+      this.bytesPerSecond = bytesPerSecond;
+      this.maximumReadSize = maximumReadSize;
+      this.failAt = failAt;
+      this.endAt = endAt;
+      this.start = System.nanoTime();
+    }
+
+    @Override
+    public final int read() throws IOException {
+      final byte[] b = new byte[1];
+      final int bytesRead = this.read(b, 0, 1);
+      return bytesRead < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public final int read(final byte[] bytes, final int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (this.maximumReadSize > 0) {
+        length = Math.min(length, this.maximumReadSize);
+      }
+      if (this.failAt >= 0L) {
+        if (this.position >= this.failAt) {
+          throw new SocketException("Connection reset");
+        }
+        length = (int)Math.min(length, this.failAt - this.position);
+      }
+      if (this.endAt >= 0L) {
+        if (this.position >= this.endAt) {
+          return -1;
+        }
+        length = (int)Math.min(length, this.endAt - this.position);
+      }
+      final int returnValue = super.read(bytes, offset, length);
+      if (returnValue > 0) {
+        this.position += returnValue;
+        if (this.bytesPerSecond > 0L) {
+          final long deadline = this.start + this.position * TimeUnit.SECONDS.toNanos(1L) / this.bytesPerSecond;
+          long remaining;
+          while ((remaining = deadline - System.nanoTime()) > 0L) {
+            LockSupport.parkNanos(remaining);
+          }
+        }
+      }
+      return returnValue;
+    }
+
+    @Override
+    public final long skip(final long n) throws IOException {
+      final byte[] buffer = new byte[(int)Math.min(n, 8192L)];
+      long returnValue = 0L;
+      while (returnValue < n) {
+        final int bytesRead = this.read(buffer, 0, (int)Math.min(buffer.length, n - returnValue));
+        if (bytesRead < 0) {
+          break;
+        }
+        returnValue += bytesRead;
+      }
+      return returnValue;
+    }
+
+    @Override
+    public final int available() throws IOException {
+      return 0;
+    }
+
+    @Override
+    public final boolean markSupported() {
+      return false;
+    }
+
+  }
+
+}
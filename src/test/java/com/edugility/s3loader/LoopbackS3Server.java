@@ -0,0 +1,891 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import com.amazonaws.util.DateUtils;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+
+/**
+ * A small HTTP server, bound to the loopback interface, that speaks
+ * the subset of the <a
+ * href="http://docs.aws.amazon.com/AmazonS3/latest/API/Welcome.html">Amazon
+ * S3 REST API</a> used by the loaders in this package and serves it
+ * from another {@link AmazonS3} implementation, such as a {@link
+ * FakeAmazonS3}.
+ *
+ * <p>A {@linkplain #newClient() client} pointed at a {@link
+ * LoopbackS3Server} exercises the AWS SDK's real networking path,
+ * including request signing, connection pooling and response
+ * parsing, without leaving the machine; degradations configured on
+ * the backing {@link FakeAmazonS3} are carried over the wire, so that
+ * a connection reset, for example, truncates the HTTP response.</p>
+ *
+ * <p>The following requests, addressed in path style, are
+ * supported:</p>
+ *
+ * <ul>
+ *
+ * <li>{@code GET} of an object, including {@code Range} and {@code
+ * If-None-Match} headers</li>
+ *
+ * <li>{@code HEAD} of an object</li>
+ *
+ * <li>{@code PUT} of an object, with or without {@code aws-chunked}
+ * encoding</li>
+ *
+ * <li>{@code GET} of a bucket, that is, listing its objects, with
+ * {@code prefix}, {@code marker}, {@code delimiter}, {@code
+ * max-keys} and {@code encoding-type} parameters</li>
+ *
+ * </ul>
+ *
+ * <p>Request signatures are not checked.  Entity tags are passed
+ * through from the backing {@link AmazonS3}; because the AWS SDK
+ * verifies that a whole object's contents have the MD5 digest its
+ * entity tag claims, the backing {@link AmazonS3} must use MD5
+ * digests as entity tags, as {@link FakeAmazonS3} does.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.
+ * Requests are served concurrently.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see FakeAmazonS3
+ */
+public class LoopbackS3Server implements Closeable {
+
+  /**
+   * The {@link AmazonS3} from which requests are served.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AmazonS3 backing;
+
+  /**
+   * The {@link HttpServer}.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final HttpServer server;
+
+  /**
+   * The {@link SSLContext} with which requests are served over TLS,
+   * or {@code null} if they are served in plain text.
+   */
+  private final SSLContext sslContext;
+
+  /**
+   * The {@link ExecutorService} on which requests are served.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final ExecutorService executor;
+
+  /**
+   * The number of requests received; also used to generate request
+   * identifiers.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicLong requestCount;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link LoopbackS3Server} serving requests from the
+   * supplied {@link AmazonS3} and starts it on an ephemeral port of
+   * the loopback interface.
+   *
+   * @param backing the {@link AmazonS3} from which requests are
+   * served; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code backing} is {@code
+   * null}
+   *
+   * @exception IOException if the server could not be started
+   *
+   * @see #getEndpoint()
+   *
+   * @see #close()
+   */
+  public LoopbackS3Server(final AmazonS3 backing) throws IOException {
+    this(backing, false);
+  }
+
+  /**
+   * Creates a new {@link LoopbackS3Server} serving requests from the
+   * supplied {@link AmazonS3}, over TLS if {@code secure} is {@code
+   * true}, and starts it on an ephemeral port of the loopback
+   * interface.
+   *
+   * <p>A secure {@link LoopbackS3Server} presents a self-signed
+   * certificate for {@code 127.0.0.1} that is trusted by the {@link
+   * SSLContext} returned by the {@link #getSSLContext()} method and
+   * by the {@linkplain #newClient(ClientConfiguration) clients} it
+   * creates.</p>
+   *
+   * @param backing the {@link AmazonS3} from which requests are
+   * served; must not be {@code null}
+   *
+   * @param secure whether requests are served over TLS
+   *
+   * @exception NullPointerException if {@code backing} is {@code
+   * null}
+   *
+   * @exception IOException if the server could not be started
+   *
+   * @see #getEndpoint()
+   *
+   * @see #close()
+   */
+  public LoopbackS3Server(final AmazonS3 backing, final boolean secure) throws IOException {
+    super();
+    Objects.requireNonNull(backing, "backing == null");
+    this.backing = backing;
+    this.requestCount = new AtomicLong();
+    final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    if (secure) {
+      this.sslContext = getSSLContext();
+      final HttpsServer httpsServer = HttpsServer.create(address, 128);
+      httpsServer.setHttpsConfigurator(new HttpsConfigurator(this.sslContext));
+      this.server = httpsServer;
+    } else {
+      this.sslContext = null;
+      this.server = HttpServer.create(address, 128);
+    }
+    this.server.createContext("/", new HttpHandler() {
+        @Override
+        public final void handle(final HttpExchange exchange) throws IOException {
+          LoopbackS3Server.this.handle(exchange);
+        }
+      });
+    this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public final Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "LoopbackS3Server");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    this.server.setExecutor(this.executor);
+    this.server.start();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the endpoint at which this {@link LoopbackS3Server}
+   * accepts requests, such as {@code http://127.0.0.1:54321}.
+   *
+   * @return a non-{@code null} endpoint
+   */
+  public final String getEndpoint() {
+    final InetSocketAddress address = this.server.getAddress();
+    return (this.sslContext == null ? "http://" : "https://") + address.getAddress().getHostAddress() + ":" + address.getPort();
+  }
+
+  /**
+   * Returns the number of requests this {@link LoopbackS3Server} has
+   * received.
+   *
+   * @return the number of requests; never negative
+   */
+  public final long getRequestCount() {
+    return this.requestCount.get();
+  }
+
+  /**
+   * Returns a new {@link AmazonS3Client} with a default {@link
+   * ClientConfiguration} that sends its requests to this {@link
+   * LoopbackS3Server}.
+   *
+   * @return a new, non-{@code null} {@link AmazonS3Client}
+   *
+   * @see #newClient(ClientConfiguration)
+   */
+  public final AmazonS3Client newClient() {
+    return this.newClient(new ClientConfiguration());
+  }
+
+  /**
+   * Returns a new {@link AmazonS3Client} with the supplied {@link
+   * ClientConfiguration} that sends its requests to this {@link
+   * LoopbackS3Server}, using path-style addressing and placeholder
+   * credentials.
+   *
+   * <p>If this {@link LoopbackS3Server} is secure, the {@link
+   * ClientConfiguration} is modified to trust its certificate.</p>
+   *
+   * @param configuration the {@link ClientConfiguration}; must not be
+   * {@code null}
+   *
+   * @return a new, non-{@code null} {@link AmazonS3Client}
+   *
+   * @exception NullPointerException if {@code configuration} is
+   * {@code null}
+   */
+  public final AmazonS3Client newClient(final ClientConfiguration configuration) {
+    Objects.requireNonNull(configuration, "configuration == null");
+    if (this.sslContext != null) {
+      configuration.getApacheHttpClientConfig().setSslSocketFactory(new SSLConnectionSocketFactory(this.sslContext));
+    }
+    final AmazonS3Client returnValue = new AmazonS3Client(new BasicAWSCredentials("loopback", "loopback"), configuration);
+    returnValue.setEndpoint(this.getEndpoint());
+    returnValue.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+    return returnValue;
+  }
+
+  /**
+   * Stops this {@link LoopbackS3Server}, closing any open
+   * connections.
+   */
+  @Override
+  public void close() {
+    this.server.stop(0);
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Serves the request represented by the supplied {@link
+   * HttpExchange}.
+   *
+   * <p>If the backing {@link AmazonS3} fails before the response has
+   * begun, an S3 error response is sent; if it fails after, the
+   * connection is closed before the response is complete, as a real
+   * connection reset would close it.</p>
+   *
+   * @param exchange the {@link HttpExchange}; must not be {@code
+   * null}
+   *
+   * @exception IOException if an input or output error occurs
+   */
+  private final void handle(final HttpExchange exchange) throws IOException {
+    final String requestId = Long.toHexString(this.requestCount.incrementAndGet());
+    final Headers responseHeaders = exchange.getResponseHeaders();
+    responseHeaders.set("x-amz-request-id", requestId);
+    responseHeaders.set("Server", "LoopbackS3Server");
+    final String method = exchange.getRequestMethod();
+    final boolean head = "HEAD".equals(method);
+    final String path = exchange.getRequestURI().getPath();
+    String bucketName = path.startsWith("/") ? path.substring(1) : path;
+    String key = null;
+    final int slash = bucketName.indexOf('/');
+    if (slash >= 0) {
+      key = slash == bucketName.length() - 1 ? null : bucketName.substring(slash + 1);
+      bucketName = bucketName.substring(0, slash);
+    }
+    final Response response = new Response(exchange);
+    try {
+      if (bucketName.isEmpty()) {
+        response.sendError(501, "NotImplemented", "Listing buckets is not supported", path, requestId, head);
+      } else if (key == null) {
+        if ("GET".equals(method)) {
+          this.listObjects(exchange, bucketName, response);
+        } else {
+          response.sendError(501, "NotImplemented", method + " of a bucket is not supported", path, requestId, head);
+        }
+      } else if ("GET".equals(method) || head) {
+        this.getObject(exchange, bucketName, key, head, response);
+      } else if ("PUT".equals(method)) {
+        this.putObject(exchange, bucketName, key, response);
+      } else {
+        response.sendError(501, "NotImplemented", method + " of an object is not supported", path, requestId, head);
+      }
+    } catch (final AmazonServiceException e) {
+      if (!response.started) {
+        final int statusCode = e.getStatusCode() <= 0 ? 500 : e.getStatusCode();
+        response.sendError(statusCode, e.getErrorCode() == null ? "InternalError" : e.getErrorCode(), e.getErrorMessage(), path, requestId, head);
+      }
+    } catch (final IOException | RuntimeException e) {
+      if (!response.started) {
+        response.sendError(500, "InternalError", String.valueOf(e), path, requestId, head);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Serves a {@code GET} or {@code HEAD} request for an object.
+   *
+   * @param exchange the {@link HttpExchange}; must not be {@code
+   * null}
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @param head whether the request is a {@code HEAD} request
+   *
+   * @param response the {@link Response}; must not be {@code null}
+   *
+   * @exception IOException if an input or output error occurs
+   */
+  private final void getObject(final HttpExchange exchange,
+                               final String bucketName,
+                               final String key,
+                               final boolean head,
+                               final Response response)
+    throws IOException {
+    final GetObjectRequest request = new GetObjectRequest(bucketName, key);
+    final long[] range = head ? null : parseRange(exchange.getRequestHeaders().getFirst("Range"));
+    if (range != null) {
+      request.setRange(range[0], range[1]);
+    }
+    try (final S3Object s3Object = this.backing.getObject(request)) {
+      final ObjectMetadata metadata = s3Object.getObjectMetadata();
+      final String eTag = metadata.getETag();
+      final Headers responseHeaders = exchange.getResponseHeaders();
+      if (eTag != null) {
+        responseHeaders.set("ETag", "\"" + eTag + "\"");
+      }
+      final Date lastModified = metadata.getLastModified();
+      if (lastModified != null) {
+        responseHeaders.set("Last-Modified", DateUtils.formatRFC822Date(lastModified));
+      }
+      responseHeaders.set("Accept-Ranges", "bytes");
+      final String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+      if (!head && eTag != null && ifNoneMatch != null && ifNoneMatch.replace("\"", "").equals(eTag)) {
+        response.send(304, -1L);
+        return;
+      }
+      responseHeaders.set("Content-Type", metadata.getContentType() == null ? "application/octet-stream" : metadata.getContentType());
+      final long contentLength = metadata.getContentLength();
+      int statusCode = 200;
+      if (range != null) {
+        statusCode = 206;
+        final Object contentRange = metadata.getRawMetadataValue("Content-Range");
+        responseHeaders.set("Content-Range",
+                            contentRange == null ? "bytes " + range[0] + "-" + (range[0] + contentLength - 1L) + "/*" : contentRange.toString());
+      }
+      if (head) {
+        responseHeaders.set("Content-Length", Long.toString(contentLength));
+        response.send(statusCode, -1L);
+      } else {
+        response.send(statusCode, contentLength);
+        if (contentLength > 0L) {
+          // The body is closed only if it was written in full; if it
+          // was not, closing the exchange closes the connection.
+          final OutputStream body = exchange.getResponseBody();
+          try (final InputStream content = s3Object.getObjectContent()) {
+            final byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = content.read(buffer)) >= 0) {
+              body.write(buffer, 0, bytesRead);
+            }
+          }
+          body.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Serves a {@code PUT} request for an object.
+   *
+   * @param exchange the {@link HttpExchange}; must not be {@code
+   * null}
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param key the key; must not be {@code null}
+   *
+   * @param response the {@link Response}; must not be {@code null}
+   *
+   * @exception IOException if an input or output error occurs
+   */
+  private final void putObject(final HttpExchange exchange,
+                               final String bucketName,
+                               final String key,
+                               final Response response)
+    throws IOException {
+    final Headers requestHeaders = exchange.getRequestHeaders();
+    byte[] contents;
+    try (final InputStream body = exchange.getRequestBody()) {
+      contents = readFully(body);
+    }
+    final String contentEncoding = requestHeaders.getFirst("Content-Encoding");
+    final String contentSha256 = requestHeaders.getFirst("x-amz-content-sha256");
+    if ((contentEncoding != null && contentEncoding.contains("aws-chunked")) ||
+        (contentSha256 != null && contentSha256.startsWith("STREAMING-"))) {
+      contents = decodeChunks(contents);
+    }
+    final ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(contents.length);
+    final String contentType = requestHeaders.getFirst("Content-Type");
+    if (contentType != null) {
+      metadata.setContentType(contentType);
+    }
+    final PutObjectResult result = this.backing.putObject(bucketName, key, new ByteArrayInputStream(contents), metadata);
+    if (result != null && result.getETag() != null) {
+      exchange.getResponseHeaders().set("ETag", "\"" + result.getETag() + "\"");
+    }
+    response.send(200, -1L);
+  }
+
+  /**
+   * Serves a {@code GET} request for a bucket, that is, a listing of
+   * its objects.
+   *
+   * @param exchange the {@link HttpExchange}; must not be {@code
+   * null}
+   *
+   * @param bucketName the name of the bucket; must not be {@code
+   * null}
+   *
+   * @param response the {@link Response}; must not be {@code null}
+   *
+   * @exception IOException if an input or output error occurs
+   */
+  private final void listObjects(final HttpExchange exchange, final String bucketName, final Response response) throws IOException {
+    final Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+    final String maxKeys = parameters.get("max-keys");
+    final ObjectListing listing =
+      this.backing.listObjects(new ListObjectsRequest(bucketName,
+                                                      parameters.get("prefix"),
+                                                      parameters.get("marker"),
+                                                      parameters.get("delimiter"),
+                                                      maxKeys == null ? null : Integer.valueOf(maxKeys)));
+    final boolean urlEncoded = "url".equals(parameters.get("encoding-type"));
+    final StringBuilder xml = new StringBuilder(256 + 256 * listing.getObjectSummaries().size());
+    xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    xml.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+    element(xml, "Name", bucketName, false);
+    element(xml, "Prefix", listing.getPrefix() == null ? "" : listing.getPrefix(), urlEncoded);
+    element(xml, "Marker", listing.getMarker() == null ? "" : listing.getMarker(), urlEncoded);
+    if (listing.getNextMarker() != null) {
+      element(xml, "NextMarker", listing.getNextMarker(), urlEncoded);
+    }
+    element(xml, "MaxKeys", Integer.toString(listing.getMaxKeys()), false);
+    if (listing.getDelimiter() != null) {
+      element(xml, "Delimiter", listing.getDelimiter(), urlEncoded);
+    }
+    if (urlEncoded) {
+      element(xml, "EncodingType", "url", false);
+    }
+    element(xml, "IsTruncated", Boolean.toString(listing.isTruncated()), false);
+    for (final S3ObjectSummary summary : listing.getObjectSummaries()) {
+      xml.append("<Contents>");
+      element(xml, "Key", summary.getKey(), urlEncoded);
+      if (summary.getLastModified() != null) {
+        element(xml, "LastModified", DateUtils.formatISO8601Date(summary.getLastModified()), false);
+      }
+      if (summary.getETag() != null) {
+        element(xml, "ETag", "\"" + summary.getETag() + "\"", false);
+      }
+      element(xml, "Size", Long.toString(summary.getSize()), false);
+      element(xml, "StorageClass", summary.getStorageClass() == null ? "STANDARD" : summary.getStorageClass(), false);
+      xml.append("</Contents>");
+    }
+    for (final String commonPrefix : listing.getCommonPrefixes()) {
+      xml.append("<CommonPrefixes>");
+      element(xml, "Prefix", commonPrefix, urlEncoded);
+      xml.append("</CommonPrefixes>");
+    }
+    xml.append("</ListBucketResult>");
+    exchange.getResponseHeaders().set("Content-Type", "application/xml");
+    response.sendBody(200, xml.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns an {@link SSLContext} that presents, and trusts, the
+   * self-signed certificate of secure {@link LoopbackS3Server}s.
+   *
+   * @return a non-{@code null} {@link SSLContext}
+   *
+   * @exception IOException if the certificate could not be loaded
+   *
+   * @see #LoopbackS3Server(AmazonS3, boolean)
+   */
+  public static final SSLContext getSSLContext() throws IOException {
+    final char[] password = "loopback".toCharArray();
+    try (final InputStream stream = LoopbackS3Server.class.getResourceAsStream("loopback.jks")) {
+      if (stream == null) {
+        throw new FileNotFoundException("loopback.jks");
+      }
+      final KeyStore keyStore = KeyStore.getInstance("JKS");
+      keyStore.load(stream, password);
+      final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keyManagerFactory.init(keyStore, password);
+      final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(keyStore);
+      final SSLContext returnValue = SSLContext.getInstance("TLS");
+      returnValue.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+      return returnValue;
+    } catch (final GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Parses the supplied {@code Range} header value and returns the
+   * first and last positions it requests, or {@code null} if it is
+   * absent or is not a single range of the form {@code bytes=a-b} or
+   * {@code bytes=a-}, in which case, as with Amazon S3, the whole
+   * object is returned.
+   *
+   * @param range the header value; may be {@code null}
+   *
+   * @return a two-element array, or {@code null}
+   */
+  private static final long[] parseRange(final String range) {
+    if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return null;
+    }
+    final String spec = range.substring("bytes=".length()).trim();
+    final int dash = spec.indexOf('-');
+    if (dash <= 0) {
+      return null;
+    }
+    try {
+      final long first = Long.parseLong(spec.substring(0, dash));
+      final long last = dash == spec.length() - 1 ? Long.MAX_VALUE - 1L : Long.parseLong(spec.substring(dash + 1));
+      return first <= last ? new long[] { first, last } : null;
+    } catch (final NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parses the supplied raw query string into a {@link Map} of
+   * decoded parameter names and values.
+   *
+   * @param rawQuery the raw query string; may be {@code null}
+   *
+   * @return a non-{@code null} {@link Map}
+   */
+  private static final Map<String, String> parseQuery(final String rawQuery) {
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    final Map<String, String> returnValue = new HashMap<>();
+    for (final String parameter : rawQuery.split("&")) {
+      final int equals = parameter.indexOf('=');
+      final String name = decode(equals < 0 ? parameter : parameter.substring(0, equals));
+      final String value = equals < 0 ? "" : decode(parameter.substring(equals + 1));
+      returnValue.put(name, value);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Decodes the supplied URL-encoded text.
+   *
+   * @param text the text; must not be {@code null}
+   *
+   * @return the decoded text
+   */
+  private static final String decode(final String text) {
+    try {
+      return URLDecoder.decode(text, "UTF-8");
+    } catch (final UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Appends an XML element with the supplied name and text to the
+   * supplied {@link StringBuilder}.
+   *
+   * @param xml the {@link StringBuilder}; must not be {@code null}
+   *
+   * @param name the element name; must not be {@code null}
+   *
+   * @param text the element text; must not be {@code null}
+   *
+   * @param urlEncoded whether {@code text} should be URL-encoded, as
+   * a request bearing an {@code encoding-type} parameter of {@code
+   * url} expects
+   */
+  private static final void element(final StringBuilder xml, final String name, String text, final boolean urlEncoded) {
+    if (urlEncoded) {
+      try {
+        text = URLEncoder.encode(text, "UTF-8");
+      } catch (final UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+    }
+    xml.append('<').append(name).append('>');
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      switch (c) {
+      case '<':
+        xml.append("&lt;");
+        break;
+      case '>':
+        xml.append("&gt;");
+        break;
+      case '&':
+        xml.append("&amp;");
+        break;
+      case '"':
+        xml.append("&quot;");
+        break;
+      default:
+        xml.append(c);
+        break;
+      }
+    }
+    xml.append("</").append(name).append('>');
+  }
+
+  /**
+   * Reads the supplied {@link InputStream} to its end and returns its
+   * contents.
+   *
+   * @param stream the {@link InputStream}; must not be {@code null}
+   *
+   * @return a new, non-{@code null} array
+   *
+   * @exception IOException if an input or output error occurs
+   */
+  private static final byte[] readFully(final InputStream stream) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    int bytesRead;
+    while ((bytesRead = stream.read(buffer)) >= 0) {
+      bytes.write(buffer, 0, bytesRead);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes the supplied {@code aws-chunked} request body, in which
+   * each chunk is preceded by a line giving its length in hexadecimal
+   * and its signature, and followed by a line break.
+   *
+   * @param encoded the encoded body; must not be {@code null}
+   *
+   * @return a new, non-{@code null} array of decoded bytes
+   *
+   * @exception IOException if {@code encoded} is malformed
+   */
+  private static final byte[] decodeChunks(final byte[] encoded) throws IOException {
+    final ByteArrayOutputStream returnValue = new ByteArrayOutputStream(encoded.length);
+    int position = 0;
+    while (true) {
+      int lineEnd = position;
+      while (lineEnd + 1 < encoded.length && !(encoded[lineEnd] == '\r' && encoded[lineEnd + 1] == '\n')) {
+        lineEnd++;
+      }
+      if (lineEnd + 1 >= encoded.length) {
+        throw new EOFException("Unterminated chunk header");
+      }
+      final String header = new String(encoded, position, lineEnd - position, StandardCharsets.US_ASCII);
+      final int semicolon = header.indexOf(';');
+      final int size;
+      try {
+        size = Integer.parseInt((semicolon < 0 ? header : header.substring(0, semicolon)).trim(), 16);
+      } catch (final NumberFormatException e) {
+        throw new IOException("Malformed chunk header: " + header, e);
+      }
+      position = lineEnd + 2;
+      if (size == 0) {
+        break;
+      } else if (size < 0 || position + size > encoded.length) {
+        throw new EOFException("Truncated chunk");
+      }
+      returnValue.write(encoded, position, size);
+      position += size + 2;
+    }
+    return returnValue.toByteArray();
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A helper that sends the status line and headers of a response at
+   * most once and remembers whether it has done so.
+   *
+   * @author <a href="http://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Response {
+
+    /**
+     * The {@link HttpExchange}.
+     */
+    private final HttpExchange exchange;
+
+    /**
+     * Whether the status line and headers have been sent.
+     */
+    private boolean started;
+
+    /**
+     * Creates a new {@link Response}.
+     *
+     * @param exchange the {@link HttpExchange}; must not be {@code
+     * null}
+     */
+    private Response(final HttpExchange exchange) {
+      super();
+      this.exchange = exchange;
+    }
+
+    /**
+     * Sends the status line and headers.
+     *
+     * @param statusCode the status code
+     *
+     * @param contentLength the length of the body, or {@code -1} if
+     * there is none
+     *
+     * @exception IOException if an input or output error occurs
+     */
+    private final void send(final int statusCode, final long contentLength) throws IOException {
+      this.started = true;
+      // HttpServer treats a length of zero as a request for chunked
+      // encoding, and -1 as the absence of a body.
+      this.exchange.sendResponseHeaders(statusCode, contentLength <= 0L ? -1L : contentLength);
+    }
+
+    /**
+     * Sends the status line, headers and the supplied body.
+     *
+     * @param statusCode the status code
+     *
+     * @param body the body; must not be {@code null}
+     *
+     * @exception IOException if an input or output error occurs
+     */
+    private final void sendBody(final int statusCode, final byte[] body) throws IOException {
+      this.send(statusCode, body.length);
+      if (body.length > 0) {
+        try (final OutputStream stream = this.exchange.getResponseBody()) {
+          stream.write(body);
+        }
+      }
+    }
+
+    /**
+     * Sends an Amazon S3 error response.
+     *
+     * @param statusCode the status code
+     *
+     * @param code the Amazon S3 error code; must not be {@code null}
+     *
+     * @param message the error message; may be {@code null}
+     *
+     * @param resource the requested resource; must not be {@code
+     * null}
+     *
+     * @param requestId the request identifier; must not be {@code
+     * null}
+     *
+     * @param head whether the request was a {@code HEAD} request, to
+     * which no body may be sent
+     *
+     * @exception IOException if an input or output error occurs
+     */
+    private final void sendError(final int statusCode,
+                                 final String code,
+                                 final String message,
+                                 final String resource,
+                                 final String requestId,
+                                 final boolean head)
+      throws IOException {
+      if (head) {
+        this.send(statusCode, -1L);
+      } else {
+        final StringBuilder xml = new StringBuilder(256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error>");
+        element(xml, "Code", code, false);
+        element(xml, "Message", message == null ? code : message, false);
+        element(xml, "Resource", resource, false);
+        element(xml, "RequestId", requestId, false);
+        xml.append("</Error>");
+        this.exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        this.sendBody(statusCode, xml.toString().getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+  }
+
+}
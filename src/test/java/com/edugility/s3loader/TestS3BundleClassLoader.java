@@ -0,0 +1,323 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestS3BundleClassLoader {
+
+  private static final String BUCKET_NAME = "s3loader-test";
+
+  private static final String BUNDLE_KEY = "bundles/app.bundle";
+
+  private static final String CLASS_NAME = TestS3ClassLoader.Fixture.class.getName();
+
+  private static final String CLASS_ENTRY = CLASS_NAME.replace('.', '/') + ".class";
+
+  private FakeAmazonS3 client;
+
+  private Map<String, byte[]> entries;
+
+  public TestS3BundleClassLoader() {
+    super();
+  }
+
+  @Before
+  public void setUpBundle() throws IOException {
+    this.client = new FakeAmazonS3();
+    this.client.setSeed(1L);
+    this.entries = new LinkedHashMap<>();
+    this.entries.put(CLASS_ENTRY, classBytes(TestS3ClassLoader.Fixture.class));
+    this.entries.put("fixtures/greeting.txt", "Hello".getBytes(StandardCharsets.UTF_8));
+    // Random, so that it is as large compressed as not.
+    final byte[] padding = new byte[64 * 1024];
+    new Random(1L).nextBytes(padding);
+    this.entries.put("fixtures/padding.bin", padding);
+  }
+
+  @Test
+  public void testZipBundle() throws ClassNotFoundException, IOException {
+    this.assertBundleLoads(zip(this.entries));
+  }
+
+  @Test
+  public void testTarBundle() throws ClassNotFoundException, IOException {
+    this.assertBundleLoads(tar(this.entries));
+  }
+
+  @Test
+  public void testGzippedTarBundle() throws ClassNotFoundException, IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final OutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(tar(this.entries));
+    }
+    this.assertBundleLoads(bytes.toByteArray());
+  }
+
+  @Test
+  public void testRequesterPaysIsHonored() {
+    final S3BundleClassLoader loader = new S3BundleClassLoader(null, this.client, BUCKET_NAME, BUNDLE_KEY, true);
+    assertTrue(loader.resourceNameToGetObjectRequest("fixtures/greeting.txt").isRequesterPays());
+    assertTrue(loader.classNameToGetObjectRequest(CLASS_NAME).isRequesterPays());
+  }
+
+  @Test
+  public void testWaitersAreWokenWhenTheStreamEnds() throws Exception {
+    this.client.putObject(BUCKET_NAME, BUNDLE_KEY, zip(this.entries));
+    // The padding entry takes about a second to arrive.
+    this.client.setBytesPerSecond(64L * 1024L);
+    final S3BundleClassLoader loader = new S3BundleClassLoader(null, this.client, BUCKET_NAME, BUNDLE_KEY, false);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<byte[]> missing = executor.submit(new Callable<byte[]>() {
+          @Override
+          public final byte[] call() throws IOException {
+            return loader.getObjectBytes(new GetObjectRequest(BUCKET_NAME, "fixtures/missing.txt"));
+          }
+        });
+      // Entries near the front are served before the stream ends.
+      assertEquals(CLASS_NAME, loader.loadClass(CLASS_NAME).getName());
+      assertFalse(missing.isDone());
+      assertNull(missing.get(10L, TimeUnit.SECONDS));
+      assertFalse(loader.mayExist(new GetObjectRequest(BUCKET_NAME, "fixtures/missing.txt")));
+      assertEquals(1L, this.client.getRequestCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedZipReadIsResumed() throws Exception {
+    final byte[] bundle = zip(this.entries);
+    // The padding entry's local file header is followed by its name.
+    final int paddingOffset = indexOf(bundle, "fixtures/padding.bin".getBytes(StandardCharsets.UTF_8)) - 30;
+    this.assertFailedReadIsResumed(bundle, paddingOffset);
+  }
+
+  @Test
+  public void testFailedTarReadIsResumed() throws Exception {
+    final int paddingOffset = 512 + roundUp(this.entries.get(CLASS_ENTRY).length) + 512 + roundUp("Hello".length());
+    this.assertFailedReadIsResumed(tar(this.entries), paddingOffset);
+  }
+
+  @Test
+  public void testFailedReadsAreRetriedOneAtATimeWithinABudget() throws Exception {
+    this.client.putObject(BUCKET_NAME, BUNDLE_KEY, zip(this.entries));
+    // The connection is reset halfway through the padding entry every
+    // time.
+    this.client.setResetRate(1.0);
+    final S3BundleClassLoader loader = new S3BundleClassLoader(null, this.client, BUCKET_NAME, BUNDLE_KEY, false);
+    assertEquals(CLASS_NAME, loader.loadClass(CLASS_NAME).getName());
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      // Misses keep arriving while the retries, with their backoff,
+      // run their course.
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2L);
+      while (System.nanoTime() < deadline) {
+        final List<Future<byte[]>> misses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+          misses.add(executor.submit(new Callable<byte[]>() {
+              @Override
+              public final byte[] call() throws IOException {
+                return loader.getObjectBytes(new GetObjectRequest(BUCKET_NAME, "fixtures/missing.txt"));
+              }
+            }));
+        }
+        for (final Future<byte[]> miss : misses) {
+          try {
+            miss.get();
+            fail();
+          } catch (final ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+          }
+        }
+        Thread.sleep(50L);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(4L, this.client.getRequestCount());
+    assertEquals(Long.valueOf(4L), loader.getMetrics().getErrorCounts().get("SocketException"));
+  }
+
+  private final void assertFailedReadIsResumed(final byte[] bundle, final int paddingOffset) throws Exception {
+    final List<long[]> ranges = new ArrayList<>();
+    this.client = new FakeAmazonS3() {
+        @Override
+        public final S3Object getObject(final GetObjectRequest request) {
+          ranges.add(request.getRange());
+          try {
+            return super.getObject(request);
+          } finally {
+            // Only the first request is reset.
+            this.setResetRate(0.0);
+          }
+        }
+      };
+    this.client.setSeed(1L);
+    this.client.putObject(BUCKET_NAME, BUNDLE_KEY, bundle);
+    // The connection is reset halfway through the padding entry.
+    this.client.setResetRate(1.0);
+    final S3BundleClassLoader loader = new S3BundleClassLoader(null, this.client, BUCKET_NAME, BUNDLE_KEY, false);
+    assertEquals(CLASS_NAME, loader.loadClass(CLASS_NAME).getName());
+    final byte[] padding = this.entries.get("fixtures/padding.bin");
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+    byte[] bytes = null;
+    while (bytes == null) {
+      try {
+        bytes = loader.getObjectBytes(new GetObjectRequest(BUCKET_NAME, "fixtures/padding.bin"));
+      } catch (final IOException retryPending) {
+        assertTrue(System.nanoTime() < deadline);
+        Thread.sleep(50L);
+      }
+    }
+    assertArrayEquals(padding, bytes);
+    assertEquals(2, ranges.size());
+    assertNull(ranges.get(0));
+    // The retry began with the first entry that had not been read in
+    // full.
+    assertEquals(paddingOffset, ranges.get(1)[0]);
+    assertArrayEquals("Hello".getBytes(StandardCharsets.UTF_8), loader.getObjectBytes(new GetObjectRequest(BUCKET_NAME, "fixtures/greeting.txt")));
+  }
+
+  private final void assertBundleLoads(final byte[] bundle) throws ClassNotFoundException, IOException {
+    this.client.putObject(BUCKET_NAME, BUNDLE_KEY, bundle);
+    final S3BundleClassLoader loader = new S3BundleClassLoader(null, this.client, BUCKET_NAME, BUNDLE_KEY, false);
+    final Class<?> c = loader.loadClass(CLASS_NAME);
+    assertEquals(CLASS_NAME, c.getName());
+    assertSame(loader, c.getClassLoader());
+    try (final InputStream stream = loader.getResourceAsStream("fixtures/greeting.txt")) {
+      assertNotNull(stream);
+      assertEquals("Hello", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    assertNull(loader.getResource("fixtures/missing.txt"));
+    assertEquals(1L, this.client.getRequestCount());
+  }
+
+  private static final byte[] zip(final Map<String, byte[]> entries) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final ZipOutputStream zip = new ZipOutputStream(bytes)) {
+      for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        zip.putNextEntry(new ZipEntry(entry.getKey()));
+        zip.write(entry.getValue());
+        zip.closeEntry();
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static final byte[] tar(final Map<String, byte[]> entries) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+      final byte[] contents = entry.getValue();
+      final byte[] header = new byte[512];
+      final byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      System.arraycopy(name, 0, header, 0, name.length);
+      octal(header, 100, 8, 0644L);
+      octal(header, 108, 8, 0L);
+      octal(header, 116, 8, 0L);
+      octal(header, 124, 12, contents.length);
+      octal(header, 136, 12, 0L);
+      header[156] = '0';
+      System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+      for (int i = 148; i < 156; i++) {
+        header[i] = ' ';
+      }
+      long checksum = 0L;
+      for (final byte b : header) {
+        checksum += b & 0xff;
+      }
+      octal(header, 148, 7, checksum);
+      bytes.write(header);
+      bytes.write(contents);
+      bytes.write(new byte[(512 - contents.length % 512) % 512]);
+    }
+    // Two empty blocks end the archive.
+    bytes.write(new byte[1024]);
+    return bytes.toByteArray();
+  }
+
+  private static final void octal(final byte[] header, final int offset, final int length, final long value) {
+    final String digits = String.format("%0" + (length - 1) + "o", value);
+    System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+    header[offset + length - 1] = 0;
+  }
+
+  private static final int roundUp(final int length) {
+    return (length + 511) / 512 * 512;
+  }
+
+  private static final int indexOf(final byte[] bytes, final byte[] target) {
+    for (int i = 0; i <= bytes.length - target.length; i++) {
+      boolean found = true;
+      for (int j = 0; j < target.length; j++) {
+        if (bytes[i + j] != target[j]) {
+          found = false;
+          break;
+        }
+      }
+      if (found) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static final byte[] classBytes(final Class<?> c) throws IOException {
+    final String resourceName = c.getName().replace('.', '/') + ".class";
+    try (final InputStream stream = c.getClassLoader().getResourceAsStream(resourceName)) {
+      assertNotNull(stream);
+      return readFully(stream);
+    }
+  }
+
+  private static final byte[] readFully(final InputStream stream) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int bytesRead;
+    while ((bytesRead = stream.read(buffer)) >= 0) {
+      bytes.write(buffer, 0, bytesRead);
+    }
+    return bytes.toByteArray();
+  }
+
+}
@@ -4,85 +4,919 @@
  */
 package com.edugility.s3loader;
 
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Handler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.net.SocketException;
+import java.net.URL;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.amazonaws.AmazonClientException;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 
 import org.junit.Before;
-import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
 
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class TestS3ClassLoader {
 
-  private static Logger amazonLogger;
+  private static final String BUCKET_NAME = "s3loader-test";
+
+  private static final String GOOD_CLASS_NAME = Fixture.class.getName();
+
+  private static final String BAD_CLASS_NAME = "com.edugility.s3loader.NoSuchClass";
 
-  private static AmazonS3 client;
+  @Rule
+  public final TemporaryFolder temporaryFolder;
 
-  private static String goodClassName;
+  private FakeAmazonS3 client;
 
-  private static String badClassName;
+  private S3ClassLoader loader;
 
-  private ClassLoader loader;
-  
   public TestS3ClassLoader() {
     super();
+    this.temporaryFolder = new TemporaryFolder();
   }
-  
-  @BeforeClass
-  public static void setUpSingletons() {
-    final boolean termsAccepted = Boolean.getBoolean(TestS3ClassLoader.class.getName() + ".usageTermsAccepted");
-    if (!termsAccepted) {
-      fail("Please arrange for a boolean System property named " + TestS3ClassLoader.class.getName() + ".usageTermsAccepted\n" +
-           "to be set to true to continue. This indicates that you are aware of the fact\n" +
-           "that you may incur charges as a result of running the tests present in the\n" +
-           TestS3ClassLoader.class.getName() + " class.");
-    }
-    amazonLogger = Logger.getLogger("com.amazonaws");
-    assertNotNull(amazonLogger);
-    amazonLogger.setLevel(Level.FINE);
-    final Handler handler = new ConsoleHandler();
-    amazonLogger.addHandler(handler);
-    handler.setLevel(Level.FINE);
-    amazonLogger.setUseParentHandlers(false);
-    client = new AmazonS3Client();
-  }  
 
   @Before
-  public void setUpClassLoader() {
-    final String bucketName = System.getProperty(S3ClassLoader.class.getName() + ".bucketName");
-    if (bucketName == null || bucketName.isEmpty()) {
-      fail("Please arrange for a System property named " + S3ClassLoader.class.getName() + ".bucketName to be set to the name of an Amazon S3 bucket containing valid Java class bytes indexed under their class names.");
-    }
-    this.loader = new S3ClassLoader(this.getClass().getClassLoader(), client, bucketName, true);
+  public void setUpClassLoader() throws IOException {
+    this.client = new FakeAmazonS3();
+    this.client.setSeed(1L);
+    this.client.putObject(BUCKET_NAME, GOOD_CLASS_NAME, classBytes(Fixture.class));
+    // The loader has no parent so that Fixture is loaded from the bucket.
+    this.loader = new S3ClassLoader(null, this.client, BUCKET_NAME, true);
   }
-  
+
   @Test(expected = ClassNotFoundException.class)
   public void testBadClassLoad() throws ClassNotFoundException {
-    final String badClassName = System.getProperty(this.getClass().getName() + ".badClassName");
-    if (badClassName == null || badClassName.isEmpty()) {
-      fail("Please arrange for a System property named " + this.getClass().getName() + ".badClassName to be set to the name of a Java class known to *not* exist in your Amazon S3 bucket.");
-    }
-    final Class<?> bogusClass = this.loader.loadClass(badClassName);
+    this.loader.loadClass(BAD_CLASS_NAME);
   }
 
   @Test
   public void testGoodClassLoad() throws ClassNotFoundException {
-    final String goodClassName = System.getProperty(this.getClass().getName() + ".goodClassName");
-    if (goodClassName == null || goodClassName.isEmpty()) {
-      fail("Please arrange for a System property named " + this.getClass().getName() + ".goodClassName to be set to the name of a valid Java class known to exist in your Amazon S3 bucket.");
-    }
-    final Class<?> goodClass = this.loader.loadClass(goodClassName);
+    final Class<?> goodClass = this.loader.loadClass(GOOD_CLASS_NAME);
     assertNotNull(goodClass);
-    assertEquals(goodClassName, goodClass.getName());
+    assertEquals(GOOD_CLASS_NAME, goodClass.getName());
+    assertSame(this.loader, goodClass.getClassLoader());
+    assertNotSame(Fixture.class, goodClass);
+  }
+
+  @Test
+  public void testClassLoadFromDirectory() throws ClassNotFoundException, IOException {
+    final Path directory = this.temporaryFolder.getRoot().toPath();
+    Files.createDirectories(directory.resolve(BUCKET_NAME));
+    Files.write(directory.resolve(BUCKET_NAME).resolve(GOOD_CLASS_NAME), classBytes(Fixture.class));
+    final S3ClassLoader loader = new S3ClassLoader(null, new FakeAmazonS3(directory), BUCKET_NAME, true);
+    assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+  }
+
+  @Test
+  public void testManifestAvoidsRequestsForMissingClasses() throws ClassNotFoundException, IOException {
+    final BucketManifest manifest = BucketManifest.list(this.client, BUCKET_NAME, null);
+    final S3ClassLoader loader = new S3ClassLoader(null, this.client, BUCKET_NAME, true, manifest);
+    try {
+      loader.loadClass(BAD_CLASS_NAME);
+      fail();
+    } catch (final ClassNotFoundException expected) {
+
+    }
+    assertEquals(0L, this.client.getRequestCount());
+    assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+    assertEquals(1L, this.client.getRequestCount());
+  }
+
+  @Test
+  public void testNegativeLookupCacheSuppressesRequests() throws InterruptedException, IOException {
+    this.loader.setNegativeLookupCache(new NegativeLookupCache(16, 500L, TimeUnit.MILLISECONDS));
+    assertNull(this.loader.getResourceAsStream("fixtures/late.txt"));
+    assertNull(this.loader.getResourceAsStream("fixtures/late.txt"));
+    assertEquals(1L, this.client.getRequestCount());
+    assertEquals(1L, this.loader.getMetrics().getNegativeHitCount());
+    // Until the entry expires, the object's arrival goes unnoticed.
+    this.client.putObject(BUCKET_NAME, "fixtures/late.txt", "Late".getBytes(StandardCharsets.UTF_8));
+    assertNull(this.loader.getResourceAsStream("fixtures/late.txt"));
+    assertEquals(1L, this.client.getRequestCount());
+    Thread.sleep(600L);
+    try (final InputStream stream = this.loader.getResourceAsStream("fixtures/late.txt")) {
+      assertNotNull(stream);
+      assertEquals("Late", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    assertEquals(2L, this.client.getRequestCount());
+  }
+
+  @Test
+  public void testSearchPathPrefersEarlierSources() throws ClassNotFoundException, IOException {
+    this.client.putObject("s3loader-overlay", "hotfixes/" + GOOD_CLASS_NAME, classBytes(Fixture.class));
+    final List<S3SearchPathClassLoader.Source> sources =
+      Arrays.asList(new S3SearchPathClassLoader.Source("s3loader-overlay", "hotfixes/", true, null),
+                    new S3SearchPathClassLoader.Source(BUCKET_NAME, true));
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      final S3SearchPathClassLoader loader = new S3SearchPathClassLoader(null, this.client, sources, executor);
+      final Class<?> goodClass = loader.loadClass(GOOD_CLASS_NAME);
+      assertEquals(this.client.getUrl("s3loader-overlay", "hotfixes/"), goodClass.getProtectionDomain().getCodeSource().getLocation());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSearchPathMissCostsOneRoundTrip() throws IOException {
+    this.client.setLatency(200L, 200L, TimeUnit.MILLISECONDS);
+    final List<S3SearchPathClassLoader.Source> sources =
+      Arrays.asList(new S3SearchPathClassLoader.Source("s3loader-overlay", true),
+                    new S3SearchPathClassLoader.Source("s3loader-replica", true),
+                    new S3SearchPathClassLoader.Source(BUCKET_NAME, true));
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      final S3SearchPathClassLoader loader = new S3SearchPathClassLoader(null, this.client, sources, executor);
+      final long start = System.nanoTime();
+      try {
+        loader.loadClass(BAD_CLASS_NAME);
+        fail();
+      } catch (final ClassNotFoundException expected) {
+
+      }
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500L));
+      assertEquals(3L, this.client.getRequestCount());
+      assertEquals(3L, loader.getMetrics().getNotFoundCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSearchPathManifestsRejectSources() throws ClassNotFoundException, IOException {
+    this.client.putObject("s3loader-overlay", "unrelated", new byte[1]);
+    final List<S3SearchPathClassLoader.Source> sources =
+      Arrays.asList(new S3SearchPathClassLoader.Source("s3loader-overlay", null, true, BucketManifest.list(this.client, "s3loader-overlay", null)),
+                    new S3SearchPathClassLoader.Source(BUCKET_NAME, null, true, BucketManifest.list(this.client, BUCKET_NAME, null)));
+    final S3SearchPathClassLoader loader = new S3SearchPathClassLoader(null, this.client, sources, null);
+    assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+    assertEquals(1L, this.client.getRequestCount());
+    assertNotNull(loader.getResource(GOOD_CLASS_NAME.replace('.', '/') + ".class"));
+  }
+
+  @Test
+  public void testGetResourceAsStream() throws IOException {
+    this.client.putObject(BUCKET_NAME, "fixtures/greeting.txt", "Hello".getBytes(StandardCharsets.UTF_8));
+    try (final InputStream stream = this.loader.getResourceAsStream("fixtures/greeting.txt")) {
+      assertNotNull(stream);
+      assertEquals("Hello", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testClassFileResourceSharesTheClassKey() throws ClassNotFoundException, IOException {
+    this.loader.setObjectCache(new MemoryObjectCache(1024L * 1024L, 0L, Integer.MAX_VALUE), false);
+    try (final InputStream stream = this.loader.getResourceAsStream(GOOD_CLASS_NAME.replace('.', '/') + ".class")) {
+      assertArrayEquals(classBytes(Fixture.class), readFully(stream));
+    }
+    assertEquals(GOOD_CLASS_NAME, this.loader.loadClass(GOOD_CLASS_NAME).getName());
+    assertEquals(1L, this.client.getRequestCount());
+    assertEquals(1L, this.loader.getMetrics().getObjectCacheHitCount());
+  }
+
+  @Test
+  public void testManifestListingTheResourceKeyOverridesTheClassKey() throws ClassNotFoundException, IOException {
+    final String resourceName = GOOD_CLASS_NAME.replace('.', '/') + ".class";
+    this.client.putObject(BUCKET_NAME, resourceName, "Literal".getBytes(StandardCharsets.UTF_8));
+    final S3ClassLoader loader = new S3ClassLoader(null, this.client, BUCKET_NAME, true, BucketManifest.list(this.client, BUCKET_NAME, null));
+    try (final InputStream stream = loader.getResourceAsStream(resourceName)) {
+      assertEquals("Literal", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+    assertEquals(2L, this.client.getRequestCount());
+  }
+
+  @Test
+  public void testShortReads() throws ClassNotFoundException {
+    this.client.setMaximumReadSize(7);
+    assertEquals(GOOD_CLASS_NAME, this.loader.loadClass(GOOD_CLASS_NAME).getName());
+  }
+
+  @Test
+  public void testMissingContentLength() throws ClassNotFoundException, IOException {
+    final FakeAmazonS3 client = new FakeAmazonS3() {
+        @Override
+        public final S3Object getObject(final GetObjectRequest request) {
+          final S3Object s3Object = super.getObject(request);
+          // As a chunked or transcoded response would be.
+          s3Object.setObjectMetadata(GOOD_CLASS_NAME.equals(request.getKey()) ? new ObjectMetadata() : null);
+          return s3Object;
+        }
+      };
+    client.setMaximumReadSize(7);
+    client.putObject(BUCKET_NAME, GOOD_CLASS_NAME, classBytes(Fixture.class));
+    client.putObject(BUCKET_NAME, "fixtures/large.bin", new byte[256 * 1024]);
+    final S3ClassLoader loader = new S3ClassLoader(null, client, BUCKET_NAME, true);
+    assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+    try (final InputStream stream = loader.getResourceAsStream("fixtures/large.bin")) {
+      assertEquals(256 * 1024, readFully(stream).length);
+    }
+    assertEquals(2L, client.getRequestCount());
+  }
+
+  @Test
+  public void testSlowDown() throws ClassNotFoundException {
+    this.client.setSlowDownRate(1.0);
+    try {
+      this.loader.loadClass(GOOD_CLASS_NAME);
+      fail();
+    } catch (final ClassNotFoundException expected) {
+      assertTrue(expected.getCause() instanceof AmazonS3Exception);
+      assertEquals(503, ((AmazonS3Exception)expected.getCause()).getStatusCode());
+    }
+    assertEquals(Long.valueOf(1L), this.loader.getMetrics().getErrorCounts().get("AmazonS3Exception 503"));
+    this.client.setSlowDownRate(0.0);
+    assertEquals(GOOD_CLASS_NAME, this.loader.loadClass(GOOD_CLASS_NAME).getName());
+  }
+
+  @Test
+  public void testSlowDownIsRetried() throws ClassNotFoundException, IOException {
+    final AtomicInteger requests = new AtomicInteger();
+    final FakeAmazonS3 client = new FakeAmazonS3() {
+        @Override
+        public final S3Object getObject(final GetObjectRequest request) {
+          if (requests.getAndIncrement() < 2) {
+            final AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+            slowDown.setStatusCode(503);
+            slowDown.setErrorCode("SlowDown");
+            throw slowDown;
+          }
+          return super.getObject(request);
+        }
+      };
+    client.putObject(BUCKET_NAME, GOOD_CLASS_NAME, classBytes(Fixture.class));
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 64);
+    final S3ClassLoader loader = new S3ClassLoader(null, client, BUCKET_NAME, true);
+    loader.setConcurrencyLimiter(limiter, 10);
+    assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+    assertEquals(2L, loader.getMetrics().getRetryCount());
+    assertEquals(3L, loader.getMetrics().getRequestCount());
+    // Each throttled request halved the limit.
+    assertEquals(2, limiter.getLimit());
+    assertEquals(0, limiter.getInFlightCount());
+  }
+
+  @Test
+  public void testConnectionReset() {
+    this.client.setResetRate(1.0);
+    try {
+      this.loader.loadClass(GOOD_CLASS_NAME);
+      fail();
+    } catch (final ClassNotFoundException expected) {
+      assertTrue(expected.getCause() instanceof SocketException);
+    }
+    assertEquals(Long.valueOf(1L), this.loader.getMetrics().getErrorCounts().get("SocketException"));
+  }
+
+  @Test
+  public void testTruncatedBody() {
+    this.client.setTruncationRate(1.0);
+    try {
+      this.loader.loadClass(GOOD_CLASS_NAME);
+      fail();
+    } catch (final ClassNotFoundException expected) {
+      assertTrue(expected.getCause() instanceof EOFException);
+    }
+  }
+
+  @Test
+  public void testHedgedRequestWins() throws ClassNotFoundException, IOException {
+    final AtomicInteger requests = new AtomicInteger();
+    final FakeAmazonS3 client = new FakeAmazonS3() {
+        @Override
+        public final S3Object getObject(final GetObjectRequest request) {
+          if (requests.getAndIncrement() == 0) {
+            // The first request stalls.
+            try {
+              Thread.sleep(2000L);
+            } catch (final InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          return super.getObject(request);
+        }
+      };
+    client.putObject(BUCKET_NAME, GOOD_CLASS_NAME, classBytes(Fixture.class));
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      final S3ClassLoader loader = new S3ClassLoader(null, client, BUCKET_NAME, true);
+      loader.setHedging(executor, 10L, TimeUnit.MILLISECONDS);
+      final long start = System.nanoTime();
+      assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2000L));
+      assertEquals(1L, loader.getMetrics().getHedgedRequestCount());
+      assertEquals(1L, loader.getMetrics().getHedgeWinCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testHedgingWithoutStalls() throws ClassNotFoundException {
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      this.loader.setHedging(executor, 95.0, 1L, TimeUnit.SECONDS);
+      assertEquals(GOOD_CLASS_NAME, this.loader.loadClass(GOOD_CLASS_NAME).getName());
+      assertEquals(0L, this.loader.getMetrics().getHedgedRequestCount());
+      assertEquals(1L, this.client.getRequestCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testGetUrlFailureIsCounted() throws IOException {
+    final FakeAmazonS3 client = new FakeAmazonS3() {
+        @Override
+        public final URL getUrl(final String bucketName, final String key) {
+          throw new AmazonClientException("getUrl");
+        }
+      };
+    client.putObject(BUCKET_NAME, GOOD_CLASS_NAME, classBytes(Fixture.class));
+    final S3ClassLoader loader = new S3ClassLoader(null, client, BUCKET_NAME, true);
+    assertNull(loader.getResource(GOOD_CLASS_NAME.replace('.', '/') + ".class"));
+    assertEquals(Long.valueOf(1L), loader.getMetrics().getErrorCounts().get("AmazonClientException"));
+  }
+
+  @Test
+  public void testMemoryObjectCacheEvictsLeastRecentlyUsed() {
+    final MemoryObjectCache cache = new MemoryObjectCache(200L, 300L, 100);
+    cache.put(BUCKET_NAME, "a", new CachedObject("a", new byte[100]));
+    cache.put(BUCKET_NAME, "b", new CachedObject("b", new byte[100]));
+    assertNotNull(cache.get(BUCKET_NAME, "a"));
+    cache.put(BUCKET_NAME, "c", new CachedObject("c", new byte[100]));
+    assertNull(cache.get(BUCKET_NAME, "b"));
+    assertNotNull(cache.get(BUCKET_NAME, "a"));
+    assertNotNull(cache.get(BUCKET_NAME, "c"));
+    assertEquals(200L, cache.getHeapSize());
+    // Larger objects go off the heap, which is evicted separately.
+    final byte[] x = new byte[150];
+    Arrays.fill(x, (byte)'x');
+    cache.put(BUCKET_NAME, "x", new CachedObject("x", x));
+    cache.put(BUCKET_NAME, "y", new CachedObject("y", new byte[150]));
+    assertArrayEquals(x, cache.get(BUCKET_NAME, "x").getBytes());
+    cache.put(BUCKET_NAME, "z", new CachedObject("z", new byte[150]));
+    assertNull(cache.get(BUCKET_NAME, "y"));
+    assertEquals("x", cache.get(BUCKET_NAME, "x").getETag());
+    assertEquals(300L, cache.getOffHeapSize());
+    assertEquals(200L, cache.getHeapSize());
+    // Growing an object moves it between tiers, evicting the least
+    // recently used object from the one it joins.
+    cache.put(BUCKET_NAME, "a", new CachedObject("a", new byte[150]));
+    assertEquals(100L, cache.getHeapSize());
+    assertNull(cache.get(BUCKET_NAME, "z"));
+    assertEquals(150L, cache.get(BUCKET_NAME, "a").getBytes().length);
+    assertEquals(6L, cache.getHitCount());
+    assertEquals(3L, cache.getMissCount());
+  }
+
+  @Test
+  public void testDiskObjectCacheSurvivesRestarts() throws IOException {
+    final Path directory = this.temporaryFolder.newFolder().toPath();
+    final byte[] bytes = classBytes(Fixture.class);
+    new DiskObjectCache(directory).put(BUCKET_NAME, GOOD_CLASS_NAME, new CachedObject("etag", bytes));
+    // A new instance stands in for a new Java virtual machine.
+    final CachedObject cachedObject = new DiskObjectCache(directory).get(BUCKET_NAME, GOOD_CLASS_NAME);
+    assertNotNull(cachedObject);
+    assertEquals("etag", cachedObject.getETag());
+    assertArrayEquals(bytes, cachedObject.getBytes());
+    assertNull(new DiskObjectCache(directory).get(BUCKET_NAME, BAD_CLASS_NAME));
+  }
+
+  @Test
+  public void testDiskObjectCacheDeletesCorruptFiles() throws IOException {
+    final Path directory = this.temporaryFolder.newFolder().toPath();
+    final DiskObjectCache cache = new DiskObjectCache(directory);
+    cache.put(BUCKET_NAME, GOOD_CLASS_NAME, new CachedObject("etag", classBytes(Fixture.class)));
+    final Path file = onlyFile(directory);
+    final byte[] contents = Files.readAllBytes(file);
+    // Flip a bit in the object's contents.
+    final byte[] corrupt = contents.clone();
+    corrupt[corrupt.length - 1] ^= 1;
+    Files.write(file, corrupt);
+    assertNull(cache.get(BUCKET_NAME, GOOD_CLASS_NAME));
+    assertFalse(Files.exists(file));
+    // Cut the object's contents short.
+    Files.write(file, Arrays.copyOf(contents, contents.length - 1));
+    assertNull(cache.get(BUCKET_NAME, GOOD_CLASS_NAME));
+    assertFalse(Files.exists(file));
+    // Claim that the object's contents are enormous.
+    final byte[] huge = contents.clone();
+    final int lengthOffset = contents.length - classBytes(Fixture.class).length - 8;
+    ByteBuffer.wrap(huge).putInt(lengthOffset, Integer.MAX_VALUE - 8);
+    Files.write(file, huge);
+    assertNull(cache.get(BUCKET_NAME, GOOD_CLASS_NAME));
+    assertFalse(Files.exists(file));
+  }
+
+  @Test
+  public void testDiskObjectCacheRejectsMismatchedKeys() throws IOException {
+    final Path directory = this.temporaryFolder.newFolder().toPath();
+    final DiskObjectCache cache = new DiskObjectCache(directory);
+    cache.put(BUCKET_NAME, GOOD_CLASS_NAME, new CachedObject("etag", classBytes(Fixture.class)));
+    final Path file = onlyFile(directory);
+    final byte[] contents = Files.readAllBytes(file);
+    Files.delete(file);
+    cache.put(BUCKET_NAME, BAD_CLASS_NAME, new CachedObject("etag", new byte[] { 1, 2, 3 }));
+    final Path otherFile = onlyFile(directory);
+    // Put the first object's file where the second's belongs, as a
+    // digest collision would.
+    Files.write(otherFile, contents);
+    assertNull(cache.get(BUCKET_NAME, BAD_CLASS_NAME));
+    assertFalse(Files.exists(otherFile));
+  }
+
+  @Test
+  public void testMemoryObjectCacheSparesRequests() throws ClassNotFoundException {
+    final MemoryObjectCache cache = new MemoryObjectCache(1024L * 1024L, 0L, Integer.MAX_VALUE);
+    this.loader.setObjectCache(cache, false);
+    assertEquals(GOOD_CLASS_NAME, this.loader.loadClass(GOOD_CLASS_NAME).getName());
+    final S3ClassLoader second = new S3ClassLoader(null, this.client, BUCKET_NAME, true);
+    second.setObjectCache(cache, false);
+    assertEquals(GOOD_CLASS_NAME, second.loadClass(GOOD_CLASS_NAME).getName());
+    assertEquals(1L, this.client.getRequestCount());
+    assertEquals(1L, this.loader.getMetrics().getObjectCacheMissCount());
+    assertEquals(1L, second.getMetrics().getObjectCacheHitCount());
+    assertEquals(1L, cache.getHitCount());
+  }
+
+  @Test
+  public void testStaleManifestIsOnlyAHint() throws IOException {
+    final ObjectCache cache = new MemoryObjectCache(1024L * 1024L, 0L, Integer.MAX_VALUE);
+    this.client.putObject(BUCKET_NAME, "fixtures/greeting.txt", "Hello".getBytes(StandardCharsets.UTF_8));
+    final BucketManifest staleManifest = BucketManifest.list(this.client, BUCKET_NAME, null);
+    this.client.putObject(BUCKET_NAME, "fixtures/greeting.txt", "Goodbye, world".getBytes(StandardCharsets.UTF_8));
+    final S3ClassLoader first = new S3ClassLoader(null, this.client, BUCKET_NAME, true, staleManifest);
+    first.setObjectCache(cache, false);
+    try (final InputStream stream = first.getResourceAsStream("fixtures/greeting.txt")) {
+      assertEquals("Goodbye, world", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    assertEquals(1L, first.getMetrics().getManifestMismatchCount());
+    // The cached copy disagrees with the stale manifest, and a
+    // conditional request shows that the manifest is wrong.
+    final long requestCount = this.client.getRequestCount();
+    final S3ClassLoader second = new S3ClassLoader(null, this.client, BUCKET_NAME, true, staleManifest);
+    second.setObjectCache(cache, false);
+    try (final InputStream stream = second.getResourceAsStream("fixtures/greeting.txt")) {
+      assertEquals("Goodbye, world", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    assertEquals(requestCount + 1L, this.client.getRequestCount());
+    assertEquals(1L, second.getMetrics().getObjectCacheHitCount());
+    assertEquals(0L, second.getMetrics().getObjectCacheMissCount());
+    assertEquals(1L, second.getMetrics().getManifestMismatchCount());
+  }
+
+  @Test
+  public void testManifestOverridesStaleCachedObject() throws IOException {
+    final ObjectCache cache = new MemoryObjectCache(1024L * 1024L, 0L, Integer.MAX_VALUE);
+    this.client.putObject(BUCKET_NAME, "fixtures/greeting.txt", "Hello".getBytes(StandardCharsets.UTF_8));
+    final S3ClassLoader first = new S3ClassLoader(null, this.client, BUCKET_NAME, true, BucketManifest.list(this.client, BUCKET_NAME, null));
+    first.setObjectCache(cache, false);
+    try (final InputStream stream = first.getResourceAsStream("fixtures/greeting.txt")) {
+      assertEquals("Hello", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    this.client.putObject(BUCKET_NAME, "fixtures/greeting.txt", "Goodbye".getBytes(StandardCharsets.UTF_8));
+    final S3ClassLoader second = new S3ClassLoader(null, this.client, BUCKET_NAME, true, BucketManifest.list(this.client, BUCKET_NAME, null));
+    second.setObjectCache(cache, false);
+    try (final InputStream stream = second.getResourceAsStream("fixtures/greeting.txt")) {
+      assertEquals("Goodbye", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    assertEquals(0L, second.getMetrics().getObjectCacheHitCount());
+    assertEquals(1L, second.getMetrics().getObjectCacheMissCount());
+  }
+
+  @Test
+  public void testPrefetchesThatFindNothingAreDropped() throws IOException {
+    final LoadTrace trace = new LoadTrace();
+    trace.recordResource("fixtures/late.txt");
+    this.loader.setPrefetchExecutor(new Executor() {
+        @Override
+        public final void execute(final Runnable runnable) {
+          runnable.run();
+        }
+      }, 1);
+    assertEquals(1, this.loader.replay(trace));
+    this.client.putObject(BUCKET_NAME, "fixtures/late.txt", "Late".getBytes(StandardCharsets.UTF_8));
+    // The first prefetch found nothing and was dropped, so the
+    // resource can be prefetched again.
+    assertEquals(1, this.loader.replay(trace));
+    try (final InputStream stream = this.loader.getResourceAsStream("fixtures/late.txt")) {
+      assertEquals("Late", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    assertEquals(2L, this.client.getRequestCount());
+  }
+
+  @Test
+  public void testSupertypesArePrefetchedBeforeTheyAreDefined() throws ClassNotFoundException, IOException {
+    final List<String> names = Arrays.asList(FixtureSubclass.class.getName(), FixtureSuperclass.class.getName(), FixtureInterface.class.getName());
+    this.client.putObject(BUCKET_NAME, FixtureSubclass.class.getName(), classBytes(FixtureSubclass.class));
+    this.client.putObject(BUCKET_NAME, FixtureSuperclass.class.getName(), classBytes(FixtureSuperclass.class));
+    this.client.putObject(BUCKET_NAME, FixtureInterface.class.getName(), classBytes(FixtureInterface.class));
+    final FakeAmazonS3 backing = this.client;
+    final List<Long> requestCounts = new ArrayList<>();
+    final S3ClassLoader loader = new S3ClassLoader(null, backing, BUCKET_NAME, true) {
+        @Override
+        protected final Class<?> findClass(final String name) throws ClassNotFoundException {
+          if (!name.equals(FixtureSubclass.class.getName())) {
+            requestCounts.add(backing.getRequestCount());
+          }
+          return super.findClass(name);
+        }
+
+        @Override
+        protected final boolean isPrefetchCandidate(final String className) {
+          // Nothing else the fixtures refer to is in the bucket.
+          return super.isPrefetchCandidate(className) && names.contains(className);
+        }
+      };
+    loader.setPrefetchExecutor(new Executor() {
+        @Override
+        public final void execute(final Runnable runnable) {
+          runnable.run();
+        }
+      }, 1);
+    assertEquals(FixtureSubclass.class.getName(), loader.loadClass(FixtureSubclass.class.getName()).getName());
+    // Every supertype had already been fetched when defineClass()
+    // asked for it, and was not fetched again.
+    assertEquals(Arrays.asList(3L, 3L), requestCounts);
+    assertEquals(3L, this.client.getRequestCount());
+  }
+
+  @Test
+  public void testLoadClassesKeepsOrderAndDropsDuplicates() throws Exception {
+    this.client.putObject(BUCKET_NAME, FixtureInterface.class.getName(), classBytes(FixtureInterface.class));
+    this.client.putObject(BUCKET_NAME, FixtureSuperclass.class.getName(), classBytes(FixtureSuperclass.class));
+    final List<String> names = Arrays.asList(FixtureSuperclass.class.getName(), GOOD_CLASS_NAME, FixtureSuperclass.class.getName(), FixtureInterface.class.getName(), GOOD_CLASS_NAME);
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final Map<String, Future<Class<?>>> classes = this.loader.loadClasses(names, executor);
+      assertEquals(Arrays.asList(FixtureSuperclass.class.getName(), GOOD_CLASS_NAME, FixtureInterface.class.getName()), new ArrayList<>(classes.keySet()));
+      for (final Map.Entry<String, Future<Class<?>>> entry : classes.entrySet()) {
+        assertTrue(entry.getValue().isDone());
+        assertEquals(entry.getKey(), entry.getValue().get().getName());
+        assertSame(this.loader, entry.getValue().get().getClassLoader());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testLoadClassesReportsEachFailureSeparately() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final Map<String, Future<Class<?>>> classes = this.loader.loadClasses(Arrays.asList(BAD_CLASS_NAME, GOOD_CLASS_NAME), executor);
+      assertEquals(2, classes.size());
+      try {
+        classes.get(BAD_CLASS_NAME).get();
+        fail();
+      } catch (final ExecutionException expected) {
+        assertTrue(expected.getCause() instanceof ClassNotFoundException);
+      }
+      assertEquals(GOOD_CLASS_NAME, classes.get(GOOD_CLASS_NAME).get().getName());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testLoadClassesFetchesInParallel() throws Exception {
+    this.client.putObject(BUCKET_NAME, FixtureInterface.class.getName(), classBytes(FixtureInterface.class));
+    this.client.putObject(BUCKET_NAME, FixtureSuperclass.class.getName(), classBytes(FixtureSuperclass.class));
+    // None of these refers to another, so each costs one request.
+    final List<String> names = Arrays.asList(GOOD_CLASS_NAME, FixtureInterface.class.getName(), FixtureSuperclass.class.getName());
+    final long latency = 300L;
+    this.client.setLatency(latency, latency, TimeUnit.MILLISECONDS);
+    final ExecutorService executor = Executors.newFixedThreadPool(names.size());
+    try {
+      final long start = System.nanoTime();
+      final Map<String, Future<Class<?>>> classes = this.loader.loadClasses(names, executor);
+      final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      for (final String name : names) {
+        assertEquals(name, classes.get(name).get().getName());
+      }
+      assertEquals(3L, this.client.getRequestCount());
+      // Loaded one after another, they would take three latencies.
+      assertTrue("elapsed: " + elapsed, elapsed >= latency && elapsed < 2L * latency);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testPrefetchCandidatesAreInTheLoadersPackages() throws ClassNotFoundException {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      this.loader.setPrefetchExecutor(executor, 1);
+      assertFalse(this.loader.prefetch(BAD_CLASS_NAME));
+      assertEquals(GOOD_CLASS_NAME, this.loader.loadClass(GOOD_CLASS_NAME).getName());
+      assertFalse(this.loader.prefetch("org.example.Unrelated"));
+      assertTrue(this.loader.prefetch(BAD_CLASS_NAME));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testConcurrentFetchesShareOneRequest() throws Exception {
+    this.client.putObject(BUCKET_NAME, "fixtures/greeting.txt", "Hello".getBytes(StandardCharsets.UTF_8));
+    this.client.setLatency(200L, 200L, TimeUnit.MILLISECONDS);
+    final int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<byte[]>> results = new ArrayList<>();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public final byte[] call() throws Exception {
+              start.await();
+              try (final InputStream stream = loader.getResourceAsStream("fixtures/greeting.txt")) {
+                return readFully(stream);
+              }
+            }
+          }));
+      }
+      start.countDown();
+      for (final Future<byte[]> result : results) {
+        assertEquals("Hello", new String(result.get(), StandardCharsets.UTF_8));
+      }
+      assertEquals(1L, this.client.getRequestCount());
+      assertEquals(threads - 1L, this.loader.getCoalescedFetchCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testPooledReadsAreShared() throws Exception {
+    this.client.setLatency(200L, 200L, TimeUnit.MILLISECONDS);
+    final byte[] expected = classBytes(Fixture.class);
+    final int threads = 8;
+    final ByteBuffer[] buffers = new ByteBuffer[threads];
+    final List<Future<ByteBuffer>> results = new ArrayList<>();
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int i = 0; i < threads; i++) {
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffers[i] = buffer;
+        results.add(executor.submit(new Callable<ByteBuffer>() {
+            @Override
+            public final ByteBuffer call() throws Exception {
+              start.await();
+              return loader.readObject(new GetObjectRequest(BUCKET_NAME, GOOD_CLASS_NAME), buffer);
+            }
+          }));
+      }
+      start.countDown();
+      final List<ByteBuffer> buffersRead = new ArrayList<>();
+      for (final Future<ByteBuffer> result : results) {
+        final ByteBuffer bufferRead = result.get();
+        assertEquals(ByteBuffer.wrap(expected), bufferRead);
+        buffersRead.add(bufferRead);
+      }
+      assertEquals(1L, this.client.getRequestCount());
+      assertEquals(threads - 1L, this.loader.getCoalescedFetchCount());
+      // Only the thread that fetched the object read into its own
+      // buffer; everyone else was given a copy.
+      for (final ByteBuffer buffer : buffers) {
+        Arrays.fill(buffer.array(), (byte)0);
+      }
+      int copies = 0;
+      for (final ByteBuffer bufferRead : buffersRead) {
+        if (bufferRead.equals(ByteBuffer.wrap(expected))) {
+          copies++;
+        }
+      }
+      assertEquals(threads - 1, copies);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testJarResourceUrlReadsOnlyItsEntry() throws IOException {
+    final ByteArrayOutputStream jar = new ByteArrayOutputStream();
+    try (final JarOutputStream out = new JarOutputStream(jar)) {
+      for (final String name : Arrays.asList("fixtures/a.txt", "fixtures/b.txt")) {
+        out.putNextEntry(new JarEntry(name));
+        out.write(name.getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    this.client.putObject(BUCKET_NAME, "fixture.jar", jar.toByteArray());
+    final S3JarClassLoader jarLoader = new S3JarClassLoader(null, this.client, BUCKET_NAME, "fixture.jar", false);
+    final URL url = jarLoader.getResource("fixtures/b.txt");
+    assertNotNull(url);
+    assertFalse(url.toExternalForm().startsWith("jar:"));
+    final long requestCount = this.client.getRequestCount();
+    try (final InputStream stream = url.openStream()) {
+      assertEquals("fixtures/b.txt", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    // One ranged request for the entry, not the whole JAR file.
+    assertEquals(requestCount + 1L, this.client.getRequestCount());
+    assertNull(jarLoader.getResource("fixtures/missing.txt"));
+  }
+
+  @Test
+  public void testMergedJarRangesAreNotCached() throws IOException {
+    final ByteArrayOutputStream jar = new ByteArrayOutputStream();
+    try (final JarOutputStream out = new JarOutputStream(jar)) {
+      for (final String name : Arrays.asList("fixtures/a.txt", "fixtures/b.txt")) {
+        out.putNextEntry(new JarEntry(name));
+        out.write(name.getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    this.client.putObject(BUCKET_NAME, "fixture.jar", jar.toByteArray());
+    final ObjectCache cache = new MemoryObjectCache(1024L * 1024L, 0L, Integer.MAX_VALUE);
+    final S3JarClassLoader first = new S3JarClassLoader(null, this.client, BUCKET_NAME, "fixture.jar", false);
+    first.setObjectCache(cache, false);
+    final GetObjectRequest a = first.resourceNameToGetObjectRequest("fixtures/a.txt");
+    final GetObjectRequest b = first.resourceNameToGetObjectRequest("fixtures/b.txt");
+    final GetObjectRequest merged = new GetObjectRequest(BUCKET_NAME, "fixture.jar");
+    merged.setRange(a.getRange()[0], b.getRange()[1]);
+    assertTrue(first.isCacheable(a));
+    assertTrue(first.isCacheable(b));
+    assertFalse(first.isCacheable(merged));
+    try (final InputStream stream = first.getResourceAsStream("fixtures/a.txt")) {
+      assertEquals("fixtures/a.txt", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    // The entry was cached under its own range, so another loader
+    // finds it there, along with the central directory.
+    final long requestCount = this.client.getRequestCount();
+    final S3JarClassLoader second = new S3JarClassLoader(null, this.client, BUCKET_NAME, "fixture.jar", false);
+    second.setObjectCache(cache, false);
+    try (final InputStream stream = second.getResourceAsStream("fixtures/a.txt")) {
+      assertEquals("fixtures/a.txt", new String(readFully(stream), StandardCharsets.UTF_8));
+    }
+    assertEquals(requestCount, this.client.getRequestCount());
+  }
+
+  @Test
+  public void testAdjacentJarReadsAreMergedWhileDistantReadsRunInParallel() throws Exception {
+    final List<String> adjacent = Arrays.asList("fixtures/a0.txt", "fixtures/a1.txt", "fixtures/a2.txt", "fixtures/a3.txt", "fixtures/a4.txt");
+    final List<String> distant = Arrays.asList("fixtures/d0.txt", "fixtures/d1.txt", "fixtures/d2.txt", "fixtures/d3.txt");
+    // Random, so that it is as large compressed as not, and well past
+    // the coalescing gap threshold.
+    final byte[] padding = new byte[32 * 1024];
+    new Random(1L).nextBytes(padding);
+    final ByteArrayOutputStream jar = new ByteArrayOutputStream();
+    try (final JarOutputStream out = new JarOutputStream(jar)) {
+      for (final String name : adjacent) {
+        out.putNextEntry(new JarEntry(name));
+        out.write(name.getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+      }
+      for (final String name : distant) {
+        out.putNextEntry(new JarEntry(name + ".padding"));
+        out.write(padding);
+        out.closeEntry();
+        out.putNextEntry(new JarEntry(name));
+        out.write(name.getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    this.client.putObject(BUCKET_NAME, "fixture.jar", jar.toByteArray());
+    final S3JarClassLoader jarLoader = new S3JarClassLoader(null, this.client, BUCKET_NAME, "fixture.jar", false);
+    // Reads the central directory.
+    assertNull(jarLoader.getResource("fixtures/missing.txt"));
+    final long latency = 400L;
+    this.client.setLatency(latency, latency, TimeUnit.MILLISECONDS);
+    final long requestCount = this.client.getRequestCount();
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      final Future<String> first = executor.submit(read(jarLoader, adjacent.get(0), new CountDownLatch(0)));
+      // Let the first read get under way.
+      Thread.sleep(latency / 4L);
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Future<String>> adjacentResults = new ArrayList<>();
+      for (final String name : adjacent.subList(1, adjacent.size())) {
+        adjacentResults.add(executor.submit(read(jarLoader, name, start)));
+      }
+      final List<Future<String>> distantResults = new ArrayList<>();
+      for (final String name : distant) {
+        distantResults.add(executor.submit(read(jarLoader, name, start)));
+      }
+      final long startTime = System.nanoTime();
+      start.countDown();
+      for (int i = 0; i < distant.size(); i++) {
+        assertEquals(distant.get(i), distantResults.get(i).get());
+      }
+      // The distant reads were neither held up by the read in
+      // progress nor by one another.
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < 2L * latency);
+      assertEquals(adjacent.get(0), first.get());
+      for (int i = 1; i < adjacent.size(); i++) {
+        assertEquals(adjacent.get(i), adjacentResults.get(i - 1).get());
+      }
+      // One request for the first adjacent entry, one merged request
+      // for the adjacent entries that queued up behind it, and one
+      // request for each distant entry.
+      assertEquals(requestCount + 2L + distant.size(), this.client.getRequestCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static final Callable<String> read(final ClassLoader loader, final String name, final CountDownLatch start) {
+    return new Callable<String>() {
+      @Override
+      public final String call() throws Exception {
+        start.await();
+        try (final InputStream stream = loader.getResourceAsStream(name)) {
+          return new String(readFully(stream), StandardCharsets.UTF_8);
+        }
+      }
+    };
+  }
+
+  private static final Path onlyFile(final Path directory) {
+    final String[] names = directory.toFile().list();
+    assertEquals(1, names.length);
+    return directory.resolve(names[0]);
+  }
+
+  private static final byte[] classBytes(final Class<?> c) throws IOException {
+    final String resourceName = c.getName().replace('.', '/') + ".class";
+    try (final InputStream stream = c.getClassLoader().getResourceAsStream(resourceName)) {
+      assertNotNull(stream);
+      return readFully(stream);
+    }
+  }
+
+  private static final byte[] readFully(final InputStream stream) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int bytesRead;
+    while ((bytesRead = stream.read(buffer)) >= 0) {
+      bytes.write(buffer, 0, bytesRead);
+    }
+    return bytes.toByteArray();
+  }
+
+  public static final class Fixture {
+
+  }
+
+  public static interface FixtureInterface {
+
+  }
+
+  public static class FixtureSuperclass {
+
+  }
+
+  public static final class FixtureSubclass extends FixtureSuperclass implements FixtureInterface {
+
   }
 
-  
 }
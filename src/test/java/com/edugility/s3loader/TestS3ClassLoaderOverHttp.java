@@ -0,0 +1,481 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2016 Edugility LLC. All rights reserved.
+ */
+package com.edugility.s3loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URL;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestS3ClassLoaderOverHttp {
+
+  private static final String BUCKET_NAME = "s3loader-test";
+
+  private static final String GOOD_CLASS_NAME = TestS3ClassLoader.Fixture.class.getName();
+
+  private FakeAmazonS3 backing;
+
+  private LoopbackS3Server server;
+
+  private AmazonS3 client;
+
+  public TestS3ClassLoaderOverHttp() {
+    super();
+  }
+
+  @Before
+  public void startServer() throws IOException {
+    this.backing = new FakeAmazonS3();
+    this.backing.putObject(BUCKET_NAME, GOOD_CLASS_NAME, classBytes(TestS3ClassLoader.Fixture.class));
+    this.server = new LoopbackS3Server(this.backing);
+    this.client = this.server.newClient();
+  }
+
+  @After
+  public void stopServer() {
+    this.server.close();
+  }
+
+  @Test
+  public void testGoodClassLoad() throws ClassNotFoundException {
+    final S3ClassLoader loader = new S3ClassLoader(null, this.client, BUCKET_NAME, false);
+    final Class<?> goodClass = loader.loadClass(GOOD_CLASS_NAME);
+    assertEquals(GOOD_CLASS_NAME, goodClass.getName());
+    assertSame(loader, goodClass.getClassLoader());
+    assertEquals(1L, this.backing.getRequestCount());
+  }
+
+  @Test
+  public void testBadClassLoad() {
+    final S3ClassLoader loader = new S3ClassLoader(null, this.client, BUCKET_NAME, false);
+    try {
+      loader.loadClass("com.edugility.s3loader.NoSuchClass");
+      fail();
+    } catch (final ClassNotFoundException expected) {
+
+    }
+    assertEquals(1L, loader.getMetrics().getNotFoundCount());
+  }
+
+  @Test
+  public void testRevalidation() throws ClassNotFoundException {
+    final ObjectCache cache = new MemoryObjectCache(1024L * 1024L, 0L, Integer.MAX_VALUE);
+    final S3ClassLoader first = new S3ClassLoader(null, this.client, BUCKET_NAME, false);
+    first.setObjectCache(cache, true);
+    first.loadClass(GOOD_CLASS_NAME);
+    final S3ClassLoader second = new S3ClassLoader(null, this.client, BUCKET_NAME, false);
+    second.setObjectCache(cache, true);
+    assertEquals(GOOD_CLASS_NAME, second.loadClass(GOOD_CLASS_NAME).getName());
+    // The second request was answered with 304 Not Modified.
+    assertEquals(1L, second.getMetrics().getObjectCacheHitCount());
+    assertEquals(0L, second.getMetrics().getBytesTransferred());
+  }
+
+  @Test
+  public void testJarClassLoad() throws ClassNotFoundException, IOException {
+    final ByteArrayOutputStream jar = new ByteArrayOutputStream();
+    try (final JarOutputStream out = new JarOutputStream(jar)) {
+      out.putNextEntry(new JarEntry(GOOD_CLASS_NAME.replace('.', '/') + ".class"));
+      out.write(classBytes(TestS3ClassLoader.Fixture.class));
+      out.closeEntry();
+    }
+    this.backing.putObject(BUCKET_NAME, "fixture.jar", jar.toByteArray());
+    final S3JarClassLoader loader = new S3JarClassLoader(null, this.client, BUCKET_NAME, "fixture.jar", false);
+    assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+  }
+
+  @Test
+  public void testManifest() throws IOException {
+    for (int i = 0; i < 3; i++) {
+      this.backing.putObject(BUCKET_NAME, "resources/a b+c " + i, new byte[i]);
+    }
+    final BucketManifest manifest = BucketManifest.list(this.client, BUCKET_NAME, "resources/");
+    final S3ClassLoader loader = new S3ClassLoader(null, this.client, BUCKET_NAME, false, manifest);
+    try (final InputStream stream = loader.getResourceAsStream("resources/a b+c 2")) {
+      assertEquals(2, readFully(stream).length);
+    }
+    assertNull(loader.getResourceAsStream("resources/missing"));
+    assertEquals(1L, this.backing.getRequestCount());
+  }
+
+  @Test
+  public void testLoadTraceRoundTrip() throws IOException {
+    final LoadTrace trace = new LoadTrace();
+    trace.recordClass(GOOD_CLASS_NAME);
+    trace.recordResource("resources/a");
+    trace.save(this.client, BUCKET_NAME, "trace.txt");
+    final LoadTrace loaded = LoadTrace.load(this.client, BUCKET_NAME, "trace.txt", false);
+    assertEquals(trace.getClassNames(), loaded.getClassNames());
+    assertEquals(trace.getResourceNames(), loaded.getResourceNames());
+  }
+
+  @Test
+  public void testConnectionReset() {
+    this.backing.setResetRate(1.0);
+    final S3ClassLoader loader = new S3ClassLoader(null, this.client, BUCKET_NAME, false);
+    try {
+      loader.loadClass(GOOD_CLASS_NAME);
+      fail();
+    } catch (final ClassNotFoundException expected) {
+      assertTrue(expected.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void testSlowDownIsRetriedWithoutClientRetries() throws ClassNotFoundException, IOException {
+    final AtomicInteger requests = new AtomicInteger();
+    final FakeAmazonS3 backing = new FakeAmazonS3() {
+        @Override
+        public final S3Object getObject(final GetObjectRequest request) {
+          if (requests.getAndIncrement() < 2) {
+            final AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+            slowDown.setStatusCode(503);
+            slowDown.setErrorCode("SlowDown");
+            throw slowDown;
+          }
+          return super.getObject(request);
+        }
+      };
+    backing.putObject(BUCKET_NAME, GOOD_CLASS_NAME, classBytes(TestS3ClassLoader.Fixture.class));
+    try (final LoopbackS3Server server = new LoopbackS3Server(backing)) {
+      final AmazonS3 client = server.newClient(new ClientConfiguration().withMaxErrorRetry(0));
+      final ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 64);
+      final S3ClassLoader loader = new S3ClassLoader(null, client, BUCKET_NAME, false);
+      loader.setConcurrencyLimiter(limiter, 10);
+      assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+      // Every throttled response reached the limiter; none was
+      // retried by the client behind its back.
+      assertEquals(3L, server.getRequestCount());
+      assertEquals(2L, loader.getMetrics().getRetryCount());
+      assertEquals(2, limiter.getLimit());
+    }
+  }
+
+  @Test
+  public void testFastestReplicaIsPreferred() throws IOException {
+    this.backing.setLatency(100L, 100L, TimeUnit.MILLISECONDS);
+    final FakeAmazonS3 fastBacking = new FakeAmazonS3();
+    fastBacking.setLatency(1L, 1L, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 10; i++) {
+      this.backing.putObject(BUCKET_NAME, "resources/" + i, new byte[i]);
+      fastBacking.putObject("s3loader-replica", "resources/" + i, new byte[i]);
+    }
+    try (final LoopbackS3Server fastServer = new LoopbackS3Server(fastBacking)) {
+      final S3ReplicaClassLoader.Replica slow = new S3ReplicaClassLoader.Replica(this.client, BUCKET_NAME);
+      final S3ReplicaClassLoader.Replica fast = new S3ReplicaClassLoader.Replica(fastServer.newClient(), "s3loader-replica");
+      final S3ReplicaClassLoader loader = new S3ReplicaClassLoader(null, Arrays.asList(slow, fast), false);
+      for (int i = 0; i < 10; i++) {
+        try (final InputStream stream = loader.getResourceAsStream("resources/" + i)) {
+          assertEquals(i, readFully(stream).length);
+        }
+      }
+      // Each replica was probed once; the rest went to the fast one.
+      assertEquals(1L, this.backing.getRequestCount());
+      assertEquals(9L, fastBacking.getRequestCount());
+      assertTrue(fast.getLatencyEstimate(TimeUnit.MICROSECONDS) < slow.getLatencyEstimate(TimeUnit.MICROSECONDS));
+    }
+  }
+
+  @Test
+  public void testReplicaFailover() throws ClassNotFoundException, IOException {
+    final FakeAmazonS3 failingBacking = new FakeAmazonS3();
+    failingBacking.setSlowDownRate(1.0);
+    try (final LoopbackS3Server failingServer = new LoopbackS3Server(failingBacking)) {
+      final S3ReplicaClassLoader.Replica failing = new S3ReplicaClassLoader.Replica(failingServer.newClient(new ClientConfiguration().withMaxErrorRetry(0)), "s3loader-replica");
+      final S3ReplicaClassLoader.Replica healthy = new S3ReplicaClassLoader.Replica(this.client, BUCKET_NAME);
+      final S3ReplicaClassLoader loader = new S3ReplicaClassLoader(null, Arrays.asList(failing, healthy), false);
+      assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+      assertEquals(Long.valueOf(1L), loader.getMetrics().getErrorCounts().get("AmazonS3Exception 503"));
+      assertTrue(failing.getLatencyEstimate(TimeUnit.SECONDS) >= 1L);
+    }
+  }
+
+  @Test
+  public void testPresignedUrlFetch() throws ClassNotFoundException {
+    final PresignedUrlFetcher fetcher = new PresignedUrlFetcher(this.client, 1L, TimeUnit.HOURS);
+    final LoadTrace trace = new LoadTrace();
+    trace.recordClass(GOOD_CLASS_NAME);
+    final ObjectCache cache = new MemoryObjectCache(1024L * 1024L, 0L, Integer.MAX_VALUE);
+    // The loaders' own client knows of no objects, so every class
+    // loaded was fetched through a pre-signed URL.
+    final AmazonS3 empty = new FakeAmazonS3();
+    final S3ClassLoader first = new S3ClassLoader(null, empty, BUCKET_NAME, false);
+    first.setPresignedUrlFetcher(fetcher);
+    first.setObjectCache(cache, true);
+    assertEquals(1, first.presign(trace));
+    assertEquals(GOOD_CLASS_NAME, first.loadClass(GOOD_CLASS_NAME).getName());
+    try {
+      first.loadClass("com.edugility.s3loader.NoSuchClass");
+      fail();
+    } catch (final ClassNotFoundException expected) {
+
+    }
+    assertEquals(1L, first.getMetrics().getNotFoundCount());
+    final S3ClassLoader second = new S3ClassLoader(null, empty, BUCKET_NAME, false);
+    second.setPresignedUrlFetcher(fetcher);
+    second.setObjectCache(cache, true);
+    assertEquals(GOOD_CLASS_NAME, second.loadClass(GOOD_CLASS_NAME).getName());
+    // The second request was answered with 304 Not Modified.
+    assertEquals(1L, second.getMetrics().getObjectCacheHitCount());
+    assertEquals(3L, this.server.getRequestCount());
+  }
+
+  @Test
+  public void testRefusedPresignedUrlIsSignedAgain() throws ExecutionException, InterruptedException, IOException {
+    final FakeAmazonS3 expiring = newExpiringBacking();
+    try (final LoopbackS3Server plainServer = new LoopbackS3Server(expiring);
+         final LoopbackS3Server secureServer = new LoopbackS3Server(expiring, true)) {
+      final PresignedUrlFetcher fetcher = new PresignedUrlFetcher(plainServer.newClient(), 1L, TimeUnit.HOURS);
+      final URL url = fetcher.getUrl(BUCKET_NAME, GOOD_CLASS_NAME);
+      try (final S3Object s3Object = fetcher.getObject(new GetObjectRequest(BUCKET_NAME, GOOD_CLASS_NAME))) {
+        assertEquals(classBytes(TestS3ClassLoader.Fixture.class).length, readFully(s3Object.getObjectContent()).length);
+      }
+      assertNotSame(url, fetcher.getUrl(BUCKET_NAME, GOOD_CLASS_NAME));
+      assertEquals(2L, plainServer.getRequestCount());
+      try (final AsyncObjectFetcher asyncFetcher = newAsyncObjectFetcher(secureServer)) {
+        final S3Object s3Object = asyncFetcher.getObject(new GetObjectRequest(BUCKET_NAME, GOOD_CLASS_NAME)).get();
+        assertEquals(classBytes(TestS3ClassLoader.Fixture.class).length, readFully(s3Object.getObjectContent()).length);
+      }
+      assertEquals(2L, secureServer.getRequestCount());
+    }
+  }
+
+  @Test
+  public void testPresignedUrlIsSignedAgainWhenItsCredentialsExpire() throws InterruptedException {
+    final PresignedUrlFetcher fetcher = new PresignedUrlFetcher(this.client, 1L, TimeUnit.HOURS);
+    final URL url = fetcher.getUrl(BUCKET_NAME, GOOD_CLASS_NAME);
+    assertSame(url, fetcher.getUrl(BUCKET_NAME, GOOD_CLASS_NAME));
+    fetcher.setCredentialsExpiration(new Date(System.currentTimeMillis() + 100L));
+    assertSame(url, fetcher.getUrl(BUCKET_NAME, GOOD_CLASS_NAME));
+    Thread.sleep(200L);
+    final URL renewed = fetcher.getUrl(BUCKET_NAME, GOOD_CLASS_NAME);
+    assertNotSame(url, renewed);
+    // The renewed URL was signed after the credentials expired, and so
+    // presumably with fresh ones.
+    assertSame(renewed, fetcher.getUrl(BUCKET_NAME, GOOD_CLASS_NAME));
+  }
+
+  @Test
+  public void testAsyncPrefetch() throws ClassNotFoundException, InterruptedException, IOException {
+    final LoadTrace trace = new LoadTrace();
+    trace.recordClass(GOOD_CLASS_NAME);
+    for (int i = 0; i < 50; i++) {
+      this.backing.putObject(BUCKET_NAME, "resources/" + i, new byte[i]);
+      trace.recordResource("resources/" + i);
+    }
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (final LoopbackS3Server secureServer = new LoopbackS3Server(this.backing, true);
+         final AsyncObjectFetcher fetcher = newAsyncObjectFetcher(secureServer)) {
+      // The loader's own client knows of no objects, so everything
+      // loaded was prefetched through the AsyncObjectFetcher.
+      final S3ClassLoader loader = new S3ClassLoader(null, new FakeAmazonS3(), BUCKET_NAME, false);
+      loader.setPrefetchExecutor(executor, 1);
+      loader.setAsyncObjectFetcher(fetcher);
+      assertEquals(51, loader.replay(trace));
+      assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+      for (int i = 0; i < 50; i++) {
+        try (final InputStream stream = loader.getResourceAsStream("resources/" + i)) {
+          assertEquals(i, readFully(stream).length);
+        }
+      }
+      try {
+        fetcher.getObject(new GetObjectRequest(BUCKET_NAME, "resources/missing")).get();
+        fail();
+      } catch (final ExecutionException expected) {
+        assertEquals(404, ((AmazonS3Exception)expected.getCause()).getStatusCode());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(timeout = 30000L)
+  public void testAsyncPrefetchOfClassAndItsResourceDoesNotDeadlock() throws ClassNotFoundException, IOException {
+    final String resourceName = GOOD_CLASS_NAME.replace('.', '/') + ".class";
+    final LoadTrace trace = new LoadTrace();
+    trace.recordClass(GOOD_CLASS_NAME);
+    trace.recordResource(resourceName);
+    // The first prefetch must still be in flight when the second
+    // runs, or the second will rightly fetch the object again.
+    this.backing.setLatency(200L, 200L, TimeUnit.MILLISECONDS);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (final LoopbackS3Server secureServer = new LoopbackS3Server(this.backing, true);
+         final AsyncObjectFetcher fetcher = newAsyncObjectFetcher(secureServer)) {
+      final S3ClassLoader loader = new S3ClassLoader(null, new FakeAmazonS3(), BUCKET_NAME, false) {
+          @Override
+          protected final boolean isPrefetchCandidate(final String className) {
+            // Not the classes the fixture refers to, which would cost
+            // requests of their own.
+            return GOOD_CLASS_NAME.equals(className);
+          }
+        };
+      loader.setPrefetchExecutor(executor, 1);
+      loader.setAsyncObjectFetcher(fetcher);
+      // Both prefetches map to the same object, so the second shares
+      // the first's fetch; it must not occupy the executor's only
+      // thread while waiting for it.
+      assertEquals(2, loader.replay(trace));
+      assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+      try (final InputStream stream = loader.getResourceAsStream(resourceName)) {
+        assertEquals(classBytes(TestS3ClassLoader.Fixture.class).length, readFully(stream).length);
+      }
+      assertEquals(1L, secureServer.getRequestCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(timeout = 30000L)
+  public void testSlowListenerDoesNotStallOtherResponses() throws Exception {
+    this.backing.putObject(BUCKET_NAME, "resources/slow", new byte[] { 1 });
+    this.backing.putObject(BUCKET_NAME, "resources/fast", new byte[] { 2 });
+    try (final LoopbackS3Server secureServer = new LoopbackS3Server(this.backing, true);
+         final AsyncObjectFetcher fetcher = newAsyncObjectFetcher(secureServer)) {
+      final CountDownLatch fastFetched = new CountDownLatch(1);
+      final AtomicReference<Thread> slowThread = new AtomicReference<>();
+      final CountDownLatch slowNotified = new CountDownLatch(1);
+      fetcher.getObject(new GetObjectRequest(BUCKET_NAME, "resources/slow"), new AsyncObjectFetcher.Listener() {
+          @Override
+          public final void onCompletion(final S3Object s3Object, final AmazonClientException failure) {
+            slowThread.set(Thread.currentThread());
+            slowNotified.countDown();
+            try {
+              // Were this the selector thread, the other response
+              // could never be read.
+              fastFetched.await();
+            } catch (final InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+      slowNotified.await();
+      assertEquals("s3loader-async-completion", slowThread.get().getName());
+      assertEquals(2, readFully(fetcher.getObject(new GetObjectRequest(BUCKET_NAME, "resources/fast")).get().getObjectContent())[0]);
+      fastFetched.countDown();
+    }
+  }
+
+  @Test
+  public void testDemandLoadThroughAsyncObjectFetcher() throws ClassNotFoundException, IOException {
+    this.backing.putObject(BUCKET_NAME, "resources/demand", new byte[] { 1, 2, 3 });
+    try (final LoopbackS3Server secureServer = new LoopbackS3Server(this.backing, true);
+         final AsyncObjectFetcher fetcher = newAsyncObjectFetcher(secureServer)) {
+      // No prefetching is enabled and the loader's own client knows of
+      // no objects, so everything loaded came through the
+      // AsyncObjectFetcher.
+      final S3ClassLoader loader = new S3ClassLoader(null, new FakeAmazonS3(), BUCKET_NAME, false);
+      loader.setAsyncObjectFetcher(fetcher);
+      assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+      try (final InputStream stream = loader.getResourceAsStream("resources/demand")) {
+        assertEquals(3, readFully(stream).length);
+      }
+      assertEquals(2L, loader.getMetrics().getRequestCount());
+    }
+  }
+
+  @Test
+  public void testAsyncObjectFetcherRefusesPlainText() throws ClassNotFoundException, IOException {
+    try (final AsyncObjectFetcher fetcher = new AsyncObjectFetcher(new PresignedUrlFetcher(this.client, 1L, TimeUnit.HOURS), 2)) {
+      assertFalse(fetcher.supports(new GetObjectRequest(BUCKET_NAME, GOOD_CLASS_NAME.replace('.', '/') + ".class")));
+      final S3ClassLoader loader = new S3ClassLoader(null, this.client, BUCKET_NAME, false);
+      loader.setAsyncObjectFetcher(fetcher);
+      // The class is loaded as usual instead.
+      assertEquals(GOOD_CLASS_NAME, loader.loadClass(GOOD_CLASS_NAME).getName());
+    }
+  }
+
+  @Test(timeout = 30000L)
+  public void testAsyncObjectFetcherRejectsUntrustedCertificate() throws InterruptedException, IOException {
+    try (final LoopbackS3Server secureServer = new LoopbackS3Server(this.backing, true);
+         final AsyncObjectFetcher fetcher = new AsyncObjectFetcher(new PresignedUrlFetcher(secureServer.newClient(), 1L, TimeUnit.HOURS), 2)) {
+      // The default SSLContext does not trust the loopback
+      // certificate.
+      fetcher.getObject(new GetObjectRequest(BUCKET_NAME, GOOD_CLASS_NAME.replace('.', '/') + ".class")).get();
+      fail();
+    } catch (final ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof AmazonClientException);
+    }
+  }
+
+  private final FakeAmazonS3 newExpiringBacking() throws IOException {
+    final FakeAmazonS3 returnValue = new FakeAmazonS3() {
+        private final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public final S3Object getObject(final GetObjectRequest request) {
+          // Every other request is refused, as it would be if the
+          // credentials that signed its URL had expired.
+          if (this.requests.getAndIncrement() % 2 == 0) {
+            final AmazonS3Exception expiredToken = new AmazonS3Exception("The provided token has expired.");
+            expiredToken.setStatusCode(403);
+            expiredToken.setErrorCode("ExpiredToken");
+            throw expiredToken;
+          }
+          return super.getObject(request);
+        }
+      };
+    returnValue.putObject(BUCKET_NAME, GOOD_CLASS_NAME, classBytes(TestS3ClassLoader.Fixture.class));
+    return returnValue;
+  }
+
+  private static final AsyncObjectFetcher newAsyncObjectFetcher(final LoopbackS3Server server) throws IOException {
+    return new AsyncObjectFetcher(new PresignedUrlFetcher(server.newClient(), 1L, TimeUnit.HOURS), 2, LoopbackS3Server.getSSLContext());
+  }
+
+  private static final byte[] classBytes(final Class<?> c) throws IOException {
+    final String resourceName = c.getName().replace('.', '/') + ".class";
+    try (final InputStream stream = c.getClassLoader().getResourceAsStream(resourceName)) {
+      return readFully(stream);
+    }
+  }
+
+  private static final byte[] readFully(final InputStream stream) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int bytesRead;
+    while ((bytesRead = stream.read(buffer)) >= 0) {
+      bytes.write(buffer, 0, bytesRead);
+    }
+    return bytes.toByteArray();
+  }
+
+}